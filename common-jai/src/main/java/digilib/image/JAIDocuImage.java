@@ -482,6 +482,7 @@ public class JAIDocuImage extends ImageInfoDocuImage {
 	 */
 	public void dispose() {
 		img = null;
+		super.dispose();
 	}
 
 }
@@ -216,6 +216,7 @@ public class JAIImageLoaderDocuImage extends JAIDocuImage {
 		reader.dispose();
 		reader = null;
 		img = null;
+		super.dispose();
 	}
 
 }
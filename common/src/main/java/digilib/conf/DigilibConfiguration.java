@@ -38,6 +38,7 @@ import org.apache.log4j.Logger;
 
 import digilib.image.DocuImage;
 import digilib.image.DocuImageFactory;
+import digilib.image.ImageHeaderIdentifier;
 import digilib.util.Parameter;
 import digilib.util.ParameterMap;
 
@@ -92,6 +93,8 @@ public class DigilibConfiguration extends ParameterMap {
         newParameter("max-image-size", new Integer(0), null, 'f');
         // allow image toolkit to use disk cache
         newParameter("img-diskcache-allowed", Boolean.FALSE, null, 'f');
+        // identify images by parsing the file header directly
+        newParameter("header-identify", Boolean.TRUE, null, 'f');
         // default type of error message (image, text, code)
         newParameter("default-errmsg-type", "image", null, 'f');
         // prefix for IIIF image API paths (used by DigilibRequest)
@@ -197,6 +200,8 @@ public class DigilibConfiguration extends ParameterMap {
         boolean dc = getAsBoolean("img-diskcache-allowed");
         // TODO: methods for all toolkits?
         ImageIO.setUseCache(dc);
+        // header identification
+        ImageHeaderIdentifier.setEnabled(getAsBoolean("header-identify"));
     }
 
     /**
@@ -182,7 +182,11 @@ public abstract class DocuImageImpl implements DocuImage {
     }
 
     public void dispose() {
-        // emtpy implementation
+        // release the memory budget
+        Object reservation = hints.remove(MemoryBudget.RESERVATION_HINT);
+        if (reservation != null) {
+            ((MemoryBudget.Reservation) reservation).release();
+        }
     }
 
     public Iterator<String> getSupportedFormats() {
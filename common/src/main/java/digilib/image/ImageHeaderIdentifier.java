@@ -0,0 +1,388 @@
+package digilib.image;
+
+/*
+ * #%L
+ * Identifies image size and type by parsing the file header.
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+import digilib.io.ImageInput;
+import digilib.util.ImageSize;
+
+/**
+ * Identifies the size and type of JPEG, PNG, TIFF and JPEG2000 files by
+ * parsing the file header directly.
+ *
+ * Reads the first HEADER_SIZE bytes of the file with a single positioned
+ * read. Further reads are only done if the JPEG frame header or the first
+ * TIFF IFD lie outside this block.
+ */
+public class ImageHeaderIdentifier {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ImageHeaderIdentifier.class);
+
+    /** size of the first read */
+    public static final int HEADER_SIZE = 8192;
+
+    /** maximum number of additional reads */
+    protected static final int MAX_READS = 8;
+
+    /** use header identification in ImageInfoDocuImage */
+    protected static boolean enabled = true;
+
+    /**
+     * Identifies the image file and sets size and mime-type of the
+     * ImageInput.
+     *
+     * Returns null if the file type is not supported or the header is
+     * broken.
+     *
+     * @param ii
+     * @return
+     * @throws IOException
+     */
+    public static ImageInput identify(ImageInput ii) throws IOException {
+        if (!ii.hasFile()) {
+            return null;
+        }
+        FileInputStream in = new FileInputStream(ii.getFile());
+        try {
+            Reader r = new Reader(in.getChannel());
+            if (!r.read(0, HEADER_SIZE) || r.buf.remaining() < 12) {
+                return null;
+            }
+            ByteBuffer b = r.buf;
+            int b0 = b.get(0) & 0xff;
+            int b1 = b.get(1) & 0xff;
+            if (b0 == 0xff && b1 == 0xd8) {
+                return set(ii, identifyJpeg(r), "image/jpeg");
+            } else if (b0 == 0x89 && b1 == 'P' && b.get(2) == 'N' && b.get(3) == 'G') {
+                return set(ii, identifyPng(r), "image/png");
+            } else if ((b0 == 'I' && b1 == 'I') || (b0 == 'M' && b1 == 'M')) {
+                return set(ii, identifyTiff(r), "image/tiff");
+            } else if (b.getInt(0) == 12 && b.getInt(4) == 0x6a502020) {
+                return set(ii, identifyJp2(r), "image/jp2");
+            } else if (b0 == 0xff && b1 == 0x4f) {
+                return set(ii, identifyJ2k(r), "image/jp2");
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // truncated header
+            logger.debug("ImageHeaderIdentifier: truncated header in " + ii);
+        } finally {
+            in.close();
+        }
+        return null;
+    }
+
+    /**
+     * Sets size and mime-type if size is not null.
+     */
+    protected static ImageInput set(ImageInput ii, ImageSize size, String mimeType) {
+        if (size == null || size.getWidth() <= 0 || size.getHeight() <= 0) {
+            return null;
+        }
+        ii.setSize(size);
+        ii.setMimetype(mimeType);
+        return ii;
+    }
+
+    /**
+     * Returns the size from the first SOF marker.
+     */
+    protected static ImageSize identifyJpeg(Reader r) throws IOException {
+        r.buf.order(ByteOrder.BIG_ENDIAN);
+        long pos = 2;
+        while (true) {
+            if (!r.ensure(pos, 9)) {
+                return null;
+            }
+            int idx = r.index(pos);
+            if ((r.buf.get(idx) & 0xff) != 0xff) {
+                // not a marker
+                return null;
+            }
+            int marker = r.buf.get(idx + 1) & 0xff;
+            if (marker == 0xff) {
+                // fill byte
+                pos += 1;
+                continue;
+            }
+            if (marker == 0xd8 || marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                // marker without length
+                pos += 2;
+                continue;
+            }
+            if (marker == 0xd9 || marker == 0xda) {
+                // end of image or start of scan before frame header
+                return null;
+            }
+            int len = r.buf.getShort(idx + 2) & 0xffff;
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                // start of frame
+                int height = r.buf.getShort(idx + 5) & 0xffff;
+                int width = r.buf.getShort(idx + 7) & 0xffff;
+                return new ImageSize(width, height);
+            }
+            pos += 2 + len;
+        }
+    }
+
+    /**
+     * Returns the size from the IHDR chunk.
+     */
+    protected static ImageSize identifyPng(Reader r) {
+        ByteBuffer b = r.buf.order(ByteOrder.BIG_ENDIAN);
+        if (b.remaining() < 24 || b.getInt(12) != 0x49484452) {
+            return null;
+        }
+        return new ImageSize(b.getInt(16), b.getInt(20));
+    }
+
+    /**
+     * Returns the size from the ImageWidth and ImageLength tags in IFD0.
+     */
+    protected static ImageSize identifyTiff(Reader r) throws IOException {
+        ByteBuffer b = r.buf;
+        ByteOrder order = (b.get(0) == 'I') ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        b.order(order);
+        if (b.getShort(2) != 42) {
+            // not classic TIFF (e.g. BigTIFF)
+            return null;
+        }
+        long ifd = b.getInt(4) & 0xffffffffL;
+        if (!r.ensure(ifd, 2)) {
+            return null;
+        }
+        int n = r.buf.getShort(r.index(ifd)) & 0xffff;
+        if (!r.ensure(ifd, 2 + n * 12)) {
+            return null;
+        }
+        int idx = r.index(ifd) + 2;
+        int width = -1;
+        int height = -1;
+        for (int i = 0; i < n; ++i) {
+            int e = idx + i * 12;
+            int tag = r.buf.getShort(e) & 0xffff;
+            if (tag != 256 && tag != 257) {
+                continue;
+            }
+            int type = r.buf.getShort(e + 2) & 0xffff;
+            int value;
+            if (type == 3) {
+                // SHORT
+                value = r.buf.getShort(e + 8) & 0xffff;
+            } else if (type == 4) {
+                // LONG
+                value = r.buf.getInt(e + 8);
+            } else {
+                return null;
+            }
+            if (tag == 256) {
+                width = value;
+            } else {
+                height = value;
+            }
+        }
+        return new ImageSize(width, height);
+    }
+
+    /**
+     * Returns the size from the ihdr box in the jp2h box.
+     */
+    protected static ImageSize identifyJp2(Reader r) throws IOException {
+        r.buf.order(ByteOrder.BIG_ENDIAN);
+        long pos = 0;
+        long end = Long.MAX_VALUE;
+        while (pos < end) {
+            if (!r.ensure(pos, 16)) {
+                return null;
+            }
+            int idx = r.index(pos);
+            long len = r.buf.getInt(idx) & 0xffffffffL;
+            int type = r.buf.getInt(idx + 4);
+            int head = 8;
+            if (len == 1) {
+                // extended length
+                len = r.buf.getLong(idx + 8);
+                head = 16;
+            } else if (len == 0) {
+                // box extends to end of file
+                len = Long.MAX_VALUE - pos;
+            }
+            if (len < head) {
+                return null;
+            }
+            if (type == 0x6a703268) {
+                // jp2h: continue with contained boxes
+                end = pos + len;
+                pos += head;
+                continue;
+            }
+            if (type == 0x69686472) {
+                // ihdr
+                if (!r.ensure(pos + head, 8)) {
+                    return null;
+                }
+                idx = r.index(pos + head);
+                int height = r.buf.getInt(idx);
+                int width = r.buf.getInt(idx + 4);
+                return new ImageSize(width, height);
+            }
+            if (type == 0x6a703263) {
+                // codestream before header
+                return null;
+            }
+            pos += len;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the size from the SIZ marker of a raw JPEG2000 codestream.
+     */
+    protected static ImageSize identifyJ2k(Reader r) {
+        ByteBuffer b = r.buf.order(ByteOrder.BIG_ENDIAN);
+        if ((b.getShort(2) & 0xffff) != 0xff51) {
+            return null;
+        }
+        // Xsiz, Ysiz, XOsiz, YOsiz
+        int width = b.getInt(8) - b.getInt(16);
+        int height = b.getInt(12) - b.getInt(20);
+        return new ImageSize(width, height);
+    }
+
+    /**
+     * Buffer with a part of the file read by positioned reads.
+     */
+    protected static class Reader {
+        protected FileChannel channel;
+        protected ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        /** file position of the start of the buffer */
+        protected long start = 0;
+        /** number of reads */
+        protected int reads = 0;
+
+        public Reader(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Reads up to len bytes at position pos into the buffer.
+         *
+         * Returns false if nothing could be read.
+         */
+        public boolean read(long pos, int len) throws IOException {
+            if (++reads > MAX_READS) {
+                return false;
+            }
+            if (buf.capacity() < len) {
+                buf = ByteBuffer.allocate(len);
+            }
+            buf.clear();
+            buf.limit(len);
+            start = pos;
+            while (buf.hasRemaining()) {
+                int n = channel.read(buf, pos + buf.position());
+                if (n < 0) {
+                    break;
+                }
+            }
+            buf.flip();
+            return buf.hasRemaining();
+        }
+
+        /**
+         * Makes sure that len bytes at position pos are in the buffer.
+         *
+         * Returns false if they can not be read.
+         */
+        public boolean ensure(long pos, int len) throws IOException {
+            if (pos < 0 || len < 0) {
+                return false;
+            }
+            if (pos >= start && pos + len <= start + buf.limit()) {
+                return true;
+            }
+            ByteOrder order = buf.order();
+            boolean ok = read(pos, Math.max(len, HEADER_SIZE)) && buf.limit() >= len;
+            buf.order(order);
+            return ok;
+        }
+
+        /**
+         * Returns the buffer index of the file position pos.
+         */
+        public int index(long pos) {
+            return (int) (pos - start);
+        }
+    }
+
+    /**
+     * @return if header identification is used
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled
+     *            use header identification
+     */
+    public static void setEnabled(boolean enabled) {
+        ImageHeaderIdentifier.enabled = enabled;
+    }
+
+    /**
+     * Identifies the file f.
+     *
+     * Convenience method using a temporary ImageInput.
+     *
+     * @param f
+     * @return the size or null
+     * @throws IOException
+     */
+    public static ImageSize getSize(final File f) throws IOException {
+        ImageInput ii = new ImageInput() {
+            @Override
+            public boolean hasFile() {
+                return true;
+            }
+
+            @Override
+            public File getFile() {
+                return f;
+            }
+        };
+        if (identify(ii) == null) {
+            return null;
+        }
+        return ii.getSize();
+    }
+
+}
@@ -36,7 +36,8 @@ import digilib.io.ImageInput;
 import digilib.util.ImageSize;
 
 /** Simple abstract implementation of the <code>DocuImage</code> interface.
- * Implements only the identify method using the ImageInfo class.
+ * Implements only the identify method using the ImageHeaderIdentifier and 
+ * the ImageInfo class.
  * @author casties
  *
  */
@@ -44,6 +45,14 @@ public abstract class ImageInfoDocuImage extends DocuImageImpl {
 
     /* Check image size and type and store in ImageFile f */
     public ImageInput identify(ImageInput ii) throws IOException {
+        if (ImageHeaderIdentifier.isEnabled() && ii.hasFile()) {
+            // try fast header parsing first
+            logger.debug("identifying (header) " + ii);
+            if (ImageHeaderIdentifier.identify(ii) != null) {
+                logger.debug("image size: " + ii.getSize());
+                return ii;
+            }
+        }
         logger.debug("identifying (ImageInfo) " + ii);
         RandomAccessFile raf = null;
         try {
@@ -27,8 +27,11 @@ package digilib.image;
  *   Christopher Mielack (cmielack@mpiwg-berlin.mpg.de)
  */
 
+import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 
 import org.apache.log4j.Logger;
 
@@ -63,6 +66,12 @@ public class ImageJobDescription extends ParameterMap {
     protected DigilibConfiguration dlConfig = null;
     protected static Logger logger = Logger.getLogger("digilib.servlet");
 
+    /** assumed bytes per pixel of decoded images */
+    public static final int BYTES_PER_PIXEL = 4;
+
+    /** distance from an integer below which a pixel coordinate is rounded */
+    protected static final double PIXEL_EPSILON = 1e-3;
+
     /* 
      * variables for caching values
      */
@@ -89,6 +98,7 @@ public class ImageJobDescription extends ParameterMap {
     protected DocuDirCache dirCache = null;
 	protected ImageSize hiresSize = null;
 	protected ImageSize imgSize = null;
+	protected String renderKey = null;
 
     /**
      * create empty ImageJobDescription.
@@ -1082,6 +1092,42 @@ public class ImageJobDescription extends ParameterMap {
         return outerImgArea;
     }
 
+    /**
+     * Return the rectangle of source image pixels that will be loaded.
+     * 
+     * Contains the outer image area. Coordinates within PIXEL_EPSILON of an
+     * integer are rounded to it so that equivalent requests with
+     * floating point noise load the same pixels.
+     * 
+     * @return
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public Rectangle getOuterImgBounds() throws IOException, ImageOpException {
+        Rectangle2D area = getOuterImgArea();
+        int x1 = snapPixel(area.getMinX(), false);
+        int y1 = snapPixel(area.getMinY(), false);
+        int x2 = snapPixel(area.getMaxX(), true);
+        int y2 = snapPixel(area.getMaxY(), true);
+        return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+    }
+
+    /**
+     * Returns the pixel coordinate rounded to the nearest integer if it is
+     * within PIXEL_EPSILON, else rounded down (or up if ceil).
+     * 
+     * @param v
+     * @param ceil
+     * @return
+     */
+    protected static int snapPixel(double v, boolean ceil) {
+        double r = Math.rint(v);
+        if (Math.abs(v - r) < PIXEL_EPSILON) {
+            return (int) r;
+        }
+        return (int) (ceil ? Math.ceil(v) : Math.floor(v));
+    }
+
     /**
      * Get the RGBM parameter set.
      * 
@@ -1175,6 +1221,206 @@ public class ImageJobDescription extends ParameterMap {
         return true;
     }
 
+    /**
+     * Returns an estimate of the cost of rendering the image in pixel operations.
+     *
+     * The estimate is the number of decoded source pixels (the outer image area
+     * or the whole input image if the DocuImage can not load subimages) plus the
+     * number of output pixels, doubled for rotation and for blurring before
+     * high quality downscaling.
+     *
+     * @return
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public long getEstimatedCost() throws IOException, ImageOpException {
+        Rectangle2D area = getOuterImgArea();
+        double srcPixels = area.getWidth() * area.getHeight();
+        if (docuImage != null && !docuImage.isSubimageSupported()) {
+            ImageSize is = getInput().getSize();
+            srcPixels = (double) is.getWidth() * is.getHeight();
+        }
+        double scaleX = getScaleX();
+        double scaleY = getScaleY();
+        double outPixels = area.getWidth() * scaleX * area.getHeight() * scaleY;
+        double opFactor = 1;
+        if (getAsFloat("rot") % 360f != 0f) {
+            opFactor += 1;
+        }
+        if (getScaleQual() > 1 && (scaleX + scaleY) / 2d < 1) {
+            opFactor += 1;
+        }
+        return (long) (srcPixels + outPixels * opFactor);
+    }
+
+    /**
+     * Returns an estimate of the heap memory in bytes needed for rendering the image.
+     *
+     * The estimate is the size of the loaded source region (after subsampling, or
+     * the whole input image if the DocuImage can not load subimages) and of the
+     * scaled image, plus a copy of the loaded region for blurring before high quality
+     * downscaling and a copy of the scaled image for rotation. The number of bands and
+     * bytes per sample are only known after decoding, so BYTES_PER_PIXEL is used.
+     *
+     * @return
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public long getEstimatedMemory() throws IOException, ImageOpException {
+        Rectangle2D area = getOuterImgArea();
+        double scaleX = getScaleX();
+        double scaleY = getScaleY();
+        double scale = Math.max(scaleX, scaleY);
+        double loadedPixels;
+        if (docuImage != null && !docuImage.isSubimageSupported()) {
+            ImageSize is = getInput().getSize();
+            loadedPixels = (double) is.getWidth() * is.getHeight();
+        } else {
+            double subsamp = 1d;
+            if (scale < 1) {
+                // like ImageWorker
+                if (getScaleQual() > 0) {
+                    subsamp = Math.max(Math.floor(1 / scale / dlConfig.getAsFloat("subsample-minimum")), 1d);
+                } else {
+                    subsamp = Math.floor(1 / scale);
+                }
+            }
+            loadedPixels = area.getWidth() * area.getHeight() / (subsamp * subsamp);
+        }
+        double outPixels = area.getWidth() * scaleX * area.getHeight() * scaleY;
+        double pixels = loadedPixels + outPixels;
+        if (getScaleQual() > 1 && scale < 1) {
+            // blurred copy
+            pixels += loadedPixels;
+        }
+        if (getAsFloat("rot") % 360f != 0f) {
+            // rotated copy with larger bounds
+            pixels += 2 * outPixels;
+        }
+        return (long) (pixels * BYTES_PER_PIXEL);
+    }
+
+    /**
+     * Returns a canonical key for the rendered image.
+     * 
+     * The key is built from the resolved values after prepareScaleParams(): 
+     * the selected input file, the source area in pixels, the scale factors and quality, 
+     * all image operations and the output mime-type. Equivalent requests in 
+     * different parameter syntaxes (relative or pixel areas, IIIF) produce the same key.
+     * Floating point values are rounded and neutral operations are left out.
+     * 
+     * Returns null if the input is not a file.
+     * 
+     * @return
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public String getRenderKey() throws IOException, ImageOpException {
+        if (renderKey == null) {
+            ImageInput input = getInput();
+            if (!input.hasFile()) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder(input.getFile().getPath());
+            // source area in pixels (the rectangle the ImageWorker loads)
+            Rectangle area = getOuterImgBounds();
+            sb.append("|area=").append(area.x).append(",").append(area.y)
+                .append(",").append(area.width).append(",").append(area.height);
+            // scale factors and quality
+            sb.append("|scale=").append(formatKeyNumber(getScaleX())).append(",").append(formatKeyNumber(getScaleY()));
+            sb.append("|q=").append(getScaleQual());
+            // image operations
+            if (hasOption(DigilibOption.hmir)) {
+                sb.append("|hmir");
+            }
+            if (hasOption(DigilibOption.vmir)) {
+                sb.append("|vmir");
+            }
+            double rot = getAsFloat("rot") % 360d;
+            if (rot < 0) {
+                rot += 360d;
+            }
+            if (rot != 0) {
+                sb.append("|rot=").append(formatKeyNumber(rot));
+            }
+            float[] rgbm = getRGBM();
+            if (!isKeyNeutral(rgbm)) {
+                sb.append("|rgbm=").append(formatKeyNumbers(rgbm));
+            }
+            float[] rgba = getRGBA();
+            if (!isKeyNeutral(rgba)) {
+                sb.append("|rgba=").append(formatKeyNumbers(rgba));
+            }
+            float cont = getAsFloat("cont");
+            if (cont != 0) {
+                sb.append("|cont=").append(formatKeyNumber(cont));
+            }
+            float brgt = getAsFloat("brgt");
+            if (brgt != 0) {
+                sb.append("|brgt=").append(formatKeyNumber(brgt));
+            }
+            ColorOp colop = getColOp();
+            if (colop != null) {
+                sb.append("|colop=").append(colop.name());
+            }
+            // output type
+            sb.append("|").append(getOutputMimeType());
+            renderKey = sb.toString();
+        }
+        return renderKey;
+    }
+
+    /**
+     * Returns the number rounded to six decimal places as String.
+     * 
+     * @param n
+     * @return
+     */
+    protected static String formatKeyNumber(double n) {
+        if (Double.isNaN(n) || Double.isInfinite(n)) {
+            return String.valueOf(n);
+        }
+        BigDecimal bd = BigDecimal.valueOf(n).setScale(6, RoundingMode.HALF_UP).stripTrailingZeros();
+        if (bd.signum() == 0) {
+            return "0";
+        }
+        return bd.toPlainString();
+    }
+
+    /**
+     * Returns the numbers rounded to six decimal places as String separated by "/".
+     * 
+     * @param na
+     * @return
+     */
+    protected static String formatKeyNumbers(float[] na) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < na.length; ++i) {
+            if (i > 0) {
+                sb.append("/");
+            }
+            sb.append(formatKeyNumber(na[i]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns if the color parameters are missing or all zero.
+     * 
+     * @param na
+     * @return
+     */
+    protected static boolean isKeyNeutral(float[] na) {
+        if (na != null) {
+            for (float n : na) {
+                if (n != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     /**
      * @return the docuImage
      */
@@ -917,6 +917,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
         }
         // is this necessary?
         img = null;
+        super.dispose();
     }
 
     /* 
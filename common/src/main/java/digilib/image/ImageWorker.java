@@ -26,12 +26,17 @@ package digilib.image;
 import java.awt.Rectangle;
 import java.io.IOException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
 import digilib.conf.DigilibConfiguration;
 import digilib.conf.DigilibOption;
 import digilib.io.FileOpException;
+import digilib.util.CostAwareJob;
+import digilib.util.DigilibJobCenter;
 
 /**
  * Worker that renders an image.
@@ -39,7 +44,7 @@ import digilib.io.FileOpException;
  * @author casties
  * 
  */
-public class ImageWorker implements Callable<DocuImage> {
+public class ImageWorker implements Callable<DocuImage>, CostAwareJob {
 
     protected static Logger logger = Logger.getLogger(ImageWorker.class);
     private DigilibConfiguration dlConfig;
@@ -48,6 +53,12 @@ public class ImageWorker implements Callable<DocuImage> {
     /** flag for stopping the thread */
     private boolean stopNow = false;
 
+    /** reservation of the memory budget (may be null) */
+    private MemoryBudget.Reservation reservation = null;
+
+    /** admission of the memory budget while queued (may be null) */
+    private MemoryBudget.Reservation admission = null;
+
     public ImageWorker(DigilibConfiguration dlConfig,
             ImageJobDescription jobinfo) {
         super();
@@ -55,10 +66,92 @@ public class ImageWorker implements Callable<DocuImage> {
         this.jobinfo = jobinfo;
     }
 
+    /**
+     * Returns the estimated cost of rendering the image.
+     */
+    public long getCost() {
+        try {
+            return jobinfo.getEstimatedCost();
+        } catch (IOException | ImageOpException e) {
+            logger.warn("Unable to estimate cost: " + e.getMessage());
+        }
+        return 0;
+    }
+
+    /**
+     * Sets the admission of the memory budget for this job (see
+     * {@link MemoryBudget#admit(long)}).
+     * 
+     * The admission is released when the job starts or is cancelled.
+     * 
+     * @param admission
+     */
+    public void setMemoryAdmission(MemoryBudget.Reservation admission) {
+        this.admission = admission;
+    }
+
     /**
      * render and return the image
+     * 
+     * Reserves memory from the MemoryBudget before rendering. The slot of
+     * the job center is given back while waiting for the memory.
      */
     public DocuImage call() throws FileOpException, IOException, ImageOpException {
+        if (admission != null) {
+            admission.release();
+        }
+        MemoryBudget budget = MemoryBudget.getInstance();
+        if (budget != null && !stopNow) {
+            long bytes = jobinfo.getEstimatedMemory();
+            reservation = budget.tryReserve(bytes);
+            if (reservation == null) {
+                // let other jobs run while we wait
+                boolean suspended = DigilibJobCenter.suspendSlot();
+                try {
+                    reservation = budget.reserve(bytes);
+                } finally {
+                    if (suspended) {
+                        resumeSlot();
+                    }
+                }
+            }
+            if (reservation == null) {
+                throw new ImageOpException("Memory budget exhausted!");
+            }
+        }
+        DocuImage img = null;
+        try {
+            img = render();
+        } finally {
+            if (img == null && reservation != null) {
+                // failed or stopped
+                reservation.release();
+            }
+        }
+        return img;
+    }
+
+    /**
+     * Waits for the slot of the job center after waiting for memory.
+     * 
+     * @throws ImageOpException
+     */
+    protected void resumeSlot() throws ImageOpException {
+        try {
+            DigilibJobCenter.resumeSlot();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (reservation != null) {
+                reservation.release();
+            }
+            throw new ImageOpException("Interrupted waiting for job slot!");
+        }
+    }
+
+    /**
+     * render and return the image
+     */
+    protected DocuImage render() throws FileOpException, IOException, ImageOpException {
 
         logger.debug("ImageWorker starting");
         long startTime = System.currentTimeMillis();
@@ -74,12 +167,16 @@ public class ImageWorker implements Callable<DocuImage> {
                 throw new ImageOpException("Unable to get DocuImage instance!");
             }
         }
+        if (reservation != null) {
+            // release the reservation when the image is disposed
+            docuImage.setHint(MemoryBudget.RESERVATION_HINT, reservation);
+        }
 
         // set interpolation quality
         docuImage.setQuality(jobinfo.getScaleQual());
 
         // get area of interest and scale factor
-        Rectangle loadRect = jobinfo.getOuterImgArea().getBounds();
+        Rectangle loadRect = jobinfo.getOuterImgBounds();
         double scaleX = jobinfo.getScaleX();
         double scaleY = jobinfo.getScaleY();
 
@@ -162,7 +259,7 @@ public class ImageWorker implements Callable<DocuImage> {
         /*
          * rotate image
          */
-        if (jobinfo.getAsFloat("rot") != 0d) {
+        if (jobinfo.getAsFloat("rot") % 360f != 0f) {
             docuImage.rotate(jobinfo.getAsFloat("rot"));
             /*
              * if (jobinfo.get_wholeRotArea()) { // crop to the inner bounding
@@ -241,5 +338,44 @@ public class ImageWorker implements Callable<DocuImage> {
     public void stopNow() {
         this.stopNow = true;
     }
+
+    /**
+     * Stops this worker that runs as future and releases its result.
+     * 
+     * Releases the memory reservation if the job has not started, otherwise
+     * waits for the job to stop and disposes the image.
+     * 
+     * @param future
+     */
+    public void cancel(Future<DocuImage> future) {
+        stopNow();
+        if (future.cancel(false)) {
+            // never started
+            if (admission != null) {
+                admission.release();
+            }
+            return;
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    DocuImage img = future.get();
+                    if (img != null) {
+                        img.dispose();
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException | CancellationException e) {
+            // failed jobs have released the reservation
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
     
 }
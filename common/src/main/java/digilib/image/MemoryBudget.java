@@ -0,0 +1,333 @@
+package digilib.image;
+
+/*
+ * #%L
+ * MemoryBudget -- admission control for image jobs by decoded image size
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Budget of heap memory for decoded images.
+ *
+ * Every image job reserves its estimated memory (see
+ * {@link ImageJobDescription#getEstimatedMemory()}) when it starts decoding.
+ * If the budget is exhausted the job waits up to the configured time for
+ * other jobs to release their reservations and is rejected otherwise.
+ * Waiting jobs are served in order of arrival, so a job that needs more than
+ * the whole budget is admitted alone when the jobs before it are done
+ * instead of being overtaken by smaller jobs.
+ *
+ * Requests are only rejected up front (see {@link #admit(long)}) when the
+ * memory of queued, waiting and running jobs clearly exceeds the budget.
+ *
+ * The reservation of a rendered image is stored as hint
+ * {@link #RESERVATION_HINT} in the DocuImage and released when the image is
+ * disposed.
+ */
+public class MemoryBudget {
+
+    protected static Logger logger = Logger.getLogger(MemoryBudget.class);
+
+    /** DocuImage hint for the reservation */
+    public static final String RESERVATION_HINT = "memory-reservation";
+
+    /** the global instance (may be null) */
+    protected static MemoryBudget instance = null;
+
+    /** budget in bytes */
+    protected long limit;
+
+    /** maximum time to wait for a reservation in ms */
+    protected long waitTime;
+
+    /** reserved bytes */
+    protected long used = 0;
+
+    /** bytes requested by waiting jobs */
+    protected long awaited = 0;
+
+    /** bytes of admitted jobs that have not started */
+    protected long queued = 0;
+
+    /** waiting jobs in order of arrival */
+    protected Deque<Object> waiters = new ArrayDeque<Object>();
+
+    /** factor of the budget that queued, awaited and reserved memory may
+     * reach before new requests are rejected */
+    public static final int OVERLOAD_FACTOR = 4;
+
+    /** number of admitted jobs */
+    protected long admitted = 0;
+
+    /** number of admitted jobs that had to wait */
+    protected long waited = 0;
+
+    /** number of rejected jobs */
+    protected long rejected = 0;
+
+    /** number and total duration of released reservations */
+    protected long released = 0;
+    protected long releasedTime = 0;
+
+    /**
+     * Reserved part of the budget (or admitted part for a queued job).
+     */
+    public class Reservation {
+        protected long bytes;
+        protected boolean queued;
+        protected long start = System.currentTimeMillis();
+        protected AtomicBoolean active = new AtomicBoolean(true);
+
+        protected Reservation(long bytes) {
+            this(bytes, false);
+        }
+
+        protected Reservation(long bytes, boolean queued) {
+            this.bytes = bytes;
+            this.queued = queued;
+        }
+
+        /**
+         * Returns the reservation to the budget. Does nothing if it was
+         * already released.
+         */
+        public void release() {
+            if (active.compareAndSet(true, false)) {
+                MemoryBudget.this.release(this);
+            }
+        }
+
+        /**
+         * @return the reserved bytes
+         */
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * @param limit
+     *            budget in bytes
+     * @param waitTime
+     *            maximum time to wait for a reservation in ms
+     */
+    public MemoryBudget(long limit, long waitTime) {
+        this.limit = limit;
+        this.waitTime = waitTime;
+    }
+
+    /**
+     * Reserves bytes of the budget, waiting up to the configured time.
+     *
+     * Returns null if the budget stays exhausted.
+     *
+     * @param bytes
+     * @return
+     */
+    public Reservation reserve(long bytes) {
+        return reserve(bytes, waitTime);
+    }
+
+    /**
+     * Reserves bytes of the budget without waiting.
+     *
+     * Returns null if the budget is exhausted or other jobs are waiting.
+     *
+     * @param bytes
+     * @return
+     */
+    public Reservation tryReserve(long bytes) {
+        return reserve(bytes, 0);
+    }
+
+    /**
+     * Reserves bytes of the budget, waiting up to waitTime ms.
+     *
+     * Waiting jobs get their reservations in order of arrival.
+     *
+     * @param bytes
+     * @param waitTime
+     * @return
+     */
+    protected synchronized Reservation reserve(long bytes, long waitTime) {
+        // oversized jobs have to run alone
+        bytes = Math.min(Math.max(bytes, 0), limit);
+        if (waiters.isEmpty() && used + bytes <= limit) {
+            used += bytes;
+            admitted++;
+            return new Reservation(bytes);
+        }
+        if (waitTime <= 0) {
+            rejected++;
+            logger.warn("memory budget exhausted: used=" + used + " requested=" + bytes);
+            return null;
+        }
+        Object waiter = new Object();
+        waiters.addLast(waiter);
+        awaited += bytes;
+        try {
+            long deadline = System.currentTimeMillis() + waitTime;
+            while (waiters.peekFirst() != waiter || used + bytes > limit) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    rejected++;
+                    logger.warn("memory budget exhausted: used=" + used + " requested=" + bytes);
+                    return null;
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    rejected++;
+                    return null;
+                }
+            }
+            used += bytes;
+            admitted++;
+            waited++;
+            return new Reservation(bytes);
+        } finally {
+            waiters.remove(waiter);
+            awaited -= bytes;
+            // the next waiter may fit now
+            notifyAll();
+        }
+    }
+
+    /**
+     * Admits a new job of the given size to the queue.
+     *
+     * Returns null if the memory of queued, waiting and running jobs already
+     * exceeds the budget many times over. The returned reservation does not
+     * take memory from the budget and has to be released when the job starts
+     * (and reserves its memory) or is not run.
+     *
+     * @param bytes
+     * @return
+     */
+    public synchronized Reservation admit(long bytes) {
+        bytes = Math.min(Math.max(bytes, 0), limit);
+        if (used + awaited + queued + bytes > limit * OVERLOAD_FACTOR) {
+            rejected++;
+            logger.warn("memory budget overloaded: used=" + used + " awaited=" + awaited + " queued=" + queued);
+            return null;
+        }
+        queued += bytes;
+        return new Reservation(bytes, true);
+    }
+
+    /**
+     * Returns the reservation to the budget.
+     *
+     * @param reservation
+     */
+    protected synchronized void release(Reservation reservation) {
+        if (reservation.queued) {
+            queued -= reservation.bytes;
+            return;
+        }
+        used -= reservation.bytes;
+        released++;
+        releasedTime += System.currentTimeMillis() - reservation.start;
+        notifyAll();
+    }
+
+    /**
+     * Returns the suggested time in seconds before a rejected request should
+     * be retried (the average time a reservation is held, at least 1s).
+     *
+     * @return
+     */
+    public synchronized int getRetryAfter() {
+        if (released == 0) {
+            return 1;
+        }
+        return (int) Math.max((releasedTime / released + 999) / 1000, 1);
+    }
+
+    /**
+     * @return the budget in bytes
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the reserved bytes
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * @return the maximum time to wait for a reservation in ms
+     */
+    public long getWaitTime() {
+        return waitTime;
+    }
+
+    /**
+     * @return the number of admitted jobs
+     */
+    public synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    /**
+     * @return the number of admitted jobs that had to wait
+     */
+    public synchronized long getWaited() {
+        return waited;
+    }
+
+    /**
+     * @return the number of rejected jobs
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Returns the global MemoryBudget instance (may be null).
+     *
+     * @return
+     */
+    public static MemoryBudget getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the global MemoryBudget instance used by ImageWorker.
+     *
+     * @param budget
+     */
+    public static void setInstance(MemoryBudget budget) {
+        instance = budget;
+    }
+
+}
@@ -0,0 +1,663 @@
+package digilib.image;
+
+/*
+ * #%L
+ * Two-tier cache for rendered (encoded) images.
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Cache for rendered images in front of the ImageWorker.
+ *
+ * Holds the encoded image data in a byte-budgeted in-memory LRU tier and
+ * (optionally) in a size-bounded tier of files on disk. Files on disk hold the
+ * plain encoded image (so they can be sent as is) and a separate metadata file.
+ * Entries are keyed by
+ * ImageJobDescription.getRenderKey() and remember the modification
+ * time of their source file. Entries with a different source file modification
+ * time are discarded on access.
+ */
+public class RenderCache {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(RenderCache.class);
+
+    /** version tag of the disk file format */
+    protected static final int DISK_FORMAT_VERSION = 0x444c5232;
+
+    /** fraction of the disk budget that remains after a pruning run */
+    protected static final double DISK_PRUNE_FRACTION = 0.9;
+
+    /** estimated memory overhead per entry (bytes) */
+    protected static final int ENTRY_OVERHEAD = 128;
+
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Cached rendered image.
+     */
+    public static class Entry {
+        /** mime-type of the encoded image */
+        protected String mimeType;
+        /** modification time of the source file */
+        protected long sourceMTime;
+        /** encoded image data */
+        protected byte[] data;
+        /** file in the disk tier (if any) */
+        protected File file;
+
+        public Entry(String mimeType, long sourceMTime, byte[] data) {
+            this.mimeType = mimeType;
+            this.sourceMTime = sourceMTime;
+            this.data = data;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public long getSourceMTime() {
+            return sourceMTime;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Estimated memory size of this entry.
+         *
+         * @return
+         */
+        public long getMemorySize() {
+            return ((data != null) ? data.length : 0) + ENTRY_OVERHEAD;
+        }
+    }
+
+    /** memory tier: access-ordered map of entries */
+    protected LinkedHashMap<String, Entry> memMap = new LinkedHashMap<String, Entry>(256, 0.75f, true);
+
+    /** memory budget in bytes */
+    protected long memoryLimit = 0;
+
+    /** memory currently used by entries (estimated) */
+    protected long memoryUsed = 0;
+
+    /** disk tier directory (null for no disk tier) */
+    protected File diskDir = null;
+
+    /** disk budget in bytes */
+    protected long diskLimit = 0;
+
+    /** disk space currently used by entries */
+    protected AtomicLong diskUsed = new AtomicLong(0);
+
+    /** lock for pruning the disk tier */
+    protected Object diskLock = new Object();
+
+    /** number of hits in the memory tier */
+    protected AtomicInteger memoryHits = new AtomicInteger(0);
+
+    /** number of hits in the disk tier */
+    protected AtomicInteger diskHits = new AtomicInteger(0);
+
+    /** number of cache misses */
+    protected AtomicInteger misses = new AtomicInteger(0);
+
+    /** number of entries evicted from the memory tier */
+    protected AtomicInteger memoryEvictions = new AtomicInteger(0);
+
+    /** number of entries evicted from the disk tier */
+    protected AtomicInteger diskEvictions = new AtomicInteger(0);
+
+    /** number of entries discarded because the source file changed */
+    protected AtomicInteger invalidations = new AtomicInteger(0);
+
+    /**
+     * Create a RenderCache with the given memory budget and disk directory and budget.
+     *
+     * @param memoryLimit memory budget in bytes (0 disables the memory tier)
+     * @param diskDir directory for the disk tier (null disables the disk tier)
+     * @param diskLimit disk budget in bytes
+     */
+    public RenderCache(long memoryLimit, File diskDir, long diskLimit) {
+        this.memoryLimit = memoryLimit;
+        if (diskDir != null && diskLimit > 0) {
+            if (!diskDir.exists()) {
+                // try to create
+                diskDir.mkdirs();
+            }
+            if (diskDir.isDirectory() && diskDir.canWrite()) {
+                this.diskDir = diskDir;
+                this.diskLimit = diskLimit;
+                // sum up existing entries
+                long du = 0;
+                for (File f : listDiskFiles()) {
+                    du += f.length() + getMetaFile(f).length();
+                }
+                diskUsed.set(du);
+                logger.info("RenderCache using disk cache " + diskDir + " with " + du + " bytes");
+            } else {
+                logger.error("RenderCache unable to use disk cache directory " + diskDir);
+            }
+        }
+    }
+
+    /**
+     * Returns the cached Entry for the key or null.
+     *
+     * Entries whose source modification time differs from the current
+     * modification time of sourceFile are removed.
+     *
+     * @param key
+     * @param sourceFile
+     * @return
+     */
+    public Entry get(String key, File sourceFile) {
+        if (key == null) {
+            return null;
+        }
+        long mtime = sourceFile.lastModified();
+        /*
+         * try memory
+         */
+        if (memoryLimit > 0) {
+            Entry e = null;
+            synchronized (memMap) {
+                e = memMap.get(key);
+                if (e != null && e.sourceMTime != mtime) {
+                    // source has changed
+                    memMap.remove(key);
+                    memoryUsed -= e.getMemorySize();
+                    invalidations.incrementAndGet();
+                    e = null;
+                }
+            }
+            if (e != null) {
+                memoryHits.incrementAndGet();
+                return e;
+            }
+        }
+        /*
+         * try disk
+         */
+        if (diskDir != null) {
+            File f = getDiskFile(key);
+            if (f.canRead()) {
+                Entry e = readDiskEntry(key, f);
+                if (e != null && e.sourceMTime == mtime) {
+                    diskHits.incrementAndGet();
+                    // update access time for LRU
+                    f.setLastModified(System.currentTimeMillis());
+                    // promote to memory
+                    putMemory(key, e);
+                    return e;
+                }
+                // source has changed or entry is broken
+                diskUsed.addAndGet(-deleteDiskFiles(f));
+                invalidations.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Puts the encoded image data in the cache.
+     *
+     * The modification time of the source file has to be read before the
+     * image is rendered, so an image rendered from a file that changed
+     * during rendering is discarded on the next access.
+     *
+     * @param key
+     * @param sourceMTime modification time of the source file before rendering
+     * @param mimeType
+     * @param data
+     */
+    public void put(String key, long sourceMTime, String mimeType, byte[] data) {
+        if (key == null || data == null) {
+            return;
+        }
+        Entry e = new Entry(mimeType, sourceMTime, data);
+        putMemory(key, e);
+        putDisk(key, e);
+    }
+
+    /**
+     * Puts the Entry in the memory tier and evicts least recently used entries
+     * until the memory budget is met.
+     *
+     * @param key
+     * @param e
+     */
+    protected void putMemory(String key, Entry e) {
+        long es = e.getMemorySize();
+        // don't let one entry push out more than a quarter of the cache
+        if (memoryLimit <= 0 || es > memoryLimit / 4) {
+            return;
+        }
+        synchronized (memMap) {
+            Entry old = memMap.put(key, e);
+            if (old != null) {
+                memoryUsed -= old.getMemorySize();
+            }
+            memoryUsed += es;
+            // evict least recently used entries
+            Iterator<Map.Entry<String, Entry>> it = memMap.entrySet().iterator();
+            while (memoryUsed > memoryLimit && it.hasNext()) {
+                Entry oe = it.next().getValue();
+                it.remove();
+                memoryUsed -= oe.getMemorySize();
+                memoryEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Writes the Entry to the disk tier and prunes the disk tier if it is
+     * over its budget.
+     *
+     * The metadata file is written before the data file so that readers
+     * never see a data file without metadata.
+     *
+     * @param key
+     * @param e
+     */
+    protected void putDisk(String key, Entry e) {
+        if (diskDir == null) {
+            return;
+        }
+        File f = getDiskFile(key);
+        File mf = getMetaFile(f);
+        File parent = f.getParentFile();
+        if (!parent.isDirectory()) {
+            parent.mkdirs();
+        }
+        File tmp = null;
+        File mtmp = null;
+        try {
+            // write to temporary files first
+            tmp = File.createTempFile(f.getName(), ".tmp", parent);
+            writeFile(tmp, e.data);
+            mtmp = File.createTempFile(mf.getName(), ".tmp", parent);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mtmp)));
+            try {
+                out.writeInt(DISK_FORMAT_VERSION);
+                out.writeUTF(key);
+                out.writeUTF(e.mimeType);
+                out.writeLong(e.sourceMTime);
+                out.writeInt(e.data.length);
+            } finally {
+                out.close();
+            }
+            long ol = deleteDiskFiles(f);
+            if (f.exists() || mf.exists()) {
+                logger.warn("RenderCache unable to replace " + f);
+                tmp.delete();
+                mtmp.delete();
+                diskUsed.addAndGet(-ol);
+                return;
+            }
+            if (!mtmp.renameTo(mf) || !tmp.renameTo(f)) {
+                logger.warn("RenderCache unable to rename " + tmp);
+                tmp.delete();
+                mtmp.delete();
+                mf.delete();
+                diskUsed.addAndGet(-ol);
+                return;
+            }
+            e.file = f;
+            long du = diskUsed.addAndGet(f.length() + mf.length() - ol);
+            if (du > diskLimit) {
+                pruneDisk();
+            }
+        } catch (IOException ex) {
+            logger.error("RenderCache error writing disk entry: " + ex.getMessage());
+            if (tmp != null) {
+                tmp.delete();
+            }
+            if (mtmp != null) {
+                mtmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the data to the file.
+     *
+     * @param f
+     * @param data
+     * @throws IOException
+     */
+    protected static void writeFile(File f, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the disk entry for the key from the data file f and its metadata file.
+     *
+     * @param key
+     * @param f
+     * @return the entry or null if the file is unreadable or belongs to another key
+     */
+    protected Entry readDiskEntry(String key, File f) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(getMetaFile(f))));
+            if (in.readInt() != DISK_FORMAT_VERSION) {
+                return null;
+            }
+            if (!key.equals(in.readUTF())) {
+                // hash collision
+                return null;
+            }
+            String mt = in.readUTF();
+            long mtime = in.readLong();
+            int len = in.readInt();
+            in.close();
+            if (f.length() != len) {
+                // incomplete data
+                return null;
+            }
+            in = new DataInputStream(new FileInputStream(f));
+            byte[] data = new byte[len];
+            in.readFully(data);
+            Entry e = new Entry(mt, mtime, data);
+            e.file = f;
+            return e;
+        } catch (IOException ex) {
+            logger.error("RenderCache error reading disk entry: " + ex.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    // nothing to do
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the data file f and its metadata file.
+     *
+     * @param f
+     * @return the number of bytes freed
+     */
+    protected long deleteDiskFiles(File f) {
+        long freed = 0;
+        File mf = getMetaFile(f);
+        long fl = f.length();
+        if (f.delete()) {
+            freed += fl;
+        }
+        long ml = mf.length();
+        if (mf.delete()) {
+            freed += ml;
+        }
+        return freed;
+    }
+
+    /**
+     * Deletes least recently used files from the disk tier until its size is
+     * below DISK_PRUNE_FRACTION of the budget.
+     */
+    protected void pruneDisk() {
+        synchronized (diskLock) {
+            if (diskUsed.get() <= diskLimit) {
+                // another thread was faster
+                return;
+            }
+            List<File> files = listDiskFiles();
+            // remember mtimes so they don't change while sorting
+            final Map<File, Long> mtimeMap = new HashMap<File, Long>(files.size());
+            for (File f : files) {
+                mtimeMap.put(f, f.lastModified());
+            }
+            Collections.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File f1, File f2) {
+                    return mtimeMap.get(f1).compareTo(mtimeMap.get(f2));
+                }
+            });
+            // recompute actual usage
+            long du = 0;
+            for (File f : files) {
+                du += f.length() + getMetaFile(f).length();
+            }
+            long target = (long) (diskLimit * DISK_PRUNE_FRACTION);
+            for (File f : files) {
+                if (du <= target) {
+                    break;
+                }
+                long fl = deleteDiskFiles(f);
+                if (fl > 0) {
+                    du -= fl;
+                    diskEvictions.incrementAndGet();
+                }
+            }
+            diskUsed.set(du);
+            logger.debug("RenderCache pruned disk cache to " + du + " bytes");
+        }
+    }
+
+    /**
+     * Returns a list of all entry files in the disk tier.
+     *
+     * @return
+     */
+    protected List<File> listDiskFiles() {
+        List<File> files = new ArrayList<File>();
+        File[] subdirs = diskDir.listFiles();
+        if (subdirs == null) {
+            return files;
+        }
+        for (File sd : subdirs) {
+            File[] fl = sd.listFiles();
+            if (fl == null) {
+                continue;
+            }
+            for (File f : fl) {
+                if (f.getName().endsWith(".dlr")) {
+                    files.add(f);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Returns the File of the disk tier for the key.
+     *
+     * @param key
+     * @return
+     */
+    protected File getDiskFile(String key) {
+        String hash = hashKey(key);
+        // use the first two digits as subdirectory
+        File sd = new File(diskDir, hash.substring(0, 2));
+        return new File(sd, hash + ".dlr");
+    }
+
+    /**
+     * Returns the metadata File for the data File f of the disk tier.
+     *
+     * @param f
+     * @return
+     */
+    protected static File getMetaFile(File f) {
+        String fn = f.getName();
+        return new File(f.getParentFile(), fn.substring(0, fn.length() - 4) + ".dlm");
+    }
+
+    /**
+     * Returns the hex-encoded SHA-1 hash of the key.
+     *
+     * @param key
+     * @return
+     */
+    public static String hashKey(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(key.getBytes(UTF8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is always available
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Removes all entries from the memory tier.
+     */
+    public void clearMemory() {
+        synchronized (memMap) {
+            memMap.clear();
+            memoryUsed = 0;
+        }
+    }
+
+    /**
+     * @return the number of entries in the memory tier
+     */
+    public int getMemoryEntries() {
+        synchronized (memMap) {
+            return memMap.size();
+        }
+    }
+
+    /**
+     * @return the estimated memory used by the memory tier in bytes
+     */
+    public long getMemoryUsed() {
+        synchronized (memMap) {
+            return memoryUsed;
+        }
+    }
+
+    /**
+     * @return the memory budget in bytes
+     */
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    /**
+     * @return the disk space used by the disk tier in bytes
+     */
+    public long getDiskUsed() {
+        return diskUsed.get();
+    }
+
+    /**
+     * @return the disk budget in bytes
+     */
+    public long getDiskLimit() {
+        return diskLimit;
+    }
+
+    /**
+     * @return the disk tier directory or null
+     */
+    public File getDiskDir() {
+        return diskDir;
+    }
+
+    /**
+     * @return number of hits in the memory tier
+     */
+    public int getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    /**
+     * @return number of hits in the disk tier
+     */
+    public int getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * @return number of misses
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of entries evicted from the memory tier
+     */
+    public int getMemoryEvictions() {
+        return memoryEvictions.get();
+    }
+
+    /**
+     * @return number of entries evicted from the disk tier
+     */
+    public int getDiskEvictions() {
+        return diskEvictions.get();
+    }
+
+    /**
+     * @return number of entries discarded because the source file changed
+     */
+    public int getInvalidations() {
+        return invalidations.get();
+    }
+
+}
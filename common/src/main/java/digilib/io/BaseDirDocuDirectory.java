@@ -28,10 +28,17 @@ package digilib.io;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import digilib.conf.DigilibConfiguration;
 import digilib.io.FileOps.FileClass;
+import digilib.meta.DirMeta;
+import digilib.meta.IndexMetaDirMeta;
 import digilib.meta.MetaFactory;
+import digilib.meta.MetadataMap;
 
 /**
  * DocuDirectory implementation that looks for scaled images in parallel paths
@@ -46,6 +53,12 @@ public class BaseDirDocuDirectory extends DocuDirectory {
     protected Directory[] dirs = null;
     /** list of base directories */
     protected String[] baseDirNames = null;
+    /** modification times of the parallel dirs when they were read
+     * (set after the files they belong to) */
+    protected volatile long[] dirMTimes = null;
+    /** modification time of the metadata file when it was read
+     * (set after the metadata it belongs to) */
+    protected volatile long metaMTime = 0;
 
     /**
      * Configure object with digilib directory path and a parent DocuDirCache.
@@ -68,7 +81,7 @@ public class BaseDirDocuDirectory extends DocuDirectory {
         this.baseDirNames = (String[]) dlConfig.getValue("basedir-list");
         String baseDirName = baseDirNames[0];
         // clear directory list
-        files = new ArrayList<DocuDirent>();
+        files = Collections.emptyList();
         dirMTime = 0;
         // the first directory has to exist
         dir = new File(baseDirName, path);
@@ -76,78 +89,351 @@ public class BaseDirDocuDirectory extends DocuDirectory {
         meta = MetaFactory.getDirMetaInstance();
     }
 
+    /**
+     * Reads the directory holding the rebuildLock.
+     * 
+     * Readers and snapshots use the current files without locking.
+     * 
+     * @see digilib.io.DocuDirectory#readDir()
+     */
     @Override
-	public synchronized boolean readDir() {
+	public boolean readDir() {
 		// check directory first
 		if (!isValid) {
 			return false;
 		}
+		rebuildLock.lock();
+		try {
+		    return readDirLocked();
+		} finally {
+		    rebuildLock.unlock();
+		}
+    }
+
+    /**
+     * Reads the directory. The caller holds the rebuildLock.
+     * 
+     * @return
+     */
+    protected boolean readDirLocked() {
 		// re-check modification time because the thread may have slept
-		if (dir.lastModified() <= dirMTime) {
+		long mtime = dir.lastModified();
+		if (mtime <= dirMTime) {
 			return true;
 		}
 		// read all filenames
 		logger.debug("reading directory " + this + " = " + dir.getPath());
-		File[] allFiles = null;
-		/*
-		 * using ReadableFileFilter is safer (we won't get directories with file
-		 * extensions) but slower.
-		 */
-		// allFiles = dir.listFiles(new FileOps.ReadableFileFilter());
-		allFiles = dir.listFiles();
-		if (allFiles == null) {
+		initDirs();
+		long[] mts = new long[dirs.length];
+		String[][] dirNames = listDirs(mts);
+		String[] names = dirNames[0];
+		if (names == null) {
 			// not a directory
 			return false;
 		}
-		// init parallel directories
-		if (dirs == null) {
-			// number of base dirs
-			int nb = baseDirNames.length;
-			// array of parallel dirs
-			dirs = new Directory[nb];
-			// first entry is this directory
-			dirs[0] = this;
-			// fill array with the remaining directories
-			for (int j = 1; j < nb; j++) {
-				// add dirName to baseDirName
-				File d = new File(baseDirNames[j], dirName);
-				if (d.isDirectory()) {
-					dirs[j] = new Directory(d);
-					logger.debug("  reading scaled directory " + d.getPath());
-					dirs[j].readDir();
-				}
+		// match the files in the scaled directories
+		String[][] scaledNames = null;
+		if (fileClass == FileClass.IMAGE && names.length > 0) {
+			scaledNames = new String[dirs.length][];
+			for (int j = 1; j < dirs.length; j++) {
+				scaledNames[j] = DirectoryScanner.matchScaled(names, dirNames[j], fileClass);
 			}
 		}
+		setFiles(names, scaledNames);
+		// modification time before reading (later changes cause another read)
+		dirMTime = mtime;
+		// snapshots see these times only with the new files
+		dirMTimes = mts;
+		// read metadata as well
+		long mmt = new File(dir, "index.meta").lastModified();
+		readMeta();
+		metaMTime = mmt;
+		// identify images in the background
+		scheduleIdentification();
+		return isValid;
+    }
 
-		File[] fileList = FileOps.listFiles(allFiles, FileOps.filterForClass(fileClass));
+    /**
+     * Creates the list of files from the file names and replaces the
+     * current list.
+     * 
+     * @param names
+     *            sorted file names
+     * @param scaledNames
+     *            names of the matching files for each scaled directory and
+     *            file (or null if the file class has no scaled files)
+     */
+    protected void setFiles(String[] names, String[][] scaledNames) {
 		// number of files in the directory
-		int numFiles = fileList.length;
+		int numFiles = names.length;
+		int nb = dirs.length;
 		if (numFiles > 0) {
-			// create new list
+			// create new list (readers use the old list until it is complete)
 			ArrayList<DocuDirent> dl = new ArrayList<DocuDirent>(numFiles);
-			files = dl;
-			for (File f : fileList) {
-				DocuDirent df = FileOps.fileForClass(fileClass, f, dirs);
+			for (int i = 0; i < numFiles; i++) {
+				File f = new File(dir, names[i]);
+				DocuDirent df;
+				if (scaledNames != null) {
+					String[] sn = new String[nb];
+					for (int j = 1; j < nb; j++) {
+						sn[j] = (scaledNames[j] != null) ? scaledNames[j][i] : null;
+					}
+					df = new ImageFileSet(f, dirs, sn);
+				} else {
+					df = FileOps.fileForClass(fileClass, f, dirs);
+				}
 				df.setParent(this);
 				// add the file to our list
 				dl.add(df);
 			}
 			/*
-			 * we sort the ArrayList (the list of files) for binarySearch to work
+			 * the names are sorted so the list is sorted for binarySearch to work
 			 * (DocuDirent's natural sort order is by filename)
 			 */
-			Collections.sort(dl);
+			files = Collections.unmodifiableList(dl);
+		} else {
+			files = Collections.emptyList();
 		}
-		// clear the scaled directories
-		for (Directory d : dirs) {
-			if (d != null) {
-				d.clearFilenames();
+    }
+
+    /**
+     * Returns the names of the matching files for each scaled directory and
+     * file of the list (or null if the file class has no scaled files).
+     * 
+     * @param fileList
+     * @return
+     */
+    protected String[][] getScaledNames(List<DocuDirent> fileList) {
+        if (fileClass != FileClass.IMAGE) {
+            return null;
+        }
+        int nb = dirs.length;
+        int nf = fileList.size();
+        String[][] scaledNames = new String[nb][nf];
+        for (int i = 0; i < nf; i++) {
+            ImageSet is = (ImageSet) fileList.get(i);
+            for (int k = 1; k < is.size(); k++) {
+                File f = is.get(k).getFile();
+                for (int j = 1; j < nb; j++) {
+                    if (dirs[j] != null && dirs[j].getDir().equals(f.getParentFile())) {
+                        scaledNames[j][i] = f.getName();
+                        break;
+                    }
+                }
+            }
+        }
+        return scaledNames;
+    }
+
+    /**
+     * Returns the latest modification time of this directory, the scaled
+     * directories and the metadata file when they were last read.
+     * 
+     * @see digilib.io.DocuDirectory#getContentMTime()
+     */
+    @Override
+    public long getContentMTime() {
+        long mt = Math.max(dirMTime, metaMTime);
+        long[] mts = dirMTimes;
+        if (mts != null) {
+            for (long t : mts) {
+                mt = Math.max(mt, t);
+            }
+        }
+        return mt;
+    }
+
+    /**
+     * Returns the contents of this directory for a DocuDirCache snapshot.
+     * 
+     * Does not wait for a running readDir. The modification times are read
+     * before the files and the metadata so they are never newer than the
+     * contents of the snapshot.
+     * 
+     * @see digilib.io.DocuDirectory#getSnapshot()
+     */
+    @Override
+    public DirSnapshot getSnapshot() {
+        long[] mts = dirMTimes;
+        long mmt = metaMTime;
+        List<DocuDirent> fileList = files;
+        if (!isValid || dirMTime <= 0 || mts == null || dirs == null) {
+            return null;
+        }
+        int nf = fileList.size();
+        String[] names = new String[nf];
+        for (int i = 0; i < nf; i++) {
+            names[i] = fileList.get(i).getName();
+        }
+        DirSnapshot snapshot = new DirSnapshot(dirName, mts, mmt, names, getScaledNames(fileList));
+        snapshot.dirMeta = meta.getDirMeta();
+        if (meta instanceof IndexMetaDirMeta) {
+            Map<String, MetadataMap> um = ((IndexMetaDirMeta) meta).getUnresolvedFileMeta();
+            if (um != null) {
+                try {
+                    // sub directories remove their entries when they are read
+                    snapshot.unresolvedMeta = new HashMap<String, MetadataMap>(um);
+                } catch (ConcurrentModificationException e) {
+                    return null;
+                }
+            }
+        }
+        // only metadata of the files themselves (not inherited from directories)
+        MetadataMap parentMeta = null;
+        if (getParent() instanceof DocuDirectory) {
+            DirMeta pm = ((DocuDirectory) getParent()).getMeta();
+            parentMeta = (pm != null) ? pm.getDirMeta() : null;
+        }
+        for (int i = 0; i < nf; i++) {
+            MetadataMap fm = fileList.get(i).getMeta().getFileMeta();
+            if (fm != null && fm != snapshot.dirMeta && fm != parentMeta) {
+                if (snapshot.fileMeta == null) {
+                    snapshot.fileMeta = new HashMap<String, MetadataMap>();
+                }
+                snapshot.fileMeta.put(names[i], fm);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Restores the contents of this directory from a DocuDirCache snapshot
+     * if the modification times of the directories and of the metadata file
+     * have not changed.
+     * 
+     * @see digilib.io.DocuDirectory#restore(digilib.io.DirSnapshot)
+     */
+    @Override
+    public boolean restore(DirSnapshot snapshot) {
+        if (!isValid) {
+            return false;
+        }
+        rebuildLock.lock();
+        try {
+            return restoreLocked(snapshot);
+        } finally {
+            rebuildLock.unlock();
+        }
+    }
+
+    /**
+     * Restores the contents of this directory. The caller holds the
+     * rebuildLock.
+     * 
+     * @param snapshot
+     * @return
+     */
+    protected boolean restoreLocked(DirSnapshot snapshot) {
+        if (isRead()) {
+            return false;
+        }
+        initDirs();
+        int nb = dirs.length;
+        if (snapshot.dirMTimes.length != nb || snapshot.metaMTime != new File(dir, "index.meta").lastModified()) {
+            return false;
+        }
+        for (int j = 0; j < nb; j++) {
+            long mt = (dirs[j] != null) ? dirs[j].getDir().lastModified() : 0;
+            if (mt != snapshot.dirMTimes[j]) {
+                return false;
+            }
+        }
+        setFiles(snapshot.names, snapshot.scaledNames);
+        dirMTimes = snapshot.dirMTimes;
+        dirMTime = snapshot.dirMTimes[0];
+        // restore metadata
+        if (meta instanceof IndexMetaDirMeta) {
+            ((IndexMetaDirMeta) meta).restoreMeta(snapshot.dirMeta, snapshot.unresolvedMeta);
+        } else {
+            meta.setDirMeta(snapshot.dirMeta);
+        }
+        if (snapshot.fileMeta != null) {
+            List<DocuDirent> fileList = files;
+            for (Map.Entry<String, MetadataMap> fm : snapshot.fileMeta.entrySet()) {
+                int i = indexOf(fileList, fm.getKey());
+                if (i >= 0) {
+                    fileList.get(i).getMeta().setFileMeta(fm.getValue());
+                }
+            }
+        }
+        metaMTime = snapshot.metaMTime;
+        // the directory has just been checked
+        diskMTime = getDiskMTime();
+        lastCheck = System.currentTimeMillis();
+        // identify images in the background
+        scheduleIdentification();
+        return true;
+    }
+
+    /**
+     * Reads the names of the files in this directory and in the scaled
+     * directories.
+     * 
+     * The first array is null if this directory can not be read.
+     * 
+     * @param mts
+     *            array for the modification times of the directories before
+     *            reading
+     * @return sorted file names for each directory (or null)
+     */
+    protected String[][] listDirs(long[] mts) {
+		// read this directory and the scaled directories in parallel
+		int nb = dirs.length;
+		File[] dirFiles = new File[nb];
+		for (int j = 0; j < nb; j++) {
+			if (dirs[j] != null) {
+				dirFiles[j] = dirs[j].getDir();
 			}
 		}
-		dirMTime = dir.lastModified();
-		// read metadata as well
-		readMeta();
-		return isValid;
+		// modification times before reading
+		for (int j = 0; j < nb; j++) {
+			mts[j] = (dirFiles[j] != null) ? dirFiles[j].lastModified() : 0;
+		}
+		DirectoryScanner.NameFilter filter = new DirectoryScanner.NameFilter(fileClass);
+		return DirectoryScanner.listAll(dirFiles, filter, filter);
+    }
+
+    /**
+     * Initializes the array of scaled directories on first use.
+     */
+    protected void initDirs() {
+		// init parallel directories
+		if (dirs == null) {
+			// number of base dirs
+			int nb = baseDirNames.length;
+			// array of parallel dirs
+			Directory[] da = new Directory[nb];
+			// first entry is this directory
+			da[0] = this;
+			// fill array with the remaining directories
+			for (int j = 1; j < nb; j++) {
+				// add dirName to baseDirName
+				File d = new File(baseDirNames[j], dirName);
+				if (d.isDirectory()) {
+					da[j] = new Directory(d);
+				}
+			}
+			dirs = da;
+		}
+    }
+
+    /**
+     * Returns this directory and the existing scaled directories.
+     * 
+     * @see digilib.io.DocuDirectory#getWatchDirs()
+     */
+    @Override
+    public List<File> getWatchDirs() {
+        List<File> wd = super.getWatchDirs();
+        Directory[] da = dirs;
+        if (da != null) {
+            for (int j = 1; j < da.length; j++) {
+                if (da[j] != null) {
+                    wd.add(da[j].getDir());
+                }
+            }
+        }
+        return wd;
     }
 
 }
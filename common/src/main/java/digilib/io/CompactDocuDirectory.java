@@ -0,0 +1,459 @@
+package digilib.io;
+
+/*
+ * #%L
+ * CompactDocuDirectory.java -- DocuDirectory storing large directories in arrays.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import digilib.meta.FileMeta;
+import digilib.meta.MetaFactory;
+import digilib.meta.MetadataMap;
+import digilib.util.ImageSize;
+
+/**
+ * DocuDirectory implementation for large image directories that looks for
+ * scaled images in parallel paths like BaseDirDocuDirectory.
+ *
+ * The files are not stored as ImageFileSet objects but in arrays: the sorted
+ * file names, the name suffix of the matching file for each scaled directory
+ * and the size and mime-type of the identified images for each directory
+ * (packed in a long). The paths of the directories are only stored once.
+ *
+ * get() and find() return a new ImageFileSet for each call that reads and
+ * writes the size, mime-type and metadata from and to the arrays.
+ *
+ * Directories with other file classes are stored like in
+ * BaseDirDocuDirectory.
+ */
+public class CompactDocuDirectory extends BaseDirDocuDirectory {
+
+    /** maximum width and height that can be stored */
+    public static final int MAX_DIMENSION = (1 << 28) - 1;
+
+    /** mime-types of stored images (code is index + 1) */
+    protected static List<String> mimeTypes = new ArrayList<String>();
+
+    /**
+     * Immutable list of the files of one read of the directory.
+     *
+     * Only the stored sizes and metadata of the files are changed.
+     */
+    protected class CompactFileList extends AbstractList<DocuDirent> implements RandomAccess {
+        /** sorted file names */
+        protected final String[] names;
+        /** index of the suffix + 1 for each file and scaled directory (0 if missing) */
+        protected final short[][] suffixCodes;
+        /** name suffixes (after the basename) for each scaled directory */
+        protected final String[][] suffixes;
+        /** packed size and mime-type for each directory and file (created on demand) */
+        protected final AtomicLongArray[] sizes;
+        /** metadata of single files (created on demand) */
+        protected Map<Integer, MetadataMap> fileMetas = null;
+        /** files with checked metadata (created on demand) */
+        protected BitSet metaChecked = null;
+
+        public CompactFileList(String[] names, short[][] suffixCodes, String[][] suffixes) {
+            this.names = names;
+            this.suffixCodes = suffixCodes;
+            this.suffixes = suffixes;
+            this.sizes = new AtomicLongArray[suffixCodes.length];
+        }
+
+        @Override
+        public DocuDirent get(int index) {
+            if (index < 0 || index >= names.length) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + names.length);
+            }
+            return new CompactFileSet(this, index);
+        }
+
+        @Override
+        public int size() {
+            return names.length;
+        }
+
+        /**
+         * Returns the name of the file in the scaled directory (or null).
+         *
+         * @param level
+         * @param index
+         * @return
+         */
+        public String getScaledName(int level, int index) {
+            int code = suffixCodes[level] == null ? 0 : suffixCodes[level][index];
+            if (code == 0) {
+                return null;
+            }
+            return FileOps.basename(names[index]) + suffixes[level][code - 1];
+        }
+
+        /**
+         * Returns the packed size and mime-type (0 if not stored).
+         *
+         * @param level
+         * @param index
+         * @return
+         */
+        public long getPacked(int level, int index) {
+            AtomicLongArray la = sizes[level];
+            return (la == null) ? 0 : la.get(index);
+        }
+
+        /**
+         * Stores size and mime-type if both are known.
+         *
+         * @param level
+         * @param index
+         * @param size
+         * @param mimetype
+         */
+        public void setPacked(int level, int index, ImageSize size, String mimetype) {
+            long p = pack(size, mimetype);
+            if (p == 0) {
+                return;
+            }
+            AtomicLongArray la = sizes[level];
+            if (la == null) {
+                synchronized (this) {
+                    la = sizes[level];
+                    if (la == null) {
+                        la = new AtomicLongArray(names.length);
+                        sizes[level] = la;
+                    }
+                }
+            }
+            la.set(index, p);
+        }
+
+        public synchronized MetadataMap getFileMeta(int index) {
+            return (fileMetas == null) ? null : fileMetas.get(index);
+        }
+
+        public synchronized void setFileMeta(int index, MetadataMap meta) {
+            if (fileMetas == null) {
+                if (meta == null) {
+                    return;
+                }
+                fileMetas = new HashMap<Integer, MetadataMap>();
+            }
+            if (meta == null) {
+                fileMetas.remove(index);
+            } else {
+                fileMetas.put(index, meta);
+            }
+        }
+
+        public synchronized boolean isMetaChecked(int index) {
+            return (metaChecked != null) && metaChecked.get(index);
+        }
+
+        public synchronized void setMetaChecked(int index) {
+            if (metaChecked == null) {
+                metaChecked = new BitSet(names.length);
+            }
+            metaChecked.set(index);
+        }
+    }
+
+    /**
+     * ImageFileSet for one file of a CompactFileList.
+     */
+    protected class CompactFileSet extends ImageFileSet {
+
+        public CompactFileSet(CompactFileList fileList, int index) {
+            super(new File(dir, fileList.names[index]), CompactDocuDirectory.this,
+                    new CompactFileMeta(fileList, index), dirs.length);
+            // add the first ImageFile to the ImageSet
+            add(new CompactImageFile(file, this, CompactDocuDirectory.this, fileList, index, 0));
+            for (int j = 1; j < dirs.length; ++j) {
+                String sn = fileList.getScaledName(j, index);
+                if (dirs[j] != null && sn != null) {
+                    add(new CompactImageFile(new File(dirs[j].getDir(), sn), this, dirs[j], fileList, index, j));
+                }
+            }
+        }
+    }
+
+    /**
+     * ImageFile that reads and writes size and mime-type from and to a
+     * CompactFileList.
+     */
+    protected static class CompactImageFile extends ImageFile {
+        protected CompactFileList fileList;
+        protected int index;
+        protected int level;
+
+        public CompactImageFile(File f, ImageSet parent, Directory dir, CompactFileList fileList, int index,
+                int level) {
+            super(f, parent, dir);
+            this.fileList = fileList;
+            this.index = index;
+            this.level = level;
+            long p = fileList.getPacked(level, index);
+            if (p != 0) {
+                pixelSize = new ImageSize(unpackWidth(p), unpackHeight(p));
+                mimetype = unpackMimetype(p);
+                if (parent.getAspect() == 0f) {
+                    parent.setAspect(pixelSize);
+                }
+            }
+        }
+
+        @Override
+        public void setSize(ImageSize imageSize) {
+            super.setSize(imageSize);
+            fileList.setPacked(level, index, pixelSize, mimetype);
+        }
+
+        @Override
+        public void setMimetype(String filetype) {
+            super.setMimetype(filetype);
+            fileList.setPacked(level, index, pixelSize, mimetype);
+        }
+    }
+
+    /**
+     * FileMeta that stores the metadata of a file in a CompactFileList.
+     */
+    protected static class CompactFileMeta implements FileMeta {
+        protected FileMeta meta = MetaFactory.getFileMetaInstance();
+        protected CompactFileList fileList;
+        protected int index;
+
+        public CompactFileMeta(CompactFileList fileList, int index) {
+            this.fileList = fileList;
+            this.index = index;
+            MetadataMap m = fileList.getFileMeta(index);
+            if (m != null) {
+                meta.setFileMeta(m);
+            }
+        }
+
+        public void readMeta(DocuDirent file) {
+            meta.readMeta(file);
+            fileList.setFileMeta(index, meta.getFileMeta());
+        }
+
+        public void checkMeta(DocuDirent file) {
+            if (fileList.isMetaChecked(index)) {
+                return;
+            }
+            meta.checkMeta(file);
+            fileList.setFileMeta(index, meta.getFileMeta());
+            fileList.setMetaChecked(index);
+        }
+
+        public MetadataMap getFileMeta() {
+            return meta.getFileMeta();
+        }
+
+        public void setFileMeta(MetadataMap fileMeta) {
+            meta.setFileMeta(fileMeta);
+            fileList.setFileMeta(index, fileMeta);
+        }
+    }
+
+    /**
+     * Stores the file names in a CompactFileList for images.
+     *
+     * @see digilib.io.BaseDirDocuDirectory#setFiles(java.lang.String[],
+     *      java.lang.String[][])
+     */
+    @Override
+    protected void setFiles(String[] names, String[][] scaledNames) {
+        int numFiles = names.length;
+        if (scaledNames == null || numFiles == 0) {
+            super.setFiles(names, scaledNames);
+            return;
+        }
+        int nb = dirs.length;
+        short[][] suffixCodes = new short[nb][];
+        String[][] suffixes = new String[nb][];
+        for (int j = 1; j < nb; j++) {
+            if (scaledNames[j] == null) {
+                continue;
+            }
+            // store the part after the basename once for each directory
+            Map<String, Integer> suffixMap = new HashMap<String, Integer>();
+            List<String> suffixList = new ArrayList<String>();
+            short[] codes = null;
+            for (int i = 0; i < numFiles; i++) {
+                String sn = scaledNames[j][i];
+                String bn = FileOps.basename(names[i]);
+                if (sn == null || !sn.startsWith(bn)) {
+                    continue;
+                }
+                String suffix = sn.substring(bn.length());
+                Integer code = suffixMap.get(suffix);
+                if (code == null) {
+                    if (suffixList.size() >= Short.MAX_VALUE) {
+                        logger.warn("too many different file name suffixes in " + dirs[j].getDir());
+                        continue;
+                    }
+                    suffixList.add(suffix);
+                    code = suffixList.size();
+                    suffixMap.put(suffix, code);
+                }
+                if (codes == null) {
+                    codes = new short[numFiles];
+                }
+                codes[i] = code.shortValue();
+            }
+            suffixCodes[j] = codes;
+            suffixes[j] = suffixList.toArray(new String[suffixList.size()]);
+        }
+        files = new CompactFileList(names, suffixCodes, suffixes);
+    }
+
+    /**
+     * Returns the scaled names from the CompactFileList without creating
+     * DocuDirents.
+     *
+     * @see digilib.io.BaseDirDocuDirectory#getScaledNames(java.util.List)
+     */
+    @Override
+    protected String[][] getScaledNames(List<DocuDirent> fileList) {
+        if (!(fileList instanceof CompactFileList)) {
+            return super.getScaledNames(fileList);
+        }
+        CompactFileList fl = (CompactFileList) fileList;
+        int nb = dirs.length;
+        String[][] scaledNames = new String[nb][];
+        for (int j = 1; j < nb; j++) {
+            if (fl.suffixCodes[j] == null) {
+                continue;
+            }
+            scaledNames[j] = new String[fl.names.length];
+            for (int i = 0; i < fl.names.length; i++) {
+                scaledNames[j][i] = fl.getScaledName(j, i);
+            }
+        }
+        return scaledNames;
+    }
+
+    /**
+     * Searches the file names of a CompactFileList without creating
+     * DocuDirents.
+     *
+     * @see digilib.io.DocuDirectory#indexOf(java.util.List, java.lang.String)
+     */
+    @Override
+    protected int indexOf(List<DocuDirent> fileList, String fn) {
+        if (!(fileList instanceof CompactFileList)) {
+            return super.indexOf(fileList, fn);
+        }
+        String[] names = ((CompactFileList) fileList).names;
+        int idx = Arrays.binarySearch(names, fn);
+        if (idx >= 0) {
+            return idx;
+        }
+        // try closest matches without extension
+        idx = -idx - 1;
+        String bn = FileOps.basename(fn);
+        if (idx < names.length && isBasename(names[idx], fn, bn)) {
+            return idx;
+        } else if (idx > 0 && isBasename(names[idx - 1], fn, bn)) {
+            return idx - 1;
+        } else if (idx + 1 < names.length && isBasename(names[idx + 1], fn, bn)) {
+            return idx + 1;
+        }
+        return -1;
+    }
+
+    protected static boolean isBasename(String name, String fn, String bn) {
+        String dfn = FileOps.basename(name);
+        return dfn.equals(fn) || dfn.equals(bn);
+    }
+
+    /**
+     * Returns size and mime-type packed in a long: 28 bits width, 28 bits
+     * height and 8 bits mime-type code.
+     *
+     * Returns 0 if size or mime-type are unknown or can not be stored.
+     *
+     * @param size
+     * @param mimetype
+     * @return
+     */
+    protected static long pack(ImageSize size, String mimetype) {
+        if (size == null || mimetype == null) {
+            return 0;
+        }
+        int w = size.getWidth();
+        int h = size.getHeight();
+        if (w <= 0 || h <= 0 || w > MAX_DIMENSION || h > MAX_DIMENSION) {
+            return 0;
+        }
+        int mc = getMimetypeCode(mimetype);
+        if (mc == 0) {
+            return 0;
+        }
+        return ((long) w << 36) | ((long) h << 8) | mc;
+    }
+
+    protected static int unpackWidth(long p) {
+        return (int) (p >>> 36);
+    }
+
+    protected static int unpackHeight(long p) {
+        return (int) ((p >>> 8) & MAX_DIMENSION);
+    }
+
+    protected static String unpackMimetype(long p) {
+        int mc = (int) (p & 0xff);
+        synchronized (mimeTypes) {
+            return mimeTypes.get(mc - 1);
+        }
+    }
+
+    /**
+     * Returns the code of the mime-type (0 if there are too many mime-types).
+     *
+     * @param mimetype
+     * @return
+     */
+    protected static int getMimetypeCode(String mimetype) {
+        synchronized (mimeTypes) {
+            int i = mimeTypes.indexOf(mimetype);
+            if (i < 0) {
+                if (mimeTypes.size() >= 255) {
+                    return 0;
+                }
+                mimeTypes.add(mimetype);
+                i = mimeTypes.size() - 1;
+            }
+            return i + 1;
+        }
+    }
+
+}
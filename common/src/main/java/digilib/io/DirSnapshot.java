@@ -0,0 +1,238 @@
+package digilib.io;
+
+/*
+ * #%L
+ * DirSnapshot.java -- saved contents of a DocuDirectory.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import digilib.meta.MetadataMap;
+
+/**
+ * Contents of a DocuDirectory that can be written to a DocuDirCache snapshot
+ * file and restored after a restart: the file names, the matching files in
+ * the scaled directories, the modification times of the directories and of
+ * the metadata file and the parsed metadata.
+ *
+ * The snapshot is only restored if the modification times on disk have not
+ * changed.
+ *
+ * @see DocuDirCache#writeSnapshot()
+ * @see DocuDirectory#restore(DirSnapshot)
+ */
+public class DirSnapshot {
+
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** digilib directory name */
+    protected String dirName;
+
+    /** modification times of the directory and the scaled directories (0 if missing) */
+    protected long[] dirMTimes;
+
+    /** modification time of the metadata file (0 if missing) */
+    protected long metaMTime;
+
+    /** sorted file names */
+    protected String[] names;
+
+    /** names of the matching files for each scaled directory and file (level 0 is null) */
+    protected String[][] scaledNames;
+
+    /** metadata of the directory */
+    protected MetadataMap dirMeta;
+
+    /** metadata for files in sub directories */
+    protected Map<String, MetadataMap> unresolvedMeta;
+
+    /** metadata of files by file name */
+    protected Map<String, MetadataMap> fileMeta;
+
+    public DirSnapshot(String dirName, long[] dirMTimes, long metaMTime, String[] names, String[][] scaledNames) {
+        this.dirName = dirName;
+        this.dirMTimes = dirMTimes;
+        this.metaMTime = metaMTime;
+        this.names = names;
+        this.scaledNames = scaledNames;
+    }
+
+    /**
+     * Writes the snapshot to the stream.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutputStream out) throws IOException {
+        writeString(out, dirName);
+        out.writeLong(metaMTime);
+        out.writeInt(dirMTimes.length);
+        for (long mt : dirMTimes) {
+            out.writeLong(mt);
+        }
+        out.writeInt(names.length);
+        for (String n : names) {
+            writeString(out, n);
+        }
+        for (int j = 1; j < dirMTimes.length; ++j) {
+            String[] sn = (scaledNames != null) ? scaledNames[j] : null;
+            out.writeBoolean(sn != null);
+            if (sn != null) {
+                for (String n : sn) {
+                    writeString(out, n);
+                }
+            }
+        }
+        writeMeta(out, dirMeta);
+        writeMetaMap(out, unresolvedMeta);
+        writeMetaMap(out, fileMeta);
+    }
+
+    /**
+     * Reads a snapshot from the stream.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static DirSnapshot read(DataInputStream in) throws IOException {
+        String dirName = readString(in);
+        long metaMTime = in.readLong();
+        int nb = in.readInt();
+        long[] dirMTimes = new long[nb];
+        for (int j = 0; j < nb; ++j) {
+            dirMTimes[j] = in.readLong();
+        }
+        int nf = in.readInt();
+        String[] names = new String[nf];
+        for (int i = 0; i < nf; ++i) {
+            names[i] = readString(in);
+        }
+        String[][] scaledNames = new String[nb][];
+        for (int j = 1; j < nb; ++j) {
+            if (in.readBoolean()) {
+                scaledNames[j] = new String[nf];
+                for (int i = 0; i < nf; ++i) {
+                    scaledNames[j][i] = readString(in);
+                }
+            }
+        }
+        DirSnapshot s = new DirSnapshot(dirName, dirMTimes, metaMTime, names, scaledNames);
+        s.dirMeta = readMeta(in);
+        s.unresolvedMeta = readMetaMap(in);
+        s.fileMeta = readMetaMap(in);
+        return s;
+    }
+
+    /**
+     * Writes a String (or null) without the length limit of writeUTF.
+     */
+    public static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(UTF8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, UTF8);
+    }
+
+    public static void writeMeta(DataOutputStream out, MetadataMap meta) throws IOException {
+        if (meta == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(meta.size());
+        for (Map.Entry<String, String> e : meta.entrySet()) {
+            writeString(out, e.getKey());
+            writeString(out, e.getValue());
+        }
+    }
+
+    public static MetadataMap readMeta(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            return null;
+        }
+        MetadataMap meta = new MetadataMap();
+        for (int i = 0; i < n; ++i) {
+            String key = readString(in);
+            meta.put(key, readString(in));
+        }
+        return meta;
+    }
+
+    public static void writeMetaMap(DataOutputStream out, Map<String, MetadataMap> metaMap) throws IOException {
+        if (metaMap == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(metaMap.size());
+        for (Map.Entry<String, MetadataMap> e : metaMap.entrySet()) {
+            writeString(out, e.getKey());
+            writeMeta(out, e.getValue());
+        }
+    }
+
+    public static Map<String, MetadataMap> readMetaMap(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            return null;
+        }
+        Map<String, MetadataMap> metaMap = new HashMap<String, MetadataMap>();
+        for (int i = 0; i < n; ++i) {
+            String key = readString(in);
+            metaMap.put(key, readMeta(in));
+        }
+        return metaMap;
+    }
+
+    /**
+     * @return the digilib directory name
+     */
+    public String getDirName() {
+        return dirName;
+    }
+
+    /**
+     * @return the number of files
+     */
+    public int size() {
+        return names.length;
+    }
+
+}
@@ -29,7 +29,6 @@ package digilib.io;
  */
 
 import java.io.File;
-import java.util.Arrays;
 
 import org.apache.log4j.Logger;
 
@@ -90,10 +89,7 @@ public class Directory {
 	public boolean readDir() {
 		if (dir != null) {
 			//logger.debug("reading dir: "+dir.getPath());
-			list = dir.list();
-			if (list != null) {
-				Arrays.sort(list);
-			}
+			list = DirectoryScanner.list(dir, new DirectoryScanner.NameFilter(null));
 			//logger.debug("  done");
 		}
 		return (list != null);
@@ -0,0 +1,331 @@
+package digilib.io;
+
+/*
+ * #%L
+ * Reads directories and matches scaled image files.
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import digilib.io.FileOps.FileClass;
+
+/**
+ * Reads the file names of directories with a DirectoryStream and matches
+ * the files in scaled directories to the original files.
+ *
+ * Several directories can be read in parallel by a shared thread pool. The
+ * calling thread reads the first directory and takes over the reading of
+ * directories that no pool thread has started yet, so it never waits for
+ * the queue of the pool.
+ */
+public class DirectoryScanner {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(DirectoryScanner.class);
+
+    /** thread pool for reading directories in parallel (may be null) */
+    protected static ExecutorService executor = null;
+
+    /**
+     * Filter for names of valid files of a file class (without file system
+     * access).
+     */
+    public static class NameFilter implements DirectoryStream.Filter<Path> {
+        protected FileClass fileClass;
+
+        /**
+         * @param fileClass
+         *            the file class (null accepts all names)
+         */
+        public NameFilter(FileClass fileClass) {
+            this.fileClass = fileClass;
+        }
+
+        public boolean accept(Path p) {
+            if (fileClass == null) {
+                return true;
+            }
+            String fn = p.getFileName().toString();
+            return FileOps.isValidFilename(fn) && FileOps.classForFilename(fn) == fileClass;
+        }
+    }
+
+    /**
+     * Task that reads one directory, either in a pool thread or in the
+     * calling thread.
+     */
+    protected static class ListTask implements Runnable {
+        protected File dir;
+        protected NameFilter filter;
+        protected String[] names;
+        protected AtomicBoolean claimed = new AtomicBoolean(false);
+        protected CountDownLatch done = new CountDownLatch(1);
+
+        public ListTask(File dir, NameFilter filter) {
+            this.dir = dir;
+            this.filter = filter;
+        }
+
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                // already run by another thread
+                return;
+            }
+            try {
+                names = list(dir, filter);
+            } finally {
+                done.countDown();
+            }
+        }
+
+        public String[] getNames() throws InterruptedException {
+            run();
+            done.await();
+            return names;
+        }
+    }
+
+    /**
+     * Returns the sorted names of the files in the directory that are
+     * accepted by the filter.
+     *
+     * Returns null if the directory can not be read.
+     *
+     * @param dir
+     * @param filter
+     * @return
+     */
+    public static String[] list(File dir, NameFilter filter) {
+        List<String> names = new ArrayList<String>();
+        DirectoryStream<Path> ds = null;
+        try {
+            ds = Files.newDirectoryStream(dir.toPath(), filter);
+            for (Path p : ds) {
+                names.add(p.getFileName().toString());
+            }
+        } catch (IOException e) {
+            logger.debug("Unable to read directory " + dir + ": " + e);
+            return null;
+        } finally {
+            if (ds != null) {
+                try {
+                    ds.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        String[] na = names.toArray(new String[names.size()]);
+        Arrays.sort(na);
+        return na;
+    }
+
+    /**
+     * Returns the sorted names of the files in all directories.
+     *
+     * The first directory is filtered by firstFilter, the others by
+     * otherFilter. Null directories return null.
+     *
+     * @param dirs
+     * @param firstFilter
+     * @param otherFilter
+     * @return
+     */
+    public static String[][] listAll(File[] dirs, NameFilter firstFilter, NameFilter otherFilter) {
+        int nd = dirs.length;
+        String[][] names = new String[nd][];
+        ListTask[] tasks = new ListTask[nd];
+        ExecutorService ex = executor;
+        for (int i = 1; i < nd; ++i) {
+            if (dirs[i] == null) {
+                continue;
+            }
+            tasks[i] = new ListTask(dirs[i], otherFilter);
+            if (ex != null) {
+                try {
+                    ex.execute(tasks[i]);
+                } catch (RejectedExecutionException e) {
+                    // read in this thread
+                }
+            }
+        }
+        if (nd > 0 && dirs[0] != null) {
+            names[0] = list(dirs[0], firstFilter);
+        }
+        try {
+            for (int i = 1; i < nd; ++i) {
+                if (tasks[i] != null) {
+                    names[i] = tasks[i].getNames();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return names;
+    }
+
+    /**
+     * Matches the files in a scaled directory to the original files.
+     *
+     * Returns an array with the name of the matching scaled file for each
+     * original file (or null). A scaled file matches if it has the same name
+     * or else the same name without extension (and is of the file class).
+     *
+     * Both lists are sorted by name without extension and matched in one
+     * pass.
+     *
+     * @param names
+     *            names of the original files
+     * @param scaledNames
+     *            names of the files in the scaled directory
+     * @param fileClass
+     * @return
+     */
+    public static String[] matchScaled(final String[] names, String[] scaledNames, FileClass fileClass) {
+        int nn = names.length;
+        String[] matches = new String[nn];
+        if (scaledNames == null || scaledNames.length == 0) {
+            return matches;
+        }
+        // sort originals by basename (keeping the index)
+        String[] baseNames = new String[nn];
+        int[] order = sortByBasename(names, baseNames);
+        // sort scaled files by basename
+        int ns = scaledNames.length;
+        String[] scaled = scaledNames;
+        String[] scaledBase = new String[ns];
+        int[] sorder = sortByBasename(scaled, scaledBase);
+        // merge
+        int j = 0;
+        for (int k = 0; k < nn; ++k) {
+            int oi = order[k];
+            String bn = baseNames[oi];
+            // skip scaled files with smaller basename
+            while (j < ns && scaledBase[sorder[j]].compareTo(bn) < 0) {
+                ++j;
+            }
+            // look at all scaled files with the same basename
+            String match = null;
+            for (int r = j; r < ns && scaledBase[sorder[r]].equals(bn); ++r) {
+                String sn = scaled[sorder[r]];
+                if (sn.equals(names[oi])) {
+                    // same name is best
+                    match = sn;
+                    break;
+                }
+                if (match == null && FileOps.classForFilename(sn) == fileClass) {
+                    match = sn;
+                }
+            }
+            matches[oi] = match;
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the indexes of the names sorted by basename and name and
+     * fills baseNames with the basenames.
+     *
+     * Names that are sorted by name are usually sorted by basename as well
+     * and are not sorted again.
+     *
+     * @param names
+     *            sorted names
+     * @param baseNames
+     * @return
+     */
+    protected static int[] sortByBasename(final String[] names, final String[] baseNames) {
+        int n = names.length;
+        boolean sorted = true;
+        for (int i = 0; i < n; ++i) {
+            baseNames[i] = FileOps.basename(names[i]);
+            if (sorted && i > 0 && baseNames[i - 1].compareTo(baseNames[i]) > 0) {
+                sorted = false;
+            }
+        }
+        int[] order = new int[n];
+        if (sorted) {
+            for (int i = 0; i < n; ++i) {
+                order[i] = i;
+            }
+            return order;
+        }
+        Integer[] io = new Integer[n];
+        for (int i = 0; i < n; ++i) {
+            io[i] = i;
+        }
+        Arrays.sort(io, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                int c = baseNames[i1].compareTo(baseNames[i2]);
+                return (c != 0) ? c : names[i1].compareTo(names[i2]);
+            }
+        });
+        for (int i = 0; i < n; ++i) {
+            order[i] = io[i];
+        }
+        return order;
+    }
+
+    /**
+     * Sets the number of threads for reading directories in parallel.
+     *
+     * @param threads
+     *            number of threads (0 means read in the calling thread)
+     */
+    public static synchronized void setThreads(int threads) {
+        shutdown();
+        if (threads > 0) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "digilib-directory-scanner");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the thread pool.
+     */
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+}
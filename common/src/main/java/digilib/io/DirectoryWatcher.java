@@ -0,0 +1,256 @@
+package digilib.io;
+
+/*
+ * #%L
+ * Watches directories for changes and invalidates DocuDirectories.
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Watches the directories of DocuDirectories with a WatchService and marks
+ * them as changed when files are added, removed or modified.
+ *
+ * Only directories on local file systems are watched. DocuDirectories that
+ * are not watched check the file system themselves (see
+ * DocuDirectory.refresh()).
+ */
+public class DirectoryWatcher implements Runnable {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(DirectoryWatcher.class);
+
+    /** file system types that are not watched (changes by other hosts are not reported) */
+    protected static Set<String> remoteFsTypes = new HashSet<String>(Arrays.asList("nfs", "nfs4", "cifs", "smb",
+            "smbfs", "smb2", "afs", "9p", "ncpfs", "fuse.sshfs", "fuse.glusterfs", "glusterfs", "ceph", "lustre",
+            "gpfs"));
+
+    /** the WatchService */
+    protected WatchService watchService;
+
+    /** the DocuDirectories for each watched directory */
+    protected Map<WatchKey, List<DocuDirectory>> keyMap = new ConcurrentHashMap<WatchKey, List<DocuDirectory>>();
+
+    /** the watched directories for each DocuDirectory */
+    protected Map<DocuDirectory, List<WatchKey>> dirMap = new IdentityHashMap<DocuDirectory, List<WatchKey>>();
+
+    /** the watcher thread */
+    protected Thread thread;
+
+    /** number of invalidations */
+    protected AtomicInteger invalidations = new AtomicInteger(0);
+
+    /**
+     * Creates a DirectoryWatcher using the default file system.
+     *
+     * @throws IOException
+     */
+    public DirectoryWatcher() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Starts the watcher thread.
+     */
+    public void start() {
+        thread = new Thread(this, "digilib-directory-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("DirectoryWatcher started");
+    }
+
+    /**
+     * Stops the watcher thread.
+     */
+    public void stop() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.error("Error closing WatchService: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Registers the directories of the DocuDirectory.
+     *
+     * Returns false if one of the directories can not be watched or the
+     * DocuDirectory has been evicted from the cache. Then no directory of
+     * the DocuDirectory is watched.
+     *
+     * @param dd
+     * @return
+     */
+    public synchronized boolean watch(DocuDirectory dd) {
+        if (dd.isEvicted()) {
+            // checked under the lock: a later unwatch removes the registration
+            return false;
+        }
+        List<File> dirs = dd.getWatchDirs();
+        List<WatchKey> keys = new ArrayList<WatchKey>(dirs.size());
+        try {
+            for (File d : dirs) {
+                Path p = d.toPath();
+                if (!isLocal(p)) {
+                    logger.debug("DirectoryWatcher not watching remote directory " + d);
+                    cancelUnused(keys);
+                    return false;
+                }
+                keys.add(p.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+            }
+        } catch (IOException e) {
+            // e.g. too many watches
+            logger.warn("DirectoryWatcher unable to watch " + dd.getDir() + ": " + e.getMessage());
+            cancelUnused(keys);
+            return false;
+        } catch (ClosedWatchServiceException e) {
+            return false;
+        }
+        for (WatchKey key : keys) {
+            List<DocuDirectory> dds = keyMap.get(key);
+            if (dds == null) {
+                // registering the same path returns the same key
+                dds = new CopyOnWriteArrayList<DocuDirectory>();
+                keyMap.put(key, dds);
+            }
+            if (!dds.contains(dd)) {
+                dds.add(dd);
+            }
+        }
+        dirMap.put(dd, keys);
+        return true;
+    }
+
+    /**
+     * Cancels the keys that are not used by another DocuDirectory.
+     *
+     * @param keys
+     */
+    protected void cancelUnused(List<WatchKey> keys) {
+        for (WatchKey key : keys) {
+            if (!keyMap.containsKey(key)) {
+                key.cancel();
+            }
+        }
+    }
+
+    /**
+     * Removes the DocuDirectory and stops watching its directories if they
+     * are not used by another DocuDirectory.
+     *
+     * @param dd
+     */
+    public synchronized void unwatch(DocuDirectory dd) {
+        List<WatchKey> keys = dirMap.remove(dd);
+        if (keys == null) {
+            return;
+        }
+        for (WatchKey key : keys) {
+            List<DocuDirectory> dds = keyMap.get(key);
+            if (dds != null && dds.remove(dd) && dds.isEmpty()) {
+                key.cancel();
+                keyMap.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Returns if the file system of the path is local.
+     *
+     * @param p
+     * @return
+     * @throws IOException
+     */
+    protected boolean isLocal(Path p) throws IOException {
+        String type = Files.getFileStore(p).type();
+        return !remoteFsTypes.contains(type.toLowerCase());
+    }
+
+    /**
+     * Waits for events and marks the DocuDirectories as changed.
+     */
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                break;
+            } catch (ClosedWatchServiceException e) {
+                break;
+            }
+            // any event (including OVERFLOW) invalidates the directory
+            key.pollEvents();
+            List<DocuDirectory> dds = keyMap.get(key);
+            boolean valid = key.reset();
+            if (dds != null) {
+                for (DocuDirectory dd : dds) {
+                    if (!valid) {
+                        // directory is gone: fall back to checking the file system
+                        dd.setWatched(false);
+                    }
+                    dd.invalidate();
+                    invalidations.incrementAndGet();
+                }
+            }
+            if (!valid) {
+                synchronized (this) {
+                    keyMap.remove(key);
+                }
+            }
+        }
+        logger.info("DirectoryWatcher stopped");
+    }
+
+    /**
+     * @return the number of watched directories
+     */
+    public int getSize() {
+        return keyMap.size();
+    }
+
+    /**
+     * @return the number of invalidated DocuDirectories
+     */
+    public int getInvalidations() {
+        return invalidations.get();
+    }
+
+}
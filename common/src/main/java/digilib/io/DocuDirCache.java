@@ -27,9 +27,32 @@ package digilib.io;
  * Created on 03.03.2003
  */
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
 
@@ -59,6 +82,39 @@ public class DocuDirCache {
 	/** number of cache misses */
 	protected AtomicInteger misses = new AtomicInteger(0);
 
+	/** number of directories removed from the cache */
+	protected AtomicInteger evictions = new AtomicInteger(0);
+
+	/** maximum number of directories in the cache (0 means no limit) */
+	protected int maxDirs = 0;
+
+	/** maximum number of files in the cache (0 means no limit) */
+	protected int maxFiles = 0;
+
+	/** flag to indicate that an eviction is running */
+	protected AtomicBoolean evicting = new AtomicBoolean(false);
+
+	/** header of the snapshot file */
+	protected static final String SNAPSHOT_HEADER = "digilib-dir-cache 1";
+
+	/** snapshot file (null means no snapshots) */
+	protected File snapshotFile = null;
+
+	/** base directories and file class of the snapshot */
+	protected String snapshotSignature = "";
+
+	/** snapshots of directories that have not been requested yet */
+	protected ConcurrentMap<String, DirSnapshot> snapshots = new ConcurrentHashMap<String, DirSnapshot>();
+
+	/** number of files in the snapshots that have not been requested yet */
+	protected AtomicInteger snapshotFiles = new AtomicInteger(0);
+
+	/** number of directories restored from the snapshot */
+	protected AtomicInteger restored = new AtomicInteger(0);
+
+	/** timer for reading and writing the snapshot */
+	protected Timer snapshotTimer = null;
+
 	/**
 	 * Constructor with digilib configuration and file class.
 	 * 
@@ -68,6 +124,24 @@ public class DocuDirCache {
 	public DocuDirCache(FileClass fc,
 			DigilibConfiguration dlConfig) {
 		this.fileClass = fc;
+		if (dlConfig != null) {
+		    maxDirs = Math.max(dlConfig.getAsInt("dir-cache-max-dirs"), 0);
+		    maxFiles = Math.max(dlConfig.getAsInt("dir-cache-max-files"), 0);
+		}
+		if (maxDirs > 0 || maxFiles > 0) {
+		    logger.info("DocuDirCache limited to " + maxDirs + " directories and " + maxFiles + " files");
+		}
+		if (dlConfig != null && !dlConfig.getAsString("dir-cache-snapshot-file").isEmpty()) {
+		    snapshotFile = new File(dlConfig.getAsString("dir-cache-snapshot-file"));
+		    StringBuilder sig = new StringBuilder(fc.name());
+		    String[] baseDirs = (String[]) dlConfig.getValue("basedir-list");
+		    if (baseDirs != null) {
+		        for (String bd : baseDirs) {
+		            sig.append("\t").append(bd);
+		        }
+		    }
+		    snapshotSignature = sig.toString();
+		}
 	}
 
 	/**
@@ -104,6 +178,7 @@ public class DocuDirCache {
 			return olddir;
 		}
 		numFiles.addAndGet(newdir.size());
+		checkLimits();
 		return newdir;
 	}
 
@@ -125,7 +200,7 @@ public class DocuDirCache {
 				DocuDirectory pd = map.get(parent);
 				if (pd == null) {
 					// the parent is unknown
-					pd = DocuDirectoryFactory.getDocuDirectoryInstance(parent, fileClass);
+					pd = newDirectory(parent);
 					pd = putDir(pd);
 				}
 				newDir.setParent(pd);
@@ -173,13 +248,20 @@ public class DocuDirCache {
 		int n = in - 1;
 		// first, assume fn is a directory and look in the cache
 		dd = map.get(fn);
+		if (dd == null) {
+		    // then try fn as a file in a cached directory
+		    dd = getCachedParent(fn);
+		    if (dd != null) {
+		        n = dd.indexOf(FileOps.filename(fn));
+		    }
+		}
 		if (dd == null) {
 			// cache miss
 			misses.incrementAndGet();
 			/*
 			 * try fn as a directory
 			 */
-			dd = DocuDirectoryFactory.getDocuDirectoryInstance(fn, fileClass);
+			dd = newDirectory(fn);
 			if (dd.isValid()) {
 			    // add to the cache
 			    dd.refresh();
@@ -195,7 +277,7 @@ public class DocuDirCache {
 				dd = map.get(d);
 				if (dd == null) {
 					// try to read from disk
-					dd = DocuDirectoryFactory.getDocuDirectoryInstance(d, fileClass);
+					dd = newDirectory(d);
 					if (dd.isValid()) {
 						// add to the cache
                         // logger.debug(dd + " is valid");
@@ -216,7 +298,7 @@ public class DocuDirCache {
 			// cache hit
 			hits.incrementAndGet();
 		}
-		dd.refresh();
+		refreshDir(dd);
 		if (dd.isValid()) {
 			try {
 				return dd.get(n);
@@ -240,11 +322,15 @@ public class DocuDirCache {
 		DocuDirectory dd;
 		// first, assume fn is a directory and look in the cache
 		dd = map.get(fn);
+		if (dd == null) {
+		    // then try fn as a file in a cached directory
+		    dd = getCachedParent(fn);
+		}
 		if (dd == null) {
 			// cache miss
 			misses.incrementAndGet();
 			// see if it's a directory
-			dd = DocuDirectoryFactory.getDocuDirectoryInstance(fn, fileClass);
+			dd = newDirectory(fn);
 			if (dd.isValid()) {
 			    // add to the cache
                 dd.refresh();
@@ -255,7 +341,7 @@ public class DocuDirCache {
                 dd = map.get(pn);
 				if (dd == null) {
 					// try to read from disk
-					dd = DocuDirectoryFactory.getDocuDirectoryInstance(pn, fileClass);
+					dd = newDirectory(pn);
 					if (dd.isValid()) {
 						// add to the cache
 		                dd.refresh();
@@ -273,13 +359,381 @@ public class DocuDirCache {
 			// cache hit
 			hits.incrementAndGet();
 		}
-		dd.refresh();
+		refreshDir(dd);
 		if (dd.isValid()) {
 			return dd;
 		}
 		return null;
 	}
 
+    /**
+     * Returns the cached parent directory of the pathname <code>fn</code> if
+     * it contains a file with exactly the name of <code>fn</code> (or null).
+     * 
+     * Avoids checking the path of a file on disk as a directory.
+     * 
+     * @param fn
+     *            digilib pathname
+     * @return
+     */
+    protected DocuDirectory getCachedParent(String fn) {
+        DocuDirectory pd = map.get(FileOps.parent(fn));
+        if (pd == null) {
+            return null;
+        }
+        refreshDir(pd);
+        if (pd.isValid()) {
+            String name = FileOps.filename(fn);
+            int n = pd.indexOf(name);
+            DocuDirent f = (n >= 0) ? pd.get(n) : null;
+            if (f != null && name.equals(f.getName())) {
+                return pd;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates a new DocuDirectory and restores it from the snapshot if
+     * possible.
+     * 
+     * @param fn
+     *            digilib pathname
+     * @return
+     */
+    protected DocuDirectory newDirectory(String fn) {
+        DocuDirectory dd = DocuDirectoryFactory.getDocuDirectoryInstance(fn, fileClass);
+        if (!snapshots.isEmpty() && dd.isValid()) {
+            DirSnapshot snapshot = snapshots.remove(fn);
+            if (snapshot != null) {
+                snapshotFiles.addAndGet(-snapshot.size());
+                if (dd.restore(snapshot)) {
+                    restored.incrementAndGet();
+                    logger.debug("DocuDirCache restored " + fn + " from snapshot");
+                } else {
+                    logger.debug("DocuDirCache snapshot of " + fn + " is outdated");
+                }
+            }
+        }
+        return dd;
+    }
+
+    /**
+     * Refreshes the cached directory and updates the number of files.
+     * 
+     * @param dd
+     */
+    protected void refreshDir(DocuDirectory dd) {
+        int oldSize = dd.size();
+        dd.refresh();
+        int delta = dd.size() - oldSize;
+        if (delta != 0) {
+            numFiles.addAndGet(delta);
+            checkLimits();
+        }
+    }
+
+    /**
+     * Removes directories if the cache exceeds its limits.
+     * 
+     * Only one thread does the eviction, other threads continue without
+     * waiting.
+     */
+    protected void checkLimits() {
+        if (!isOverLimit(maxDirs, maxFiles)) {
+            return;
+        }
+        if (!evicting.compareAndSet(false, true)) {
+            // another thread is evicting
+            return;
+        }
+        try {
+            // remove 10% more to avoid evicting on every put
+            evict(maxDirs - maxDirs / 10, maxFiles - maxFiles / 10);
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Returns if the cache has more than dirs directories or more than files
+     * files (0 means no limit).
+     * 
+     * Snapshots that have not been requested yet count like cached directories.
+     * 
+     * @param dirs
+     * @param files
+     * @return
+     */
+    protected boolean isOverLimit(int dirs, int files) {
+        return (dirs > 0 && map.size() + snapshots.size() > dirs)
+                || (files > 0 && numFiles.get() + snapshotFiles.get() > files);
+    }
+
+    /**
+     * Removes the least recently used directories until the cache has no
+     * more than dirs directories and files files.
+     * 
+     * Snapshots that have not been requested yet are removed first.
+     * Directories that are the parent of another directory in the cache
+     * are kept because the child directories reference them. Directories
+     * that are registered under another name (aliases) are never removed.
+     * 
+     * @param dirs
+     * @param files
+     * @return the number of removed directories
+     */
+    protected int evict(int dirs, int files) {
+        // snapshots of directories that have not been requested since the start
+        for (DirSnapshot snapshot : snapshots.values()) {
+            if (!isOverLimit(dirs, files)) {
+                return 0;
+            }
+            if (snapshots.remove(snapshot.getDirName(), snapshot)) {
+                snapshotFiles.addAndGet(-snapshot.size());
+            }
+        }
+        // directories to keep
+        Set<String> parents = new HashSet<String>();
+        Set<DocuDirectory> pinned = Collections.newSetFromMap(new IdentityHashMap<DocuDirectory, Boolean>());
+        // take the access time once, it may change while sorting
+        List<EvictionCandidate> candidates = new ArrayList<EvictionCandidate>(map.size());
+        for (Map.Entry<String, DocuDirectory> entry : map.entrySet()) {
+            DocuDirectory dd = entry.getValue();
+            if (!entry.getKey().equals(dd.getDirName())) {
+                // alias
+                pinned.add(dd);
+                continue;
+            }
+            Directory pd = dd.getParent();
+            if (pd instanceof DocuDirectory) {
+                parents.add(((DocuDirectory) pd).getDirName());
+            }
+            candidates.add(new EvictionCandidate(entry.getKey(), dd));
+        }
+        Collections.sort(candidates, new Comparator<EvictionCandidate>() {
+            public int compare(EvictionCandidate c1, EvictionCandidate c2) {
+                return Long.compare(c1.accessTime, c2.accessTime);
+            }
+        });
+        int n = 0;
+        for (EvictionCandidate c : candidates) {
+            if (!isOverLimit(dirs, files)) {
+                break;
+            }
+            if (parents.contains(c.key) || pinned.contains(c.dir)) {
+                continue;
+            }
+            if (map.remove(c.key, c.dir)) {
+                c.dir.evict();
+                numFiles.addAndGet(-c.dir.size());
+                ++n;
+            }
+        }
+        evictions.addAndGet(n);
+        logger.debug("DocuDirCache evicted " + n + " directories, " + map.size() + " directories and "
+                + numFiles.get() + " files left");
+        return n;
+    }
+
+    /**
+     * Cached directory with its access time at the start of an eviction.
+     */
+    protected static class EvictionCandidate {
+        protected String key;
+        protected DocuDirectory dir;
+        protected long accessTime;
+
+        public EvictionCandidate(String key, DocuDirectory dir) {
+            this.key = key;
+            this.dir = dir;
+            this.accessTime = dir.getAccessTime();
+        }
+    }
+
+    /**
+     * Reads the snapshot file.
+     * 
+     * The directories are restored when they are requested and their
+     * modification times have not changed. Snapshots count against the
+     * limits of the cache, the rest of a snapshot that exceeds the limits
+     * is ignored.
+     * 
+     * @return the number of directories in the snapshot
+     */
+    public int readSnapshot() {
+        if (snapshotFile == null || !snapshotFile.canRead()) {
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        int n = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(snapshotFile))));
+            if (!SNAPSHOT_HEADER.equals(DirSnapshot.readString(in))
+                    || !snapshotSignature.equals(DirSnapshot.readString(in))) {
+                logger.info("DocuDirCache ignoring snapshot " + snapshotFile + " from other configuration");
+                return 0;
+            }
+            while (in.readBoolean()) {
+                DirSnapshot snapshot = DirSnapshot.read(in);
+                if (!map.containsKey(snapshot.getDirName())) {
+                    if (!hasRoomFor(snapshot)) {
+                        logger.info("DocuDirCache snapshot exceeds the cache limits, ignoring the rest");
+                        break;
+                    }
+                    if (snapshots.putIfAbsent(snapshot.getDirName(), snapshot) == null) {
+                        snapshotFiles.addAndGet(snapshot.size());
+                        ++n;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("DocuDirCache error reading snapshot " + snapshotFile + ": " + e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        logger.info("DocuDirCache read snapshot of " + n + " directories in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return n;
+    }
+
+    /**
+     * Returns if the snapshot can be added without exceeding the limits.
+     * 
+     * @param snapshot
+     * @return
+     */
+    protected boolean hasRoomFor(DirSnapshot snapshot) {
+        return (maxDirs <= 0 || map.size() + snapshots.size() < maxDirs)
+                && (maxFiles <= 0 || numFiles.get() + snapshotFiles.get() + snapshot.size() <= maxFiles);
+    }
+
+    /**
+     * Writes the cached directories and the directories from the last
+     * snapshot that have not been requested to the snapshot file.
+     * 
+     * @return the number of directories in the snapshot
+     */
+    public synchronized int writeSnapshot() {
+        if (snapshotFile == null) {
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        int n = 0;
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(snapshotFile.getName(), ".tmp", snapshotFile.getAbsoluteFile().getParentFile());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                    new FileOutputStream(tmp))));
+            try {
+                DirSnapshot.writeString(out, SNAPSHOT_HEADER);
+                DirSnapshot.writeString(out, snapshotSignature);
+                // cached directories (without aliases)
+                Set<String> written = new HashSet<String>();
+                for (DocuDirectory dd : map.values()) {
+                    if (written.contains(dd.getDirName())) {
+                        continue;
+                    }
+                    DirSnapshot snapshot = dd.getSnapshot();
+                    if (snapshot != null) {
+                        out.writeBoolean(true);
+                        snapshot.write(out);
+                        written.add(dd.getDirName());
+                        ++n;
+                    }
+                }
+                // directories that have not been requested since the start
+                for (DirSnapshot snapshot : snapshots.values()) {
+                    if (!written.contains(snapshot.getDirName()) && !map.containsKey(snapshot.getDirName())) {
+                        out.writeBoolean(true);
+                        snapshot.write(out);
+                        ++n;
+                    }
+                }
+                out.writeBoolean(false);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.error("DocuDirCache error writing snapshot " + snapshotFile + ": " + e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return 0;
+        }
+        logger.info("DocuDirCache wrote snapshot of " + n + " directories in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return n;
+    }
+
+    /**
+     * Reads the snapshot in the background and writes it periodically.
+     * 
+     * Does nothing if no snapshot file is configured.
+     * 
+     * @param interval
+     *            time between snapshots in ms (0 means only on stop)
+     */
+    public synchronized void startSnapshots(long interval) {
+        if (snapshotFile == null || snapshotTimer != null) {
+            return;
+        }
+        snapshotTimer = new Timer("digilib-dir-cache-snapshot", true);
+        snapshotTimer.schedule(new TimerTask() {
+            public void run() {
+                readSnapshot();
+            }
+        }, 0);
+        if (interval > 0) {
+            snapshotTimer.schedule(new TimerTask() {
+                public void run() {
+                    writeSnapshot();
+                }
+            }, interval, interval);
+        }
+    }
+
+    /**
+     * Stops the periodic snapshots and writes the snapshot.
+     */
+    public synchronized void stopSnapshots() {
+        if (snapshotTimer != null) {
+            snapshotTimer.cancel();
+            snapshotTimer = null;
+        }
+        writeSnapshot();
+    }
+
+    /**
+     * @return the snapshot file (may be null)
+     */
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * @return the number of directories restored from the snapshot
+     */
+    public int getRestored() {
+        return restored.get();
+    }
+
+    /**
+     * @return the number of directories in the snapshot that have not been
+     *         requested yet
+     */
+    public int getSnapshotSize() {
+        return snapshots.size();
+    }
+
     /**
      * @return long
      */
@@ -301,6 +755,27 @@ public class DocuDirCache {
 		return misses.get();
 	}
 
+	/**
+	 * @return the number of directories removed from the cache
+	 */
+	public int getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the maximum number of directories (0 means no limit)
+	 */
+	public int getMaxDirs() {
+		return maxDirs;
+	}
+
+	/**
+	 * @return the maximum number of files (0 means no limit)
+	 */
+	public int getMaxFiles() {
+		return maxFiles;
+	}
+
 	/**
 	 * @return
 	 */
@@ -32,8 +32,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 import digilib.conf.DigilibConfiguration;
+import digilib.util.DigilibJobCenter;
 import digilib.io.FileOps.FileClass;
 import digilib.meta.DirMeta;
 import digilib.meta.MetaFactory;
@@ -53,8 +55,11 @@ public abstract class DocuDirectory extends Directory implements Iterable<DocuDi
     /** type of files in this DocuDirectory */
     protected FileClass fileClass = FileClass.IMAGE;
     
-	/** list of files (DocuDirent) */
-	protected List<DocuDirent> files = null;
+	/** list of files (DocuDirent). Immutable snapshot that is replaced by readDir. */
+	protected volatile List<DocuDirent> files = null;
+
+	/** lock to allow only one thread to read the directory */
+	protected final ReentrantLock rebuildLock = new ReentrantLock();
 
 	/** directory object is valid (exists on disk) */
 	protected boolean isValid = false;
@@ -69,7 +74,34 @@ public abstract class DocuDirectory extends Directory implements Iterable<DocuDi
 	protected long objectATime = 0;
 
 	/** time directory was last modified on the file system */
-	protected long dirMTime = 0;
+	protected volatile long dirMTime = 0;
+
+	/** time of the last check of the file system */
+	protected volatile long lastCheck = 0;
+
+	/** latest modification time of the watched directories and metadata */
+	protected volatile long diskMTime = 0;
+
+	/** directories are watched by the DirectoryWatcher */
+	protected volatile boolean watched = false;
+
+	/** directories can not be watched (remote file system or no more watches) */
+	protected volatile boolean unwatchable = false;
+
+	/** directory has been changed on disk (set by the DirectoryWatcher) */
+	protected volatile boolean changed = false;
+
+	/** directory has been removed from the DocuDirCache (never watched again) */
+	protected volatile boolean evicted = false;
+
+	/** executor for identifying images in the background (may be null) */
+	protected static DigilibJobCenter<?> identifyJobCenter = null;
+
+	/** watcher for changes in directories (may be null) */
+	protected static DirectoryWatcher watcher = null;
+
+	/** minimum time between checks of the file system in ms (0 means check every time) */
+	protected static long refreshInterval = 0;
 
 	/**
 	 * Configure object with digilib directory path and a parent DocuDirCache.
@@ -91,7 +123,7 @@ public abstract class DocuDirectory extends Directory implements Iterable<DocuDi
 		this.dirName = path;
 		this.fileClass = fileClass;
 		// clear directory list
-		files = new ArrayList<DocuDirent>();
+		files = Collections.emptyList();
 		dirMTime = 0;
 		// the first directory has to exist
 		dir = new File(path);
@@ -103,7 +135,8 @@ public abstract class DocuDirectory extends Directory implements Iterable<DocuDi
 	 * number of DocuFiles in this directory. 
 	 */
 	public int size() {
-		return (files != null) ? files.size() : 0;
+		List<DocuDirent> fileList = files;
+		return (fileList != null) ? fileList.size() : 0;
 	}
 
 	/**
@@ -124,10 +157,11 @@ public abstract class DocuDirectory extends Directory implements Iterable<DocuDi
 	 * @return
 	 */
 	public DocuDirent get(int index) {
-		if ((files == null) || (index >= files.size())) {
+		List<DocuDirent> fileList = files;
+		if ((fileList == null) || (index >= fileList.size())) {
 			return null;
 		}
-		return files.get(index);
+		return fileList.get(index);
 	}
 
 	/**
@@ -147,29 +181,222 @@ public abstract class DocuDirectory extends Directory implements Iterable<DocuDi
 	/**
 	 * Read the filesystem directory and fill this object.
 	 * 
-	 * Clears the List and (re)reads all files.
+	 * Builds a new List of all files and replaces the current List when it
+	 * is complete.
 	 * 
 	 * @return boolean the directory exists
 	 */
 	public abstract boolean readDir();
 
+	/**
+	 * Read the filesystem directory unless another thread is already
+	 * reading it.
+	 * 
+	 * If the directory has been read before the current List of files is
+	 * used while another thread is reading the directory. Only the first
+	 * read waits for the other thread.
+	 * 
+	 * @param force
+	 *            read the directory even if its modification time has not
+	 *            changed (e.g. when a scaled directory or the metadata file
+	 *            changed)
+	 * @return boolean the directory is valid
+	 */
+	protected boolean rebuild(boolean force) {
+	    if (isRead()) {
+	        if (!rebuildLock.tryLock()) {
+	            // another thread is reading: keep the current files
+	            if (force) {
+	                // the other thread may have missed the change
+	                changed = true;
+	            }
+	            return isValid;
+	        }
+	    } else {
+	        rebuildLock.lock();
+	    }
+	    try {
+	        if (force) {
+	            // the saved modification time is never later than the current one
+	            dirMTime = -1;
+	        }
+	        return readDir();
+	    } finally {
+	        rebuildLock.unlock();
+	    }
+	}
+
 
 	/**
 	 * Check to see if the directory has been modified and reread if necessary.
 	 * 
+	 * Watched directories are only reread when the DirectoryWatcher has
+	 * reported a change. Other directories check the file system at most
+	 * once per refreshInterval.
+	 * 
 	 * @return boolean the directory is valid
 	 */
     public boolean refresh() {
         if (isValid) {
-            if (dir.lastModified() > dirMTime) {
-                // on-disk modification time is more recent
-                readDir();
+            if (changed) {
+                // reported by the DirectoryWatcher or missed by another thread
+                changed = false;
+                rebuild(true);
+            } else if (!watched) {
+                if (refreshInterval == 0) {
+                    if (dir.lastModified() > dirMTime) {
+                        // on-disk modification time is more recent
+                        rebuild(false);
+                    }
+                } else {
+                    long now = System.currentTimeMillis();
+                    if (now - lastCheck >= refreshInterval) {
+                        lastCheck = now;
+                        long mt = getDiskMTime();
+                        if (mt != diskMTime) {
+                            // directory, scaled directory or metadata changed
+                            diskMTime = mt;
+                            rebuild(true);
+                        }
+                    }
+                }
             }
+            watch();
             touch();
         }
         return isValid;
     }
 
+    /**
+     * Returns the contents of this directory for a DocuDirCache snapshot.
+     * 
+     * Returns null if the directory has not been read or the implementation
+     * does not support snapshots.
+     * 
+     * @return
+     */
+    public DirSnapshot getSnapshot() {
+        return null;
+    }
+
+    /**
+     * Restores the contents of this directory from a DocuDirCache snapshot
+     * instead of reading the directory.
+     * 
+     * Returns false if the snapshot is not valid any more or the
+     * implementation does not support snapshots.
+     * 
+     * @param snapshot
+     * @return
+     */
+    public boolean restore(DirSnapshot snapshot) {
+        return false;
+    }
+
+    /**
+     * Returns the directories that have to be watched to notice changes:
+     * this directory and its scaled directories.
+     * 
+     * @return
+     */
+    public List<File> getWatchDirs() {
+        List<File> dirs = new ArrayList<File>(1);
+        dirs.add(dir);
+        return dirs;
+    }
+
+    /**
+     * Returns the latest modification time of the watched directories and
+     * of the index.meta file.
+     * 
+     * @return
+     */
+    protected long getDiskMTime() {
+        long mt = new File(dir, "index.meta").lastModified();
+        for (File d : getWatchDirs()) {
+            mt = Math.max(mt, d.lastModified());
+        }
+        return mt;
+    }
+
+    /**
+     * Registers this directory with the DirectoryWatcher.
+     * 
+     * Does nothing if there is no DirectoryWatcher, the directory has not
+     * been read yet or has been evicted from the cache. A directory that can
+     * not be watched is not tried again.
+     */
+    protected void watch() {
+        if (watcher == null || watched || unwatchable || evicted || !isRead()) {
+            return;
+        }
+        if (!watcher.watch(this)) {
+            // check the file system instead
+            unwatchable = true;
+        } else {
+            watched = true;
+            // check for changes between reading and watching
+            long mt = getDiskMTime();
+            if (diskMTime != 0 && mt != diskMTime) {
+                changed = true;
+            }
+            diskMTime = mt;
+        }
+    }
+
+    /**
+     * Marks the directory as changed on disk. The directory is reread on the
+     * next refresh.
+     */
+    public void invalidate() {
+        changed = true;
+    }
+
+    /**
+     * Stops watching this directory (e.g. when it is removed from the cache).
+     */
+    public void unwatch() {
+        if (watcher != null) {
+            // also removes a registration that is not marked as watched yet
+            watcher.unwatch(this);
+        }
+        watched = false;
+    }
+
+    /**
+     * Marks this directory as removed from the DocuDirCache and stops
+     * watching it.
+     * 
+     * Threads that still use this instance don't register it with the
+     * DirectoryWatcher again.
+     */
+    public void evict() {
+        evicted = true;
+        unwatch();
+    }
+
+    /**
+     * @return if the directory has been removed from the DocuDirCache
+     */
+    public boolean isEvicted() {
+        return evicted;
+    }
+
+    /**
+     * @param watched
+     *            the directory is watched by the DirectoryWatcher
+     */
+    public void setWatched(boolean watched) {
+        this.watched = watched;
+    }
+
+    /**
+     * @return if the directory is watched by the DirectoryWatcher
+     */
+    public boolean isWatched() {
+        return watched;
+    }
+
 
 	/**
 	 * Read directory metadata.
@@ -181,6 +408,72 @@ public abstract class DocuDirectory extends Directory implements Iterable<DocuDi
 	    }
 	}
 
+	/**
+	 * Schedules the identification of all images in this directory
+	 * (including scaled versions) in the background.
+	 * 
+	 * Does nothing if no identify executor is set. Stops scheduling when the
+	 * executor is busy (the images are identified on demand).
+	 */
+	protected void scheduleIdentification() {
+	    List<DocuDirent> fileList = files;
+	    if (identifyJobCenter == null || fileClass != FileClass.IMAGE || fileList == null) {
+	        return;
+	    }
+	    int n = 0;
+	    for (DocuDirent f : fileList) {
+	        if (!(f instanceof ImageSet)) {
+	            continue;
+	        }
+	        if (identifyJobCenter.isBusy()) {
+	            logger.debug("identify executor busy - not scheduling more images");
+	            break;
+	        }
+	        final ImageSet imgs = (ImageSet) f;
+	        identifyJobCenter.submit(new Runnable() {
+	            public void run() {
+	                for (int i = 0; i < imgs.size(); ++i) {
+	                    // ImageFile.getSize() identifies the image once
+	                    imgs.get(i).getSize();
+	                }
+	            }
+	        });
+	        ++n;
+	    }
+	    logger.debug("scheduled identification of " + n + " images in " + this);
+	}
+
+	/**
+	 * Sets the executor for identifying images in the background when a
+	 * directory is read (null to identify images on demand).
+	 * 
+	 * @param jobCenter
+	 */
+	public static void setIdentifyJobCenter(DigilibJobCenter<?> jobCenter) {
+	    identifyJobCenter = jobCenter;
+	}
+
+	/**
+	 * Sets the DirectoryWatcher for invalidating directories (null to check
+	 * the file system).
+	 * 
+	 * @param dirWatcher
+	 */
+	public static void setDirectoryWatcher(DirectoryWatcher dirWatcher) {
+	    watcher = dirWatcher;
+	}
+
+	/**
+	 * Sets the minimum time between checks of the file system for
+	 * directories that are not watched.
+	 * 
+	 * @param interval
+	 *            time in ms (0 means check on every access)
+	 */
+	public static void setRefreshInterval(long interval) {
+	    refreshInterval = Math.max(interval, 0);
+	}
+
 
     /**
      * check directory metadata.
@@ -234,11 +527,21 @@ public abstract class DocuDirectory extends Directory implements Iterable<DocuDi
 	public int indexOf(String fn) {
 		if (!isRead()) {
 			// read directory now
-			if (!readDir()) {
+			if (!rebuild(false)) {
 				return -1;
 			}
 		}
-		List<DocuDirent> fileList = files;
+		return indexOf(files, fn);
+	}
+
+	/**
+	 * Searches for the file with the name <code>fn</code> in fileList.
+	 * 
+	 * @param fileList
+	 * @param fn
+	 * @return
+	 */
+	protected int indexOf(List<DocuDirent> fileList, String fn) {
 		// empty directory?
 		if (fileList == null) {
 			return -1;
@@ -282,9 +585,17 @@ public abstract class DocuDirectory extends Directory implements Iterable<DocuDi
 	 * @return DocuDirent
 	 */
 	public DocuDirent find(String fn) {
-		int i = indexOf(fn);
+		if (!isRead()) {
+			// read directory now
+			if (!rebuild(false)) {
+				return null;
+			}
+		}
+		// use the same List for searching and getting
+		List<DocuDirent> fileList = files;
+		int i = indexOf(fileList, fn);
 		if (i >= 0) {
-			return files.get(i);
+			return fileList.get(i);
 		}
 		return null;
 	}
@@ -345,6 +656,19 @@ public abstract class DocuDirectory extends Directory implements Iterable<DocuDi
 		return dirMTime;
 	}
 
+	/**
+	 * Returns the latest modification time of the directory and of the
+	 * other sources of its contents when they were last read.
+	 * 
+	 * Does not access the file system: the times are kept current by the
+	 * DirectoryWatcher or the refresh interval.
+	 * 
+	 * @return
+	 */
+	public long getContentMTime() {
+		return dirMTime;
+	}
+
     public DirMeta getMeta() {
         return meta;
     }
@@ -49,6 +49,8 @@ public class ImageFile extends ImageInput {
 	private String name = null;
 	// parent directory
 	private Directory dir = null;
+	// flag to indicate that size and type are known
+	private volatile boolean checked = false;
 
 	/** Constructor with File.
 	 * 
@@ -78,16 +80,30 @@ public class ImageFile extends ImageInput {
 	
 	/** Checks the image and sets size and type.
 	 * 
+	 * Uses the ImageInfoIndex (if configured) before identifying the image.
+	 * Concurrent calls wait for the running identification.
 	 */
 	public void check() {
-	    if (pixelSize == null) {
-	        try {
-	            // use the configured toolkit to identify the image
-                DocuImage di = DocuImageFactory.getInstance();
-                di.identify(this);
-            } catch (IOException e) {
-                // nothing much to do...
-            }
+	    if (checked) {
+	        return;
+	    }
+	    synchronized (this) {
+	        if (pixelSize == null) {
+	            ImageInfoIndex index = ImageInfoIndex.getInstance();
+	            if (index == null || !index.lookup(this)) {
+	                try {
+	                    // use the configured toolkit to identify the image
+	                    DocuImage di = DocuImageFactory.getInstance();
+	                    di.identify(this);
+	                } catch (IOException e) {
+	                    // nothing much to do...
+	                }
+	                if (index != null && pixelSize != null) {
+	                    index.store(this);
+	                }
+	            }
+	        }
+	        checked = (pixelSize != null);
 	    }
 	}
 	
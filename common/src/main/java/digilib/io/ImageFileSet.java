@@ -68,6 +68,50 @@ public class ImageFileSet extends ImageSet implements DocuDirent {
         fill(scaleDirs, file);
     }
 
+    /**
+     * Constructor with a File, Directories and the names of the matching
+     * files in the scaled Directories.
+     * 
+     * @param file
+     * @param scaleDirs
+     * @param scaledNames
+     *            file name for each scaled Directory (or null)
+     * @see DirectoryScanner#matchScaled(String[], String[], FileClass)
+     */
+    public ImageFileSet(File file, Directory[] scaleDirs, String[] scaledNames) {
+        int nb = scaleDirs.length;
+        list = new ArrayList<ImageInput>(nb);
+        // first dir is our parent
+        parentDir = scaleDirs[0];
+        this.file = file;
+        name = file.getName();
+        meta = MetaFactory.getFileMetaInstance();
+        // add the first ImageFile to the ImageSet
+        add(new ImageFile(file, this, parentDir));
+        for (int i = 1; i < nb; ++i) {
+            if (scaleDirs[i] != null && scaledNames[i] != null) {
+                add(new ImageFile(scaledNames[i], this, scaleDirs[i]));
+            }
+        }
+    }
+
+    /**
+     * Constructor for subclasses that add the ImageFiles themselves.
+     * 
+     * @param file
+     * @param parentDir
+     * @param meta
+     * @param capacity
+     *            number of ImageFiles
+     */
+    protected ImageFileSet(File file, Directory parentDir, FileMeta meta, int capacity) {
+        list = new ArrayList<ImageInput>(capacity);
+        this.parentDir = parentDir;
+        this.file = file;
+        name = file.getName();
+        this.meta = meta;
+    }
+
     /* (non-Javadoc)
      * @see digilib.io.DocuDirent#getName()
      */
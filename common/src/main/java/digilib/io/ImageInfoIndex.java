@@ -0,0 +1,407 @@
+package digilib.io;
+
+/*
+ * #%L
+ * Persistent index of image sizes and types.
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import digilib.image.RenderCache;
+import digilib.util.ImageSize;
+
+/**
+ * Persistent index of the size and mime-type of image files.
+ *
+ * Keeps one index file per image directory in the index directory. Entries
+ * are appended when an image has been identified and are valid as long as
+ * modification time and length of the image file are unchanged. The index of
+ * a directory is loaded when it is first used and a limited number of
+ * directory indexes is kept in memory.
+ */
+public class ImageInfoIndex {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ImageInfoIndex.class);
+
+    /** header of the index file format */
+    protected static final String FILE_HEADER = "#digilib-image-index 1";
+
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** the global instance (may be null) */
+    protected static ImageInfoIndex instance = null;
+
+    /**
+     * Index entry for one image file.
+     */
+    protected static class Entry {
+        protected long mtime;
+        protected long length;
+        protected int width;
+        protected int height;
+        protected String mimeType;
+
+        public Entry(long mtime, long length, int width, int height, String mimeType) {
+            this.mtime = mtime;
+            this.length = length;
+            this.width = width;
+            this.height = height;
+            this.mimeType = mimeType;
+        }
+    }
+
+    /**
+     * Index of the image files in one directory.
+     */
+    protected class DirIndex {
+        /** the image directory */
+        protected String dirPath;
+        /** the index file */
+        protected File indexFile;
+        /** entries by file name */
+        protected Map<String, Entry> entries = new HashMap<String, Entry>();
+        /** flag to indicate that the index file has been read */
+        protected boolean loaded = false;
+        /** lock of the index file (shared with other instances for the same file) */
+        protected Object lock;
+
+        public DirIndex(String dirPath) {
+            this.dirPath = dirPath;
+            String hash = RenderCache.hashKey(dirPath);
+            this.indexFile = new File(new File(indexDir, hash.substring(0, 2)), hash + ".idx");
+            this.lock = fileLocks[Integer.parseInt(hash.substring(0, 2), 16) % fileLocks.length];
+        }
+
+        /**
+         * Reads the index file and compacts it if it has too many obsolete lines.
+         * Called with the lock held.
+         */
+        protected void load() {
+            loaded = true;
+            if (!indexFile.canRead()) {
+                return;
+            }
+            int lines = 0;
+            BufferedReader in = null;
+            try {
+                in = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), UTF8));
+                String line = in.readLine();
+                if (line == null || !line.equals(FILE_HEADER + "\t" + dirPath)) {
+                    // wrong format or hash collision
+                    logger.warn("ImageInfoIndex ignoring index file " + indexFile);
+                    return;
+                }
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length != 6) {
+                        continue;
+                    }
+                    try {
+                        Entry e = new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                                Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), fields[5]);
+                        entries.put(fields[0], e);
+                        ++lines;
+                    } catch (NumberFormatException e) {
+                        // skip broken line
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("ImageInfoIndex error reading " + indexFile + ": " + e.getMessage());
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // nothing to do
+                    }
+                }
+            }
+            if (lines > 2 * entries.size() + 16) {
+                compact();
+            }
+        }
+
+        /**
+         * Rewrites the index file with the current entries.
+         * Called with the lock held.
+         */
+        protected void compact() {
+            File tmp = null;
+            try {
+                tmp = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+                Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8));
+                try {
+                    out.write(FILE_HEADER + "\t" + dirPath + "\n");
+                    for (Map.Entry<String, Entry> me : entries.entrySet()) {
+                        writeEntry(out, me.getKey(), me.getValue());
+                    }
+                } finally {
+                    out.close();
+                }
+                if (!indexFile.delete() || !tmp.renameTo(indexFile)) {
+                    logger.warn("ImageInfoIndex unable to replace " + indexFile);
+                    tmp.delete();
+                }
+            } catch (IOException e) {
+                logger.error("ImageInfoIndex error compacting " + indexFile + ": " + e.getMessage());
+                if (tmp != null) {
+                    tmp.delete();
+                }
+            }
+        }
+
+        public Entry get(String name) {
+            synchronized (lock) {
+                if (!loaded) {
+                    load();
+                }
+                return entries.get(name);
+            }
+        }
+
+        /**
+         * Adds the entry and appends it to the index file.
+         *
+         * @param name
+         * @param e
+         */
+        public void put(String name, Entry e) {
+            synchronized (lock) {
+                if (!loaded) {
+                    load();
+                }
+                entries.put(name, e);
+                File parent = indexFile.getParentFile();
+                if (!parent.isDirectory()) {
+                    parent.mkdirs();
+                }
+                try {
+                    boolean isNew = !indexFile.exists();
+                    Writer out = new OutputStreamWriter(new FileOutputStream(indexFile, true), UTF8);
+                    try {
+                        if (isNew) {
+                            out.write(FILE_HEADER + "\t" + dirPath + "\n");
+                        }
+                        writeEntry(out, name, e);
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException ex) {
+                    logger.error("ImageInfoIndex error writing " + indexFile + ": " + ex.getMessage());
+                }
+            }
+        }
+
+        protected void writeEntry(Writer out, String name, Entry e) throws IOException {
+            out.write(name + "\t" + e.mtime + "\t" + e.length + "\t" + e.width + "\t" + e.height + "\t"
+                    + e.mimeType + "\n");
+        }
+    }
+
+    /** number of locks for the index files */
+    protected static final int FILE_LOCKS = 64;
+
+    /** locks for the index files by hash, shared by all DirIndex instances of a file */
+    protected Object[] fileLocks = new Object[FILE_LOCKS];
+
+    /** directory for the index files */
+    protected File indexDir;
+
+    /** maximum number of directory indexes in memory */
+    protected int maxDirs;
+
+    /** access-ordered map of directory indexes in memory */
+    protected LinkedHashMap<String, DirIndex> dirMap = new LinkedHashMap<String, DirIndex>(64, 0.75f, true);
+
+    /** number of images found in the index */
+    protected AtomicInteger hits = new AtomicInteger(0);
+
+    /** number of images not (or not validly) in the index */
+    protected AtomicInteger misses = new AtomicInteger(0);
+
+    /**
+     * Create an ImageInfoIndex with index files in indexDir.
+     *
+     * @param indexDir
+     * @param maxDirs
+     *            maximum number of directory indexes kept in memory.
+     * @throws IOException
+     */
+    public ImageInfoIndex(File indexDir, int maxDirs) throws IOException {
+        if (!indexDir.exists()) {
+            // try to create
+            indexDir.mkdirs();
+        }
+        if (!indexDir.isDirectory() || !indexDir.canWrite()) {
+            throw new IOException("Unable to use image index directory " + indexDir);
+        }
+        this.indexDir = indexDir;
+        for (int i = 0; i < fileLocks.length; ++i) {
+            fileLocks[i] = new Object();
+        }
+        this.maxDirs = Math.max(maxDirs, 1);
+        logger.info("ImageInfoIndex using index directory " + indexDir);
+    }
+
+    /**
+     * Sets size and mime-type of the image file from the index.
+     *
+     * Returns false if the file is not in the index or the entry is stale.
+     *
+     * @param img
+     * @return
+     */
+    public boolean lookup(ImageFile img) {
+        File f = img.getFile();
+        DirIndex di = getDirIndex(f);
+        if (di == null) {
+            return false;
+        }
+        Entry e = di.get(f.getName());
+        if (e != null) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+                if (attrs.lastModifiedTime().toMillis() == e.mtime && attrs.size() == e.length) {
+                    img.setSize(new ImageSize(e.width, e.height));
+                    img.setMimetype(e.mimeType);
+                    hits.incrementAndGet();
+                    return true;
+                }
+            } catch (IOException ex) {
+                // file missing
+            }
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Stores size and mime-type of the identified image file in the index.
+     *
+     * @param img
+     */
+    public void store(ImageFile img) {
+        ImageSize size = img.getSize();
+        String mt = img.getMimetype();
+        File f = img.getFile();
+        String name = f.getName();
+        if (size == null || mt == null || name.indexOf('\t') >= 0 || name.indexOf('\n') >= 0) {
+            return;
+        }
+        DirIndex di = getDirIndex(f);
+        if (di == null) {
+            return;
+        }
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+            Entry e = new Entry(attrs.lastModifiedTime().toMillis(), attrs.size(), size.getWidth(),
+                    size.getHeight(), mt);
+            di.put(name, e);
+        } catch (IOException ex) {
+            // file missing
+        }
+    }
+
+    /**
+     * Returns the index for the directory of the file.
+     *
+     * The index file is read on first access to the index.
+     *
+     * @param f
+     * @return
+     */
+    protected DirIndex getDirIndex(File f) {
+        File dir = f.getAbsoluteFile().getParentFile();
+        if (dir == null) {
+            return null;
+        }
+        String dirPath = dir.getPath();
+        synchronized (dirMap) {
+            DirIndex di = dirMap.get(dirPath);
+            if (di != null) {
+                return di;
+            }
+            di = new DirIndex(dirPath);
+            dirMap.put(dirPath, di);
+            // remove least recently used indexes
+            Iterator<DirIndex> it = dirMap.values().iterator();
+            while (dirMap.size() > maxDirs && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+            return di;
+        }
+    }
+
+    /**
+     * @return the number of directory indexes in memory
+     */
+    public int getSize() {
+        synchronized (dirMap) {
+            return dirMap.size();
+        }
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the global ImageInfoIndex instance (may be null).
+     *
+     * @return
+     */
+    public static ImageInfoIndex getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the global ImageInfoIndex instance used by ImageFile.
+     *
+     * @param index
+     */
+    public static void setInstance(ImageInfoIndex index) {
+        instance = index;
+    }
+
+}
@@ -50,7 +50,7 @@ public class IndexMetaDirMeta implements DirMeta {
     private MetadataMap dirMeta = null;
 
     /** state of metadata is valid */
-    private boolean metaChecked = false;
+    protected boolean metaChecked = false;
 
     /** unresolved file metadata */
     private Map<String, MetadataMap> unresolvedFileMeta = null;
@@ -175,8 +175,21 @@ public class IndexMetaDirMeta implements DirMeta {
     /**
      * @return
      */
-    protected Map<String, MetadataMap> getUnresolvedFileMeta() {
+    public Map<String, MetadataMap> getUnresolvedFileMeta() {
         return this.unresolvedFileMeta;
     }
 
+    /**
+     * Sets the metadata of the directory and the metadata for files in sub
+     * directories without reading the metadata file (e.g. from a snapshot).
+     * 
+     * @param dirMeta
+     * @param unresolvedFileMeta
+     */
+    public void restoreMeta(MetadataMap dirMeta, Map<String, MetadataMap> unresolvedFileMeta) {
+        this.dirMeta = dirMeta;
+        this.unresolvedFileMeta = unresolvedFileMeta;
+        metaChecked = true;
+    }
+
 }
@@ -47,7 +47,7 @@ public class IndexMetaFileMeta implements FileMeta {
     protected MetadataMap fileMeta;
 
     /** state of metadata is valid */
-    private boolean metaChecked = false;
+    protected boolean metaChecked = false;
 
     /*
      * (non-Javadoc)
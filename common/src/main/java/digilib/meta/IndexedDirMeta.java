@@ -0,0 +1,82 @@
+package digilib.meta;
+
+/*
+ * #%L
+ * digilib-common
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.Map;
+
+import digilib.io.DocuDirectory;
+import digilib.io.FileOps;
+
+/**
+ * DirMeta implementation using the compiled MetaIndex instead of reading
+ * index.meta files.
+ * 
+ * Reading the directory updates the index for the directory and its parents.
+ * The metadata of the files is looked up by IndexedFileMeta.
+ * 
+ * Falls back to IndexMetaDirMeta if there is no MetaIndex.
+ * 
+ * @see MetaIndex
+ */
+public class IndexedDirMeta extends IndexMetaDirMeta {
+
+    /** the index has been updated for this directory */
+    protected boolean indexed = false;
+
+    @Override
+    public void readMeta(DocuDirectory dir) {
+        MetaIndex index = MetaIndex.getInstance();
+        if (index == null) {
+            super.readMeta(dir);
+            return;
+        }
+        String dirName = FileOps.normalName(dir.getDirName());
+        index.update(dirName);
+        setDirMeta(index.getDirMeta(dirName));
+        indexed = true;
+        metaChecked = true;
+    }
+
+    @Override
+    public void checkMeta(DocuDirectory dir) {
+        if (!indexed && MetaIndex.getInstance() != null) {
+            readMeta(dir);
+        } else {
+            super.checkMeta(dir);
+        }
+    }
+
+    /**
+     * Sets the metadata of the directory (e.g. from a snapshot). The index is
+     * still updated when the metadata is checked.
+     */
+    @Override
+    public void restoreMeta(MetadataMap dirMeta, Map<String, MetadataMap> unresolvedFileMeta) {
+        if (MetaIndex.getInstance() == null) {
+            super.restoreMeta(dirMeta, unresolvedFileMeta);
+        } else {
+            setDirMeta(dirMeta);
+        }
+    }
+
+}
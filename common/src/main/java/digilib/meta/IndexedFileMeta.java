@@ -0,0 +1,68 @@
+package digilib.meta;
+
+/*
+ * #%L
+ * digilib-common
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import digilib.io.DocuDirectory;
+import digilib.io.DocuDirent;
+import digilib.io.FileOps;
+
+/**
+ * FileMeta implementation using the compiled MetaIndex instead of reading
+ * index.meta and file .meta files.
+ * 
+ * Uses the metadata of the file, else the metadata of the directory, else
+ * the metadata of the parent directory (like IndexMetaFileMeta).
+ * 
+ * Falls back to IndexMetaFileMeta if there is no MetaIndex.
+ * 
+ * @see MetaIndex
+ */
+public class IndexedFileMeta extends IndexMetaFileMeta {
+
+    @Override
+    public void checkMeta(DocuDirent file) {
+        if (metaChecked) {
+            return;
+        }
+        MetaIndex index = MetaIndex.getInstance();
+        if (index == null) {
+            super.checkMeta(file);
+            return;
+        }
+        DocuDirectory dd = (DocuDirectory) file.getParent();
+        // makes sure the index is up to date for the directory
+        dd.checkMeta();
+        String dirName = FileOps.normalName(dd.getDirName());
+        MetadataMap meta = index.getFileMeta(dirName.isEmpty() ? file.getName() : dirName + "/" + file.getName());
+        if (meta == null) {
+            meta = index.getDirMeta(dirName);
+            if (meta == null && dirName.indexOf('/') > 0) {
+                // parent directory metadata (just one level up)
+                meta = index.getDirMeta(FileOps.parent(dirName));
+            }
+        }
+        fileMeta = meta;
+        metaChecked = true;
+    }
+
+}
@@ -0,0 +1,671 @@
+package digilib.meta;
+
+/*
+ * #%L
+ * MetaIndex -- compiled index of all metadata files.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+import digilib.io.DirSnapshot;
+import digilib.io.DirectoryScanner;
+import digilib.io.FileOps;
+
+/**
+ * Compiled index of the contents of all metadata files (index.meta and
+ * file .meta) below the first base directory.
+ *
+ * Each metadata file is parsed once and the metadata of every file is
+ * resolved in advance (using the same rules as IndexMetaDirMeta and
+ * IndexMetaFileMeta), so looking up the metadata of a file or directory is
+ * a single hash lookup without XML parsing.
+ *
+ * The index is built by walking the directory tree in the background and
+ * updated incrementally: when a directory is read, the metadata files of the
+ * directory and of its parent directories whose modification times have
+ * changed are parsed again. The compiled index can be saved to a file and is
+ * read from it on the next start.
+ *
+ * @see IndexedDirMeta
+ * @see IndexedFileMeta
+ */
+public class MetaIndex {
+
+    /** Log4J logger */
+    protected static Logger logger = Logger.getLogger(MetaIndex.class);
+
+    /** name of directory metadata files */
+    public static final String INDEX_META = "index.meta";
+
+    /** extension of metadata files */
+    public static final String META_EXT = ".meta";
+
+    /** first string in the index file */
+    protected static final String INDEX_HEADER = "digilib-meta-index 1";
+
+    /** the index used by IndexedDirMeta and IndexedFileMeta */
+    protected static MetaIndex instance = null;
+
+    /**
+     * Contents of a compiled metadata file.
+     */
+    protected static class MetaSource {
+        /** modification time of the file */
+        protected long mtime;
+        /** metadata of the directory (index.meta) or the file (file .meta) */
+        protected MetadataMap meta;
+        /** metadata for files by relative path (index.meta only) */
+        protected Map<String, MetadataMap> files;
+
+        public MetaSource(long mtime) {
+            this.mtime = mtime;
+        }
+    }
+
+    /** Filter for metadata files of single files */
+    protected static class FileMetaFilter extends DirectoryScanner.NameFilter {
+        public FileMetaFilter() {
+            super(null);
+        }
+
+        @Override
+        public boolean accept(Path p) {
+            String fn = p.getFileName().toString();
+            return fn.endsWith(META_EXT) && !fn.equals(INDEX_META);
+        }
+    }
+
+    /** base directory */
+    protected File baseDir;
+
+    /** file for saving the index (may be null) */
+    protected File indexFile;
+
+    /** compiled metadata files by path of the metadata file */
+    protected Map<String, MetaSource> sources = new ConcurrentHashMap<String, MetaSource>();
+
+    /** paths of file metadata files by directory name */
+    protected Map<String, Set<String>> dirFileMetas = new ConcurrentHashMap<String, Set<String>>();
+
+    /** directory metadata by directory name */
+    protected Map<String, MetadataMap> dirMeta = new ConcurrentHashMap<String, MetadataMap>();
+
+    /** resolved file metadata by path of the file */
+    protected Map<String, MetadataMap> fileMeta = new ConcurrentHashMap<String, MetadataMap>();
+
+    /** canonical instances of equal metadata */
+    protected Map<MetadataMap, WeakReference<MetadataMap>> canonical = new WeakHashMap<MetadataMap, WeakReference<MetadataMap>>();
+
+    /** the index has changed since it was saved */
+    protected volatile boolean dirty = false;
+
+    /** thread building the index */
+    protected Thread buildThread = null;
+
+    /** number of parsed metadata files */
+    protected AtomicInteger parsed = new AtomicInteger();
+
+    /**
+     * @param baseDir
+     *            the base directory
+     * @param indexFile
+     *            file for saving the index (may be null)
+     */
+    public MetaIndex(File baseDir, File indexFile) {
+        this.baseDir = baseDir;
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * @return the index used by IndexedDirMeta and IndexedFileMeta (may be
+     *         null)
+     */
+    public static MetaIndex getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param index
+     *            the index to be used by IndexedDirMeta and IndexedFileMeta
+     */
+    public static void setInstance(MetaIndex index) {
+        instance = index;
+    }
+
+    /**
+     * Returns the metadata of the directory.
+     *
+     * @param dirName
+     *            normalized digilib directory name
+     * @return
+     */
+    public MetadataMap getDirMeta(String dirName) {
+        return dirMeta.get(dirName);
+    }
+
+    /**
+     * Returns the metadata of the file from index.meta files or its own
+     * metadata file (without the metadata of the directory).
+     *
+     * @param path
+     *            normalized digilib path of the file
+     * @return
+     */
+    public MetadataMap getFileMeta(String path) {
+        return fileMeta.get(path);
+    }
+
+    /**
+     * Updates the index for the directory: parses the index.meta files of
+     * the directory and its parent directories and the file metadata files
+     * in the directory if they have changed.
+     *
+     * @param dirName
+     *            normalized digilib directory name
+     */
+    public void update(String dirName) {
+        // index.meta of this directory and all parents
+        String dn = dirName;
+        while (dn != null) {
+            String key = path(dn, INDEX_META);
+            updateSource(key, new File(baseDir, key));
+            dn = dn.isEmpty() ? null : FileOps.parent(dn);
+        }
+        // metadata files of single files in this directory
+        File dir = new File(baseDir, dirName);
+        String[] names = DirectoryScanner.list(dir, new FileMetaFilter());
+        Set<String> keys = new HashSet<String>();
+        if (names != null) {
+            for (String name : names) {
+                String key = path(dirName, name);
+                keys.add(key);
+                updateSource(key, new File(dir, name));
+            }
+        }
+        // removed metadata files
+        Set<String> known = dirFileMetas.get(dirName);
+        if (known != null) {
+            for (String key : known.toArray(new String[0])) {
+                if (!keys.contains(key)) {
+                    updateSource(key, new File(baseDir, key));
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the metadata file again if its modification time has changed.
+     *
+     * @param key
+     *            path of the metadata file
+     * @param file
+     * @return if the index changed
+     */
+    protected boolean updateSource(String key, File file) {
+        return updateSource(key, file, file.lastModified());
+    }
+
+    protected boolean updateSource(String key, File file, long mtime) {
+        MetaSource old = sources.get(key);
+        if (mtime == ((old != null) ? old.mtime : 0)) {
+            return false;
+        }
+        synchronized (this) {
+            old = sources.get(key);
+            if (mtime == ((old != null) ? old.mtime : 0)) {
+                return false;
+            }
+            MetaSource src = null;
+            if (mtime > 0) {
+                src = compile(key, file, mtime);
+                sources.put(key, src);
+            } else {
+                sources.remove(key);
+            }
+            resolve(key, old, src);
+            dirty = true;
+        }
+        return true;
+    }
+
+    /**
+     * Parses a metadata file.
+     *
+     * Returns an empty source if the file can not be parsed (it is parsed
+     * again when it changes).
+     *
+     * @param key
+     * @param file
+     * @param mtime
+     * @return
+     */
+    protected MetaSource compile(String key, File file, long mtime) {
+        MetaSource src = new MetaSource(mtime);
+        Map<String, MetadataMap> meta = null;
+        try {
+            meta = new IndexMetaAuthLoader().loadUri(file.toURI());
+            parsed.incrementAndGet();
+        } catch (IOException e) {
+            logger.warn("MetaIndex error reading " + file + ": " + e);
+        }
+        if (meta == null) {
+            return src;
+        }
+        if (isIndexMeta(key)) {
+            // meta for the directory itself is in the "" bin
+            src.meta = canonical(meta.remove(""));
+            if (!meta.isEmpty()) {
+                src.files = new HashMap<String, MetadataMap>(meta.size());
+                for (Map.Entry<String, MetadataMap> e : meta.entrySet()) {
+                    src.files.put(e.getKey(), canonical(e.getValue()));
+                }
+            }
+        } else {
+            // meta for file either directly in meta-tag or under file's name
+            MetadataMap fm = meta.get("");
+            if (fm == null) {
+                fm = meta.get(FileOps.filename(filePath(key)));
+            }
+            src.meta = canonical(fm);
+        }
+        return src;
+    }
+
+    /**
+     * Updates the resolved metadata that depends on the changed source.
+     *
+     * @param key
+     * @param old
+     *            previous source (may be null)
+     * @param src
+     *            new source (may be null)
+     */
+    protected void resolve(String key, MetaSource old, MetaSource src) {
+        if (isIndexMeta(key)) {
+            String dn = FileOps.parent(key);
+            MetadataMap dm = (src != null) ? src.meta : null;
+            if (dm != null) {
+                dirMeta.put(dn, dm);
+            } else {
+                dirMeta.remove(dn);
+            }
+            Set<String> paths = new HashSet<String>();
+            if (old != null && old.files != null) {
+                paths.addAll(old.files.keySet());
+            }
+            if (src != null && src.files != null) {
+                paths.addAll(src.files.keySet());
+            }
+            for (String p : paths) {
+                resolveFile(path(dn, p));
+            }
+        } else {
+            String dn = FileOps.parent(key);
+            Set<String> keys = dirFileMetas.get(dn);
+            if (src != null) {
+                if (keys == null) {
+                    keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                    dirFileMetas.put(dn, keys);
+                }
+                keys.add(key);
+            } else if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    dirFileMetas.remove(dn);
+                }
+            }
+            resolveFile(filePath(key));
+        }
+    }
+
+    /**
+     * Resolves the metadata of a file.
+     *
+     * Entries in index.meta files take precedence over the file's own
+     * metadata file and entries in the outermost directory take precedence
+     * (as in IndexMetaDirMeta). The base directory is not a parent of the top
+     * level directories (as in DocuDirCache).
+     *
+     * @param path
+     */
+    protected void resolveFile(String path) {
+        MetadataMap fm = null;
+        int i = path.indexOf('/');
+        if (i < 0) {
+            fm = getEntry("", path);
+        }
+        while (fm == null && i >= 0) {
+            fm = getEntry(path.substring(0, i), path.substring(i + 1));
+            i = path.indexOf('/', i + 1);
+        }
+        if (fm == null) {
+            MetaSource src = sources.get(path + META_EXT);
+            if (src != null) {
+                fm = src.meta;
+            }
+        }
+        if (fm != null) {
+            fileMeta.put(path, fm);
+        } else {
+            fileMeta.remove(path);
+        }
+    }
+
+    /**
+     * Returns the entry for a file in the index.meta file of a directory.
+     *
+     * @param dirName
+     * @param relPath
+     *            path of the file relative to the directory
+     * @return
+     */
+    protected MetadataMap getEntry(String dirName, String relPath) {
+        MetaSource src = sources.get(path(dirName, INDEX_META));
+        if (src != null && src.files != null) {
+            return src.files.get(relPath);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the canonical instance of equal metadata.
+     *
+     * @param meta
+     * @return
+     */
+    protected synchronized MetadataMap canonical(MetadataMap meta) {
+        if (meta == null) {
+            return null;
+        }
+        WeakReference<MetadataMap> ref = canonical.get(meta);
+        MetadataMap cm = (ref != null) ? ref.get() : null;
+        if (cm == null) {
+            canonical.put(meta, new WeakReference<MetadataMap>(meta));
+            cm = meta;
+        }
+        return cm;
+    }
+
+    /**
+     * Walks the directory tree and updates the index for all metadata files.
+     * Removes metadata files that no longer exist.
+     */
+    public void build() {
+        long start = System.currentTimeMillis();
+        final Path basePath = baseDir.toPath();
+        final Set<String> seen = new HashSet<String>();
+        final int[] changed = new int[1];
+        try {
+            Files.walkFileTree(basePath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                    new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                            if (Thread.currentThread().isInterrupted()) {
+                                return FileVisitResult.TERMINATE;
+                            }
+                            if (attrs.isRegularFile() && file.getFileName().toString().endsWith(META_EXT)) {
+                                String key = basePath.relativize(file).toString().replace(File.separatorChar, '/');
+                                seen.add(key);
+                                if (updateSource(key, file.toFile(), attrs.lastModifiedTime().toMillis())) {
+                                    ++changed[0];
+                                }
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException e) {
+                            logger.debug("MetaIndex unable to read " + file + ": " + e);
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+        } catch (IOException e) {
+            logger.error("MetaIndex error walking " + baseDir + ": " + e);
+            return;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        // check metadata files that were not found
+        for (String key : sources.keySet().toArray(new String[0])) {
+            if (!seen.contains(key) && updateSource(key, new File(baseDir, key))) {
+                ++changed[0];
+            }
+        }
+        logger.info("MetaIndex indexed " + sources.size() + " metadata files (" + changed[0] + " changed) in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Reads the index file and builds the index in the background.
+     */
+    public synchronized void start() {
+        if (buildThread != null) {
+            return;
+        }
+        buildThread = new Thread("digilib-meta-index") {
+            public void run() {
+                read();
+                build();
+                if (!isInterrupted()) {
+                    write();
+                }
+            }
+        };
+        buildThread.setDaemon(true);
+        buildThread.setPriority(Thread.MIN_PRIORITY);
+        buildThread.start();
+    }
+
+    /**
+     * Stops building the index and writes the index file.
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = buildThread;
+            buildThread = null;
+        }
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        write();
+    }
+
+    /**
+     * Reads the compiled index from the index file.
+     *
+     * @return the number of metadata files read
+     */
+    public int read() {
+        if (indexFile == null || !indexFile.canRead()) {
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        int n = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(indexFile))));
+            if (!INDEX_HEADER.equals(DirSnapshot.readString(in))
+                    || !baseDir.getAbsolutePath().equals(DirSnapshot.readString(in))) {
+                logger.info("MetaIndex ignoring index " + indexFile + " from other configuration");
+                return 0;
+            }
+            while (in.readBoolean()) {
+                String key = DirSnapshot.readString(in);
+                MetaSource src = new MetaSource(in.readLong());
+                src.meta = canonical(DirSnapshot.readMeta(in));
+                Map<String, MetadataMap> files = DirSnapshot.readMetaMap(in);
+                if (files != null) {
+                    for (Map.Entry<String, MetadataMap> e : files.entrySet()) {
+                        e.setValue(canonical(e.getValue()));
+                    }
+                }
+                src.files = files;
+                synchronized (this) {
+                    if (!sources.containsKey(key)) {
+                        sources.put(key, src);
+                        resolve(key, null, src);
+                        ++n;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("MetaIndex error reading index " + indexFile + ": " + e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        logger.info("MetaIndex read index of " + n + " metadata files in " + (System.currentTimeMillis() - start)
+                + "ms");
+        return n;
+    }
+
+    /**
+     * Writes the compiled index to the index file if it has changed.
+     *
+     * @return the number of metadata files written
+     */
+    public synchronized int write() {
+        if (indexFile == null || !dirty) {
+            return 0;
+        }
+        int n = 0;
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getAbsoluteFile().getParentFile());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                    new FileOutputStream(tmp))));
+            try {
+                DirSnapshot.writeString(out, INDEX_HEADER);
+                DirSnapshot.writeString(out, baseDir.getAbsolutePath());
+                for (Map.Entry<String, MetaSource> e : sources.entrySet()) {
+                    MetaSource src = e.getValue();
+                    out.writeBoolean(true);
+                    DirSnapshot.writeString(out, e.getKey());
+                    out.writeLong(src.mtime);
+                    DirSnapshot.writeMeta(out, src.meta);
+                    DirSnapshot.writeMetaMap(out, src.files);
+                    ++n;
+                }
+                out.writeBoolean(false);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            dirty = false;
+        } catch (IOException e) {
+            logger.error("MetaIndex error writing index " + indexFile + ": " + e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return 0;
+        }
+        logger.info("MetaIndex wrote index of " + n + " metadata files");
+        return n;
+    }
+
+    /**
+     * Returns the path of a file in a directory.
+     *
+     * @param dirName
+     * @param fn
+     * @return
+     */
+    protected static String path(String dirName, String fn) {
+        return dirName.isEmpty() ? fn : dirName + "/" + fn;
+    }
+
+    /**
+     * Returns the path of the file described by a file metadata file.
+     */
+    protected static String filePath(String key) {
+        return key.substring(0, key.length() - META_EXT.length());
+    }
+
+    /**
+     * Returns if the metadata file is an index.meta file.
+     */
+    protected static boolean isIndexMeta(String key) {
+        return key.equals(INDEX_META) || key.endsWith("/" + INDEX_META);
+    }
+
+    /**
+     * @return the number of metadata files in the index
+     */
+    public int getSize() {
+        return sources.size();
+    }
+
+    /**
+     * @return the number of files with metadata
+     */
+    public int getNumFiles() {
+        return fileMeta.size();
+    }
+
+    /**
+     * @return the number of metadata files parsed since the start
+     */
+    public int getParsed() {
+        return parsed.get();
+    }
+
+}
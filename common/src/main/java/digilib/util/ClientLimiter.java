@@ -0,0 +1,200 @@
+package digilib.util;
+
+/*
+ * #%L
+ * ClientLimiter -- per-client concurrency and rate limits for jobs
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Limits the number of unfinished jobs and the rate of new jobs per client.
+ *
+ * The rate is limited by a token bucket for each client that is refilled
+ * with rate tokens per second up to burst tokens. Every job takes one token.
+ */
+public class ClientLimiter {
+
+    /** time between removals of idle clients in ms */
+    protected static final long CLEANUP_INTERVAL = 60000L;
+
+    /** state of a client */
+    protected static class Client {
+        protected double tokens;
+        protected long lastRefill;
+        protected int running = 0;
+    }
+
+    /** max number of unfinished jobs per client (0 = no limit) */
+    protected int maxJobs;
+
+    /** new jobs per second per client (0 = no limit) */
+    protected double rate;
+
+    /** max number of jobs per client in a burst */
+    protected double burst;
+
+    /** clients by key */
+    protected Map<String, Client> clients = new HashMap<String, Client>();
+
+    /** time of the last removal of idle clients */
+    protected long lastCleanup = System.currentTimeMillis();
+
+    /** number of rejected jobs */
+    protected long rejected = 0;
+
+    /**
+     * @param maxJobs
+     *            max number of unfinished jobs per client (0 = no limit)
+     * @param rate
+     *            new jobs per second per client (0 = no limit)
+     * @param burst
+     *            max number of jobs per client in a burst
+     */
+    public ClientLimiter(int maxJobs, double rate, int burst) {
+        this.maxJobs = maxJobs;
+        this.rate = rate;
+        this.burst = Math.max(burst, 1);
+    }
+
+    /**
+     * Returns if the client may start another job and counts the job.
+     *
+     * The job has to be released with {@link #release(String)}.
+     *
+     * @param key
+     * @return
+     */
+    public synchronized boolean tryAcquire(String key) {
+        long now = System.currentTimeMillis();
+        if (now - lastCleanup > CLEANUP_INTERVAL) {
+            removeIdle(now);
+        }
+        Client client = getClient(key, now);
+        if (maxJobs > 0 && client.running >= maxJobs) {
+            rejected++;
+            return false;
+        }
+        if (rate > 0) {
+            if (client.tokens < 1) {
+                rejected++;
+                return false;
+            }
+            client.tokens -= 1;
+        }
+        client.running++;
+        return true;
+    }
+
+    /**
+     * Counts the job of the client as finished.
+     *
+     * @param key
+     */
+    public synchronized void release(String key) {
+        Client client = clients.get(key);
+        if (client != null && client.running > 0) {
+            client.running--;
+        }
+    }
+
+    /**
+     * Returns the time in seconds until the client may start another job
+     * (at least 1s).
+     *
+     * @param key
+     * @return
+     */
+    public synchronized int getRetryAfter(String key) {
+        Client client = clients.get(key);
+        if (client == null || rate <= 0 || client.tokens >= 1) {
+            return 1;
+        }
+        return (int) Math.max(Math.ceil((1 - client.tokens) / rate), 1);
+    }
+
+    /**
+     * Returns the client with refilled tokens.
+     *
+     * @param key
+     * @param now
+     * @return
+     */
+    protected Client getClient(String key, long now) {
+        Client client = clients.get(key);
+        if (client == null) {
+            client = new Client();
+            client.tokens = burst;
+            client.lastRefill = now;
+            clients.put(key, client);
+        } else if (rate > 0) {
+            client.tokens = Math.min(client.tokens + (now - client.lastRefill) * rate / 1000d, burst);
+            client.lastRefill = now;
+        }
+        return client;
+    }
+
+    /**
+     * Removes clients without unfinished jobs and with a full bucket.
+     *
+     * @param now
+     */
+    protected void removeIdle(long now) {
+        for (Iterator<Client> i = clients.values().iterator(); i.hasNext();) {
+            Client client = i.next();
+            if (client.running == 0
+                    && (rate <= 0 || client.tokens + (now - client.lastRefill) * rate / 1000d >= burst)) {
+                i.remove();
+            }
+        }
+        lastCleanup = now;
+    }
+
+    /**
+     * @return the number of known clients
+     */
+    public synchronized int getClients() {
+        return clients.size();
+    }
+
+    /**
+     * @return the number of rejected jobs
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the max number of unfinished jobs per client
+     */
+    public int getMaxJobs() {
+        return maxJobs;
+    }
+
+    /**
+     * @return the number of new jobs per second per client
+     */
+    public double getRate() {
+        return rate;
+    }
+
+}
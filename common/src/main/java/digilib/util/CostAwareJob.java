@@ -0,0 +1,40 @@
+package digilib.util;
+
+/*
+ * #%L
+ * Job that can estimate its processing cost.
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * Job (Callable or Runnable) that can estimate its processing cost.
+ *
+ * Used by {@link DigilibJobCenter} to run cheap jobs first.
+ */
+public interface CostAwareJob {
+
+    /**
+     * Returns the estimated cost of the job (in pixel operations for image
+     * jobs) or 0 if unknown.
+     *
+     * @return
+     */
+    public long getCost();
+
+}
@@ -23,22 +23,63 @@ package digilib.util;
  * Author: Robert Casties (robcast@berlios.de)
  */
 
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.log4j.Logger;
 
 /** Wrapper around ExecutionService.
+ * 
+ * Jobs are executed in FIFO order unless cost scheduling is enabled by a
+ * positive agingCost. Then jobs implementing {@link CostAwareJob} run in order
+ * of their estimated cost (cheapest first) while waiting jobs gain agingCost
+ * units per second, so expensive jobs are not starved by a stream of cheap ones.
+ * 
+ * With fair queuing jobs are submitted with the key of their client (see
+ * {@link #submit(Callable, Ticket)}) and each client gets its turn: every job
+ * advances a virtual clock of its client by its expected run time and jobs
+ * run in order of their client's clock, so a client with many waiting jobs
+ * does not block clients with few. A {@link ClientLimiter} can limit the
+ * number of unfinished jobs and the rate of new jobs per client.
+ * 
+ * If the job center is registered with an {@link ExecutionGovernor} every job
+ * waits in the queue until a thread has acquired a slot of the governor for it.
+ * 
+ * Background jobs (see {@link #submitBackground(Callable)}) only start when
+ * no other job is waiting and are not counted as waiting jobs.
+ * 
+ * The time jobs (except background jobs) spend in the queue is recorded per
+ * cost class.
+ * 
+ * In adaptive mode the number of threads is adjusted to the load by a
+ * {@link PoolSizeController} using the run time and queue wait of finished
+ * jobs and the CPU load of the process. The job center can be managed by
+ * JMX (see {@link #registerMBean(String)}).
  * 
  * @author casties
  *
  */
-public class DigilibJobCenter<V> {
+public class DigilibJobCenter<V> implements DigilibJobCenterMBean {
     /** general logger for this class */
     private static Logger logger = Logger.getLogger("digilib.jobcenter");
     /** ExecutorService */
@@ -49,7 +90,339 @@ public class DigilibJobCenter<V> {
     private int maxQueueLen = 50;
     /** label for this job center */
     private String label = "";
-    
+    /** cost units a waiting job gains per second (0 = FIFO order) */
+    private long agingCost = 0;
+    /** sequence number of submitted jobs */
+    private AtomicLong jobSeq = new AtomicLong(0);
+    /** number of waiting background jobs */
+    private AtomicInteger backgroundJobs = new AtomicInteger(0);
+    /** order jobs fairly by client */
+    private boolean fairQueuing = false;
+    /** virtual finish time of the last job by client */
+    private Map<String, Long> clientClocks = new HashMap<String, Long>();
+    /** max number of client clocks before removing old clocks */
+    protected static final int MAX_CLIENT_CLOCKS = 1000;
+    /** average run time of jobs in ms */
+    private double avgRunTime = 1;
+    /** limits per client (may be null) */
+    private ClientLimiter clientLimiter = null;
+    /** subsystem of the global execution governor (may be null) */
+    private volatile ExecutionGovernor.Subsystem governor = null;
+    /** controller for the number of threads (may be null) */
+    private PoolSizeController sizer = null;
+    /** adjust the number of threads to the load */
+    private volatile boolean adaptive = false;
+    /** name of the registered MBean (may be null) */
+    private ObjectName mbeanName = null;
+    /** names of the cost classes */
+    public static final String[] COST_CLASSES = { "small", "medium", "large" };
+    /** upper cost limits of the cost classes (e.g. 1 and 16 megapixels) */
+    protected static final long[] COST_CLASS_LIMITS = { 1000000L, 16000000L };
+    /** queue statistics by cost class */
+    private Map<String, QueueStats> queueStats;
+    /** job run by the current thread (for suspending its slot) */
+    private static final ThreadLocal<DigilibJobCenter<?>.Job<?>> runningJob = new ThreadLocal<DigilibJobCenter<?>.Job<?>>();
+
+    /** Statistics of the time jobs spent waiting in the queue. */
+    public static class QueueStats {
+        private long jobs = 0;
+        private long totalWait = 0;
+        private long maxWait = 0;
+
+        protected synchronized void add(long wait) {
+            jobs++;
+            totalWait += wait;
+            if (wait > maxWait) {
+                maxWait = wait;
+            }
+        }
+
+        /** Returns the number of jobs that have been started. */
+        public synchronized long getJobs() {
+            return jobs;
+        }
+
+        /** Returns the average waiting time in ms. */
+        public synchronized long getAverageWait() {
+            return (jobs > 0) ? totalWait / jobs : 0;
+        }
+
+        /** Returns the maximum waiting time in ms. */
+        public synchronized long getMaxWait() {
+            return maxWait;
+        }
+    }
+
+    /** Admission of a job of a client.
+     * Counts as unfinished job of the client until released. */
+    public static class Ticket {
+        protected String client;
+        protected ClientLimiter limiter;
+        protected AtomicBoolean active = new AtomicBoolean(true);
+
+        public Ticket(String client, ClientLimiter limiter) {
+            this.client = (client != null) ? client : "";
+            this.limiter = limiter;
+        }
+
+        /** Releases the ticket (when the job is finished or not submitted). */
+        public void release() {
+            if (active.compareAndSet(true, false) && limiter != null) {
+                limiter.release(client);
+            }
+        }
+
+        public String getClient() {
+            return client;
+        }
+    }
+
+    /** Job in the queue with its cost and submission time. 
+     * Ordered by submission time (or client clock) plus cost,
+     * background jobs after all other jobs. */
+    protected class Job<T> extends FutureTask<T> implements Comparable<Job<?>> {
+        protected long cost;
+        protected long submitted;
+        protected long dequeued;
+        protected long started;
+        protected long seq;
+        protected long priority;
+        protected boolean background = false;
+        protected Ticket ticket;
+        protected ExecutionGovernor.Subsystem slot;
+        /** time the slot was acquired */
+        protected long slotStart;
+        /** subsystem of a slot given back while the job waits (see {@link DigilibJobCenter#suspendSlot()}) */
+        protected ExecutionGovernor.Subsystem suspendedSlot;
+        /** time the slot was given back */
+        protected long suspendStart;
+        /** total time without the slot while running */
+        protected long suspendedTime;
+
+        public Job(Callable<T> callable, long cost, Ticket ticket) {
+            super(callable);
+            init(cost, ticket);
+        }
+
+        /** Creates a background job. */
+        public Job(Callable<T> callable, long cost) {
+            super(callable);
+            this.background = true;
+            init(cost, null);
+        }
+
+        public Job(Runnable runnable, T result, long cost, Ticket ticket) {
+            super(runnable, result);
+            init(cost, ticket);
+        }
+
+        private void init(long cost, Ticket ticket) {
+            this.cost = cost;
+            this.ticket = ticket;
+            this.submitted = System.currentTimeMillis();
+            this.seq = jobSeq.getAndIncrement();
+            this.priority = submitted;
+            // cost as ms of waiting time
+            long costTime = (agingCost > 0) ? (long) (cost * 1000d / agingCost) : 0;
+            if (fairQueuing && !background) {
+                // advance the clock of the client by the expected run time
+                long runTime = (agingCost > 0) ? costTime : (long) Math.max(avgRunTime, 1);
+                String client = (ticket != null) ? ticket.client : "";
+                synchronized (clientClocks) {
+                    Long clock = clientClocks.get(client);
+                    if (clock != null && clock > submitted) {
+                        this.priority = clock;
+                    }
+                    this.priority += runTime;
+                    if (clientClocks.size() >= MAX_CLIENT_CLOCKS) {
+                        removeClientClocks(submitted);
+                    }
+                    clientClocks.put(client, this.priority);
+                }
+            } else {
+                this.priority += costTime;
+            }
+        }
+
+        @Override
+        public int compareTo(Job<?> other) {
+            if (background != other.background) {
+                return background ? 1 : -1;
+            }
+            if (priority != other.priority) {
+                return (priority < other.priority) ? -1 : 1;
+            }
+            return (seq < other.seq) ? -1 : ((seq == other.seq) ? 0 : 1);
+        }
+    }
+
+    /** Queue of jobs that hands out jobs only with a slot of the governor.
+     * A thread claims a waiting job first and waits for the slot while the job
+     * stays in the queue (and counts as waiting). Then it takes the best job. */
+    protected class JobQueue extends PriorityBlockingQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+        /** number of jobs claimed by threads waiting for a slot */
+        private int claimed = 0;
+        /** lock for claims */
+        private final Object claimLock = new Object();
+
+        @Override
+        public boolean offer(Runnable r) {
+            boolean added = super.offer(r);
+            synchronized (claimLock) {
+                claimLock.notifyAll();
+            }
+            return added;
+        }
+
+        @Override
+        public Runnable take() throws InterruptedException {
+            return take(-1);
+        }
+
+        @Override
+        public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return take(Math.max(unit.toNanos(timeout), 0));
+        }
+
+        /** Waits for a job and a slot of the governor.
+         * Returns null if the time ran out.
+         * 
+         * @param nanos max time to wait in ns (negative = no limit)
+         * @return
+         * @throws InterruptedException
+         */
+        protected Runnable take(long nanos) throws InterruptedException {
+            long deadline = System.nanoTime() + nanos;
+            while (true) {
+                // claim a waiting job
+                synchronized (claimLock) {
+                    while (size() <= claimed) {
+                        if (nanos < 0) {
+                            claimLock.wait();
+                        } else {
+                            long left = deadline - System.nanoTime();
+                            if (left <= 0) {
+                                return null;
+                            }
+                            TimeUnit.NANOSECONDS.timedWait(claimLock, left);
+                        }
+                    }
+                    claimed++;
+                }
+                Runnable r = null;
+                try {
+                    // wait for a slot with the job still in the queue
+                    ExecutionGovernor.Subsystem gov = governor;
+                    if (gov != null) {
+                        if (nanos < 0) {
+                            gov.acquire();
+                        } else if (!gov.tryAcquire(deadline - System.nanoTime())) {
+                            return null;
+                        }
+                    }
+                    r = super.poll();
+                    if (gov != null) {
+                        if (r instanceof Job) {
+                            ((DigilibJobCenter<?>.Job<?>) r).slot = gov;
+                        } else {
+                            // the job was removed in the meantime
+                            gov.cancel();
+                        }
+                    }
+                } finally {
+                    synchronized (claimLock) {
+                        claimed--;
+                        claimLock.notifyAll();
+                    }
+                }
+                if (r != null) {
+                    return r;
+                }
+            }
+        }
+    }
+
+    /** ThreadPoolExecutor that wraps submitted jobs in Job. */
+    protected class JobExecutor extends ThreadPoolExecutor {
+
+        public JobExecutor(int nThreads, BlockingQueue<Runnable> queue) {
+            super(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS, queue);
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            return new Job<T>(callable, getCost(callable), null);
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+            return new Job<T>(runnable, value, getCost(runnable), null);
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            super.beforeExecute(t, r);
+            if (r instanceof Job) {
+                DigilibJobCenter<?>.Job<?> job = (DigilibJobCenter<?>.Job<?>) r;
+                job.dequeued = System.currentTimeMillis();
+                if (job.background) {
+                    backgroundJobs.decrementAndGet();
+                }
+                ExecutionGovernor.Subsystem gov = governor;
+                if (gov != null && job.slot == null) {
+                    // job was handed to a new thread without the queue
+                    try {
+                        gov.acquire();
+                        job.slot = gov;
+                    } catch (InterruptedException e) {
+                        // never run without a slot
+                        job.cancel(false);
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                job.started = System.currentTimeMillis();
+                job.slotStart = job.started;
+                if (!job.background) {
+                    // background jobs are meant to wait
+                    queueStats.get(getCostClass(job.cost)).add(job.started - job.submitted);
+                }
+                runningJob.set(job);
+            }
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            super.afterExecute(r, t);
+            if (r instanceof Job) {
+                DigilibJobCenter<?>.Job<?> job = (DigilibJobCenter<?>.Job<?>) r;
+                runningJob.remove();
+                long now = System.currentTimeMillis();
+                if (job.suspendedSlot != null) {
+                    // the slot was not taken back
+                    job.suspendedTime += now - job.suspendStart;
+                    job.suspendedSlot = null;
+                }
+                // time spent working (without waiting for other resources)
+                long runTime = now - job.started - job.suspendedTime;
+                if (job.slot != null) {
+                    job.slot.release(now - job.slotStart);
+                }
+                synchronized (clientClocks) {
+                    avgRunTime = 0.9 * avgRunTime + 0.1 * runTime;
+                }
+                if (job.ticket != null) {
+                    job.ticket.release();
+                }
+                if (adaptive) {
+                    // compare run times by cost (from CostAwareJob); background jobs are meant to wait
+                    sizer.addSample(runTime, job.cost, job.background ? 0 : job.dequeued - job.submitted);
+                    adapt();
+                }
+            }
+        }
+    }
+
     /** Create a DigilibJobcenter with the given number of threads and queue length.
      * If prestart=true it starts the threads in the thread pool.
      * 
@@ -59,11 +432,37 @@ public class DigilibJobCenter<V> {
      * @param label
      */
     public DigilibJobCenter(int maxThreads, int maxQueueLen, boolean prestart, String label) {
+        this(maxThreads, maxQueueLen, prestart, label, 0, false);
+    }
+
+    /** Create a DigilibJobcenter with the given number of threads and queue length.
+     * If prestart=true it starts the threads in the thread pool.
+     * If agingCost > 0 jobs are run in order of their cost plus waiting time.
+     * If fairQueuing=true jobs are run in turns by client.
+     * 
+     * @param maxThreads
+     * @param maxQueueLen
+     * @param prestart
+     * @param label
+     * @param agingCost cost units a waiting job gains per second (0 = FIFO order)
+     * @param fairQueuing
+     */
+    public DigilibJobCenter(int maxThreads, int maxQueueLen, boolean prestart, String label, long agingCost,
+            boolean fairQueuing) {
         super();
         this.label = (label != null) ? label : "";
         this.maxThreads = maxThreads;
         this.maxQueueLen = maxQueueLen;
-        executor = Executors.newFixedThreadPool(maxThreads);
+        this.agingCost = agingCost;
+        this.fairQueuing = fairQueuing;
+        Map<String, QueueStats> stats = new LinkedHashMap<String, QueueStats>();
+        for (String cc : COST_CLASSES) {
+            stats.put(cc, new QueueStats());
+        }
+        queueStats = Collections.unmodifiableMap(stats);
+        // jobs are ordered by Job.compareTo (FIFO without cost scheduling or fair queuing)
+        BlockingQueue<Runnable> queue = new JobQueue();
+        executor = new JobExecutor(maxThreads, queue);
         if (prestart) {
             // prestart threads so Tomcat's leak protection doesn't complain
             int st = ((ThreadPoolExecutor)executor).prestartAllCoreThreads();
@@ -77,6 +476,7 @@ public class DigilibJobCenter<V> {
      * @return Future to control the job
      */
     public Future<V> submit(Callable<V> job) {
+        adapt();
         return executor.submit(job);
     }
 
@@ -86,9 +486,184 @@ public class DigilibJobCenter<V> {
      * @return Future to control the job
      */
     public Future<?> submit(Runnable job) {
+        adapt();
         return executor.submit(job);
     }
 
+    /** Returns a Ticket for a new job of the client or null if the client
+     * has too many unfinished jobs or exceeds its rate.
+     * 
+     * @param client key of the client
+     * @return
+     */
+    public Ticket admit(String client) {
+        // same key as the Ticket releases
+        if (client == null) {
+            client = "";
+        }
+        if (clientLimiter == null) {
+            return new Ticket(client, null);
+        }
+        if (!clientLimiter.tryAcquire(client)) {
+            logger.debug(label + " client over limit: " + client);
+            return null;
+        }
+        return new Ticket(client, clientLimiter);
+    }
+
+    /** Returns the time in seconds until the client may submit another job.
+     * 
+     * @param client
+     * @return
+     */
+    public int getRetryAfter(String client) {
+        if (clientLimiter == null) {
+            return 1;
+        }
+        return clientLimiter.getRetryAfter(client);
+    }
+
+    /** Gives back the slot of the execution governor held by the job of the
+     * current thread so that other jobs can run while it waits (e.g. for
+     * memory). The slot has to be taken back with {@link #resumeSlot()}.
+     * 
+     * Returns false if the current thread does not run a job with a slot.
+     * 
+     * @return
+     */
+    public static boolean suspendSlot() {
+        DigilibJobCenter<?>.Job<?> job = runningJob.get();
+        if (job == null || job.slot == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        job.slot.release(now - job.slotStart);
+        job.suspendedSlot = job.slot;
+        job.slot = null;
+        job.suspendStart = now;
+        return true;
+    }
+
+    /** Waits for a slot of the execution governor for the job of the current
+     * thread after {@link #suspendSlot()}.
+     * 
+     * @throws InterruptedException
+     */
+    public static void resumeSlot() throws InterruptedException {
+        DigilibJobCenter<?>.Job<?> job = runningJob.get();
+        if (job == null || job.suspendedSlot == null) {
+            return;
+        }
+        job.suspendedSlot.acquire();
+        job.slot = job.suspendedSlot;
+        job.suspendedSlot = null;
+        long now = System.currentTimeMillis();
+        job.slotStart = now;
+        job.suspendedTime += now - job.suspendStart;
+    }
+
+    /** Submit Callable job of the client with the Ticket from {@link #admit(String)}.
+     * The Ticket is released when the job is finished.
+     * 
+     * @param job
+     * @param ticket
+     * @return Future to control the job
+     */
+    public Future<V> submit(Callable<V> job, Ticket ticket) {
+        adapt();
+        Job<V> task = new Job<V>(job, getCost(job), ticket);
+        executor.execute(task);
+        return task;
+    }
+
+    /** Submit Runnable job of the client with the Ticket from {@link #admit(String)}.
+     * The Ticket is released when the job is finished.
+     * 
+     * @param job
+     * @param ticket
+     * @return Future to control the job
+     */
+    public Future<?> submit(Runnable job, Ticket ticket) {
+        adapt();
+        Job<Object> task = new Job<Object>(job, null, getCost(job), ticket);
+        executor.execute(task);
+        return task;
+    }
+
+    /** Submit Callable job to run in the background.
+     * The job only starts when no other job is waiting.
+     * 
+     * @param job
+     * @return Future to control the job
+     */
+    public Future<V> submitBackground(Callable<V> job) {
+        Job<V> task = new Job<V>(job, getCost(job));
+        backgroundJobs.incrementAndGet();
+        try {
+            executor.execute(task);
+        } catch (RuntimeException e) {
+            backgroundJobs.decrementAndGet();
+            throw e;
+        }
+        return task;
+    }
+
+    /** Submit Callable job of the client without limits.
+     * 
+     * @param job
+     * @param client key of the client
+     * @return Future to control the job
+     */
+    public Future<V> submit(Callable<V> job, String client) {
+        return submit(job, new Ticket(client, null));
+    }
+
+    /** Adjusts the number of threads if adaptive and the interval has passed.
+     */
+    protected void adapt() {
+        if (adaptive) {
+            int n = sizer.update(getWaitingJobs());
+            if (n > 0) {
+                resize(n);
+            }
+        }
+    }
+
+    /** Sets the number of threads of the executor.
+     * 
+     * @param n
+     */
+    protected synchronized void resize(int n) {
+        ThreadPoolExecutor tpe = (ThreadPoolExecutor) executor;
+        if (n > tpe.getMaximumPoolSize()) {
+            tpe.setMaximumPoolSize(n);
+            tpe.setCorePoolSize(n);
+        } else {
+            tpe.setCorePoolSize(n);
+            tpe.setMaximumPoolSize(n);
+        }
+        if (governor != null) {
+            // new jobs go through the queue
+            tpe.prestartAllCoreThreads();
+        }
+        if (n != maxThreads) {
+            logger.info(label + " number of threads: " + n);
+        }
+        maxThreads = n;
+    }
+
+    /** Removes the clocks of clients that are behind the current time.
+     * 
+     * @param now
+     */
+    protected void removeClientClocks(long now) {
+        for (Iterator<Long> i = clientClocks.values().iterator(); i.hasNext();) {
+            if (i.next() <= now) {
+                i.remove();
+            }
+        }
+    }
+
     /** Returns if the service is overloaded.
      *  
      * @return
@@ -107,17 +682,111 @@ public class DigilibJobCenter<V> {
         return ((ThreadPoolExecutor)executor).getActiveCount();
     }
     
-    /** Returns the number of currently waiting jobs.
+    /** Returns the number of currently waiting jobs (without background jobs).
      * @return
      */
     public int getWaitingJobs() {
         BlockingQueue<Runnable> jq = ((ThreadPoolExecutor)executor).getQueue();
-        int jql = jq.size();
-        return jql;
+        int jql = jq.size() - backgroundJobs.get();
+        return Math.max(jql, 0);
     }
 
+    /** Returns the estimated cost of the job.
+     * 
+     * @param job
+     * @return
+     */
+    protected long getCost(Object job) {
+        if (job instanceof CostAwareJob) {
+            try {
+                return ((CostAwareJob) job).getCost();
+            } catch (Exception e) {
+                logger.warn(label + " error estimating job cost: " + e);
+            }
+        }
+        return 0;
+    }
+
+    /** Returns the name of the cost class for the cost.
+     * 
+     * @param cost
+     * @return
+     */
+    public static String getCostClass(long cost) {
+        for (int i = 0; i < COST_CLASS_LIMITS.length; ++i) {
+            if (cost < COST_CLASS_LIMITS[i]) {
+                return COST_CLASSES[i];
+            }
+        }
+        return COST_CLASSES[COST_CLASSES.length - 1];
+    }
+
+    /** Returns the queue statistics by cost class.
+     * 
+     * @return
+     */
+    public Map<String, QueueStats> getQueueStats() {
+        return queueStats;
+    }
+
+    /** Returns if jobs are scheduled by cost.
+     * 
+     * @return
+     */
+    public boolean isCostScheduling() {
+        return agingCost > 0;
+    }
+
+    public long getAgingCost() {
+        return agingCost;
+    }
+
+    /** Returns if jobs are run in turns by client.
+     * 
+     * @return
+     */
+    public boolean isFairQueuing() {
+        return fairQueuing;
+    }
+
+    public ExecutionGovernor.Subsystem getGovernor() {
+        return governor;
+    }
+
+    /** Registers this job center with the ExecutionGovernor.
+     * 
+     * @param governor
+     * @param weight weight of this job center relative to others
+     */
+    public void setGovernor(ExecutionGovernor governor, double weight) {
+        this.governor = governor.register(label, weight);
+        // new jobs go through the queue
+        ((ThreadPoolExecutor) executor).prestartAllCoreThreads();
+    }
+
+    public ClientLimiter getClientLimiter() {
+        return clientLimiter;
+    }
+
+    public void setClientLimiter(ClientLimiter clientLimiter) {
+        this.clientLimiter = clientLimiter;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /** Sets the number of threads.
+     * Within the bounds if adaptive.
+     * 
+     * @param maxThreads
+     */
     public void setMaxThreads(int maxThreads) {
-        this.maxThreads = maxThreads;
+        if (adaptive) {
+            sizer.setSize(maxThreads);
+            maxThreads = sizer.getSize();
+        }
+        resize(Math.max(maxThreads, 1));
     }
 
     public int getMaxThreads() {
@@ -132,12 +801,130 @@ public class DigilibJobCenter<V> {
         return maxQueueLen;
     }
 
+    /** Returns the average run time of jobs in ms.
+     * 
+     * @return
+     */
+    public long getAverageRunTime() {
+        synchronized (clientClocks) {
+            return Math.round(avgRunTime);
+        }
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /** Adjusts the number of threads to the load or keeps it fixed.
+     * Uses default bounds if not set with {@link #setAdaptive(PoolSizeController)}.
+     * 
+     * @param adaptive
+     */
+    public void setAdaptive(boolean adaptive) {
+        if (adaptive && !this.adaptive) {
+            // start from the current number of threads
+            getSizer();
+            this.adaptive = true;
+            setMaxThreads(maxThreads);
+        }
+        this.adaptive = adaptive;
+    }
+
+    /** Adjusts the number of threads to the load with the controller.
+     * 
+     * @param sizer
+     */
+    public void setAdaptive(PoolSizeController sizer) {
+        this.sizer = sizer;
+        this.adaptive = true;
+        resize(sizer.getSize());
+    }
+
+    /** Returns the controller for the number of threads.
+     * Creates a controller with default bounds if there is none.
+     * 
+     * @return
+     */
+    public synchronized PoolSizeController getSizer() {
+        if (sizer == null) {
+            sizer = new PoolSizeController(maxThreads, 1, 0, PoolSizeController.DEFAULT_CPU_TARGET,
+                    PoolSizeController.DEFAULT_INTERVAL);
+        }
+        return sizer;
+    }
+
+    public int getAdaptiveMinThreads() {
+        return getSizer().getMinSize();
+    }
+
+    public void setAdaptiveMinThreads(int minThreads) {
+        getSizer().setMinSize(minThreads);
+        if (adaptive) {
+            setMaxThreads(this.maxThreads);
+        }
+    }
+
+    public int getAdaptiveMaxThreads() {
+        return getSizer().getMaxSize();
+    }
+
+    public void setAdaptiveMaxThreads(int maxThreads) {
+        getSizer().setMaxSize(maxThreads);
+        if (adaptive) {
+            setMaxThreads(this.maxThreads);
+        }
+    }
+
+    public double getCpuTarget() {
+        return getSizer().getCpuTarget();
+    }
+
+    public void setCpuTarget(double cpuTarget) {
+        getSizer().setCpuTarget(cpuTarget);
+    }
+
+    public double getProcessCpuLoad() {
+        return PoolSizeController.getProcessCpuLoad();
+    }
+
+    /** Registers this job center as MBean with the platform MBeanServer.
+     * The name is "domain:type=DigilibJobCenter,name=label".
+     * 
+     * @param domain
+     */
+    public void registerMBean(String domain) {
+        try {
+            ObjectName name = new ObjectName(domain + ":type=DigilibJobCenter,name=" + ObjectName.quote(label));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, name);
+            mbeanName = name;
+            logger.debug(label + " registered MBean " + name);
+        } catch (Exception e) {
+            logger.error(label + " error registering MBean: " + e);
+        }
+    }
+
+    /** Unregisters this job center from the platform MBeanServer.
+     */
+    public void unregisterMBean() {
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (Exception e) {
+                logger.error(label + " error unregistering MBean: " + e);
+            }
+            mbeanName = null;
+        }
+    }
+
     /** Shuts down the Executor. 
      * Tries to stop running threads and returns a list of waiting threads.
+     * Unregisters the MBean.
      * 
      * @return
      */
     public List<Runnable> shutdownNow() {
+        unregisterMBean();
         return executor.shutdownNow();
     }
 
@@ -0,0 +1,81 @@
+package digilib.util;
+
+/*
+ * #%L
+ * DigilibJobCenterMBean -- JMX management interface of DigilibJobCenter
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * JMX management interface of {@link DigilibJobCenter}.
+ */
+public interface DigilibJobCenterMBean {
+
+    /** Returns the label of the job center. */
+    public String getLabel();
+
+    /** Returns the number of threads. */
+    public int getMaxThreads();
+
+    /** Sets the number of threads (within the bounds if adaptive). */
+    public void setMaxThreads(int maxThreads);
+
+    /** Returns the max number of waiting jobs. */
+    public int getMaxQueueLen();
+
+    /** Sets the max number of waiting jobs. */
+    public void setMaxQueueLen(int maxQueueLen);
+
+    /** Returns the number of currently running jobs. */
+    public int getRunningJobs();
+
+    /** Returns the number of currently waiting jobs. */
+    public int getWaitingJobs();
+
+    /** Returns the average run time of jobs in ms. */
+    public long getAverageRunTime();
+
+    /** Returns if the number of threads is adjusted to the load. */
+    public boolean isAdaptive();
+
+    /** Adjusts the number of threads to the load or keeps it fixed. */
+    public void setAdaptive(boolean adaptive);
+
+    /** Returns the min number of threads if adaptive. */
+    public int getAdaptiveMinThreads();
+
+    /** Sets the min number of threads if adaptive. */
+    public void setAdaptiveMinThreads(int minThreads);
+
+    /** Returns the max number of threads if adaptive. */
+    public int getAdaptiveMaxThreads();
+
+    /** Sets the max number of threads if adaptive. */
+    public void setAdaptiveMaxThreads(int maxThreads);
+
+    /** Returns the CPU load of the process (0..1) above which threads are removed. */
+    public double getCpuTarget();
+
+    /** Sets the CPU load of the process (0..1) above which threads are removed. */
+    public void setCpuTarget(double cpuTarget);
+
+    /** Returns the recent CPU load of the process (0..1, negative if not available). */
+    public double getProcessCpuLoad();
+
+}
@@ -0,0 +1,298 @@
+package digilib.util;
+
+/*
+ * #%L
+ * ExecutionGovernor -- global limit for CPU-heavy jobs of all executors
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Global limit for the number of concurrently running CPU-heavy jobs.
+ *
+ * Executors ({@link DigilibJobCenter}) register as subsystems with a weight
+ * and acquire a slot for every job before it runs. When jobs of several
+ * subsystems wait for a slot, the free slot goes to the subsystem with the
+ * fewest started jobs relative to its weight, so e.g. interactive images get
+ * a larger share than background PDF pages without starving them.
+ */
+public class ExecutionGovernor {
+
+    protected static Logger logger = Logger.getLogger(ExecutionGovernor.class);
+
+    /** Executor registered with the governor. */
+    public class Subsystem {
+        protected String name;
+        protected double weight;
+        /** started jobs divided by weight */
+        protected double vtime = 0;
+        protected int running = 0;
+        protected int waiting = 0;
+        protected long jobs = 0;
+        /** total run time of jobs in ms */
+        protected long runTime = 0;
+
+        protected Subsystem(String name, double weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+
+        /**
+         * Waits for a free slot.
+         *
+         * @throws InterruptedException
+         */
+        public void acquire() throws InterruptedException {
+            ExecutionGovernor.this.acquire(this, -1);
+        }
+
+        /**
+         * Waits up to the given time for a free slot.
+         *
+         * Returns false if no slot was free in time.
+         *
+         * @param nanos
+         *            max time to wait in ns
+         * @return
+         * @throws InterruptedException
+         */
+        public boolean tryAcquire(long nanos) throws InterruptedException {
+            return ExecutionGovernor.this.acquire(this, Math.max(nanos, 0));
+        }
+
+        /**
+         * Returns the slot of a job that did not run.
+         */
+        public void cancel() {
+            ExecutionGovernor.this.cancel(this);
+        }
+
+        /**
+         * Returns the slot of a finished job.
+         *
+         * @param time
+         *            run time of the job in ms
+         */
+        public void release(long time) {
+            ExecutionGovernor.this.release(this, time);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getWeight() {
+            return weight;
+        }
+
+        public int getRunning() {
+            synchronized (ExecutionGovernor.this) {
+                return running;
+            }
+        }
+
+        public int getWaiting() {
+            synchronized (ExecutionGovernor.this) {
+                return waiting;
+            }
+        }
+
+        public long getJobs() {
+            synchronized (ExecutionGovernor.this) {
+                return jobs;
+            }
+        }
+
+        /**
+         * Returns the share of this subsystem of the total run time of all
+         * jobs (0..1).
+         *
+         * @return
+         */
+        public double getShare() {
+            synchronized (ExecutionGovernor.this) {
+                return (totalRunTime > 0) ? (double) runTime / totalRunTime : 0;
+            }
+        }
+    }
+
+    /** max number of running jobs */
+    protected int maxJobs;
+
+    /** number of running jobs */
+    protected int running = 0;
+
+    /** total run time of all jobs in ms */
+    protected long totalRunTime = 0;
+
+    /** registered subsystems */
+    protected List<Subsystem> subsystems = new ArrayList<Subsystem>();
+
+    /**
+     * @param maxJobs
+     *            max number of running jobs (0 = number of processors)
+     */
+    public ExecutionGovernor(int maxJobs) {
+        if (maxJobs <= 0) {
+            maxJobs = Runtime.getRuntime().availableProcessors();
+        }
+        this.maxJobs = maxJobs;
+        logger.info("ExecutionGovernor max running jobs: " + maxJobs);
+    }
+
+    /**
+     * Registers a subsystem with the weight.
+     *
+     * @param name
+     * @param weight
+     * @return
+     */
+    public synchronized Subsystem register(String name, double weight) {
+        Subsystem s = new Subsystem(name, Math.max(weight, 0.01));
+        subsystems.add(s);
+        return s;
+    }
+
+    /**
+     * Waits until a slot is free and the subsystem is next.
+     *
+     * Returns false if the time ran out.
+     *
+     * @param s
+     * @param nanos
+     *            max time to wait in ns (negative = no limit)
+     * @return
+     * @throws InterruptedException
+     */
+    protected synchronized boolean acquire(Subsystem s, long nanos) throws InterruptedException {
+        if (s.waiting == 0 && s.running == 0) {
+            // idle subsystems don't save up turns
+            s.vtime = Math.max(s.vtime, getMinVtime());
+        }
+        long deadline = System.nanoTime() + nanos;
+        s.waiting++;
+        try {
+            while (running >= maxJobs || !isNext(s)) {
+                if (nanos < 0) {
+                    wait();
+                } else {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            }
+        } finally {
+            s.waiting--;
+            // the next waiting subsystem may be able to run
+            notifyAll();
+        }
+        running++;
+        s.running++;
+        s.jobs++;
+        s.vtime += 1 / s.weight;
+        return true;
+    }
+
+    /**
+     * Returns the slot of the subsystem.
+     *
+     * @param s
+     * @param time
+     */
+    protected synchronized void release(Subsystem s, long time) {
+        running--;
+        s.running--;
+        s.runTime += time;
+        totalRunTime += time;
+        notifyAll();
+    }
+
+    /**
+     * Returns the unused slot of the subsystem and takes back its turn.
+     *
+     * @param s
+     */
+    protected synchronized void cancel(Subsystem s) {
+        running--;
+        s.running--;
+        s.jobs--;
+        s.vtime -= 1 / s.weight;
+        notifyAll();
+    }
+
+    /**
+     * Returns if the subsystem has the lowest vtime of all waiting subsystems.
+     *
+     * @param s
+     * @return
+     */
+    protected boolean isNext(Subsystem s) {
+        for (Subsystem o : subsystems) {
+            if (o != s && o.waiting > 0 && o.vtime < s.vtime) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the lowest vtime of all busy subsystems.
+     *
+     * @return
+     */
+    protected double getMinVtime() {
+        double min = Double.MAX_VALUE;
+        for (Subsystem o : subsystems) {
+            if ((o.waiting > 0 || o.running > 0) && o.vtime < min) {
+                min = o.vtime;
+            }
+        }
+        return (min == Double.MAX_VALUE) ? 0 : min;
+    }
+
+    /**
+     * @return the max number of running jobs
+     */
+    public int getMaxJobs() {
+        return maxJobs;
+    }
+
+    /**
+     * @return the number of running jobs
+     */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * @return the registered subsystems
+     */
+    public synchronized List<Subsystem> getSubsystems() {
+        return Collections.unmodifiableList(new ArrayList<Subsystem>(subsystems));
+    }
+
+}
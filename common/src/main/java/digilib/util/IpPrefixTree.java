@@ -0,0 +1,460 @@
+package digilib.util;
+
+/*
+ * #%L
+ * IpPrefixTree -- Radix tree of IP address prefixes
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compressed binary radix tree of IPv4 and IPv6 address prefixes with lists
+ * of values (e.g. roles).
+ *
+ * The tree is constructed from a Map of address prefixes and values separated
+ * by a 'leaf separator' String. Address prefixes can be given in CIDR
+ * notation ("130.92.64.0/22", "2001:db8::/32"), as full addresses or (like
+ * in HashTree) as leading parts of addresses in full octets or groups
+ * ("130.92.68", "2001:db8").
+ *
+ * Matching an address returns the values of all prefixes that contain the
+ * address (shortest prefix first). The lists are computed in advance and
+ * matching does not allocate objects.
+ */
+public class IpPrefixTree {
+
+    protected static Logger logger = Logger.getLogger(IpPrefixTree.class);
+
+    /**
+     * Node of the tree: a prefix of up to 128 bits (IPv4 addresses use the
+     * upper 32 bits).
+     */
+    protected static final class Node {
+        /** upper 64 bits of the prefix */
+        protected long hi;
+        /** lower 64 bits of the prefix */
+        protected long lo;
+        /** length of the prefix in bits */
+        protected int len;
+        /** values of this prefix (null if the node is only a branch) */
+        protected List<String> values;
+        /** values of this prefix and all shorter prefixes */
+        protected List<String> matches;
+        /** child nodes for the next bit 0 and 1 */
+        protected Node zero;
+        protected Node one;
+
+        protected Node(long hi, long lo, int len) {
+            this.len = len;
+            this.hi = (len >= 64) ? hi : hi & mask(len);
+            this.lo = (len >= 64) ? lo & mask(len - 64) : 0;
+        }
+    }
+
+    /** root of the IPv4 tree */
+    protected Node root4;
+
+    /** root of the IPv6 tree */
+    protected Node root6;
+
+    /**
+     * Creates an IpPrefixTree from a Map of address prefixes and values.
+     *
+     * Invalid address prefixes are logged and ignored.
+     *
+     * @param table
+     * @param leafSeparator
+     */
+    public IpPrefixTree(Map<String, String> table, String leafSeparator) {
+        for (Map.Entry<String, String> e : table.entrySet()) {
+            List<String> values = new ArrayList<String>();
+            for (String v : e.getValue().split(leafSeparator)) {
+                if (!v.isEmpty()) {
+                    values.add(v);
+                }
+            }
+            try {
+                add(e.getKey().trim(), values);
+            } catch (IllegalArgumentException ex) {
+                logger.warn("Invalid IP address '" + e.getKey() + "' ignored: " + ex.getMessage());
+            }
+        }
+        setMatches(root4, Collections.<String> emptyList());
+        setMatches(root6, Collections.<String> emptyList());
+    }
+
+    /**
+     * Returns the values of all prefixes that contain the address or null.
+     *
+     * The returned List must not be modified.
+     *
+     * @param address
+     *            IPv4 or IPv6 address
+     * @return
+     */
+    public List<String> match(String address) {
+        if (address == null) {
+            return null;
+        }
+        try {
+            if (address.indexOf(':') < 0) {
+                return match(root4, parseIp4(address, 0, address.length(), true) << 32, 0);
+            } else {
+                return match(root6, parseIp6(address, true), parseIp6(address, false));
+            }
+        } catch (IllegalArgumentException e) {
+            logger.debug("Invalid IP address '" + address + "'");
+            return null;
+        }
+    }
+
+    /**
+     * Returns the values of the longest prefix in the tree that contains the
+     * address or null.
+     */
+    protected static List<String> match(Node node, long hi, long lo) {
+        List<String> found = null;
+        while (node != null) {
+            if (commonLength(node.hi, node.lo, hi, lo, node.len) < node.len) {
+                break;
+            }
+            if (node.matches != null) {
+                found = node.matches;
+            }
+            if (node.len == 128) {
+                break;
+            }
+            node = (bit(hi, lo, node.len) == 0) ? node.zero : node.one;
+        }
+        return found;
+    }
+
+    /**
+     * Adds an address prefix with values.
+     *
+     * @param prefix
+     * @param values
+     */
+    protected void add(String prefix, List<String> values) {
+        int len = -1;
+        int end = prefix.length();
+        int slash = prefix.indexOf('/');
+        if (slash >= 0) {
+            len = parseNumber(prefix, slash + 1, end, 10);
+            end = slash;
+        }
+        String addr = prefix.substring(0, end);
+        if (addr.indexOf(':') < 0) {
+            // IPv4
+            int octets = 1;
+            for (int i = 0; i < end; ++i) {
+                if (addr.charAt(i) == '.') {
+                    ++octets;
+                }
+            }
+            if (len < 0) {
+                len = 8 * octets;
+            }
+            if (len > 32) {
+                throw new IllegalArgumentException("prefix too long");
+            }
+            root4 = insert(root4, new Node(parseIp4(addr, 0, end, false) << 32, 0, len), values);
+        } else {
+            // IPv6
+            if (addr.indexOf("::") < 0) {
+                int groups = 1;
+                for (int i = 0; i < end; ++i) {
+                    if (addr.charAt(i) == ':') {
+                        ++groups;
+                    }
+                }
+                if (groups < 8) {
+                    // leading groups of an address
+                    if (len < 0) {
+                        len = 16 * groups;
+                    }
+                    addr += "::";
+                }
+            }
+            if (len < 0) {
+                len = 128;
+            }
+            if (len > 128) {
+                throw new IllegalArgumentException("prefix too long");
+            }
+            root6 = insert(root6, new Node(parseIp6(addr, true), parseIp6(addr, false), len), values);
+        }
+    }
+
+    /**
+     * Inserts the node into the tree.
+     *
+     * @param root
+     * @param node
+     * @param values
+     * @return the new root
+     */
+    protected static Node insert(Node root, Node node, List<String> values) {
+        Node parent = null;
+        Node n = root;
+        while (n != null) {
+            int common = commonLength(n.hi, n.lo, node.hi, node.lo, Math.min(n.len, node.len));
+            if (common < n.len) {
+                // split above n
+                Node branch;
+                if (common == node.len) {
+                    // the new node is a prefix of n
+                    branch = node;
+                } else {
+                    branch = new Node(node.hi, node.lo, common);
+                    setChild(branch, node);
+                }
+                setChild(branch, n);
+                if (parent == null) {
+                    root = branch;
+                } else {
+                    setChild(parent, branch);
+                }
+                break;
+            }
+            if (n.len == node.len) {
+                // same prefix
+                node = n;
+                break;
+            }
+            // n is a prefix of the new node
+            Node child = (bit(node.hi, node.lo, n.len) == 0) ? n.zero : n.one;
+            if (child == null) {
+                setChild(n, node);
+                break;
+            }
+            parent = n;
+            n = child;
+        }
+        if (root == null) {
+            root = node;
+        }
+        if (node.values == null) {
+            node.values = new ArrayList<String>();
+        }
+        node.values.addAll(values);
+        return root;
+    }
+
+    /**
+     * Sets node as the child of parent for the bit after the prefix of parent.
+     */
+    protected static void setChild(Node parent, Node node) {
+        if (bit(node.hi, node.lo, parent.len) == 0) {
+            parent.zero = node;
+        } else {
+            parent.one = node;
+        }
+    }
+
+    /**
+     * Computes the lists of values of all shorter prefixes for all nodes.
+     *
+     * @param node
+     * @param shorter
+     *            values of the shorter prefixes
+     */
+    protected static void setMatches(Node node, List<String> shorter) {
+        if (node == null) {
+            return;
+        }
+        List<String> matches = shorter;
+        if (node.values != null) {
+            List<String> m = new ArrayList<String>(shorter);
+            for (String v : node.values) {
+                if (!m.contains(v)) {
+                    m.add(v);
+                }
+            }
+            matches = Collections.unmodifiableList(m);
+            node.matches = matches.isEmpty() ? null : matches;
+        }
+        setMatches(node.zero, matches);
+        setMatches(node.one, matches);
+    }
+
+    /**
+     * Returns the number of leading bits (up to max) that two 128 bit values
+     * have in common.
+     */
+    protected static int commonLength(long hi1, long lo1, long hi2, long lo2, int max) {
+        long x = hi1 ^ hi2;
+        int common = (x != 0) ? Long.numberOfLeadingZeros(x) : 64 + Long.numberOfLeadingZeros(lo1 ^ lo2);
+        return Math.min(common, max);
+    }
+
+    /**
+     * Returns the bit at position i (from the left) of a 128 bit value.
+     */
+    protected static int bit(long hi, long lo, int i) {
+        if (i < 64) {
+            return (int) (hi >>> (63 - i)) & 1;
+        }
+        return (int) (lo >>> (127 - i)) & 1;
+    }
+
+    /**
+     * Returns a mask of the leftmost len (0 to 64) bits.
+     */
+    protected static long mask(int len) {
+        return (len == 0) ? 0 : -1L << (64 - len);
+    }
+
+    /**
+     * Parses a decimal or hexadecimal number.
+     */
+    protected static int parseNumber(String s, int start, int end, int radix) {
+        if (start >= end || end - start > 5) {
+            throw new IllegalArgumentException("invalid number");
+        }
+        int n = 0;
+        for (int i = start; i < end; ++i) {
+            int d = Character.digit(s.charAt(i), radix);
+            if (d < 0) {
+                throw new IllegalArgumentException("invalid number");
+            }
+            n = n * radix + d;
+        }
+        return n;
+    }
+
+    /**
+     * Parses a dotted IPv4 address (or its leading octets) into the lower 32
+     * bits of a long.
+     *
+     * @param s
+     * @param start
+     * @param end
+     * @param full
+     *            require all four octets
+     * @return
+     */
+    protected static long parseIp4(String s, int start, int end, boolean full) {
+        long ip = 0;
+        int octets = 0;
+        int pos = start;
+        while (pos <= end) {
+            int dot = s.indexOf('.', pos);
+            if (dot < 0 || dot > end) {
+                dot = end;
+            }
+            int octet = parseNumber(s, pos, dot, 10);
+            if (octet > 255 || ++octets > 4) {
+                throw new IllegalArgumentException("invalid IPv4 address");
+            }
+            ip = (ip << 8) | octet;
+            pos = dot + 1;
+        }
+        if (full && octets < 4) {
+            throw new IllegalArgumentException("invalid IPv4 address");
+        }
+        return ip << (8 * (4 - octets));
+    }
+
+    /**
+     * Parses an IPv6 address and returns the upper or lower 64 bits.
+     *
+     * Supports "::" and ignores a zone index ("%eth0").
+     *
+     * @param s
+     * @param upper
+     *            return the upper 64 bits
+     * @return
+     */
+    protected static long parseIp6(String s, boolean upper) {
+        int end = s.indexOf('%');
+        if (end < 0) {
+            end = s.length();
+        }
+        // groups before and after "::"
+        long headHi = 0;
+        long headLo = 0;
+        long tailHi = 0;
+        long tailLo = 0;
+        int headGroups = 0;
+        int tailGroups = 0;
+        boolean compressed = false;
+        int pos = 0;
+        if (s.startsWith("::")) {
+            compressed = true;
+            pos = 2;
+        }
+        while (pos < end) {
+            int colon = s.indexOf(':', pos);
+            if (colon < 0 || colon > end) {
+                colon = end;
+            }
+            long group = parseNumber(s, pos, colon, 16);
+            if (group > 0xffff) {
+                throw new IllegalArgumentException("invalid IPv6 address");
+            }
+            if (compressed) {
+                tailHi = (tailHi << 16) | (tailLo >>> 48);
+                tailLo = (tailLo << 16) | group;
+                ++tailGroups;
+            } else {
+                headHi = (headHi << 16) | (headLo >>> 48);
+                headLo = (headLo << 16) | group;
+                ++headGroups;
+            }
+            pos = colon + 1;
+            if (pos < end && s.charAt(pos) == ':') {
+                if (compressed) {
+                    throw new IllegalArgumentException("invalid IPv6 address");
+                }
+                compressed = true;
+                ++pos;
+            } else if (pos == end && colon < end) {
+                throw new IllegalArgumentException("invalid IPv6 address");
+            }
+        }
+        int groups = headGroups + tailGroups;
+        if (groups > 8 || (!compressed && groups < 8) || (compressed && groups > 7)) {
+            throw new IllegalArgumentException("invalid IPv6 address");
+        }
+        // shift head to the left
+        int shift = 16 * (8 - headGroups);
+        if (shift >= 128) {
+            headHi = 0;
+            headLo = 0;
+        } else if (shift >= 64) {
+            headHi = headLo << (shift - 64);
+            headLo = 0;
+        } else if (shift > 0) {
+            headHi = (headHi << shift) | (headLo >>> (64 - shift));
+            headLo = headLo << shift;
+        }
+        return upper ? (headHi | tailHi) : (headLo | tailLo);
+    }
+
+}
@@ -0,0 +1,336 @@
+package digilib.util;
+
+/*
+ * #%L
+ * PoolSizeController -- adaptive thread pool size from latency and CPU load
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Computes the size of a thread pool from the measured run time and queue
+ * wait of its jobs and the CPU load of the process.
+ *
+ * The size is adjusted once per interval by a latency gradient: the ratio of
+ * the long-term average run time of jobs to the run time in the last interval
+ * (between 0.5 and 1). The run time of jobs with an estimated cost is divided
+ * by their cost so that a batch of large images does not look like
+ * contention; jobs without a cost count with their raw run time. If the jobs
+ * got slower because the threads compete for the disk or the CPU the size
+ * shrinks. If jobs had to wait in the queue the
+ * size grows by its square root. If the CPU load of the process is above the
+ * target the size shrinks in proportion. The size stays between the minimum
+ * and the maximum.
+ */
+public class PoolSizeController {
+
+    protected static Logger logger = Logger.getLogger(PoolSizeController.class);
+
+    /** default CPU load of the process above which the pool shrinks */
+    public static final double DEFAULT_CPU_TARGET = 0.9;
+
+    /** default time between adjustments in ms */
+    public static final long DEFAULT_INTERVAL = 2000L;
+
+    /** weight of the last interval in the long-term run time */
+    protected static final double BASE_SMOOTHING = 0.05;
+
+    /** weight of the new size when shrinking */
+    protected static final double SHRINK_SMOOTHING = 0.2;
+
+    /** min pool size */
+    protected int minSize;
+
+    /** max pool size */
+    protected int maxSize;
+
+    /** CPU load of the process (0..1) above which the pool shrinks */
+    protected double cpuTarget;
+
+    /** time between adjustments in ms */
+    protected long interval;
+
+    /** current pool size */
+    protected double size;
+
+    /** long-term average run time of jobs without cost in ms */
+    protected double baseRunTime = 0;
+
+    /** long-term average run time per cost of jobs with cost in ms */
+    protected double baseCostTime = 0;
+
+    /** number, run time and queue wait of the jobs of the current interval */
+    protected long jobs = 0;
+    protected long runTime = 0;
+    protected long waitTime = 0;
+
+    /** number, run time and total cost of the jobs with cost of the current interval */
+    protected long costJobs = 0;
+    protected long costRunTime = 0;
+    protected double totalCost = 0;
+
+    /** getProcessCpuLoad method of com.sun.management.OperatingSystemMXBean (null if not available) */
+    protected static Method cpuLoadMethod = null;
+    static {
+        try {
+            Class<?> osClass = Class.forName("com.sun.management.OperatingSystemMXBean");
+            cpuLoadMethod = osClass.getMethod("getProcessCpuLoad");
+        } catch (Exception | LinkageError e) {
+            logger.info("CPU load of the process not available: " + e);
+        }
+    }
+
+    /** time of the last adjustment */
+    protected long lastUpdate = System.currentTimeMillis();
+
+    /** gradient and CPU load of the last adjustment */
+    protected double lastGradient = 1;
+    protected double lastCpuLoad = -1;
+
+    /**
+     * @param size
+     *            initial pool size
+     * @param minSize
+     *            min pool size
+     * @param maxSize
+     *            max pool size (0 = twice the number of processors)
+     * @param cpuTarget
+     *            CPU load of the process (0..1) above which the pool shrinks
+     * @param interval
+     *            time between adjustments in ms
+     */
+    public PoolSizeController(int size, int minSize, int maxSize, double cpuTarget, long interval) {
+        this.minSize = Math.max(minSize, 1);
+        if (maxSize <= 0) {
+            maxSize = 2 * Runtime.getRuntime().availableProcessors();
+        }
+        this.maxSize = Math.max(maxSize, this.minSize);
+        this.cpuTarget = (cpuTarget > 0) ? cpuTarget : DEFAULT_CPU_TARGET;
+        this.interval = (interval > 0) ? interval : DEFAULT_INTERVAL;
+        this.size = clamp(size);
+    }
+
+    /**
+     * Records the run time and queue wait of a finished job without cost.
+     *
+     * @param runTime
+     *            in ms
+     * @param waitTime
+     *            in ms
+     */
+    public void addSample(long runTime, long waitTime) {
+        addSample(runTime, 0, waitTime);
+    }
+
+    /**
+     * Records the run time, estimated cost and queue wait of a finished job.
+     *
+     * @param runTime
+     *            in ms
+     * @param cost
+     *            estimated cost of the job (0 if unknown)
+     * @param waitTime
+     *            in ms
+     */
+    public synchronized void addSample(long runTime, long cost, long waitTime) {
+        this.jobs++;
+        this.runTime += runTime;
+        this.waitTime += waitTime;
+        if (cost > 0) {
+            this.costJobs++;
+            this.costRunTime += runTime;
+            this.totalCost += cost;
+        }
+    }
+
+    /**
+     * Adjusts the pool size if the interval has passed.
+     *
+     * Returns the new pool size or 0 if it was not adjusted.
+     *
+     * @param waiting
+     *            number of waiting jobs
+     * @return
+     */
+    public synchronized int update(int waiting) {
+        long now = System.currentTimeMillis();
+        if (now - lastUpdate < interval) {
+            return 0;
+        }
+        lastUpdate = now;
+        int oldSize = getSize();
+        double cpuLoad = getProcessCpuLoad();
+        lastCpuLoad = cpuLoad;
+        double newSize = size;
+        boolean queued = waiting > 0;
+        if (jobs > 0) {
+            double rt = Math.max((double) runTime / jobs, 1);
+            double wt = (double) waitTime / jobs;
+            double gradient;
+            if (costJobs > 0) {
+                // run time per cost
+                double ct = Math.max(costRunTime, 1) / totalCost;
+                if (baseCostTime == 0) {
+                    baseCostTime = ct;
+                }
+                gradient = baseCostTime / ct;
+                // the long-term run time follows slowly
+                baseCostTime = (1 - BASE_SMOOTHING) * baseCostTime + BASE_SMOOTHING * ct;
+            } else {
+                if (baseRunTime == 0) {
+                    baseRunTime = rt;
+                }
+                gradient = baseRunTime / rt;
+                baseRunTime = (1 - BASE_SMOOTHING) * baseRunTime + BASE_SMOOTHING * rt;
+            }
+            // jobs slower than usual: too many threads compete
+            lastGradient = Math.max(Math.min(gradient, 1), 0.5);
+            newSize = size * lastGradient;
+            queued = queued || wt > 0.1 * rt;
+        }
+        if (queued) {
+            // jobs had to wait: add threads
+            newSize += Math.sqrt(size);
+        }
+        if (cpuLoad > cpuTarget) {
+            // CPU is saturated: remove threads
+            newSize = Math.min(newSize, size * cpuTarget / cpuLoad);
+        }
+        if (newSize < size) {
+            size = (1 - SHRINK_SMOOTHING) * size + SHRINK_SMOOTHING * newSize;
+        } else {
+            size = newSize;
+        }
+        size = clamp(size);
+        jobs = 0;
+        runTime = 0;
+        waitTime = 0;
+        costJobs = 0;
+        costRunTime = 0;
+        totalCost = 0;
+        int newIntSize = getSize();
+        if (newIntSize == oldSize) {
+            return 0;
+        }
+        logger.debug("pool size " + oldSize + " -> " + newIntSize + " (gradient=" + lastGradient + " cpu="
+                + cpuLoad + " waiting=" + waiting + ")");
+        return newIntSize;
+    }
+
+    protected double clamp(double s) {
+        return Math.max(Math.min(s, maxSize), minSize);
+    }
+
+    /**
+     * Returns the recent CPU load of the process (0..1) or a negative value
+     * if it is not available.
+     *
+     * @return
+     */
+    public static double getProcessCpuLoad() {
+        if (cpuLoadMethod == null) {
+            // not a HotSpot-compatible JVM
+            return -1;
+        }
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (!cpuLoadMethod.getDeclaringClass().isInstance(os)) {
+            return -1;
+        }
+        try {
+            return ((Number) cpuLoadMethod.invoke(os)).doubleValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the current pool size
+     */
+    public synchronized int getSize() {
+        return (int) Math.round(size);
+    }
+
+    /**
+     * Sets the current pool size (within the bounds).
+     *
+     * @param size
+     */
+    public synchronized void setSize(int size) {
+        this.size = clamp(size);
+    }
+
+    public synchronized int getMinSize() {
+        return minSize;
+    }
+
+    public synchronized void setMinSize(int minSize) {
+        this.minSize = Math.max(minSize, 1);
+        this.maxSize = Math.max(maxSize, this.minSize);
+        this.size = clamp(size);
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(maxSize, 1);
+        this.minSize = Math.min(minSize, this.maxSize);
+        this.size = clamp(size);
+    }
+
+    public synchronized double getCpuTarget() {
+        return cpuTarget;
+    }
+
+    public synchronized void setCpuTarget(double cpuTarget) {
+        this.cpuTarget = cpuTarget;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return the long-term average run time of jobs without cost in ms
+     */
+    public synchronized double getBaseRunTime() {
+        return baseRunTime;
+    }
+
+    /**
+     * @return the latency gradient of the last adjustment
+     */
+    public synchronized double getLastGradient() {
+        return lastGradient;
+    }
+
+    /**
+     * @return the CPU load of the last adjustment
+     */
+    public synchronized double getLastCpuLoad() {
+        return lastCpuLoad;
+    }
+
+}
@@ -69,6 +69,8 @@ public class ManifestServletConfiguration extends DigilibServletConfiguration {
         newParameter("scaler-servlet-name", "Scaler", null, 'f');
         // how to generate label for pages
         newParameter("iiif-manifest-page-label", "filename", null, 'f');
+        // Cache-Control max-age for manifest responses in seconds (-1 for no header)
+        newParameter("manifest-cache-max-age", new Integer(-1), null, 'f');
     }
 
     /*
@@ -117,6 +117,9 @@ public class Manifester extends HttpServlet {
     /** how to create label for pages */
     protected String pageLabelMode;
 
+    /** Cache-Control max-age for manifest responses (-1: no header) */
+    protected int manifestCacheMaxAge = -1;
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -151,39 +154,10 @@ public class Manifester extends HttpServlet {
 		corsForInfoRequests = dlConfig.getAsBoolean("iiif-info-cors");
 		// page label mode
 		pageLabelMode = dlConfig.getAsString("iiif-manifest-page-label");
+		// cache lifetime
+		manifestCacheMaxAge = dlConfig.getAsInt("manifest-cache-max-age");
 	}
 
-    /**
-     * Returns modification time relevant to the request for caching.
-     * 
-     * @see javax.servlet.http.HttpServlet#getLastModified(javax.servlet.http.HttpServletRequest)
-     */
-    public long getLastModified(HttpServletRequest request) {
-        accountlog.debug("GetLastModified from " + request.getRemoteAddr() + " for " + request.getQueryString());
-        long mtime = -1;
-        try {
-            // create new digilib request
-			DigilibServletRequest dlRequest = new DigilibServletRequest(request, dlConfig,
-					EnumSet.of(ParsingOption.omitIiifImageApi));
-			// get list of IIIF parameters
-			@SuppressWarnings("unchecked")
-			List<String> iiifParams = (List<String>) dlRequest.getValue("request.iiif.elements");
-			// get identifier (first parameter)
-			String identifier = iiifParams.get(0);
-			// decode identifier to file path
-			dlRequest.setValueFromString("fn", dlRequest.decodeIiifIdentifier(identifier));
-            DocuDirectory dd = dirCache.getDirectory(dlRequest.getFilePath());
-            if (dd != null) {
-            	// return rounded modification date of directory
-                mtime = dd.getDirMTime() / 1000 * 1000;
-            }
-        } catch (Exception e) {
-            logger.error("error in getLastModified: " + e.getMessage());
-        }
-        logger.debug("  returns " + mtime);
-        return mtime;
-    }
-
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -273,21 +247,47 @@ public class Manifester extends HttpServlet {
             }
 
 			// use JSON-LD content type only when asked
+			String contentType = "application/json";
 			String accept = request.getHeader("Accept");
 			if (accept != null && accept.contains("application/ld+json")) {
-				response.setContentType("application/ld+json");
+				contentType = "application/ld+json";
+			}
+
+			/*
+			 * check conditional request
+			 */
+			File mfMetaFile = new File(dlDir.getDir(), "manifest-meta.json");
+			StringBuilder identity = new StringBuilder("manifest|").append(request.getRequestURL())
+					.append("|").append(contentType).append("|").append(dlDir.getDir().getAbsolutePath());
+			long lastModified;
+			if (mfFile.canRead()) {
+				// static manifest
+				identity.append("|").append(ServletOps.getFileIdentity(mfFile));
+				lastModified = mfFile.lastModified();
 			} else {
-				response.setContentType("application/json");
+				// generated from the directory (images, scaled images and index.meta)
+				lastModified = dlDir.getContentMTime();
+				identity.append("|").append(lastModified).append("|").append(dlDir.size());
+				if (mfMetaFile.canRead()) {
+					identity.append("|").append(ServletOps.getFileIdentity(mfMetaFile));
+					lastModified = Math.max(lastModified, mfMetaFile.lastModified());
+				}
 			}
+			String etag = ServletOps.makeEtag(identity.toString());
+			if (ServletOps.sendNotModified(request, response, etag, lastModified, manifestCacheMaxAge,
+					useAuthorization, logger)) {
+				return;
+			}
+			ServletOps.setCacheHeaders(response, etag, lastModified, manifestCacheMaxAge, useAuthorization);
+			response.setContentType(contentType);
 
 			if (mfFile.canRead()) {
 				// send manifest file
-				ServletOps.sendFile(mfFile, "", "", response);
+				ServletOps.sendFile(mfFile, "", "", etag, request, response, logger);
 				return;
 			}
 
 			// check for manifest-meta.json file with additional metadata
-			File mfMetaFile = new File(dlDir.getDir(), "manifest-meta.json");
 			if (mfMetaFile.canRead()) {
 				params.mfMetaFile = mfMetaFile;
 			}
@@ -9,7 +9,9 @@ import javax.servlet.ServletContextEvent;
 
 import digilib.image.DocuImage;
 import digilib.io.FileOps;
+import digilib.util.ClientLimiter;
 import digilib.util.DigilibJobCenter;
+import digilib.util.ExecutionGovernor;
 
 /*
  * #%L
@@ -95,6 +97,14 @@ public class PDFServletConfiguration extends DigilibServletConfiguration {
         newParameter("pdf-image-worker-threads", new Integer(1), null, 'f');
         // max number of waiting pdf-image generation threads
         newParameter("pdf-image-max-waiting-threads", new Integer(10), null, 'f');
+        // max number of unfinished pdf-generation jobs per client (0 = no limit)
+        newParameter("pdf-client-max-jobs", new Integer(0), null, 'f');
+        // new pdf-generation jobs per second per client (0 = no limit)
+        newParameter("pdf-client-rate-limit", new Float(0), null, 'f');
+        // max number of pdf-generation jobs per client in a burst
+        newParameter("pdf-client-rate-burst", new Integer(5), null, 'f');
+        // weight of pdf-image jobs with cpu governor
+        newParameter("cpu-weight-pdf", new Integer(1), null, 'f');
         // PDF generation temp directory
         newParameter("pdf-temp-dir", "pdf_temp", null, 'f');
         // PDF generation cache directory
@@ -120,13 +130,32 @@ public class PDFServletConfiguration extends DigilibServletConfiguration {
         // PDF worker threads
         int pnt = config.getAsInt("pdf-worker-threads");
         int pmt = config.getAsInt("pdf-max-waiting-threads");
-        DigilibJobCenter<OutputStream> pdfExecutor = new DigilibJobCenter<OutputStream>(pnt, pmt, false, "servlet.worker.pdfexecutor");
+        boolean fair = config.getAsBoolean("worker-fair-queuing");
+        DigilibJobCenter<OutputStream> pdfExecutor = new DigilibJobCenter<OutputStream>(pnt, pmt, false,
+                "servlet.worker.pdfexecutor", 0, fair);
+        int pcmj = config.getAsInt("pdf-client-max-jobs");
+        float pcrl = config.getAsFloat("pdf-client-rate-limit");
+        if (pcmj > 0 || pcrl > 0) {
+            // limits per client
+            pdfExecutor.setClientLimiter(new ClientLimiter(pcmj, pcrl, config.getAsInt("pdf-client-rate-burst")));
+        }
         config.setValue(PDF_EXECUTOR_KEY, pdfExecutor);
         // PDF image worker threads
         int pint = config.getAsInt("pdf-image-worker-threads");
         int pimt = config.getAsInt("pdf-image-max-waiting-threads");
-        DigilibJobCenter<DocuImage> pdfImageExecutor = new DigilibJobCenter<DocuImage>(pint, pimt, false, "servlet.worker.pdfimageexecutor");
+        DigilibJobCenter<DocuImage> pdfImageExecutor = new DigilibJobCenter<DocuImage>(pint, pimt, false,
+                "servlet.worker.pdfimageexecutor", 0, fair);
+        ExecutionGovernor governor = (ExecutionGovernor) config.getValue(GOVERNOR_KEY);
+        if (governor != null) {
+            // share the global limit with the image executor
+            // (not the pdf executor: its jobs wait for the pdf-image jobs)
+            pdfImageExecutor.setGovernor(governor, config.getAsInt("cpu-weight-pdf"));
+        }
         config.setValue(PDF_IMAGEEXECUTOR_KEY, pdfImageExecutor);
+        if (config.getAsBoolean("worker-jmx")) {
+            pdfExecutor.registerMBean(config.getAsString("jmx-domain"));
+            pdfImageExecutor.registerMBean(config.getAsString("jmx-domain"));
+        }
         /*
          * set up temporary directories
          */
@@ -66,6 +66,13 @@ public class PDFFileWorker implements Callable<File> {
     	this.streamWorker = new PDFStreamWorker(dlConfig, outstream, job_info, imageJobCenter);
     }
     
+    /**
+     * @param client key of the client for fair queuing of image jobs
+     */
+    public void setClient(String client) {
+        streamWorker.setClient(client);
+    }
+
     public File call() throws Exception {
         OutputStream outstream = null;
         try {
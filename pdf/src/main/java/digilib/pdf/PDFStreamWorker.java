@@ -61,6 +61,9 @@ public class PDFStreamWorker implements Callable<OutputStream> {
 
 	protected DigilibJobCenter<DocuImage> imageJobCenter = null;
 
+	/** key of the client for fair queuing of image jobs */
+	protected String client = null;
+
 	/**
 	 * @param dlConfig
 	 * @param outputfile
@@ -76,6 +79,13 @@ public class PDFStreamWorker implements Callable<OutputStream> {
 		this.imageJobCenter = imageJobCenter;
 	}
 
+	/**
+	 * @param client key of the client for fair queuing of image jobs
+	 */
+	public void setClient(String client) {
+		this.client = client;
+	}
+
 	public OutputStream call() throws Exception {
 		outstream = renderPDF();
 		return outstream;
@@ -178,11 +188,13 @@ public class PDFStreamWorker implements Callable<OutputStream> {
 		// create image worker
 		ImageWorker job = new ImageWorker(dlConfig, iji);
 		// submit
-		Future<DocuImage> jobTicket = imageJobCenter.submit(job);
+		Future<DocuImage> jobTicket = imageJobCenter.submit(job, client);
 		// wait for result
 		DocuImage img = jobTicket.get();
 		// scale the image
 		Image pdfimg = Image.getInstance(img.getAwtImage(), null);
+		// release the image (and its memory budget)
+		img.dispose();
 		float docW = PageSize.A4.getWidth() - 2 * PageSize.A4.getBorder();
 		float docH = PageSize.A4.getHeight() - 2 * PageSize.A4.getBorder();
 		// fit the image to the page
@@ -40,7 +40,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 
-import digilib.conf.DigilibConfiguration;
+import digilib.conf.DigilibServletConfiguration;
 import digilib.conf.PDFRequest;
 import digilib.conf.PDFServletConfiguration;
 import digilib.image.DocuImage;
@@ -74,7 +74,7 @@ public class PDFCache extends HttpServlet {
     /** logger for authentication related */
     protected static Logger authlog = Logger.getLogger("digilib.pdf.auth");
 
-    private DigilibConfiguration dlConfig = null;
+    private DigilibServletConfiguration dlConfig = null;
 
     public static String instanceKey = "digilib.servlet.PDFCache";
 
@@ -115,6 +115,8 @@ public class PDFCache extends HttpServlet {
             // no Configuration
             throw new ServletException("No Configuration!");
         }
+        // configure ServletOps
+        ServletOps.setDlConfig(dlConfig);
         workDir = dlConfig.getAsFile(PDFServletConfiguration.PDF_WORKDIR_KEY);
         cacheDir = dlConfig.getAsFile(PDFServletConfiguration.PDF_CACHEDIR_KEY);
         if (!workDir.isDirectory()) {
@@ -176,13 +178,23 @@ public class PDFCache extends HttpServlet {
             PDFStatus status = getStatus(docid);
 
             if (status == PDFStatus.NONEXISTENT) {
+                // check limits of the client
+                String client = ServletOps.getClientKey(request);
+                DigilibJobCenter.Ticket ticket = pdfJobCenter.admit(client);
+                if (ticket == null) {
+                    logger.error("Client over PDF limit: " + client);
+                    response.setIntHeader("Retry-After", pdfJobCenter.getRetryAfter(client));
+                    response.sendError(ServletOps.SC_TOO_MANY_REQUESTS);
+                    return;
+                }
                 // not there -- start creation
                 try {
-                    createNewPdfDocument(pdfji, docid);
+                    createNewPdfDocument(pdfji, docid, ticket);
                     notifyUser(status, docid, request, response);
                     return;
                 } catch (FileNotFoundException e) {
                     // error in pdf creation
+                    ticket.release();
                     logger.error(e.getMessage());
                     notifyUser(PDFStatus.ERROR, docid, request, response);
                     return;
@@ -190,7 +202,8 @@ public class PDFCache extends HttpServlet {
             } else if (status == PDFStatus.DONE) {
                 // pdf created -- send it
                 try {
-                    ServletOps.sendFile(getCacheFile(docid), "application/pdf", getDownloadFilename(pdfji), response, logger);
+                    ServletOps.sendFile(getCacheFile(docid), "application/pdf", getDownloadFilename(pdfji), null, request,
+                            response, logger);
                     return;
                 } catch (Exception e) {
                     // sending didn't work
@@ -280,12 +293,40 @@ public class PDFCache extends HttpServlet {
      * @throws FileNotFoundException
      */
     public Future<File> createNewPdfDocument(PDFRequest pdfji, String filename) throws FileNotFoundException {
+        // not limited
+        return createNewPdfDocument(pdfji, filename, new DigilibJobCenter.Ticket(null, null));
+    }
+
+    /**
+     * create new thread for pdf generation for the client of the ticket.
+     * 
+     * @param pdfji
+     * @param filename
+     * @param ticket
+     * @return
+     * @throws FileNotFoundException
+     */
+    public Future<File> createNewPdfDocument(PDFRequest pdfji, String filename, DigilibJobCenter.Ticket ticket)
+            throws FileNotFoundException {
         // start new worker
         File tempf = this.getTempFile(filename);
         File finalf = this.getCacheFile(filename);
+        if (ticket == null) {
+            // not limited
+            ticket = new DigilibJobCenter.Ticket(null, null);
+        }
         PDFFileWorker job = new PDFFileWorker(dlConfig, tempf, finalf, pdfji, pdfImageJobCenter);
+        job.setClient(ticket.getClient());
         // start job
-        Future<File> jobTicket = pdfJobCenter.submit(job);
+        Future<File> jobTicket = null;
+        try {
+            jobTicket = pdfJobCenter.submit(job, ticket);
+        } finally {
+            if (jobTicket == null) {
+                // the job didn't take over the ticket
+                ticket.release();
+            }
+        }
         return jobTicket;
     }
 
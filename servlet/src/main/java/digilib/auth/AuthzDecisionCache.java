@@ -0,0 +1,181 @@
+package digilib.auth;
+
+/*
+ * #%L
+ * AuthzDecisionCache -- cache for authorization decisions
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded cache for authorization decisions with a time-to-live.
+ *
+ * The decisions are stored by a key made from the required roles and the
+ * user information of the request (see
+ * {@link AuthzOpsImpl#getDecisionKey(java.util.List, digilib.conf.DigilibServletRequest)}),
+ * so requests for all images with the same access restrictions by the same
+ * user share one decision. The least recently used decisions are removed
+ * when the cache is full.
+ */
+public class AuthzDecisionCache {
+
+    /** cached decision */
+    protected static class Decision {
+        protected boolean authorized;
+        protected long expires;
+
+        public Decision(boolean authorized, long expires) {
+            this.authorized = authorized;
+            this.expires = expires;
+        }
+    }
+
+    /** maximum number of decisions */
+    protected int maxSize;
+
+    /** time-to-live of decisions in ms */
+    protected long ttl;
+
+    /** access-ordered map of decisions */
+    protected LinkedHashMap<String, Decision> map;
+
+    /** number of decisions found in the cache */
+    protected AtomicInteger hits = new AtomicInteger(0);
+
+    /** number of decisions not (or no longer) in the cache */
+    protected AtomicInteger misses = new AtomicInteger(0);
+
+    /**
+     * @param maxSize
+     *            maximum number of decisions
+     * @param ttl
+     *            time-to-live of decisions in ms
+     */
+    public AuthzDecisionCache(int maxSize, long ttl) {
+        this.maxSize = Math.max(maxSize, 1);
+        this.ttl = ttl;
+        map = new LinkedHashMap<String, Decision>(64, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest) {
+                return size() > AuthzDecisionCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached decision or null.
+     *
+     * @param key
+     * @return
+     */
+    public Boolean get(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (map) {
+            Decision d = map.get(key);
+            if (d != null) {
+                if (d.expires > now) {
+                    hits.incrementAndGet();
+                    return d.authorized;
+                }
+                map.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores the decision.
+     *
+     * @param key
+     * @param authorized
+     */
+    public void put(String key, boolean authorized) {
+        put(key, authorized, 0);
+    }
+
+    /**
+     * Stores the decision until the time-to-live or the expiry time has
+     * passed (e.g. the expiry of the token it is based on).
+     *
+     * @param key
+     * @param authorized
+     * @param expires
+     *            expiry time in ms (0 = time-to-live only)
+     */
+    public void put(String key, boolean authorized, long expires) {
+        long exp = System.currentTimeMillis() + ttl;
+        if (expires > 0 && expires < exp) {
+            exp = expires;
+        }
+        Decision d = new Decision(authorized, exp);
+        synchronized (map) {
+            map.put(key, d);
+        }
+    }
+
+    /**
+     * Removes all decisions (e.g. when the authorization configuration
+     * changes).
+     */
+    public void clear() {
+        synchronized (map) {
+            map.clear();
+        }
+    }
+
+    /**
+     * @return the number of decisions in the cache
+     */
+    public int getSize() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    /**
+     * @return the maximum number of decisions
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the number of decisions found in the cache
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of decisions not found in the cache
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+}
@@ -28,6 +28,8 @@ package digilib.auth;
 
 import java.util.List;
 
+import javax.servlet.http.HttpServletRequest;
+
 import org.apache.log4j.Logger;
 
 import digilib.conf.DigilibConfiguration;
@@ -48,6 +50,12 @@ public abstract class AuthzOpsImpl implements AuthzOps {
     /** authentication instance */
     protected AuthnOps authnOps;
 
+    /** cache for authorization decisions (may be null) */
+    protected AuthzDecisionCache decisionCache = null;
+
+    /** name of the cookie that contains the token */
+    protected String tokenCookieName = "id_token";
+
     /* (non-Javadoc)
      * @see digilib.auth.AuthzOps#init(digilib.conf.DigilibConfiguration)
      */
@@ -69,7 +77,71 @@ public abstract class AuthzOpsImpl implements AuthzOps {
     public boolean isAuthorized(DigilibRequest request) throws AuthOpException {
         List<String> rolesRequired = rolesForPath((DigilibServletRequest) request);
         if (rolesRequired == null) return true;
-        return isRoleAuthorized(rolesRequired, (DigilibServletRequest) request);
+        if (decisionCache == null) {
+            return isRoleAuthorized(rolesRequired, (DigilibServletRequest) request);
+        }
+        // use cached decision for the same roles and user
+        String key = getDecisionKey(rolesRequired, (DigilibServletRequest) request);
+        Boolean authorized = decisionCache.get(key);
+        if (authorized == null) {
+            authorized = isRoleAuthorized(rolesRequired, (DigilibServletRequest) request);
+            // not longer than the token it is based on
+            Object expires = ((DigilibServletRequest) request).getServletRequest()
+                    .getAttribute(OpenIdAuthnOps.EXPIRES_ATTRIBUTE);
+            decisionCache.put(key, authorized, (expires instanceof Long) ? (Long) expires : 0);
+        }
+        return authorized;
+    }
+
+    /**
+     * Returns the key for the authorization decision cache.
+     * 
+     * The key consists of the required roles and all information about the
+     * user that the AuthnOps implementations use: the remote address, the
+     * authenticated user and the hash of the token (from the id_token
+     * parameter or the token cookie). Other cookies are ignored.
+     * 
+     * @param rolesRequired
+     * @param request
+     * @return
+     */
+    protected String getDecisionKey(List<String> rolesRequired, DigilibServletRequest request) {
+        HttpServletRequest srvReq = request.getServletRequest();
+        StringBuilder sb = new StringBuilder();
+        sb.append(rolesRequired).append('\n');
+        sb.append(srvReq.getRemoteAddr()).append('\n');
+        sb.append(srvReq.getRemoteUser()).append('\n');
+        String token = OpenIdAuthnOps.getToken(request, tokenCookieName);
+        if (token != null) {
+            sb.append(OpenIdAuthnOps.hashToken(token));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Sets the cache for authorization decisions.
+     * 
+     * @param decisionCache
+     *            the cache (null means no cache)
+     */
+    public void setDecisionCache(AuthzDecisionCache decisionCache) {
+        this.decisionCache = decisionCache;
+    }
+
+    /**
+     * Sets the name of the cookie that contains the token.
+     * 
+     * @param tokenCookieName
+     */
+    public void setTokenCookieName(String tokenCookieName) {
+        this.tokenCookieName = tokenCookieName;
+    }
+
+    /**
+     * @return the cache for authorization decisions (may be null)
+     */
+    public AuthzDecisionCache getDecisionCache() {
+        return decisionCache;
     }
 
     /**
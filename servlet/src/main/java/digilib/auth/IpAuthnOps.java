@@ -37,7 +37,7 @@ import org.apache.log4j.Logger;
 import digilib.conf.DigilibConfiguration;
 import digilib.conf.DigilibRequest;
 import digilib.conf.DigilibServletRequest;
-import digilib.util.HashTree;
+import digilib.util.IpPrefixTree;
 import digilib.util.XMLMapLoader;
 
 /**
@@ -56,7 +56,7 @@ import digilib.util.XMLMapLoader;
  * }
  * </pre>
  * A computer with an ip address that matches "ip" is automatically granted all roles under "role".
- * The ip address is matched from the left (in full quads). Roles under "role" must be separated by comma only (no spaces). 
+ * The ip address is matched from the left (in full quads) or as CIDR prefix (e.g. "130.92.64.0/22", "2001:db8::/32"). Roles under "role" must be separated by comma only (no spaces). 
  * 
  */
 public class IpAuthnOps implements AuthnOps {
@@ -65,8 +65,7 @@ public class IpAuthnOps implements AuthnOps {
     protected Logger logger = Logger.getLogger(this.getClass());
 
     protected File configFile;
-    protected HashTree authIP4s;
-    protected HashTree authIP6s;
+    protected IpPrefixTree authIPs;
 
     /**
      * Initialize authentication operations.
@@ -92,9 +91,8 @@ public class IpAuthnOps implements AuthnOps {
         if (ipList == null) {
             throw new AuthOpException("ERROR unable to load auth config file!");
         }
-        // setup ip trees
-        authIP4s = new HashTree(ipList, ".", ",");
-        authIP6s = new HashTree(ipList, ":", ",");
+        // setup ip tree
+        authIPs = new IpPrefixTree(ipList, ",");
     }
 
     /* (non-Javadoc)
@@ -112,15 +110,10 @@ public class IpAuthnOps implements AuthnOps {
     public List<String> getUserRoles(DigilibRequest dlRequest) throws AuthOpException {
         HttpServletRequest request = ((DigilibServletRequest) dlRequest).getServletRequest();
         String ip = request.getRemoteAddr();
-        List<String> provided = null;
-        if (ip.contains(":")) {
-            // IPv6
-            provided  = authIP6s.match(ip);
-        } else {
-            // IPv4
-            provided = authIP4s.match(ip);
-        }        
-        logger.debug("Roles provided by ip "+ip+": "+provided);
+        List<String> provided = authIPs.match(ip);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Roles provided by ip "+ip+": "+provided);
+        }
         return provided;
     }
 
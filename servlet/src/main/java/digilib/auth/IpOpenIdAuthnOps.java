@@ -26,6 +26,7 @@ package digilib.auth;
  * Author: Robert Casties (robcast@berlios.de)
  */
 
+import java.util.ArrayList;
 import java.util.List;
 
 import digilib.conf.DigilibConfiguration;
@@ -53,7 +54,7 @@ import digilib.conf.DigilibRequest;
  * }
  * </pre>
  * A computer with an ip address that matches "ip" is automatically granted all roles under "role".
- * The ip address is matched from the left (in full quads). Roles under "role" must be separated by comma only (no spaces).
+ * The ip address is matched from the left (in full quads) or as CIDR prefix (e.g. "130.92.64.0/22", "2001:db8::/32"). Roles under "role" must be separated by comma only (no spaces).
  * 
  * If roles provided by IP are not sufficient it uses the "id_token" parameter containing a valid token signed with the configured key
  * including the configured issuer (iss) and clientid (aud) to grant the configured roles.
@@ -86,11 +87,19 @@ public class IpOpenIdAuthnOps extends IpAuthnOps {
         } else {
             List<String> idRoles = openIdAuthnOps.getUserRoles(dlRequest);
             if (idRoles != null) {
-                // add OpenID roles at the end
+                // add OpenID roles at the end (IP roles can not be modified)
+                roles = new ArrayList<String>(roles);
                 roles.addAll(idRoles);
             }
         }
         return roles;
     }
 
+    /**
+     * @return the OpenIdAuthnOps instance
+     */
+    public OpenIdAuthnOps getOpenIdAuthnOps() {
+        return openIdAuthnOps;
+    }
+
 }
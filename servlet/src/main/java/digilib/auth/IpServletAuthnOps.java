@@ -49,7 +49,7 @@ import digilib.conf.DigilibServletRequest;
  * }
  * </pre>
  * A computer with an ip address that matches "ip" is automatically granted all roles under "role".
- * The ip address is matched from the left (in full quads). Roles under "role" must be separated by comma only (no spaces). 
+ * The ip address is matched from the left (in full quads) or as CIDR prefix (e.g. "130.92.64.0/22", "2001:db8::/32"). Roles under "role" must be separated by comma only (no spaces). 
  * 
  * Uses ServletRequest.isUserInRole() if roles provided by IP are not sufficient.
  */
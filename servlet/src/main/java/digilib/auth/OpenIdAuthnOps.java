@@ -26,15 +26,22 @@ package digilib.auth;
  */
 
 import java.io.File;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.log4j.Logger;
+import org.jose4j.base64url.Base64Url;
 import org.jose4j.jwk.JsonWebKey;
 import org.jose4j.jwt.JwtClaims;
 import org.jose4j.jwt.MalformedClaimException;
@@ -68,6 +75,9 @@ import digilib.util.XMLMapListLoader;
  * A request with an "id_token" parameter containing a valid token signed with the configured key
  * including the configured issuer (iss) and clientid (aud) is granted the configured roles.
  * 
+ * Verified tokens are cached by their SHA-256 hash until they expire (the maximum number of 
+ * cached tokens is read from the digilib config parameter "authn-token-cache-size").
+ * 
  */
 public class OpenIdAuthnOps implements AuthnOps {
 
@@ -88,6 +98,42 @@ public class OpenIdAuthnOps implements AuthnOps {
     /** Name of the cookie that contains the token */
     protected String tokenCookieName;
     
+    /** request attribute for the subject of a verified token */
+    public static final String SUBJECT_ATTRIBUTE = "digilib.auth.subject";
+
+    /** request attribute for the expiry time (in ms) of a verified token */
+    public static final String EXPIRES_ATTRIBUTE = "digilib.auth.expires";
+
+    /** allowed clock skew for token times in seconds */
+    protected static final int CLOCK_SKEW = 300;
+
+    /** verified token in the cache */
+    protected static class VerifiedToken {
+        protected List<String> roles;
+        protected String subject;
+        protected long expires;
+
+        public VerifiedToken(List<String> roles, String subject, long expires) {
+            this.roles = roles;
+            this.subject = subject;
+            this.expires = expires;
+        }
+    }
+
+    /** Map of verified tokens by hash of the token */
+    protected Map<String, VerifiedToken> tokenCache = new ConcurrentHashMap<String, VerifiedToken>();
+
+    /** maximum number of cached tokens (0 means no cache) */
+    protected int tokenCacheSize = 0;
+
+    /** number of tokens found in the cache */
+    protected AtomicInteger tokenCacheHits = new AtomicInteger(0);
+
+    /** number of token verifications */
+    protected AtomicInteger tokenVerifications = new AtomicInteger(0);
+
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
 
     /* (non-Javadoc)
      * @see digilib.auth.AuthnOps#init(digilib.conf.DigilibConfiguration)
@@ -161,7 +207,7 @@ public class OpenIdAuthnOps implements AuthnOps {
                         .setExpectedIssuer(issuer)
                         .setVerificationKey(jwk.getKey())
                         .setRequireExpirationTime()
-                        .setAllowedClockSkewInSeconds(300)
+                        .setAllowedClockSkewInSeconds(CLOCK_SKEW)
                         .setRequireSubject()
                         .setExpectedAudience(clientid)
                         .build();
@@ -179,6 +225,8 @@ public class OpenIdAuthnOps implements AuthnOps {
         
         // set token cookie name
         tokenCookieName = dlConfig.getAsString("authn-token-cookie");
+        // set token cache size
+        tokenCacheSize = dlConfig.getAsInt("authn-token-cache-size");
     }
 
     /* (non-Javadoc)
@@ -197,28 +245,29 @@ public class OpenIdAuthnOps implements AuthnOps {
         /*
          * try token parameter first
          */
-        String id_token = request.getAsString("id_token");
-        if (id_token == null || id_token.isEmpty()) {
-            /*
-             * try token cookie next
-             */
-            HttpServletRequest srvReq = ((DigilibServletRequest) request).getServletRequest();            
-            Cookie[] cookies = srvReq.getCookies();
-            if (cookies != null) {
-                for (Cookie c : cookies) {
-                    if (c.getName().equals(tokenCookieName)) {
-                        id_token = c.getValue();
-                        break;
-                    }
+        String id_token = getToken(request, tokenCookieName);
+        if (id_token == null) {
+            logger.error("Missing id token!");
+            return null;
+        }
+        // look for the verified token in the cache
+        String tokenHash = null;
+        if (tokenCacheSize > 0) {
+            tokenHash = hashToken(id_token);
+            VerifiedToken vt = tokenCache.get(tokenHash);
+            if (vt != null) {
+                if (vt.expires > System.currentTimeMillis()) {
+                    tokenCacheHits.incrementAndGet();
+                    logger.debug("Roles provided by cached id_token (sub='"+vt.subject+"'): "+vt.roles);
+                    setSubject(request, vt.subject, vt.expires);
+                    return vt.roles;
                 }
-            }
-            if (id_token == null || id_token.isEmpty()) {
-                logger.error("Missing id token!");
-                return null;
+                tokenCache.remove(tokenHash);
             }
         }
         // the first JwtConsumer is just used to parse the JWT into a JwtContext object.
         try {
+            tokenVerifications.incrementAndGet();
             JwtContext jwtContext = firstPassJwtConsumer.process(id_token);
             // extract issuer
             String issuer = jwtContext.getJwtClaims().getIssuer();
@@ -235,6 +284,15 @@ public class OpenIdAuthnOps implements AuthnOps {
             // get roles
             List<String> provided = idpRoles.get(issuer);
             logger.debug("Roles provided by id_token (sub='"+sub+"'): "+provided);
+            long expires = 0;
+            if (claims.getExpirationTime() != null) {
+                expires = (claims.getExpirationTime().getValue() + CLOCK_SKEW) * 1000L;
+            }
+            setSubject(request, sub, expires);
+            if (tokenHash != null && provided != null && expires > 0) {
+                // cache until the token expires
+                cacheToken(tokenHash, new VerifiedToken(provided, sub, expires));
+            }
             return provided;
             
         } catch (InvalidJwtException | MalformedClaimException e) {
@@ -243,6 +301,181 @@ public class OpenIdAuthnOps implements AuthnOps {
         }
     }
 
+    /**
+     * Returns the token from the id_token parameter or the token cookie of
+     * the request (or null).
+     * 
+     * @param request
+     * @param cookieName
+     * @return
+     */
+    public static String getToken(DigilibRequest request, String cookieName) {
+        /*
+         * try token parameter first
+         */
+        String id_token = request.getAsString("id_token");
+        if ((id_token == null || id_token.isEmpty()) && request instanceof DigilibServletRequest) {
+            /*
+             * try token cookie next
+             */
+            id_token = getTokenCookie(((DigilibServletRequest) request).getServletRequest(), cookieName);
+        }
+        if (id_token == null || id_token.isEmpty()) {
+            return null;
+        }
+        return id_token;
+    }
+
+    /**
+     * Returns the token from the id_token parameter or the token cookie of
+     * the servlet request (or null).
+     * 
+     * @param request
+     * @param cookieName
+     * @return
+     */
+    public static String getToken(HttpServletRequest request, String cookieName) {
+        String id_token = request.getParameter("id_token");
+        if (id_token == null || id_token.isEmpty()) {
+            id_token = getTokenCookie(request, cookieName);
+        }
+        if (id_token == null || id_token.isEmpty()) {
+            return null;
+        }
+        return id_token;
+    }
+
+    /**
+     * Returns the value of the token cookie of the servlet request (or null).
+     * 
+     * @param request
+     * @param cookieName
+     * @return
+     */
+    protected static String getTokenCookie(HttpServletRequest request, String cookieName) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie c : cookies) {
+                if (c.getName().equals(cookieName)) {
+                    return c.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the subject of the verified token of the request (or null).
+     * 
+     * Uses the subject of a token that was verified for this request or else 
+     * looks up the token in the cache of verified tokens. Does not verify 
+     * the token (e.g. for unrestricted images or cached authorization 
+     * decisions).
+     * 
+     * @param request
+     * @return
+     */
+    public String getVerifiedSubject(HttpServletRequest request) {
+        Object subject = request.getAttribute(SUBJECT_ATTRIBUTE);
+        if (subject != null) {
+            return subject.toString();
+        }
+        if (tokenCacheSize == 0) {
+            return null;
+        }
+        String id_token = getToken(request, tokenCookieName);
+        if (id_token == null) {
+            return null;
+        }
+        VerifiedToken vt = tokenCache.get(hashToken(id_token));
+        if (vt != null && vt.expires > System.currentTimeMillis()) {
+            return vt.subject;
+        }
+        return null;
+    }
+
+    /**
+     * Stores the subject and the expiry time of the verified token in the
+     * request (e.g. to limit cached authorization decisions).
+     * 
+     * @param request
+     * @param subject
+     * @param expires expiry time in ms (0 = unknown)
+     */
+    protected static void setSubject(DigilibRequest request, String subject, long expires) {
+        if (request instanceof DigilibServletRequest) {
+            HttpServletRequest srvReq = ((DigilibServletRequest) request).getServletRequest();
+            if (subject != null) {
+                srvReq.setAttribute(SUBJECT_ATTRIBUTE, subject);
+            }
+            if (expires > 0) {
+                srvReq.setAttribute(EXPIRES_ATTRIBUTE, expires);
+            }
+        }
+    }
+
+    /**
+     * Returns the SHA-256 hash of the token.
+     * 
+     * @param token
+     * @return
+     */
+    protected static String hashToken(String token) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return Base64Url.encode(md.digest(token.getBytes(UTF8)));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is always available
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Stores the verified token in the cache.
+     * 
+     * Removes expired tokens (or else any token) if the cache is full.
+     * 
+     * @param tokenHash
+     * @param token
+     */
+    protected void cacheToken(String tokenHash, VerifiedToken token) {
+        if (tokenCache.size() >= tokenCacheSize) {
+            long now = System.currentTimeMillis();
+            for (Iterator<VerifiedToken> i = tokenCache.values().iterator(); i.hasNext();) {
+                if (i.next().expires <= now) {
+                    i.remove();
+                }
+            }
+            for (Iterator<String> i = tokenCache.keySet().iterator(); i.hasNext()
+                    && tokenCache.size() >= tokenCacheSize;) {
+                i.next();
+                i.remove();
+            }
+        }
+        tokenCache.put(tokenHash, token);
+    }
+
+    /**
+     * @return the number of cached tokens
+     */
+    public int getTokenCacheSize() {
+        return tokenCache.size();
+    }
+
+    /**
+     * @return the number of tokens found in the cache
+     */
+    public int getTokenCacheHits() {
+        return tokenCacheHits.get();
+    }
+
+    /**
+     * @return the number of token verifications
+     */
+    public int getTokenVerifications() {
+        return tokenVerifications.get();
+    }
+
     /* (non-Javadoc)
      * @see digilib.auth.IpAuthnOps#isUserInRole(digilib.conf.DigilibRequest, java.lang.String)
      */
@@ -44,21 +44,34 @@ import org.xml.sax.SAXException;
 
 import digilib.auth.AuthnOps;
 import digilib.auth.AuthnOpsFactory;
+import digilib.auth.AuthzDecisionCache;
 import digilib.auth.AuthzOps;
 import digilib.auth.AuthzOpsFactory;
+import digilib.auth.AuthzOpsImpl;
 import digilib.image.DocuImage;
+import digilib.image.MemoryBudget;
+import digilib.image.RenderCache;
 import digilib.io.AliasingDocuDirCache;
+import digilib.io.DirectoryScanner;
+import digilib.io.DirectoryWatcher;
 import digilib.io.DocuDirCache;
 import digilib.io.DocuDirectory;
 import digilib.io.DocuDirectoryFactory;
 import digilib.io.FileOps;
 import digilib.io.FileOps.FileClass;
+import digilib.io.ImageInfoIndex;
 import digilib.meta.DirMeta;
 import digilib.meta.FileMeta;
+import digilib.meta.IndexedDirMeta;
 import digilib.meta.MetaFactory;
+import digilib.meta.MetaIndex;
+import digilib.servlet.CacheWarmer;
 import digilib.servlet.ServletOps;
+import digilib.util.ClientLimiter;
 import digilib.util.DigilibJobCenter;
+import digilib.util.ExecutionGovernor;
 import digilib.util.Parameter;
+import digilib.util.PoolSizeController;
 import digilib.util.XMLMapLoader;
 
 /**
@@ -88,6 +101,24 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
 
     public static final String DIR_CACHE_KEY = "servlet.dir.cache";
 
+    public static final String RENDER_CACHE_KEY = "servlet.render.cache";
+
+    public static final String IMAGE_INDEX_KEY = "servlet.image.index";
+
+    public static final String IDENTIFYEXECUTOR_KEY = "servlet.worker.identifyexecutor";
+
+    public static final String DIR_WATCHER_KEY = "servlet.dir.watcher";
+
+    public static final String CACHE_WARMER_KEY = "servlet.cache.warmer";
+
+    public static final String META_INDEX_KEY = "servlet.meta.index";
+
+    public static final String AUTHZ_CACHE_KEY = "servlet.authz.cache";
+
+    public static final String MEMORY_BUDGET_KEY = "servlet.memory.budget";
+
+    public static final String GOVERNOR_KEY = "servlet.execution.governor";
+
     /** the time the webapp (i.e. this class) was loaded */
     public final Long webappStartTime = System.currentTimeMillis();
 
@@ -118,6 +149,24 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
         newParameter(DIR_CACHE_KEY, null, null, 's');
         // Executor for image operations
         newParameter(IMAGEEXECUTOR_KEY, null, null, 's');
+        // RenderCache instance
+        newParameter(RENDER_CACHE_KEY, null, null, 's');
+        // ImageInfoIndex instance
+        newParameter(IMAGE_INDEX_KEY, null, null, 's');
+        // Executor for identifying images
+        newParameter(IDENTIFYEXECUTOR_KEY, null, null, 's');
+        // DirectoryWatcher instance
+        newParameter(DIR_WATCHER_KEY, null, null, 's');
+        // CacheWarmer instance
+        newParameter(CACHE_WARMER_KEY, null, null, 's');
+        // MetaIndex instance
+        newParameter(META_INDEX_KEY, null, null, 's');
+        // AuthzDecisionCache instance
+        newParameter(AUTHZ_CACHE_KEY, null, null, 's');
+        // MemoryBudget instance
+        newParameter(MEMORY_BUDGET_KEY, null, null, 's');
+        // ExecutionGovernor instance
+        newParameter(GOVERNOR_KEY, null, null, 's');
         // AuthnOps instance
         newParameter(AUTHN_OP_KEY, null, null, 's');
         // AuthzOps instance
@@ -159,22 +208,116 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
         newParameter("worker-threads", new Integer(2), null, 'f');
         // max number of waiting threads
         newParameter("max-waiting-threads", new Integer(20), null, 'f');
+        // run cheap image jobs first
+        newParameter("worker-cost-scheduling", Boolean.FALSE, null, 'f');
+        // megapixels of cost a waiting image job gains per second
+        newParameter("worker-cost-aging", new Integer(10), null, 'f');
+        // run jobs in turns by client
+        newParameter("worker-fair-queuing", Boolean.FALSE, null, 'f');
+        // adjust the number of working threads to the load
+        newParameter("worker-adaptive", Boolean.FALSE, null, 'f');
+        // min number of working threads if adaptive
+        newParameter("worker-min-threads", new Integer(1), null, 'f');
+        // max number of working threads if adaptive (0 = twice the number of processors)
+        newParameter("worker-max-threads", new Integer(0), null, 'f');
+        // process CPU load (0..1) above which threads are removed if adaptive
+        newParameter("worker-cpu-target", new Float(0.9), null, 'f');
+        // time between adjustments of the number of threads in ms
+        newParameter("worker-adapt-interval", new Integer(2000), null, 'f');
+        // register the job centers as JMX MBeans
+        newParameter("worker-jmx", Boolean.FALSE, null, 'f');
+        // JMX domain of the MBeans
+        newParameter("jmx-domain", "digilib", null, 'f');
+        // max number of unfinished image jobs per client (0 = no limit)
+        newParameter("client-max-jobs", new Integer(0), null, 'f');
+        // new image jobs per second per client (0 = no limit)
+        newParameter("client-rate-limit", new Float(0), null, 'f');
+        // max number of image jobs per client in a burst
+        newParameter("client-rate-burst", new Integer(20), null, 'f');
+        // limit running image and PDF image jobs of all executors together
+        newParameter("use-cpu-governor", Boolean.FALSE, null, 'f');
+        // max number of running jobs with cpu governor (0 = number of processors)
+        newParameter("cpu-max-jobs", new Integer(0), null, 'f');
+        // weight of image jobs with cpu governor
+        newParameter("cpu-weight-image", new Integer(4), null, 'f');
+        // heap memory budget for decoded images in MB (0 = no limit)
+        newParameter("worker-memory-budget", new Integer(0), null, 'f');
+        // max time to wait for the memory budget in ms
+        newParameter("worker-memory-wait", new Integer(5000), null, 'f');
         // FileMeta implementation
         newParameter("filemeta-class", "digilib.meta.IndexMetaFileMeta", null, 'f');
         // DirMeta implementation
         newParameter("dirmeta-class", "digilib.meta.IndexMetaDirMeta", null, 'f');
+        // file for saving the compiled metadata index of IndexedDirMeta ("" = none)
+        newParameter("meta-index-file", "", null, 'f');
         // AuthnOps implementation
         newParameter("authnops-class", "digilib.auth.IpAuthnOps", null, 'f');
         // AuthzOps implementation
         newParameter("authzops-class", "digilib.auth.PathAuthzOps", null, 'f');
+        // maximum number of cached authorization decisions (0 = no cache)
+        newParameter("authz-cache-size", new Integer(0), null, 'f');
+        // time-to-live of cached authorization decisions in seconds
+        newParameter("authz-cache-ttl", new Integer(60), null, 'f');
         // DocuDirectory implementation
         newParameter("docudirectory-class", "digilib.io.BaseDirDocuDirectory", null, 'f');
+        // maximum number of directories in the directory cache (0 = no limit)
+        newParameter("dir-cache-max-dirs", new Integer(0), null, 'f');
+        // maximum number of files in the directory cache (0 = no limit)
+        newParameter("dir-cache-max-files", new Integer(0), null, 'f');
+        // file for saving the directory cache on shutdown ("" = none)
+        newParameter("dir-cache-snapshot-file", "", null, 'f');
+        // time between periodic snapshots of the directory cache in seconds (0 = only on shutdown)
+        newParameter("dir-cache-snapshot-interval", new Integer(0), null, 'f');
+        // watch directories on local file systems for changes
+        newParameter("dir-watch", Boolean.FALSE, null, 'f');
+        // minimum time between checks of unwatched directories in seconds (0 = every access)
+        newParameter("dir-refresh-interval", new Integer(0), null, 'f');
+        // number of threads for reading scaled directories in parallel (0 = no extra threads)
+        newParameter("dir-read-threads", new Integer(0), null, 'f');
+        // access log for warming the caches on startup ("" = none)
+        newParameter("warmup-log-file", "", null, 'f');
+        // number of most frequent requests replayed for warming the caches
+        newParameter("warmup-max-requests", new Integer(1000), null, 'f');
+        // number of threads for warming the caches
+        newParameter("warmup-threads", new Integer(1), null, 'f');
+        // maximum time for warming the caches in seconds (0 = no limit)
+        newParameter("warmup-time", new Integer(600), null, 'f');
         // name of cookie with authentication token
         newParameter("authn-token-cookie", "id_token", null, 'f');
+        // maximum number of verified authentication tokens in the cache (0 = no cache)
+        newParameter("authn-token-cache-size", new Integer(1000), null, 'f');
         // set CORS header on IIIF Image API info request
         newParameter("iiif-info-cors", Boolean.TRUE, null, 'f');        
         // set CORS header on IIIF Image API image request
         newParameter("iiif-image-cors", Boolean.TRUE, null, 'f');        
+        // cache rendered images
+        newParameter("use-render-cache", Boolean.FALSE, null, 'f');
+        // size of the in-memory render cache (MB)
+        newParameter("render-cache-memory-size", new Integer(64), null, 'f');
+        // directory of the on-disk render cache (empty for no disk cache)
+        newParameter("render-cache-dir", "", null, 'f');
+        // size of the on-disk render cache (MB)
+        newParameter("render-cache-disk-size", new Integer(1024), null, 'f');
+        // Cache-Control max-age for image responses in seconds (-1 for no header)
+        newParameter("image-cache-max-age", new Integer(-1), null, 'f');
+        // Cache-Control max-age for IIIF info responses in seconds (-1 for no header)
+        newParameter("info-cache-max-age", new Integer(-1), null, 'f');
+        // offload file transfers to the front-end server (none, x-accel-redirect, x-sendfile)
+        newParameter("sendfile-offload", "none", null, 'f');
+        // mapping of local directories to front-end paths for offloading (dir=path list)
+        newParameter("sendfile-offload-map", "", null, 'f');
+        // keep a persistent index of image sizes and types
+        newParameter("use-image-index", Boolean.FALSE, null, 'f');
+        // directory of the image index
+        newParameter("image-index-dir", "", null, 'f');
+        // number of directory indexes kept in memory
+        newParameter("image-index-memory-dirs", new Integer(1000), null, 'f');
+        // identify all images in the background when a directory is read
+        newParameter("identify-on-read", Boolean.FALSE, null, 'f');
+        // number of threads for identifying images in the background
+        newParameter("identify-worker-threads", new Integer(2), null, 'f');
+        // max number of waiting identification jobs
+        newParameter("identify-max-waiting", new Integer(10000), null, 'f');
     }
 
     /**
@@ -346,6 +489,27 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
         // say hello in the log file
         logger.info("***** Digital Image Library Configuration (version " + getVersion() + ") *****");
         try {
+            // directory reading
+            DirectoryScanner.setThreads(config.getAsInt("dir-read-threads"));
+            // directory refresh
+            DocuDirectory.setRefreshInterval(config.getAsInt("dir-refresh-interval") * 1000L);
+            if (config.getAsBoolean("dir-watch")) {
+                DirectoryWatcher dirWatcher = new DirectoryWatcher();
+                dirWatcher.start();
+                DocuDirectory.setDirectoryWatcher(dirWatcher);
+                config.setValue(DIR_WATCHER_KEY, dirWatcher);
+            }
+            // compiled metadata index
+            Object dirMetaClass = config.getValue("servlet.dirmeta.class");
+            if (dirMetaClass instanceof Class && IndexedDirMeta.class.isAssignableFrom((Class<?>) dirMetaClass)) {
+                String[] baseDirs = (String[]) config.getValue("basedir-list");
+                String indexFn = config.getAsString("meta-index-file");
+                MetaIndex metaIndex = new MetaIndex(new File(baseDirs[0]), indexFn.isEmpty() ? null : new File(indexFn));
+                MetaIndex.setInstance(metaIndex);
+                // read or build the index in the background
+                metaIndex.start();
+                config.setValue(META_INDEX_KEY, metaIndex);
+            }
             // directory cache
             DocuDirCache dirCache;
             if (config.getAsBoolean("use-mapping")) {
@@ -358,6 +522,8 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
                 dirCache = new DocuDirCache(FileClass.IMAGE, this);
             }
             config.setValue(DIR_CACHE_KEY, dirCache);
+            // restore the directory cache in the background
+            dirCache.startSnapshots(config.getAsInt("dir-cache-snapshot-interval") * 1000L);
             // useAuthorization
             if (config.getAsBoolean("use-authorization")) {
                 // set auth config file
@@ -371,12 +537,99 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
                 AuthzOps authzOps = AuthzOpsFactory.getAuthzOpsInstance();
                 authzOps.init(this);
                 config.setValue(AUTHZ_OP_KEY, authzOps);
+                int authzCacheSize = config.getAsInt("authz-cache-size");
+                if (authzCacheSize > 0 && authzOps instanceof AuthzOpsImpl) {
+                    // cache authorization decisions
+                    AuthzDecisionCache authzCache = new AuthzDecisionCache(authzCacheSize,
+                            config.getAsInt("authz-cache-ttl") * 1000L);
+                    ((AuthzOpsImpl) authzOps).setDecisionCache(authzCache);
+                    ((AuthzOpsImpl) authzOps).setTokenCookieName(config.getAsString("authn-token-cookie"));
+                    config.setValue(AUTHZ_CACHE_KEY, authzCache);
+                }
             }
             // digilib worker threads
             int nt = config.getAsInt("worker-threads");
             int mt = config.getAsInt("max-waiting-threads");
-            DigilibJobCenter<DocuImage> imageExecutor = new DigilibJobCenter<DocuImage>(nt, mt, false, IMAGEEXECUTOR_KEY);
+            long agingCost = 0;
+            if (config.getAsBoolean("worker-cost-scheduling")) {
+                agingCost = Math.max(config.getAsInt("worker-cost-aging"), 1) * 1000000L;
+            }
+            DigilibJobCenter<DocuImage> imageExecutor = new DigilibJobCenter<DocuImage>(nt, mt, false,
+                    IMAGEEXECUTOR_KEY, agingCost, config.getAsBoolean("worker-fair-queuing"));
+            int cmj = config.getAsInt("client-max-jobs");
+            float crl = config.getAsFloat("client-rate-limit");
+            if (cmj > 0 || crl > 0) {
+                // limits per client
+                imageExecutor.setClientLimiter(new ClientLimiter(cmj, crl, config.getAsInt("client-rate-burst")));
+            }
+            if (config.getAsBoolean("worker-adaptive")) {
+                // adjust the number of threads to the load
+                imageExecutor.setAdaptive(new PoolSizeController(nt, config.getAsInt("worker-min-threads"),
+                        config.getAsInt("worker-max-threads"), config.getAsFloat("worker-cpu-target"),
+                        config.getAsInt("worker-adapt-interval")));
+            }
+            if (config.getAsBoolean("worker-jmx")) {
+                imageExecutor.registerMBean(config.getAsString("jmx-domain"));
+            }
             config.setValue(IMAGEEXECUTOR_KEY, imageExecutor);
+            if (config.getAsBoolean("use-cpu-governor")) {
+                // global limit for running jobs
+                ExecutionGovernor governor = new ExecutionGovernor(config.getAsInt("cpu-max-jobs"));
+                imageExecutor.setGovernor(governor, config.getAsInt("cpu-weight-image"));
+                config.setValue(GOVERNOR_KEY, governor);
+            }
+            // memory budget for image jobs
+            int memBudget = config.getAsInt("worker-memory-budget");
+            if (memBudget > 0) {
+                MemoryBudget budget = new MemoryBudget(memBudget * 1024L * 1024L,
+                        config.getAsInt("worker-memory-wait"));
+                MemoryBudget.setInstance(budget);
+                config.setValue(MEMORY_BUDGET_KEY, budget);
+            }
+            // render cache
+            if (config.getAsBoolean("use-render-cache")) {
+                long memSize = config.getAsInt("render-cache-memory-size") * 1024L * 1024L;
+                File diskDir = null;
+                String diskFn = config.getAsString("render-cache-dir");
+                if (!diskFn.isEmpty()) {
+                    diskDir = new File(diskFn);
+                }
+                long diskSize = config.getAsInt("render-cache-disk-size") * 1024L * 1024L;
+                RenderCache renderCache = new RenderCache(memSize, diskDir, diskSize);
+                config.setValue(RENDER_CACHE_KEY, renderCache);
+            }
+            // background identification of images
+            if (config.getAsBoolean("identify-on-read")) {
+                int nit = config.getAsInt("identify-worker-threads");
+                int imw = config.getAsInt("identify-max-waiting");
+                DigilibJobCenter<Object> identifyExecutor = new DigilibJobCenter<Object>(nit, imw, false,
+                        IDENTIFYEXECUTOR_KEY);
+                if (config.getAsBoolean("worker-jmx")) {
+                    identifyExecutor.registerMBean(config.getAsString("jmx-domain"));
+                }
+                config.setValue(IDENTIFYEXECUTOR_KEY, identifyExecutor);
+                DocuDirectory.setIdentifyJobCenter(identifyExecutor);
+            }
+            // image index
+            if (config.getAsBoolean("use-image-index")) {
+                String indexFn = config.getAsString("image-index-dir");
+                if (indexFn.isEmpty()) {
+                    logger.error("use-image-index requires image-index-dir!");
+                } else {
+                    ImageInfoIndex index = new ImageInfoIndex(new File(indexFn),
+                            config.getAsInt("image-index-memory-dirs"));
+                    ImageInfoIndex.setInstance(index);
+                    config.setValue(IMAGE_INDEX_KEY, index);
+                }
+            }
+            // replay the access log to warm the caches
+            String warmupFn = config.getAsString("warmup-log-file");
+            if (!warmupFn.isEmpty()) {
+                CacheWarmer warmer = new CacheWarmer(this, new File(warmupFn), config.getAsInt("warmup-max-requests"),
+                        config.getAsInt("warmup-threads"), config.getAsInt("warmup-time") * 1000L);
+                config.setValue(CACHE_WARMER_KEY, warmer);
+                warmer.start();
+            }
             /*
              * set as the servlets main config
              */
@@ -427,6 +680,39 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
                 logger.error("Still running threads when shutting down image job queue: " + nrj);
             }
         }
+        if (config.getValue(MEMORY_BUDGET_KEY) != null) {
+            MemoryBudget.setInstance(null);
+        }
+        DigilibJobCenter<?> identifyExecutor = (DigilibJobCenter<?>) config.getValue(IDENTIFYEXECUTOR_KEY);
+        if (identifyExecutor != null) {
+            // shut down identify thread pool
+            DocuDirectory.setIdentifyJobCenter(null);
+            identifyExecutor.shutdownNow();
+        }
+        CacheWarmer warmer = (CacheWarmer) config.getValue(CACHE_WARMER_KEY);
+        if (warmer != null) {
+            // stop warming the caches
+            warmer.stop();
+        }
+        DocuDirCache dirCache = (DocuDirCache) config.getValue(DIR_CACHE_KEY);
+        if (dirCache != null) {
+            // save the directory cache
+            dirCache.stopSnapshots();
+        }
+        DirectoryWatcher dirWatcher = (DirectoryWatcher) config.getValue(DIR_WATCHER_KEY);
+        if (dirWatcher != null) {
+            // stop watching directories
+            DocuDirectory.setDirectoryWatcher(null);
+            dirWatcher.stop();
+        }
+        MetaIndex metaIndex = (MetaIndex) config.getValue(META_INDEX_KEY);
+        if (metaIndex != null) {
+            // save the metadata index
+            MetaIndex.setInstance(null);
+            metaIndex.stop();
+        }
+        // stop directory reading threads
+        DirectoryScanner.shutdown();
     }
 
 
@@ -0,0 +1,521 @@
+package digilib.servlet;
+
+/*
+ * #%L
+ * CacheWarmer -- replays requests from an access log to fill the caches.
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import digilib.conf.DigilibConfiguration;
+import digilib.conf.DigilibOption;
+import digilib.conf.DigilibRequest;
+import digilib.conf.DigilibServletConfiguration;
+import digilib.image.DocuImage;
+import digilib.image.ImageJobDescription;
+import digilib.image.ImageWorker;
+import digilib.image.RenderCache;
+import digilib.io.ImageInput;
+import digilib.util.DigilibJobCenter;
+
+/**
+ * Fills the directory cache and the render cache after startup by replaying
+ * the most frequent requests from a previous access log.
+ *
+ * The log is either the log of the account.request logger (lines with
+ * "request: query uri: path") or an extract with one request URL (path and
+ * query without spaces) per line. Each request is replayed once, most frequent first:
+ * looking up the directory and identifying the image for all requests and
+ * rendering the image into the render cache for image requests.
+ *
+ * The requests are replayed by low priority threads that pause while the
+ * image workers are busy with live requests and stop when the time budget
+ * is used up. Images are rendered by background jobs of the image job center
+ * that only start when no live request is waiting, so they share the
+ * threads, the memory budget and the CPU governor with live requests.
+ */
+public class CacheWarmer implements Runnable {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(CacheWarmer.class);
+
+    /** start of the request in a line of the access log */
+    public static final String REQUEST_PREFIX = "request: ";
+
+    /** start of the request URI in a line of the access log */
+    public static final String URI_PREFIX = " uri: ";
+
+    /** maximum number of different requests while counting (multiple of maxRequests) */
+    protected static final int MAX_COUNTED_FACTOR = 20;
+
+    protected DigilibConfiguration dlConfig;
+
+    /** access log or extract */
+    protected File logFile;
+
+    /** maximum number of replayed requests */
+    protected int maxRequests;
+
+    /** number of replaying threads */
+    protected int numThreads;
+
+    /** time budget in ms */
+    protected long timeBudget;
+
+    /** time when the replay stops */
+    protected volatile long deadline = Long.MAX_VALUE;
+
+    /** flag to stop the replay */
+    protected volatile boolean stopped = false;
+
+    /** requests to be replayed */
+    protected Queue<String> requests = new ConcurrentLinkedQueue<String>();
+
+    /** the replaying threads */
+    protected List<Thread> threads = new ArrayList<Thread>();
+
+    /** number of replayed requests */
+    protected AtomicInteger replayed = new AtomicInteger(0);
+
+    /** number of rendered images */
+    protected AtomicInteger rendered = new AtomicInteger(0);
+
+    /** number of failed requests */
+    protected AtomicInteger failed = new AtomicInteger(0);
+
+    /** number of running replaying threads */
+    protected AtomicInteger running = new AtomicInteger(0);
+
+    /**
+     * @param dlConfig
+     * @param logFile
+     *            access log or extract
+     * @param maxRequests
+     *            maximum number of replayed requests
+     * @param numThreads
+     *            number of replaying threads
+     * @param timeBudget
+     *            maximum replay time in ms
+     */
+    public CacheWarmer(DigilibConfiguration dlConfig, File logFile, int maxRequests, int numThreads, long timeBudget) {
+        this.dlConfig = dlConfig;
+        this.logFile = logFile;
+        this.maxRequests = Math.max(maxRequests, 1);
+        this.numThreads = Math.max(numThreads, 1);
+        this.timeBudget = timeBudget;
+    }
+
+    /**
+     * Reads the log and starts replaying in the background.
+     */
+    public synchronized void start() {
+        Thread t = new Thread(this, "digilib-cache-warmer");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        threads.add(t);
+        t.start();
+    }
+
+    /**
+     * Stops replaying.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Reads the log and starts the replaying threads.
+     */
+    public void run() {
+        long start = System.currentTimeMillis();
+        if (timeBudget > 0) {
+            deadline = start + timeBudget;
+        }
+        List<String> top = readLog();
+        requests.addAll(top);
+        logger.info("CacheWarmer replaying " + top.size() + " requests from " + logFile);
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            running.set(numThreads);
+            for (int i = 1; i < numThreads; ++i) {
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        replayAll();
+                    }
+                }, "digilib-cache-warmer");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                threads.add(t);
+                t.start();
+            }
+        }
+        replayAll();
+    }
+
+    /**
+     * Replays requests from the queue until it is empty or the time is up.
+     */
+    protected void replayAll() {
+        String url;
+        while ((url = requests.poll()) != null) {
+            if (stopped || System.currentTimeMillis() > deadline) {
+                requests.clear();
+                break;
+            }
+            try {
+                waitForIdleWorkers();
+                if (replay(url)) {
+                    replayed.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                logger.debug("CacheWarmer error replaying " + url + ": " + e);
+                failed.incrementAndGet();
+            }
+        }
+        if (running.decrementAndGet() == 0) {
+            logger.info("CacheWarmer done: " + replayed + " requests replayed, " + rendered + " images rendered, "
+                    + failed + " failed");
+        }
+    }
+
+    /**
+     * Waits while all image workers are busy or live requests are waiting.
+     *
+     * @throws InterruptedException
+     */
+    protected void waitForIdleWorkers() throws InterruptedException {
+        DigilibJobCenter<DocuImage> imageJobCenter = getImageJobCenter();
+        if (imageJobCenter == null) {
+            return;
+        }
+        while (!stopped && System.currentTimeMillis() < deadline
+                && (imageJobCenter.getWaitingJobs() > 0
+                        || imageJobCenter.getRunningJobs() >= imageJobCenter.getMaxThreads())) {
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * Returns the image job center (may be null).
+     *
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    protected DigilibJobCenter<DocuImage> getImageJobCenter() {
+        return (DigilibJobCenter<DocuImage>) dlConfig.getValue(DigilibServletConfiguration.IMAGEEXECUTOR_KEY);
+    }
+
+    /**
+     * Replays one request.
+     *
+     * Looks up the directory, identifies the image and renders the image into
+     * the render cache (if it is an image request that needs rendering).
+     *
+     * @param url
+     *            request path and query
+     * @return false if the request is not valid
+     * @throws Exception
+     */
+    protected boolean replay(String url) throws Exception {
+        DigilibRequest dlReq = new DigilibRequest(dlConfig);
+        String path = url;
+        String qs = null;
+        int qi = url.indexOf('?');
+        if (qi >= 0) {
+            path = url.substring(0, qi);
+            qs = url.substring(qi + 1);
+        }
+        String iiifMarker = "/" + dlConfig.getAsString("iiif-prefix") + "/";
+        int pi = ("/" + path).indexOf(iiifMarker);
+        if (pi >= 0) {
+            // IIIF API
+            if (!dlReq.setWithIiifPath(("/" + path).substring(pi + 1))) {
+                return false;
+            }
+        } else if (qs != null && qs.indexOf('=') > -1) {
+            // digilib API
+            if (qs.indexOf("&amp;") > -1) {
+                dlReq.setWithParamString(qs, "&amp;");
+            } else if (qs.indexOf(";") > -1) {
+                dlReq.setWithParamString(qs, ";");
+            } else {
+                dlReq.setWithParamString(qs, "&");
+            }
+        } else {
+            return false;
+        }
+        if (dlReq.errorMessage != null) {
+            return false;
+        }
+        // looks up the directory
+        ImageJobDescription job = ImageJobDescription.getInstance(dlReq, dlConfig);
+        ImageInput input = job.getImageSet().getBiggest();
+        // identifies the image
+        if (input.getSize() == null) {
+            return false;
+        }
+        if (dlReq.hasOption(DigilibOption.info) || dlReq.hasOption(DigilibOption.redirect_info)) {
+            return true;
+        }
+        RenderCache renderCache = (RenderCache) dlConfig.getValue(DigilibServletConfiguration.RENDER_CACHE_KEY);
+        if (renderCache == null || (dlConfig.getAsBoolean("sendfile-allowed") && job.getSendAsFile())
+                || !job.isTransformRequired()) {
+            return true;
+        }
+        String key = job.getRenderKey();
+        File sourceFile = job.getInput().getFile();
+        if (key == null || renderCache.get(key, sourceFile) != null) {
+            return true;
+        }
+        // modification time before rendering
+        long sourceMTime = sourceFile.lastModified();
+        // render the image like AsyncServletWorker
+        ImageWorker worker = new ImageWorker(dlConfig, job);
+        DigilibJobCenter<DocuImage> imageJobCenter = getImageJobCenter();
+        DocuImage img;
+        if (imageJobCenter != null) {
+            // after all live requests
+            Future<DocuImage> result = imageJobCenter.submitBackground(worker);
+            try {
+                img = result.get();
+            } catch (InterruptedException e) {
+                // stop the job and release its image
+                worker.cancel(result);
+                throw e;
+            } catch (ExecutionException e) {
+                throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+            }
+        } else {
+            img = worker.call();
+        }
+        if (img == null) {
+            return false;
+        }
+        String mt = job.getOutputMimeType();
+        byte[] data = ServletOps.encodeImage(img, mt);
+        renderCache.put(key, sourceMTime, mt, data);
+        rendered.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns the most frequent requests from the log, most frequent first.
+     *
+     * @return
+     */
+    protected List<String> readLog() {
+        TopCounter counter = new TopCounter(maxRequests * MAX_COUNTED_FACTOR);
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), Charset.forName("UTF-8")));
+            String line;
+            while ((line = in.readLine()) != null) {
+                String url = parseLine(line);
+                if (url == null) {
+                    continue;
+                }
+                counter.add(url);
+            }
+        } catch (IOException e) {
+            logger.error("CacheWarmer error reading " + logFile + ": " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        return counter.getTop(maxRequests);
+    }
+
+    /**
+     * Bounded counter of the most frequent requests.
+     *
+     * When all slots are used a new request replaces only the least recently
+     * counted request with the lowest count (instead of all of them), so a
+     * long tail of rare requests does not push out the frequent requests
+     * from earlier in the log.
+     */
+    protected static class TopCounter {
+
+        /** maximum number of counted requests */
+        protected int capacity;
+
+        /** count of each counted request */
+        protected Map<String, int[]> counts = new HashMap<String, int[]>();
+
+        /** counted requests by count */
+        protected TreeMap<Integer, LinkedHashSet<String>> buckets = new TreeMap<Integer, LinkedHashSet<String>>();
+
+        public TopCounter(int capacity) {
+            this.capacity = Math.max(capacity, 1);
+        }
+
+        /**
+         * Counts the request.
+         *
+         * @param url
+         */
+        public void add(String url) {
+            int[] c = counts.get(url);
+            if (c != null) {
+                removeFromBucket(url, c[0]);
+                ++c[0];
+            } else {
+                if (counts.size() >= capacity) {
+                    // evict one request with the lowest count (oldest first)
+                    Map.Entry<Integer, LinkedHashSet<String>> min = buckets.firstEntry();
+                    String evicted = min.getValue().iterator().next();
+                    removeFromBucket(evicted, min.getKey());
+                    counts.remove(evicted);
+                }
+                c = new int[] { 1 };
+                counts.put(url, c);
+            }
+            LinkedHashSet<String> bucket = buckets.get(c[0]);
+            if (bucket == null) {
+                bucket = new LinkedHashSet<String>();
+                buckets.put(c[0], bucket);
+            }
+            bucket.add(url);
+        }
+
+        protected void removeFromBucket(String url, int count) {
+            LinkedHashSet<String> bucket = buckets.get(count);
+            bucket.remove(url);
+            if (bucket.isEmpty()) {
+                buckets.remove(count);
+            }
+        }
+
+        /**
+         * Returns the n most frequent requests, most frequent first.
+         *
+         * @param n
+         * @return
+         */
+        public List<String> getTop(int n) {
+            List<String> urls = new ArrayList<String>(counts.keySet());
+            Collections.sort(urls, new Comparator<String>() {
+                public int compare(String u1, String u2) {
+                    return counts.get(u2)[0] - counts.get(u1)[0];
+                }
+            });
+            if (urls.size() > n) {
+                urls = new ArrayList<String>(urls.subList(0, n));
+            }
+            return urls;
+        }
+    }
+
+    /**
+     * Returns the request URL (path and query) of a line of the access log
+     * or of an extract (or null).
+     *
+     * @param line
+     * @return
+     */
+    public static String parseLine(String line) {
+        int ri = line.indexOf(REQUEST_PREFIX);
+        if (ri < 0) {
+            // extract with one URL per line (other log lines have spaces)
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#") || line.indexOf(' ') > -1) {
+                return null;
+            }
+            return line;
+        }
+        String req = line.substring(ri + REQUEST_PREFIX.length());
+        String uri = "";
+        int ui = req.lastIndexOf(URI_PREFIX);
+        if (ui >= 0) {
+            uri = req.substring(ui + URI_PREFIX.length()).trim();
+            req = req.substring(0, ui);
+        }
+        req = req.trim();
+        if (req.isEmpty() || req.equals("null")) {
+            return uri.isEmpty() ? null : uri;
+        }
+        return uri + "?" + req;
+    }
+
+    /**
+     * @return the number of replayed requests
+     */
+    public int getReplayed() {
+        return replayed.get();
+    }
+
+    /**
+     * @return the number of rendered images
+     */
+    public int getRendered() {
+        return rendered.get();
+    }
+
+    /**
+     * @return the number of failed requests
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of requests waiting to be replayed
+     */
+    public int getQueued() {
+        return requests.size();
+    }
+
+}
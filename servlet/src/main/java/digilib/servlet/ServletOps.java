@@ -26,12 +26,20 @@ package digilib.servlet;
  * Author: Robert Casties (robcast@berlios.de)
  */
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.StringTokenizer;
 
 import javax.json.Json;
@@ -44,10 +52,14 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 
+import digilib.auth.AuthnOps;
+import digilib.auth.IpOpenIdAuthnOps;
+import digilib.auth.OpenIdAuthnOps;
 import digilib.conf.DigilibServletConfiguration;
 import digilib.conf.DigilibServletRequest;
 import digilib.image.DocuImage;
 import digilib.image.ImageOpException;
+import digilib.image.RenderCache;
 import digilib.io.FileOpException;
 import digilib.io.FileOps;
 import digilib.io.ImageInput;
@@ -66,6 +78,30 @@ public class ServletOps {
     /** set CORS header ACAO* for image requests */
     protected static boolean corsForImageRequests = true;
 
+    /** buffer size for copying files */
+    protected static final int TRANSFER_BUFFER_SIZE = 256 * 1024;
+
+    /** maximum number of ranges in a Range request */
+    protected static final int MAX_RANGES = 64;
+
+    /** header for offloading file transfers to the front-end server (null: no offload) */
+    protected static String offloadHeader = null;
+
+    /** pairs of local directory and front-end path for offloading */
+    protected static String[][] offloadMap = new String[0][];
+
+    /** Cache-Control max-age for image responses (-1: no header) */
+    protected static int imageCacheMaxAge = -1;
+
+    /** Cache-Control max-age for info responses (-1: no header) */
+    protected static int infoCacheMaxAge = -1;
+
+    /** send private cache headers because responses depend on authorization */
+    protected static boolean privateCaching = false;
+
+    /** HTTP status for clients over their limits */
+    public static final int SC_TOO_MANY_REQUESTS = 429;
+
     /**
 	 * @return the dlConfig
 	 */
@@ -80,6 +116,31 @@ public class ServletOps {
 		ServletOps.dlConfig = dlConfig;
 		corsForInfoRequests = dlConfig.getAsBoolean("iiif-info-cors");
 		corsForImageRequests = dlConfig.getAsBoolean("iiif-image-cors");
+		imageCacheMaxAge = dlConfig.getAsInt("image-cache-max-age");
+		infoCacheMaxAge = dlConfig.getAsInt("info-cache-max-age");
+		privateCaching = dlConfig.getAsBoolean("use-authorization");
+		String offload = dlConfig.getAsString("sendfile-offload");
+		if ("x-accel-redirect".equalsIgnoreCase(offload)) {
+		    offloadHeader = "X-Accel-Redirect";
+		} else if ("x-sendfile".equalsIgnoreCase(offload)) {
+		    offloadHeader = "X-Sendfile";
+		} else {
+		    offloadHeader = null;
+		}
+		String[] maps = getPathArray(dlConfig.getAsString("sendfile-offload-map"));
+		if (maps == null) {
+		    maps = new String[0];
+		}
+		offloadMap = new String[maps.length][];
+		for (int i = 0; i < maps.length; ++i) {
+		    int eq = maps[i].indexOf('=');
+		    if (eq < 0) {
+		        logger.error("Invalid sendfile-offload-map entry: " + maps[i]);
+		        offloadMap[i] = new String[] { maps[i], null };
+		    } else {
+		        offloadMap[i] = new String[] { maps[i].substring(0, eq), maps[i].substring(eq + 1) };
+		    }
+		}
 	}
 
 	/**
@@ -269,6 +330,44 @@ public class ServletOps {
      */
     public static void sendFile(File f, String mt, String name, HttpServletResponse response, Logger logger)
             throws ImageOpException, IOException {
+        ServletOps.sendFile(f, mt, name, null, null, response, logger);
+    }
+
+    /**
+     * Transfers a file as-is with the mime type mt, honoring Range requests.
+     * 
+     * If the request is not null then byte ranges (Range and If-Range
+     * headers) are supported and single or multiple ranges are sent with
+     * status 206. If etag is null then the ETag and Last-Modified headers
+     * are derived from the file and conditional requests are answered with
+     * 304. If mt is null then the mime-type is auto-detected with
+     * mimeForFile.
+     * 
+     * If offloading is configured and the file can be mapped then only an
+     * X-Accel-Redirect or X-Sendfile header is sent and the front-end server
+     * sends the file. Otherwise the file is sent using the sendfile support
+     * of the container if available, or it is copied with a FileChannel to
+     * the <code>OutputStream</code> of the <code>ServletResponse</code>.
+     * 
+     * @param f
+     *            File to be sent.
+     * @param mt
+     *            mime-type of the file.
+     * @param name
+     *            name of the download file (for application/x)
+     * @param etag
+     *            ETag already set on the response (may be null).
+     * @param request
+     *            ServletRequest with Range headers (may be null).
+     * @param response
+     *            ServletResponse where the file will be sent.
+     * @param logger
+     *            Logger to use
+     * @throws ImageOpException
+     * @throws IOException
+     */
+    public static void sendFile(File f, String mt, String name, String etag, HttpServletRequest request,
+            HttpServletResponse response, Logger logger) throws ImageOpException, IOException {
         logger.debug("sendRawFile(" + mt + ", " + f + ")");
         if (response == null) {
             logger.error("No response!");
@@ -285,6 +384,42 @@ public class ServletOps {
                 throw new ImageOpException("Unknown file type.");
             }
         }
+
+        long length = f.length();
+        long mtime = f.lastModified();
+        List<long[]> ranges = null;
+        String offloadPath = null;
+        if (request != null) {
+            /*
+             * check conditional request
+             */
+            if (etag == null) {
+                etag = makeEtag(getFileIdentity(f));
+                if (sendNotModified(request, response, etag, mtime, -1, logger)) {
+                    return;
+                }
+                setCacheHeaders(response, etag, mtime, -1);
+            }
+            /*
+             * check range request (unless the front-end server does it)
+             */
+            offloadPath = getOffloadPath(f);
+            String range = request.getHeader("Range");
+            if (offloadPath == null) {
+                response.setHeader("Accept-Ranges", "bytes");
+            }
+            if (offloadPath == null && range != null && "GET".equals(request.getMethod()) && checkIfRange(request, etag, mtime)) {
+                ranges = parseRanges(range, length);
+                if (ranges != null && ranges.isEmpty()) {
+                    // no satisfiable range
+                    logger.debug("Range not satisfiable: " + range);
+                    response.setHeader("Content-Range", "bytes */" + length);
+                    response.sendError(416);
+                    return;
+                }
+            }
+        }
+
         if (!mt.isEmpty()) {
         	response.setContentType(mt);
         }
@@ -312,24 +447,76 @@ public class ServletOps {
             response.setHeader("Access-Control-Allow-Origin", "*");
         }
 
+        /*
+         * let the front-end server send the file
+         */
+        if (offloadPath != null) {
+            logger.debug("Offloading file with " + offloadHeader + ": " + offloadPath);
+            response.setHeader(offloadHeader, offloadPath);
+            return;
+        }
+
+        boolean sendBody = (request == null || !"HEAD".equals(request.getMethod()));
         /*
          * open file
          */
         FileInputStream inFile = null;
         try {
             inFile = new FileInputStream(f);
-            OutputStream outStream = response.getOutputStream();
-            // TODO: should we set content length?
-            // see http://www.prozesse-und-systeme.de/servletFlush.html
-            response.setContentLength((int) f.length());
-            byte dataBuffer[] = new byte[4096];
-            int len;
-            /*
-             * write file to stream
-             */
-            while ((len = inFile.read(dataBuffer)) != -1) {
-                // copy out file
-                outStream.write(dataBuffer, 0, len);
+            FileChannel inChannel = inFile.getChannel();
+            if (ranges == null) {
+                /*
+                 * send the whole file
+                 */
+                setContentLength(response, length);
+                if (sendBody && !containerSendfile(f, 0, length, request)) {
+                    copyRange(inChannel, 0, length, response.getOutputStream());
+                }
+            } else if (ranges.size() == 1) {
+                /*
+                 * send a single range
+                 */
+                long[] r = ranges.get(0);
+                logger.debug("Sending range " + r[0] + "-" + r[1] + " of " + length);
+                response.setStatus(206);
+                response.setHeader("Content-Range", "bytes " + r[0] + "-" + r[1] + "/" + length);
+                setContentLength(response, r[1] - r[0] + 1);
+                if (sendBody && !containerSendfile(f, r[0], r[1] + 1, request)) {
+                    copyRange(inChannel, r[0], r[1] - r[0] + 1, response.getOutputStream());
+                }
+            } else {
+                /*
+                 * send multiple ranges as multipart/byteranges
+                 */
+                logger.debug("Sending " + ranges.size() + " ranges of " + length);
+                String boundary = "DIGILIB_RANGE_" + Long.toHexString(System.nanoTime());
+                List<byte[]> partHeads = new ArrayList<byte[]>(ranges.size());
+                long contentLength = 0;
+                for (long[] r : ranges) {
+                    StringBuilder head = new StringBuilder("\r\n--").append(boundary).append("\r\n");
+                    if (!mt.isEmpty()) {
+                        head.append("Content-Type: ").append(mt).append("\r\n");
+                    }
+                    head.append("Content-Range: bytes ").append(r[0]).append("-").append(r[1]).append("/")
+                            .append(length).append("\r\n\r\n");
+                    byte[] hb = head.toString().getBytes("ISO-8859-1");
+                    partHeads.add(hb);
+                    contentLength += hb.length + r[1] - r[0] + 1;
+                }
+                byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1");
+                contentLength += tail.length;
+                response.setStatus(206);
+                response.setContentType("multipart/byteranges; boundary=" + boundary);
+                setContentLength(response, contentLength);
+                if (sendBody) {
+                    OutputStream outStream = response.getOutputStream();
+                    for (int i = 0; i < ranges.size(); ++i) {
+                        long[] r = ranges.get(i);
+                        outStream.write(partHeads.get(i));
+                        copyRange(inChannel, r[0], r[1] - r[0] + 1, outStream);
+                    }
+                    outStream.write(tail);
+                }
             }
         } finally {
             try {
@@ -342,6 +529,251 @@ public class ServletOps {
         }
     }
 
+    /**
+     * Returns the path of the file for the offload header or null if the
+     * file can not be offloaded.
+     * 
+     * The path of the first entry in sendfile-offload-map whose directory
+     * contains the file replaces the directory. Files outside the mapped
+     * directories are only offloaded with X-Sendfile (using the absolute
+     * path). Paths for X-Accel-Redirect are URL-encoded.
+     * 
+     * @param f
+     * @return
+     */
+    public static String getOffloadPath(File f) {
+        if (offloadHeader == null) {
+            return null;
+        }
+        String path = f.getAbsolutePath();
+        for (String[] map : offloadMap) {
+            String dir = map[0];
+            if (map[1] == null || dir.isEmpty() || !path.startsWith(dir)) {
+                continue;
+            }
+            String rest = path.substring(dir.length());
+            if (!dir.endsWith(File.separator) && !rest.isEmpty() && !rest.startsWith(File.separator)) {
+                // not a parent directory
+                continue;
+            }
+            rest = rest.replace(File.separatorChar, '/');
+            String target = map[1];
+            if (target.endsWith("/") && rest.startsWith("/")) {
+                rest = rest.substring(1);
+            } else if (!target.endsWith("/") && !rest.startsWith("/") && !rest.isEmpty()) {
+                rest = "/" + rest;
+            }
+            if ("X-Accel-Redirect".equals(offloadHeader)) {
+                return target + encodeUriPath(rest);
+            }
+            return target + rest;
+        }
+        if ("X-Sendfile".equals(offloadHeader)) {
+            return path;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the path with all characters except unreserved characters
+     * and slashes percent-encoded (as UTF-8).
+     * 
+     * @param path
+     * @return
+     */
+    protected static String encodeUriPath(String path) {
+        StringBuilder sb = new StringBuilder(path.length() + 16);
+        byte[] bytes;
+        try {
+            bytes = path.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+        for (byte b : bytes) {
+            int c = b & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-'
+                    || c == '.' || c == '_' || c == '~' || c == '/') {
+                sb.append((char) c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns true if the Range header of the request should be used
+     * according to its If-Range header.
+     * 
+     * @param request
+     * @param etag
+     * @param lastModified
+     * @return
+     */
+    protected static boolean checkIfRange(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // strong comparison with entity tag
+            return ifRange.equals(etag);
+        }
+        try {
+            // exact match with modification date
+            return (request.getDateHeader("If-Range") == lastModified / 1000 * 1000);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses the byte ranges of a Range header for an entity of the given length.
+     * 
+     * Returns a list of ranges as {first, last} byte positions, sorted and
+     * with overlapping ranges merged. Returns an empty list if no range is
+     * satisfiable and null if the header is invalid or unsupported.
+     * 
+     * @param range
+     * @param length
+     * @return
+     */
+    protected static List<long[]> parseRanges(String range, long length) {
+        range = range.trim();
+        if (!range.startsWith("bytes=")) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<long[]>();
+        try {
+            for (String spec : range.substring(6).split(",")) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                long start;
+                long end;
+                if (first.isEmpty()) {
+                    // suffix range
+                    long suffix = Long.parseLong(last);
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                    if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) {
+                        return null;
+                    }
+                }
+                if (start < length && start <= end) {
+                    ranges.add(new long[] { start, end });
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (ranges.size() > MAX_RANGES) {
+            // too many ranges -- send the whole file
+            return null;
+        }
+        // sort and merge overlapping ranges
+        Collections.sort(ranges, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        List<long[]> merged = new ArrayList<long[]>(ranges.size());
+        for (long[] r : ranges) {
+            long[] prev = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (prev != null && r[0] <= prev[1] + 1) {
+                prev[1] = Math.max(prev[1], r[1]);
+            } else {
+                merged.add(r);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Sets the content length of the response (also for more than 2GB).
+     * 
+     * @param response
+     * @param length
+     */
+    protected static void setContentLength(HttpServletResponse response, long length) {
+        if (length <= Integer.MAX_VALUE) {
+            response.setContentLength((int) length);
+        } else {
+            response.setHeader("Content-Length", Long.toString(length));
+        }
+    }
+
+    /**
+     * Hands the region of the file to the sendfile support of the container
+     * (Tomcat) if available.
+     * 
+     * Returns true if the container will send the data.
+     * 
+     * @param f
+     * @param start
+     * @param end
+     *            position after the last byte.
+     * @param request
+     * @return
+     */
+    protected static boolean containerSendfile(File f, long start, long end, HttpServletRequest request) {
+        if (request == null || !Boolean.TRUE.equals(request.getAttribute("org.apache.tomcat.sendfile.support"))) {
+            return false;
+        }
+        try {
+            request.setAttribute("org.apache.tomcat.sendfile.filename", f.getCanonicalPath());
+            request.setAttribute("org.apache.tomcat.sendfile.start", Long.valueOf(start));
+            request.setAttribute("org.apache.tomcat.sendfile.end", Long.valueOf(end));
+            return true;
+        } catch (Exception e) {
+            logger.warn("Unable to use container sendfile: " + e.getMessage());
+            request.removeAttribute("org.apache.tomcat.sendfile.filename");
+            return false;
+        }
+    }
+
+    /**
+     * Copies count bytes starting at position start from the FileChannel to
+     * the OutputStream.
+     * 
+     * @param in
+     * @param start
+     * @param count
+     * @param out
+     * @throws IOException
+     */
+    protected static void copyRange(FileChannel in, long start, long count, OutputStream out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_BUFFER_SIZE, Math.max(count, 1)));
+        byte[] data = buffer.array();
+        long pos = start;
+        long end = start + count;
+        while (pos < end) {
+            buffer.clear();
+            if (end - pos < buffer.capacity()) {
+                buffer.limit((int) (end - pos));
+            }
+            int len = in.read(buffer, pos);
+            if (len < 0) {
+                throw new EOFException("Unexpected end of file at " + pos);
+            }
+            out.write(data, 0, len);
+            pos += len;
+        }
+    }
+
     /**
      * Write image img to ServletResponse response.
      * 
@@ -426,6 +858,233 @@ public class ServletOps {
         }
     }
 
+    /**
+     * Encode image img as data of mimeType and return the bytes.
+     *
+     * Disposes the image.
+     *
+     * @param img
+     * @param mimeType
+     * @return
+     * @throws ImageOpException
+     * @throws FileOpException
+     */
+    public static byte[] encodeImage(DocuImage img, String mimeType) throws ImageOpException, FileOpException {
+        try {
+            ByteArrayOutputStream outstream = new ByteArrayOutputStream(64 * 1024);
+            img.writeImage(mimeType, outstream);
+            return outstream.toByteArray();
+        } finally {
+            img.dispose();
+        }
+    }
+
+    /**
+     * Write encoded image data to ServletResponse response.
+     *
+     * @param data
+     * @param mimeType
+     * @param response
+     * @param logger
+     * @throws IOException
+     */
+    public static void sendImageData(byte[] data, String mimeType, HttpServletResponse response, Logger logger)
+            throws IOException {
+        if (response == null) {
+            logger.error("No response!");
+            return;
+        }
+        // set the content type
+        response.setContentType(mimeType);
+        /*
+         * set CORS header ACAO "*" for image response
+         */
+        if (corsForImageRequests) {
+            response.setHeader("Access-Control-Allow-Origin", "*");
+        }
+        response.setContentLength(data.length);
+        /*
+         * write the image
+         */
+        OutputStream outstream = response.getOutputStream();
+        outstream.write(data);
+    }
+
+    /**
+     * Returns a string identifying the state of the file f.
+     * 
+     * The identity changes when the file is replaced or modified.
+     * 
+     * @param f
+     * @return
+     */
+    public static String getFileIdentity(File f) {
+        return f.getAbsolutePath() + "|" + f.lastModified() + "|" + f.length();
+    }
+
+    /**
+     * Returns a strong ETag (including quotes) for the given identity string.
+     * 
+     * @param identity
+     * @return
+     */
+    public static String makeEtag(String identity) {
+        return "\"" + RenderCache.hashKey(identity) + "\"";
+    }
+
+    /**
+     * Returns true if the conditional request headers (If-None-Match or
+     * If-Modified-Since) show that the client has a current copy of the
+     * response with the given ETag and modification time.
+     * 
+     * Only GET and HEAD requests are considered.
+     * 
+     * @param request
+     * @param etag
+     *            ETag of the response (may be null).
+     * @param lastModified
+     *            modification time of the response (-1 if unknown).
+     * @return
+     */
+    public static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return false;
+        }
+        String inm = request.getHeader("If-None-Match");
+        if (inm != null) {
+            // If-None-Match takes precedence over If-Modified-Since
+            if (etag == null) {
+                return false;
+            }
+            for (String tag : inm.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    // weak comparison
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (lastModified > 0) {
+            try {
+                long ims = request.getDateHeader("If-Modified-Since");
+                // HTTP dates have a resolution of seconds
+                return (ims > 0 && lastModified / 1000 * 1000 <= ims);
+            } catch (IllegalArgumentException e) {
+                // unparseable date
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the ETag, Last-Modified and Cache-Control headers of the response.
+     * 
+     * Sends private cache headers if use-authorization is configured.
+     * 
+     * @param response
+     * @param etag
+     *            ETag (may be null).
+     * @param lastModified
+     *            modification time (-1 if unknown).
+     * @param maxAge
+     *            max-age in seconds (-1 for no Cache-Control header).
+     */
+    public static void setCacheHeaders(HttpServletResponse response, String etag, long lastModified, int maxAge) {
+        setCacheHeaders(response, etag, lastModified, maxAge, privateCaching);
+    }
+
+    /**
+     * Sets the ETag, Last-Modified and Cache-Control headers of the response.
+     * 
+     * If isPrivate is true the response depends on authorization and must not
+     * be stored by shared caches: Cache-Control is always set to private and
+     * Vary lists the authentication headers.
+     * 
+     * @param response
+     * @param etag
+     *            ETag (may be null).
+     * @param lastModified
+     *            modification time (-1 if unknown).
+     * @param maxAge
+     *            max-age in seconds (-1 for no max-age).
+     * @param isPrivate
+     *            send private cache headers.
+     */
+    public static void setCacheHeaders(HttpServletResponse response, String etag, long lastModified, int maxAge,
+            boolean isPrivate) {
+        if (etag != null) {
+            response.setHeader("ETag", etag);
+        }
+        if (lastModified > 0) {
+            response.setDateHeader("Last-Modified", lastModified / 1000 * 1000);
+        }
+        if (isPrivate) {
+            response.setHeader("Cache-Control", (maxAge >= 0) ? "private, max-age=" + maxAge : "private");
+            response.setHeader("Vary", "Authorization, Cookie");
+        } else if (maxAge >= 0) {
+            response.setHeader("Cache-Control", "max-age=" + maxAge);
+        }
+    }
+
+    /**
+     * Sends a 304 Not Modified response if the client has a current copy of
+     * the response with the given ETag and modification time.
+     * 
+     * Returns true if the response has been sent.
+     * 
+     * @param request
+     * @param response
+     * @param etag
+     * @param lastModified
+     * @param maxAge
+     * @param logger
+     * @return
+     */
+    public static boolean sendNotModified(HttpServletRequest request, HttpServletResponse response, String etag,
+            long lastModified, int maxAge, Logger logger) {
+        return sendNotModified(request, response, etag, lastModified, maxAge, privateCaching, logger);
+    }
+
+    /**
+     * Sends a 304 Not Modified response if the client has a current copy of
+     * the response with the given ETag and modification time.
+     * 
+     * Returns true if the response has been sent.
+     * 
+     * @param request
+     * @param response
+     * @param etag
+     * @param lastModified
+     * @param maxAge
+     * @param isPrivate
+     *            send private cache headers.
+     * @param logger
+     * @return
+     */
+    public static boolean sendNotModified(HttpServletRequest request, HttpServletResponse response, String etag,
+            long lastModified, int maxAge, boolean isPrivate, Logger logger) {
+        if (!isNotModified(request, etag, lastModified)) {
+            return false;
+        }
+        logger.debug("Sending 304 Not Modified for " + etag);
+        setCacheHeaders(response, etag, lastModified, maxAge, isPrivate);
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
+    }
+
+    /**
+     * @return the Cache-Control max-age for image responses (-1: no header)
+     */
+    public static int getImageCacheMaxAge() {
+        return imageCacheMaxAge;
+    }
+
     /**
      * Returns IIIF compatible image information as application/json response.
      * 
@@ -472,6 +1131,41 @@ public class ServletOps {
             url = url.substring(0, url.lastIndexOf("/"));
         }
         
+        /*
+         * use JSON-LD content type only when asked
+         */
+        boolean iiifV2 = dlConfig.getAsString("iiif-api-version").startsWith("2.");
+        String contentType = "application/json,application/ld+json";
+        if (iiifV2) {
+            String accept = dlReq.getServletRequest().getHeader("Accept");
+            if (accept != null && accept.contains("application/ld+json")) {
+                contentType = "application/ld+json";
+            } else {
+                contentType = "application/json";
+            }
+        }
+
+        /*
+         * check conditional request
+         */
+        StringBuilder identity = new StringBuilder("info|").append(url).append("|").append(contentType)
+                .append("|").append(dlConfig.getAsString("iiif-api-version"))
+                .append("|").append(dlConfig.getAsInt("max-image-size"));
+        long lastModified = -1;
+        for (int i = 0; i < imageSet.size(); ++i) {
+            ImageInput ii = imageSet.get(i);
+            if (ii.hasFile()) {
+                File f = ii.getFile();
+                identity.append("|").append(getFileIdentity(f));
+                lastModified = Math.max(lastModified, f.lastModified());
+            }
+        }
+        String etag = makeEtag(identity.toString());
+        if (sendNotModified(dlReq.getServletRequest(), response, etag, lastModified, infoCacheMaxAge, logger)) {
+            return;
+        }
+        setCacheHeaders(response, etag, lastModified, infoCacheMaxAge);
+
         /*
          * send response
          */
@@ -488,17 +1182,11 @@ public class ServletOps {
                 }
             }
             
-            if (dlConfig.getAsString("iiif-api-version").startsWith("2.")) {
+            if (iiifV2) {
                 /*
                  * IIIF Image API version 2 image information
                  */
-                // use JSON-LD content type only when asked
-                String accept = dlReq.getServletRequest().getHeader("Accept");
-                if (accept != null && accept.contains("application/ld+json")) {
-                    response.setContentType("application/ld+json");
-                } else {
-                    response.setContentType("application/json");
-                }
+                response.setContentType(contentType);
                 // write info.json
                 ServletOutputStream out = response.getOutputStream();
                 JsonGenerator info = Json.createGenerator(out);
@@ -565,7 +1253,7 @@ public class ServletOps {
                 /*
                  * IIIF Image API version 1 image information
                  */
-                response.setContentType("application/json,application/ld+json");
+                response.setContentType(contentType);
                 // write info.json
                 ServletOutputStream out = response.getOutputStream();
                 JsonGenerator info = Json.createGenerator(out);
@@ -597,6 +1285,39 @@ public class ServletOps {
         }
     }
 
+    /**
+     * Returns the key of the client of the request for fair queuing and limits.
+     *
+     * Uses the subject of a verified token, the authenticated user or the
+     * remote address (in this order). The token is read from the request 
+     * and looked up in the cache of verified tokens of OpenIdAuthnOps since
+     * it is not verified for unrestricted images or cached authorization
+     * decisions.
+     *
+     * @param request
+     * @return
+     */
+    public static String getClientKey(HttpServletRequest request) {
+        AuthnOps authnOps = null;
+        if (dlConfig != null) {
+            authnOps = (AuthnOps) dlConfig.getValue(DigilibServletConfiguration.AUTHN_OP_KEY);
+        }
+        if (authnOps instanceof IpOpenIdAuthnOps) {
+            authnOps = ((IpOpenIdAuthnOps) authnOps).getOpenIdAuthnOps();
+        }
+        if (authnOps instanceof OpenIdAuthnOps) {
+            String subject = ((OpenIdAuthnOps) authnOps).getVerifiedSubject(request);
+            if (subject != null) {
+                return "sub:" + subject;
+            }
+        }
+        String user = request.getRemoteUser();
+        if (user != null) {
+            return "user:" + user;
+        }
+        return "ip:" + request.getRemoteAddr();
+    }
+
     /** Returns text representation of headers for debuggging purposes.
      * @param req
      * @return
@@ -48,8 +48,8 @@ import digilib.image.DocuImage;
 import digilib.image.ImageJobDescription;
 import digilib.image.ImageOpException;
 import digilib.image.ImageWorker;
+import digilib.image.MemoryBudget;
 import digilib.io.DocuDirCache;
-import digilib.io.DocuDirectory;
 import digilib.io.ImageInput;
 import digilib.util.DigilibJobCenter;
 
@@ -156,24 +156,6 @@ public class Scaler extends HttpServlet {
         sendFileAllowed = dlConfig.getAsBoolean("sendfile-allowed");
     }
 
-    /**
-     * Returns modification time relevant to the request for caching.
-     * 
-     * @see javax.servlet.http.HttpServlet#getLastModified(javax.servlet.http.HttpServletRequest)
-     */
-    public long getLastModified(HttpServletRequest request) {
-        accountlog.debug("GetLastModified from " + request.getRemoteAddr() + " for " + request.getQueryString());
-        long mtime = -1;
-        // create new request
-        DigilibServletRequest dlReq = new DigilibServletRequest(request, dlConfig);
-        DocuDirectory dd = dirCache.getDirectory(dlReq.getFilePath());
-        if (dd != null) {
-            mtime = dd.getDirMTime() / 1000 * 1000;
-        }
-        logger.debug("  returns " + mtime);
-        return mtime;
-    }
-
     /*
      * (non-Javadoc)
      * 
@@ -222,7 +204,7 @@ public class Scaler extends HttpServlet {
             throw new ServletException("NO VALID digilib CONFIGURATION!");
         }
 
-        accountlog.debug("request: " + request.getQueryString());
+        accountlog.debug("request: " + request.getQueryString() + " uri: " + request.getRequestURI());
         logger.debug("request: " + request.getQueryString());
         long startTime = System.currentTimeMillis();
 
@@ -261,8 +243,12 @@ public class Scaler extends HttpServlet {
                 if (jobTicket.hasOption(DigilibOption.rawfile)) {
                     mt = "application/octet-stream";
                 }
+                if (checkNotModified(request, response, fileToLoad, (mt == null) ? "file" : "rawfile")) {
+                    return;
+                }
                 logger.debug("Sending RAW File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), mt, null, response, logger);
+                String etag = setCacheHeaders(response, fileToLoad, (mt == null) ? "file" : "rawfile");
+                ServletOps.sendFile(fileToLoad.getFile(), mt, null, etag, request, response, logger);
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
@@ -270,24 +256,78 @@ public class Scaler extends HttpServlet {
             // if possible, send the image without actually having to transform
             // it
             if (!jobTicket.isTransformRequired()) {
+                if (checkNotModified(request, response, fileToLoad, "file")) {
+                    return;
+                }
                 logger.debug("Sending File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), null, null, response, logger);
+                String etag = setCacheHeaders(response, fileToLoad, "file");
+                ServletOps.sendFile(fileToLoad.getFile(), null, null, etag, request, response, logger);
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
 
+            // answer conditional request before rendering
+            String jobKey = jobTicket.getRenderKey();
+            if (checkNotModified(request, response, fileToLoad, jobKey)) {
+                return;
+            }
+            // cache headers with the modification time before rendering
+            String etag = getEtag(fileToLoad, jobKey);
+            long sourceMTime = (etag != null) ? fileToLoad.getFile().lastModified() : -1;
+
             // check load of workers
             if (imageJobCenter.isBusy()) {
                 logger.error("Servlet overloaded!");
                 response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
                 return;
             }
+            // check limits of the client
+            String client = ServletOps.getClientKey(request);
+            DigilibJobCenter.Ticket ticket = imageJobCenter.admit(client);
+            if (ticket == null) {
+                logger.error("Client over limit: " + client);
+                response.setIntHeader("Retry-After", imageJobCenter.getRetryAfter(client));
+                response.sendError(ServletOps.SC_TOO_MANY_REQUESTS);
+                return;
+            }
+            // check memory of queued jobs (the job reserves its memory when it starts)
+            MemoryBudget.Reservation admission = null;
+            MemoryBudget memoryBudget = MemoryBudget.getInstance();
+            if (memoryBudget != null) {
+                admission = memoryBudget.admit(jobTicket.getEstimatedMemory());
+                if (admission == null) {
+                    ticket.release();
+                    logger.error("Servlet out of memory budget!");
+                    response.setIntHeader("Retry-After", memoryBudget.getRetryAfter());
+                    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    return;
+                }
+            }
             // create job
             ImageWorker job = new ImageWorker(dlConfig, jobTicket);
+            job.setMemoryAdmission(admission);
             // submit job
-            Future<DocuImage> jobResult = imageJobCenter.submit(job);
+            Future<DocuImage> jobResult = null;
+            try {
+                jobResult = imageJobCenter.submit(job, ticket);
+            } finally {
+                if (jobResult == null) {
+                    // the job didn't take over the ticket and the admission
+                    ticket.release();
+                    if (admission != null) {
+                        admission.release();
+                    }
+                }
+            }
             // wait for result
-            DocuImage img = jobResult.get();
+            DocuImage img;
+            try {
+                img = jobResult.get();
+            } catch (InterruptedException e) {
+                // stop the job and release its image
+                job.cancel(jobResult);
+                throw e;
+            }
             // forced destination image type
             String mt = null;
             if (jobTicket.hasOption(DigilibOption.jpg)) {
@@ -296,6 +336,9 @@ public class Scaler extends HttpServlet {
                 mt = "image/png";
             }
             // send image
+            if (etag != null) {
+                ServletOps.setCacheHeaders(response, etag, sourceMTime, ServletOps.getImageCacheMaxAge());
+            }
             ServletOps.sendImage(img, mt, response, logger);
             logger.debug("Job Processing Time: " + (System.currentTimeMillis() - startTime) + "ms");
 
@@ -319,6 +362,65 @@ public class Scaler extends HttpServlet {
 
     }
 
+    /**
+     * Returns the ETag for the variant of the input file.
+     * 
+     * Returns null if the input is not a file.
+     * 
+     * @param input
+     * @param variant
+     * @return
+     */
+    protected static String getEtag(ImageInput input, String variant) {
+        if (input == null || !input.hasFile() || variant == null) {
+            return null;
+        }
+        return ServletOps.makeEtag(ServletOps.getFileIdentity(input.getFile()) + "|" + variant);
+    }
+
+    /**
+     * Sends a 304 Not Modified response if the client has a current copy of
+     * the variant of the input file.
+     * 
+     * Returns true if the response has been sent.
+     * 
+     * @param request
+     * @param response
+     * @param input
+     * @param variant
+     * @return
+     */
+    protected static boolean checkNotModified(HttpServletRequest request, HttpServletResponse response,
+            ImageInput input, String variant) {
+        String etag = getEtag(input, variant);
+        if (etag == null) {
+            return false;
+        }
+        long mtime = input.getFile().lastModified();
+        int maxAge = ServletOps.getImageCacheMaxAge();
+        return ServletOps.sendNotModified(request, response, etag, mtime, maxAge, logger);
+    }
+
+    /**
+     * Sets the cache headers for the variant of the input file.
+     * 
+     * Returns the ETag or null if the input is not a file.
+     * 
+     * @param response
+     * @param input
+     * @param variant
+     * @return
+     */
+    protected static String setCacheHeaders(HttpServletResponse response, ImageInput input, String variant) {
+        String etag = getEtag(input, variant);
+        if (etag == null) {
+            return null;
+        }
+        long mtime = input.getFile().lastModified();
+        ServletOps.setCacheHeaders(response, etag, mtime, ServletOps.getImageCacheMaxAge());
+        return etag;
+    }
+
     /**
      * Sends an error to the client as text or image.
      * 
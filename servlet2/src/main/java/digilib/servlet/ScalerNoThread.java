@@ -45,7 +45,6 @@ import digilib.image.ImageJobDescription;
 import digilib.image.ImageOpException;
 import digilib.image.ImageWorker;
 import digilib.io.DocuDirCache;
-import digilib.io.DocuDirectory;
 import digilib.io.ImageInput;
 
 /**
@@ -139,24 +138,6 @@ public class ScalerNoThread extends HttpServlet {
         sendFileAllowed = dlConfig.getAsBoolean("sendfile-allowed");
     }
 
-    /**
-     * Returns modification time relevant to the request for caching.
-     * 
-     * @see javax.servlet.http.HttpServlet#getLastModified(javax.servlet.http.HttpServletRequest)
-     */
-    public long getLastModified(HttpServletRequest request) {
-        accountlog.debug("GetLastModified from " + request.getRemoteAddr() + " for " + request.getQueryString());
-        long mtime = -1;
-        // create new request
-        DigilibServletRequest dlReq = new DigilibServletRequest(request, dlConfig);
-        DocuDirectory dd = dirCache.getDirectory(dlReq.getFilePath());
-        if (dd != null) {
-            mtime = dd.getDirMTime() / 1000 * 1000;
-        }
-        logger.debug("  returns " + mtime);
-        return mtime;
-    }
-
     /*
      * (non-Javadoc)
      * 
@@ -205,7 +186,7 @@ public class ScalerNoThread extends HttpServlet {
             throw new ServletException("NO VALID digilib CONFIGURATION!");
         }
 
-        accountlog.debug("request: " + request.getQueryString());
+        accountlog.debug("request: " + request.getQueryString() + " uri: " + request.getRequestURI());
         logger.debug("request: " + request.getQueryString());
         long startTime = System.currentTimeMillis();
 
@@ -243,8 +224,12 @@ public class ScalerNoThread extends HttpServlet {
                 if (jobTicket.hasOption(DigilibOption.rawfile)) {
                     mt = "application/octet-stream";
                 }
+                if (Scaler.checkNotModified(request, response, fileToLoad, (mt == null) ? "file" : "rawfile")) {
+                    return;
+                }
                 logger.debug("Sending RAW File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), mt, null, response, logger);
+                String etag = Scaler.setCacheHeaders(response, fileToLoad, (mt == null) ? "file" : "rawfile");
+                ServletOps.sendFile(fileToLoad.getFile(), mt, null, etag, request, response, logger);
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
@@ -252,12 +237,25 @@ public class ScalerNoThread extends HttpServlet {
             // if possible, send the image without actually having to transform
             // it
             if (!jobTicket.isTransformRequired()) {
+                if (Scaler.checkNotModified(request, response, fileToLoad, "file")) {
+                    return;
+                }
                 logger.debug("Sending File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), null, null, response, logger);
+                String etag = Scaler.setCacheHeaders(response, fileToLoad, "file");
+                ServletOps.sendFile(fileToLoad.getFile(), null, null, etag, request, response, logger);
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
 
+            // answer conditional request before rendering
+            String jobKey = jobTicket.getRenderKey();
+            if (Scaler.checkNotModified(request, response, fileToLoad, jobKey)) {
+                return;
+            }
+            // cache headers with the modification time before rendering
+            String etag = Scaler.getEtag(fileToLoad, jobKey);
+            long sourceMTime = (etag != null) ? fileToLoad.getFile().lastModified() : -1;
+
             // create job
             ImageWorker job = new ImageWorker(dlConfig, jobTicket);
             // get result immediately
@@ -270,6 +268,9 @@ public class ScalerNoThread extends HttpServlet {
                 mt = "image/png";
             }
             // send image
+            if (etag != null) {
+                ServletOps.setCacheHeaders(response, etag, sourceMTime, ServletOps.getImageCacheMaxAge());
+            }
             ServletOps.sendImage(img, mt, response, logger);
             logger.debug("Job Processing Time: " + (System.currentTimeMillis() - startTime) + "ms");
 
@@ -59,6 +59,8 @@ public class DigilibServlet3Configuration extends DigilibServletConfiguration {
         
         // timeout for worker threads (ms)
         newParameter("worker-timeout", new Integer(60000), null, 'f');
+        // let identical image requests wait for the same worker
+        newParameter("coalesce-image-jobs", Boolean.TRUE, null, 'f');
     }
 
     /* (non-Javadoc)
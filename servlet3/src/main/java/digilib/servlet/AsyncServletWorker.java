@@ -28,6 +28,9 @@ package digilib.servlet;
  */
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.AsyncEvent;
@@ -43,8 +46,12 @@ import digilib.image.DocuImage;
 import digilib.image.ImageJobDescription;
 import digilib.image.ImageOpException;
 import digilib.image.ImageWorker;
+import digilib.image.MemoryBudget;
+import digilib.image.RenderCache;
 import digilib.servlet.Scaler.ErrMsg;
 import digilib.servlet.Scaler.Error;
+import digilib.util.CostAwareJob;
+import digilib.util.DigilibJobCenter;
 
 /**
  * Worker class for the asynchronous Servlet API.
@@ -52,7 +59,7 @@ import digilib.servlet.Scaler.Error;
  * @author casties
  * 
  */
-public class AsyncServletWorker implements Runnable, AsyncListener {
+public class AsyncServletWorker implements Runnable, AsyncListener, CostAwareJob {
 
     /** the AsyncServlet context */
     private AsyncContext asyncContext = null;
@@ -65,9 +72,131 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
     private ErrMsg errMsgType = ErrMsg.IMAGE;
     private ImageJobDescription jobinfo;
     /** flag to indicate that the response is completed (on abort) */
-    private boolean completed = false;
+    private volatile boolean completed = false;
     /** AsyncRequest timeout */
     protected static long timeout = 60000l;
+    /** RenderCache for the result (may be null) */
+    private RenderCache renderCache = null;
+    /** key of the result in the RenderCache and running jobs */
+    private String jobKey = null;
+    /** modification time of the source file before rendering */
+    private long sourceMTime = 0;
+    /** map of running jobs this job is registered in (may be null) */
+    private ConcurrentMap<String, AsyncServletWorker> runningJobs = null;
+    /** requests waiting for the result of this job */
+    private List<Follower> followers = new ArrayList<Follower>();
+    /** flag to indicate that no more followers can be added */
+    private boolean followersClosed = false;
+    /** ETag of the rendered image (may be null) */
+    private String etag = null;
+    /** modification time of the rendered image */
+    private long lastModified = -1;
+
+    /**
+     * Request waiting for the result of another identical job.
+     * 
+     * Holds the ticket of its client until the response is completed.
+     */
+    protected static class Follower implements AsyncListener {
+        private AsyncServletWorker leader;
+        private AsyncContext asyncContext;
+        private ErrMsg errMsgType;
+        private long startTime;
+        private DigilibJobCenter.Ticket ticket;
+        /** flag to indicate that a response has been sent */
+        private boolean sent = false;
+        /** flag to indicate that the response is completed */
+        private boolean completed = false;
+
+        public Follower(AsyncServletWorker leader, AsyncContext asyncContext, ErrMsg errMsgType, long startTime,
+                DigilibJobCenter.Ticket ticket) {
+            this.leader = leader;
+            this.asyncContext = asyncContext;
+            this.errMsgType = errMsgType;
+            this.startTime = startTime;
+            this.ticket = ticket;
+        }
+
+        /**
+         * Writes the image data to the response.
+         * 
+         * @param data
+         * @param mt
+         * @param etag
+         * @param lastModified
+         */
+        public synchronized void sendImage(byte[] data, String mt, String etag, long lastModified) {
+            if (completed || sent) {
+                return;
+            }
+            sent = true;
+            try {
+                ServletOps.setCacheHeaders((HttpServletResponse) asyncContext.getResponse(), etag, lastModified,
+                        ServletOps.getImageCacheMaxAge());
+                ServletOps.sendImageData(data, mt, (HttpServletResponse) asyncContext.getResponse(), logger);
+                logger.debug("Follower done in: " + (System.currentTimeMillis() - startTime) + "ms");
+            } catch (IOException e) {
+                logger.error("Error sending image to follower: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Sends an error unless a response has already been sent.
+         * 
+         * @param error
+         */
+        public synchronized void sendError(Error error) {
+            if (completed || sent) {
+                return;
+            }
+            sent = true;
+            Scaler.digilibError(errMsgType, error, null, (HttpServletResponse) asyncContext.getResponse());
+        }
+
+        /**
+         * Completes the response.
+         */
+        public synchronized void complete() {
+            if (!completed) {
+                completed = true;
+                asyncContext.complete();
+            }
+            ticket.release();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public synchronized void onComplete(AsyncEvent event) throws IOException {
+            completed = true;
+            ticket.release();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            logger.error("AsyncServletWorker follower onError: " + event.toString());
+            leader.removeFollower(this);
+            sendError(Error.UNKNOWN);
+            complete();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            logger.error("AsyncServletWorker follower TIMED OUT after "
+                    + (System.currentTimeMillis() - startTime) + "ms!");
+            leader.removeFollower(this);
+            synchronized (this) {
+                if (!completed && !sent) {
+                    sent = true;
+                    Scaler.digilibError(errMsgType, Error.UNKNOWN, "ERROR: timeout rendering image!",
+                            (HttpServletResponse) asyncContext.getResponse());
+                }
+            }
+            complete();
+        }
+    }
 
     /**
      * @param dlConfig
@@ -87,43 +216,97 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
         this.jobinfo = jobinfo;
     }
 
+    /**
+     * Sets the admission of the memory budget for the ImageWorker.
+     * 
+     * @param admission
+     */
+    public void setMemoryAdmission(MemoryBudget.Reservation admission) {
+        imageWorker.setMemoryAdmission(admission);
+    }
+
+    /**
+     * Returns the estimated cost of the ImageWorker.
+     */
+    @Override
+    public long getCost() {
+        return imageWorker.getCost();
+    }
+
     /**
      * runs the ImageWorker and writes the image to the ServletResponse.
+     * 
+     * Also writes the image to the responses of all followers.
      */
     @Override
     public void run() {
+        List<Follower> waiting = null;
+        Error followerError = Error.UNKNOWN;
+        DocuImage img = null;
         try {
             /*
              * render the image
              */
-            DocuImage img = imageWorker.call();
-            if (completed) {
+            img = imageWorker.call();
+            // no more followers from now on
+            waiting = closeFollowers();
+            if (completed && waiting.isEmpty()) {
                 logger.debug("AsyncServletWorker already completed (after scaling)!");
                 return;
             }
-            /*
-             * set forced destination image type
-             */
-            String mt = null;
-            if (jobinfo.hasOption(DigilibOption.jpg)) {
-                mt = "image/jpeg";
-            } else if (jobinfo.hasOption(DigilibOption.png)) {
-                mt = "image/png";
-            }
-            /*
-             *  send the image
-             */
             HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
-            ServletOps.sendImage(img, mt, response, logger);
+            if (renderCache != null || !waiting.isEmpty()) {
+                /*
+                 * encode the image, put it in the cache and send it to everybody
+                 */
+                String mt = jobinfo.getOutputMimeType();
+                // encodeImage disposes the image
+                DocuImage encoded = img;
+                img = null;
+                byte[] data = ServletOps.encodeImage(encoded, mt);
+                if (renderCache != null) {
+                    renderCache.put(jobKey, sourceMTime, mt, data);
+                }
+                if (!completed) {
+                    ServletOps.setCacheHeaders(response, etag, lastModified, ServletOps.getImageCacheMaxAge());
+                    ServletOps.sendImageData(data, mt, response, logger);
+                }
+                for (Follower f : waiting) {
+                    f.sendImage(data, mt, etag, lastModified);
+                }
+                if (!waiting.isEmpty()) {
+                    logger.debug("Sent image to " + waiting.size() + " waiting requests.");
+                }
+            } else {
+                /*
+                 * set forced destination image type
+                 */
+                String mt = null;
+                if (jobinfo.hasOption(DigilibOption.jpg)) {
+                    mt = "image/jpeg";
+                } else if (jobinfo.hasOption(DigilibOption.png)) {
+                    mt = "image/png";
+                }
+                /*
+                 *  send the image
+                 */
+                ServletOps.setCacheHeaders(response, etag, lastModified, ServletOps.getImageCacheMaxAge());
+                // sendImage disposes the image
+                DocuImage sent = img;
+                img = null;
+                ServletOps.sendImage(sent, mt, response, logger);
+            }
             
             logger.debug("Job done in: "
                     + (System.currentTimeMillis() - startTime) + "ms");
         } catch (ImageOpException e) {
             logger.error(e.getClass() + ": " + e.getMessage());
+            followerError = Error.IMAGE;
             Scaler.digilibError(errMsgType, Error.IMAGE, null,
                     (HttpServletResponse) asyncContext.getResponse());
         } catch (IOException e) {
             logger.error(e.getClass() + ": " + e.getMessage());
+            followerError = Error.FILE;
             Scaler.digilibError(errMsgType, Error.FILE, null,
                     (HttpServletResponse) asyncContext.getResponse());
         } catch (ServletException e) {
@@ -131,6 +314,18 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
         } catch (Exception e) {
             logger.error("Other error: ", e);
         } finally {
+            if (img != null) {
+                // not sent: release the memory reservation
+                img.dispose();
+            }
+            if (waiting == null) {
+                waiting = closeFollowers();
+            }
+            for (Follower f : waiting) {
+                // followers that didn't get an image get an error
+                f.sendError(followerError);
+                f.complete();
+            }
             if (completed) {
                 logger.debug("AsyncServletWorker already completed (finally)!");
             } else {
@@ -143,6 +338,89 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
 
     }
 
+    /**
+     * Adds a request that waits for the result of this job.
+     * 
+     * The follower takes over the ticket of its client (from
+     * {@link DigilibJobCenter#admit(String)}) and releases it when its
+     * response is completed.
+     * 
+     * Returns false if the job is already finishing and can not take more followers.
+     * 
+     * @param asyncContext
+     * @param errMsgType
+     * @param startTime
+     * @param ticket
+     * @return
+     */
+    public synchronized boolean addFollower(AsyncContext asyncContext, ErrMsg errMsgType, long startTime,
+            DigilibJobCenter.Ticket ticket) {
+        if (followersClosed) {
+            return false;
+        }
+        Follower f = new Follower(this, asyncContext, errMsgType, startTime, ticket);
+        asyncContext.setTimeout(AsyncServletWorker.timeout);
+        asyncContext.addListener(f);
+        followers.add(f);
+        return true;
+    }
+
+    /**
+     * Removes a follower that timed out or failed.
+     * 
+     * Stops the ImageWorker if the request of this job is already completed
+     * and no other requests wait for the result.
+     * 
+     * @param follower
+     */
+    protected void removeFollower(Follower follower) {
+        synchronized (this) {
+            if (followersClosed || !followers.remove(follower)) {
+                // the result is being sent
+                return;
+            }
+        }
+        if (completed) {
+            stopUnlessFollowed();
+        }
+    }
+
+    /**
+     * Removes this job from the running jobs and returns the list of followers.
+     * 
+     * No more followers can be added afterwards.
+     * 
+     * @return
+     */
+    protected List<Follower> closeFollowers() {
+        if (runningJobs != null) {
+            runningJobs.remove(jobKey, this);
+        }
+        synchronized (this) {
+            followersClosed = true;
+            return followers;
+        }
+    }
+
+    /**
+     * Stops the ImageWorker unless other requests wait for its result.
+     * 
+     * No more followers can be added to a stopped job.
+     */
+    protected void stopUnlessFollowed() {
+        synchronized (this) {
+            if (!followers.isEmpty()) {
+                logger.debug("AsyncServletWorker keeps running for " + followers.size() + " waiting requests.");
+                return;
+            }
+            followersClosed = true;
+        }
+        if (runningJobs != null) {
+            runningJobs.remove(jobKey, this);
+        }
+        imageWorker.stopNow();
+    }
+
     @Override
     public void onStartAsync(AsyncEvent event) throws IOException {
         logger.debug("onStartAsync called (why?)");
@@ -162,7 +440,7 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
             logger.debug("AsyncServletWorker already completed (TimeOut)!");
             return;
         }
-        imageWorker.stopNow();
+        stopUnlessFollowed();
         completed = true;
         Scaler.digilibError(errMsgType, Error.UNKNOWN, null,
                 (HttpServletResponse) asyncContext.getResponse());
@@ -178,13 +456,52 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
             logger.debug("AsyncServletWorker already completed (TimeOut)!");
             return;
         }
-        imageWorker.stopNow();
+        stopUnlessFollowed();
         completed = true;
         Scaler.digilibError(errMsgType, Error.UNKNOWN, "ERROR: timeout rendering image!",
                 (HttpServletResponse) asyncContext.getResponse());
         asyncContext.complete();
     }
 
+    /**
+     * Store the rendered image in the RenderCache under the key.
+     * 
+     * @param renderCache
+     * @param jobKey
+     * @param sourceMTime modification time of the source file before rendering
+     */
+    public void setRenderCache(RenderCache renderCache, String jobKey, long sourceMTime) {
+        this.renderCache = renderCache;
+        this.jobKey = jobKey;
+        this.sourceMTime = sourceMTime;
+    }
+
+    /**
+     * Register this job in the map of running jobs under the key.
+     * 
+     * The job removes itself from the map when the image is rendered.
+     * Identical requests can wait for the result using addFollower().
+     * 
+     * @param runningJobs
+     * @param jobKey
+     */
+    public void setRunningJobs(ConcurrentMap<String, AsyncServletWorker> runningJobs, String jobKey) {
+        this.runningJobs = runningJobs;
+        this.jobKey = jobKey;
+    }
+
+    /**
+     * Set the ETag and modification time for the cache headers of the
+     * rendered image.
+     * 
+     * @param etag
+     * @param lastModified
+     */
+    public void setCacheHeaders(String etag, long lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
     public static long getTimeout() {
         return timeout;
     }
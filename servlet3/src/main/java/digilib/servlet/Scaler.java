@@ -28,6 +28,8 @@ package digilib.servlet;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
@@ -49,8 +51,9 @@ import digilib.conf.DigilibServletRequest;
 import digilib.image.DocuImage;
 import digilib.image.ImageJobDescription;
 import digilib.image.ImageOpException;
+import digilib.image.MemoryBudget;
+import digilib.image.RenderCache;
 import digilib.io.DocuDirCache;
-import digilib.io.DocuDirectory;
 import digilib.io.ImageInput;
 import digilib.util.DigilibJobCenter;
 
@@ -90,6 +93,12 @@ public class Scaler extends HttpServlet {
     /** Image executor */
     protected DigilibJobCenter<DocuImage> imageJobCenter;
 
+    /** RenderCache instance (may be null) */
+    protected RenderCache renderCache;
+
+    /** map of running image jobs for coalescing identical requests (may be null) */
+    protected ConcurrentMap<String, AsyncServletWorker> runningJobs;
+
     /** authentication error image file */
     public static File denyImgFile;
 
@@ -146,6 +155,14 @@ public class Scaler extends HttpServlet {
         // Executor
         imageJobCenter = (DigilibJobCenter<DocuImage>) dlConfig.getValue("servlet.worker.imageexecutor");
 
+        // RenderCache instance
+        renderCache = (RenderCache) dlConfig.getValue(DigilibServletConfiguration.RENDER_CACHE_KEY);
+
+        // coalesce identical image jobs
+        if (dlConfig.getAsBoolean("coalesce-image-jobs")) {
+            runningJobs = new ConcurrentHashMap<String, AsyncServletWorker>();
+        }
+
         // configure ServletOps
         ServletOps.setDlConfig(dlConfig);
         
@@ -160,28 +177,6 @@ public class Scaler extends HttpServlet {
         }
     }
 
-    /**
-     * Returns modification time relevant to the request for caching.
-     * 
-     * @see javax.servlet.http.HttpServlet#getLastModified(javax.servlet.http.HttpServletRequest)
-     */
-    public long getLastModified(HttpServletRequest request) {
-        accountlog.debug("GetLastModified from " + request.getRemoteAddr() + " for " + request.getQueryString());
-        long mtime = -1;
-        try {
-            // create new digilib request
-            DigilibServletRequest dlReq = new DigilibServletRequest(request, dlConfig);
-            DocuDirectory dd = dirCache.getDirectory(dlReq.getFilePath());
-            if (dd != null) {
-                mtime = dd.getDirMTime() / 1000 * 1000;
-            }
-        } catch (Exception e) {
-            logger.error("error in getLastModified: " + e.getMessage());
-        }
-        logger.debug("  returns " + mtime);
-        return mtime;
-    }
-
     /*
      * (non-Javadoc)
      * 
@@ -230,7 +225,7 @@ public class Scaler extends HttpServlet {
             throw new ServletException("NO VALID digilib CONFIGURATION!");
         }
 
-        accountlog.debug("request: " + request.getQueryString());
+        accountlog.debug("request: " + request.getQueryString() + " uri: " + request.getRequestURI());
         logger.debug("request: " + request.getQueryString());
         //logger.debug("headers: " + ServletOps.headersToString(request));
         //logger.debug("processRequest response committed=" + response.isCommitted());
@@ -304,8 +299,12 @@ public class Scaler extends HttpServlet {
                 	// mo=rawfile sends as octet-stream
                     mt = "application/octet-stream";
                 }
+                if (checkNotModified(request, response, fileToLoad, (mt == null) ? "file" : "rawfile")) {
+                    return;
+                }
                 logger.debug("Sending RAW File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), mt, null, response, logger);
+                String etag = setCacheHeaders(response, fileToLoad, (mt == null) ? "file" : "rawfile");
+                ServletOps.sendFile(fileToLoad.getFile(), mt, null, etag, request, response, logger);
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
@@ -314,31 +313,171 @@ public class Scaler extends HttpServlet {
              * send the image if it's possible without having to transform it
              */
             if (!jobTicket.isTransformRequired()) {
+                if (checkNotModified(request, response, fileToLoad, "file")) {
+                    return;
+                }
                 logger.debug("Sending File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), null, null, response, logger);
+                String etag = setCacheHeaders(response, fileToLoad, "file");
+                ServletOps.sendFile(fileToLoad.getFile(), null, null, etag, request, response, logger);
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
 
+            /*
+             * answer conditional request before rendering
+             */
+            String jobKey = jobTicket.getRenderKey();
+            logger.debug("render key: " + jobKey);
+            if (checkNotModified(request, response, fileToLoad, jobKey)) {
+                return;
+            }
+
+            /*
+             * send the image from the render cache if possible
+             */
+            if (renderCache != null && jobKey != null) {
+                RenderCache.Entry cached = renderCache.get(jobKey, fileToLoad.getFile());
+                if (cached != null) {
+                    logger.debug("Sending image from render cache.");
+                    String etag = setCacheHeaders(response, fileToLoad, jobKey);
+                    File cachedFile = cached.getFile();
+                    if (cachedFile != null && ServletOps.getOffloadPath(cachedFile) != null && cachedFile.canRead()) {
+                        // let the front-end server send the file from the disk cache
+                        ServletOps.sendFile(cachedFile, cached.getMimeType(), "", etag, request, response, logger);
+                    } else {
+                        ServletOps.sendImageData(cached.getData(), cached.getMimeType(), response, logger);
+                    }
+                    logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
+                    return;
+                }
+            }
+
+            /*
+             * check limits of the client (also for waiting on a running job)
+             */
+            String client = ServletOps.getClientKey(request);
+            DigilibJobCenter.Ticket ticket = imageJobCenter.admit(client);
+            if (ticket == null) {
+                logger.error("Client over limit: " + client);
+                response.setIntHeader("Retry-After", imageJobCenter.getRetryAfter(client));
+                response.sendError(ServletOps.SC_TOO_MANY_REQUESTS);
+                return;
+            }
+
+            /*
+             * wait for the result of an identical running job if possible
+             */
+            AsyncContext asyncCtx = null;
+            if (runningJobs != null && jobKey != null) {
+                AsyncServletWorker runningJob = runningJobs.get(jobKey);
+                if (runningJob != null) {
+                    boolean following;
+                    try {
+                        asyncCtx = request.startAsync();
+                        // the follower takes over the ticket
+                        following = runningJob.addFollower(asyncCtx, errMsgType, startTime, ticket);
+                    } catch (RuntimeException e) {
+                        ticket.release();
+                        throw e;
+                    }
+                    if (following) {
+                        logger.debug("Waiting for identical running job.");
+                        return;
+                    }
+                }
+            }
+
             /*
              * check load of workers
              */
             if (imageJobCenter.isBusy()) {
+                ticket.release();
                 logger.error("Servlet overloaded!");
                 response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                if (asyncCtx != null) {
+                    asyncCtx.complete();
+                }
                 return;
             }
 
+            /*
+             * check memory of queued jobs (the job reserves its memory when it starts)
+             */
+            MemoryBudget.Reservation admission = null;
+            MemoryBudget memoryBudget = MemoryBudget.getInstance();
+            if (memoryBudget != null) {
+                admission = memoryBudget.admit(jobTicket.getEstimatedMemory());
+                if (admission == null) {
+                    ticket.release();
+                    logger.error("Servlet out of memory budget!");
+                    response.setIntHeader("Retry-After", memoryBudget.getRetryAfter());
+                    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    if (asyncCtx != null) {
+                        asyncCtx.complete();
+                    }
+                    return;
+                }
+            }
+
             /*
              * dispatch worker job to be done asynchronously
              */
-            AsyncContext asyncCtx = request.startAsync();
-            // create job
-            AsyncServletWorker job = new AsyncServletWorker(dlConfig, jobTicket, asyncCtx, errMsgType, startTime);
-            // AsyncServletWorker is its own AsyncListener
-            asyncCtx.addListener(job);
-            // submit job
-            imageJobCenter.submit(job);
+            AsyncServletWorker job = null;
+            boolean submitted = false;
+            try {
+                if (asyncCtx == null) {
+                    asyncCtx = request.startAsync();
+                }
+                // create job
+                job = new AsyncServletWorker(dlConfig, jobTicket, asyncCtx, errMsgType, startTime);
+                job.setMemoryAdmission(admission);
+                if (runningJobs != null && jobKey != null) {
+                    // register as running job
+                    AsyncServletWorker runningJob = runningJobs.putIfAbsent(jobKey, job);
+                    if (runningJob != null) {
+                        // the follower takes over the ticket
+                        if (runningJob.addFollower(asyncCtx, errMsgType, startTime, ticket)) {
+                            logger.debug("Waiting for identical running job.");
+                            // followers need no memory
+                            if (admission != null) {
+                                admission.release();
+                            }
+                            // nothing else to release
+                            submitted = true;
+                            return;
+                        }
+                        // the other job is finishing
+                        runningJobs.put(jobKey, job);
+                    }
+                    job.setRunningJobs(runningJobs, jobKey);
+                }
+                if (jobKey != null) {
+                    // modification time before rendering
+                    long sourceMTime = fileToLoad.getFile().lastModified();
+                    if (renderCache != null) {
+                        // store result in the render cache
+                        job.setRenderCache(renderCache, jobKey, sourceMTime);
+                    }
+                    // set cache headers on the rendered image
+                    job.setCacheHeaders(getEtag(fileToLoad, jobKey), sourceMTime);
+                }
+                // AsyncServletWorker is its own AsyncListener
+                asyncCtx.addListener(job);
+                // submit job
+                imageJobCenter.submit(job, ticket);
+                submitted = true;
+            } finally {
+                if (!submitted) {
+                    // the job didn't take over the ticket and the admission
+                    ticket.release();
+                    if (admission != null) {
+                        admission.release();
+                    }
+                    if (job != null && runningJobs != null && jobKey != null) {
+                        runningJobs.remove(jobKey, job);
+                    }
+                }
+            }
             // we're done for now
 
         } catch (ImageOpException e) {
@@ -357,6 +496,65 @@ public class Scaler extends HttpServlet {
         }
     }
 
+    /**
+     * Returns the ETag for the variant of the input file.
+     * 
+     * Returns null if the input is not a file.
+     * 
+     * @param input
+     * @param variant
+     * @return
+     */
+    protected static String getEtag(ImageInput input, String variant) {
+        if (input == null || !input.hasFile() || variant == null) {
+            return null;
+        }
+        return ServletOps.makeEtag(ServletOps.getFileIdentity(input.getFile()) + "|" + variant);
+    }
+
+    /**
+     * Sends a 304 Not Modified response if the client has a current copy of
+     * the variant of the input file.
+     * 
+     * Returns true if the response has been sent.
+     * 
+     * @param request
+     * @param response
+     * @param input
+     * @param variant
+     * @return
+     */
+    protected boolean checkNotModified(HttpServletRequest request, HttpServletResponse response,
+            ImageInput input, String variant) {
+        String etag = getEtag(input, variant);
+        if (etag == null) {
+            return false;
+        }
+        long mtime = input.getFile().lastModified();
+        int maxAge = ServletOps.getImageCacheMaxAge();
+        return ServletOps.sendNotModified(request, response, etag, mtime, maxAge, logger);
+    }
+
+    /**
+     * Sets the cache headers for the variant of the input file.
+     * 
+     * Returns the ETag or null if the input is not a file.
+     * 
+     * @param response
+     * @param input
+     * @param variant
+     * @return
+     */
+    protected String setCacheHeaders(HttpServletResponse response, ImageInput input, String variant) {
+        String etag = getEtag(input, variant);
+        if (etag == null) {
+            return null;
+        }
+        long mtime = input.getFile().lastModified();
+        ServletOps.setCacheHeaders(response, etag, mtime, ServletOps.getImageCacheMaxAge());
+        return etag;
+    }
+
     /**
      * Sends an error to the client as text or image.
      * 
@@ -163,12 +163,12 @@ public class Texter extends HttpServlet {
 			// try default directory
 			TextFile f = getTextFile(dlRequest, defaultDir);
 			if (f != null) {
-				ServletOps.sendFile(f.getFile(), null, null, response, logger);
+				ServletOps.sendFile(f.getFile(), null, null, null, request, response, logger);
 			} else {
 				// try without default directory
 				f = getTextFile(dlRequest, null);
 				if (f != null) {
-					ServletOps.sendFile(f.getFile(), null, null, response, logger);
+					ServletOps.sendFile(f.getFile(), null, null, null, request, response, logger);
 				} else {
 					response.sendError(HttpServletResponse.SC_NOT_FOUND, "Text-File not found!");
 					//ServletOps.htmlMessage("No Text-File!", response);
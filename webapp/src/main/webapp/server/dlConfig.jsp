@@ -21,13 +21,26 @@
   Author: Robert Casties (robcast@berlios.de)
   --%><%@page language="java" 
   import="digilib.util.DigilibJobCenter,
+          digilib.util.ClientLimiter,
+          digilib.util.ExecutionGovernor,
+          digilib.util.PoolSizeController,
+          digilib.auth.AuthzDecisionCache,
+          digilib.auth.IpOpenIdAuthnOps,
+          digilib.auth.OpenIdAuthnOps,
           digilib.servlet.DocumentBean,
+          digilib.servlet.CacheWarmer,
           digilib.conf.DigilibServletConfiguration,
           digilib.conf.DigilibServletRequest,
           digilib.io.DocuDirCache,
+          digilib.io.DirectoryWatcher,
           digilib.image.DocuImage,
           digilib.image.DocuImageFactory,
-          java.io.File"%>
+          digilib.image.MemoryBudget,
+          digilib.image.RenderCache,
+          digilib.io.ImageInfoIndex,
+          digilib.meta.MetaIndex,
+          java.io.File,
+          java.util.Map"%>
 <%!
 // authentication stuff - robert
 // -----------------------------
@@ -54,8 +67,32 @@ DigilibServletRequest dlRequest = new DigilibServletRequest(request);
 dlRequest.setValue("pt", docBean.getNumPages(dlRequest));
 // dir cache
 DocuDirCache dirCache = (DocuDirCache) dlConfig.getValue("servlet.dir.cache");
+// directory watcher
+DirectoryWatcher dirWatcher = (DirectoryWatcher) dlConfig.getValue("servlet.dir.watcher");
 // image JobCenter
 DigilibJobCenter<DocuImage> imageProcessor =  (DigilibJobCenter<DocuImage>) dlConfig.getValue("servlet.worker.imageexecutor");
+// execution governor
+ExecutionGovernor governor = (ExecutionGovernor) dlConfig.getValue("servlet.execution.governor");
+// memory budget
+MemoryBudget memoryBudget = (MemoryBudget) dlConfig.getValue("servlet.memory.budget");
+// render cache
+RenderCache renderCache = (RenderCache) dlConfig.getValue("servlet.render.cache");
+// cache warmer
+CacheWarmer cacheWarmer = (CacheWarmer) dlConfig.getValue("servlet.cache.warmer");
+// image index
+ImageInfoIndex imageIndex = (ImageInfoIndex) dlConfig.getValue("servlet.image.index");
+// authentication token cache
+Object authnOps = dlConfig.getValue("servlet.authn.op");
+OpenIdAuthnOps openIdAuthnOps = null;
+if (authnOps instanceof OpenIdAuthnOps) {
+    openIdAuthnOps = (OpenIdAuthnOps) authnOps;
+} else if (authnOps instanceof IpOpenIdAuthnOps) {
+    openIdAuthnOps = ((IpOpenIdAuthnOps) authnOps).getOpenIdAuthnOps();
+}
+// authorization decision cache
+AuthzDecisionCache authzCache = (AuthzDecisionCache) dlConfig.getValue("servlet.authz.cache");
+// metadata index
+MetaIndex metaIndex = (MetaIndex) dlConfig.getValue("servlet.meta.index");
 %>
 
 <html>
@@ -127,7 +164,108 @@ DigilibJobCenter<DocuImage> imageProcessor =  (DigilibJobCenter<DocuImage>) dlCo
     <td>currently running</td><td><b><%= imageProcessor.getRunningJobs() %></b></td>
     <td></td>
   </tr>
+  <tr>
+    <td>threads</td><td><b><%= imageProcessor.getMaxThreads() %></b></td>
+<%
+  if (imageProcessor.isAdaptive()) {
+    PoolSizeController sizer = imageProcessor.getSizer();
+%>
+    <td>adaptive (<%= sizer.getMinSize() %> to <%= sizer.getMaxSize() %>, average run time <%= imageProcessor.getAverageRunTime() %> ms,
+      gradient <%= Math.round(sizer.getLastGradient() * 100) / 100d %>, CPU load <%= Math.round(sizer.getLastCpuLoad() * 100) %>%)</td>
+<%
+  } else {
+%>
+    <td>fixed</td>
+<%
+  }
+%>
+  </tr>
+  <tr>
+    <td>scheduling</td><td><b><%= imageProcessor.isCostScheduling() ? "by cost" : "FIFO" %></b></td>
+    <td><%= imageProcessor.isFairQueuing() ? "in turns by client" : "" %></td>
+  </tr>
+<%
+  ClientLimiter clientLimiter = imageProcessor.getClientLimiter();
+  if (clientLimiter != null) {
+%>
+  <tr>
+    <td>clients</td><td><b><%= clientLimiter.getClients() %></b></td>
+    <td>(limit <%= clientLimiter.getMaxJobs() %> jobs, <%= clientLimiter.getRate() %> jobs/s per client)</td>
+  </tr>
+  <tr>
+    <td>rejected</td><td><b><%= clientLimiter.getRejected() %></b></td>
+    <td>jobs over client limits</td>
+  </tr>
+<%
+  }
+%>
+<%
+  for (Map.Entry<String, DigilibJobCenter.QueueStats> qs : imageProcessor.getQueueStats().entrySet()) {
+%>
+  <tr>
+    <td><%= qs.getKey() %> jobs waited</td><td><b><%= qs.getValue().getAverageWait() %></b></td>
+    <td>ms on average (max <%= qs.getValue().getMaxWait() %> ms, <%= qs.getValue().getJobs() %> jobs)</td>
+  </tr>
+<%
+  }
+%>
+</table>
+
+<h2>CPU governor</h2>
+
+<%
+  if (governor != null) {
+%>
+<table>
+  <tr>
+    <td>running</td><td><b><%= governor.getRunning() %></b></td>
+    <td>jobs (limit <%= governor.getMaxJobs() %>)</td>
+  </tr>
+<%
+    for (ExecutionGovernor.Subsystem sub : governor.getSubsystems()) {
+%>
+  <tr>
+    <td><%= sub.getName() %></td><td><b><%= Math.round(sub.getShare() * 100) %>%</b></td>
+    <td>of run time (weight <%= sub.getWeight() %>, <%= sub.getRunning() %> running, <%= sub.getWaiting() %> waiting, <%= sub.getJobs() %> jobs)</td>
+  </tr>
+<%
+    }
+%>
+</table>
+<%
+  } else {
+%>
+<p>not used</p>
+<%
+  }
+%>
+
+<h2>Memory budget</h2>
+
+<%
+  if (memoryBudget != null) {
+%>
+<table>
+  <tr>
+    <td>reserved</td><td><b><%= memoryBudget.getUsed() / (1024 * 1024) %></b></td>
+    <td>MB (limit <%= memoryBudget.getLimit() / (1024 * 1024) %> MB)</td>
+  </tr>
+  <tr>
+    <td>admitted</td><td><b><%= memoryBudget.getAdmitted() %></b></td>
+    <td>jobs (<%= memoryBudget.getWaited() %> had to wait)</td>
+  </tr>
+  <tr>
+    <td>rejected</td><td><b><%= memoryBudget.getRejected() %></b></td>
+    <td>jobs</td>
+  </tr>
 </table>
+<%
+  } else {
+%>
+<p>not used</p>
+<%
+  }
+%>
 
 <h2>Webapp</h2>
 
@@ -156,8 +294,207 @@ DigilibJobCenter<DocuImage> imageProcessor =  (DigilibJobCenter<DocuImage>) dlCo
 	<td>misses</td><td><b><%= dirCache.getMisses() %></b></td>
     <td></td>
   </tr>
+  <tr>
+	<td>evictions</td><td><b><%= dirCache.getEvictions() %></b></td>
+    <td>directories (limit <%= dirCache.getMaxDirs() %> directories, <%= dirCache.getMaxFiles() %> files)</td>
+  </tr>
+  <tr>
+	<td>restored</td><td><b><%= dirCache.getRestored() %></b></td>
+    <td>directories from snapshot (<%= dirCache.getSnapshotSize() %> not requested yet)</td>
+  </tr>
+<%
+  if (dirWatcher != null) {
+%>
+  <tr>
+	<td>watched</td><td><b><%= dirWatcher.getSize() %></b></td>
+    <td>directories</td>
+  </tr>
+  <tr>
+	<td>invalidations</td><td><b><%= dirWatcher.getInvalidations() %></b></td>
+    <td></td>
+  </tr>
+<%
+  }
+%>
 </table>
 
+<h2>Render cache</h2>
+
+<%
+  if (renderCache != null) {
+%>
+<table>
+  <tr>
+	<td>memory</td><td><b><%= renderCache.getMemoryUsed() %></b></td>
+    <td>bytes used of <%= renderCache.getMemoryLimit() %> in <%= renderCache.getMemoryEntries() %> images</td>
+  </tr>
+  <tr>
+	<td>disk</td><td><b><%= renderCache.getDiskUsed() %></b></td>
+    <td>bytes used of <%= renderCache.getDiskLimit() %> in <%= renderCache.getDiskDir() %></td>
+  </tr>
+  <tr>
+	<td>memory hits</td><td><b><%= renderCache.getMemoryHits() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+	<td>disk hits</td><td><b><%= renderCache.getDiskHits() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+	<td>misses</td><td><b><%= renderCache.getMisses() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+	<td>evictions</td><td><b><%= renderCache.getMemoryEvictions() %></b></td>
+    <td>from memory</td>
+  </tr>
+  <tr>
+	<td></td><td><b><%= renderCache.getDiskEvictions() %></b></td>
+    <td>from disk</td>
+  </tr>
+  <tr>
+	<td>invalidations</td><td><b><%= renderCache.getInvalidations() %></b></td>
+    <td>source file changed</td>
+  </tr>
+</table>
+<%
+  } else {
+%>
+<p>not used</p>
+<%
+  }
+%>
+
+<h2>Cache warming</h2>
+
+<%
+  if (cacheWarmer != null) {
+%>
+<table>
+  <tr>
+	<td>replayed</td><td><b><%= cacheWarmer.getReplayed() %></b></td>
+    <td>requests (<%= cacheWarmer.getQueued() %> queued)</td>
+  </tr>
+  <tr>
+	<td>rendered</td><td><b><%= cacheWarmer.getRendered() %></b></td>
+    <td>images</td>
+  </tr>
+  <tr>
+	<td>failed</td><td><b><%= cacheWarmer.getFailed() %></b></td>
+    <td>requests</td>
+  </tr>
+</table>
+<%
+  } else {
+%>
+<p>not used</p>
+<%
+  }
+%>
+
+<h2>Image index</h2>
+
+<%
+  if (imageIndex != null) {
+%>
+<table>
+  <tr>
+	<td>directories</td><td><b><%= imageIndex.getSize() %></b></td>
+    <td>directory indexes in memory</td>
+  </tr>
+  <tr>
+	<td>hits</td><td><b><%= imageIndex.getHits() %></b></td>
+    <td>images found in the index</td>
+  </tr>
+  <tr>
+	<td>misses</td><td><b><%= imageIndex.getMisses() %></b></td>
+    <td>images identified</td>
+  </tr>
+</table>
+<%
+  } else {
+%>
+<p>not used</p>
+<%
+  }
+%>
+
+<h2>Metadata index</h2>
+
+<%
+  if (metaIndex != null) {
+%>
+<table>
+  <tr>
+	<td>size</td><td><b><%= metaIndex.getSize() %></b></td>
+    <td>metadata files</td>
+  </tr>
+  <tr>
+	<td></td><td><b><%= metaIndex.getNumFiles() %></b></td>
+    <td>files with metadata</td>
+  </tr>
+  <tr>
+	<td>parsed</td><td><b><%= metaIndex.getParsed() %></b></td>
+    <td>metadata files since the start</td>
+  </tr>
+</table>
+<%
+  } else {
+%>
+<p>not used</p>
+<%
+  }
+%>
+
+<h2>Authorization cache</h2>
+
+<%
+  if (authzCache != null || openIdAuthnOps != null) {
+%>
+<table>
+<%
+    if (openIdAuthnOps != null) {
+%>
+  <tr>
+	<td>tokens</td><td><b><%= openIdAuthnOps.getTokenCacheSize() %></b></td>
+    <td>verified tokens in cache</td>
+  </tr>
+  <tr>
+	<td>token hits</td><td><b><%= openIdAuthnOps.getTokenCacheHits() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+	<td>verifications</td><td><b><%= openIdAuthnOps.getTokenVerifications() %></b></td>
+    <td>tokens</td>
+  </tr>
+<%
+    }
+    if (authzCache != null) {
+%>
+  <tr>
+	<td>size</td><td><b><%= authzCache.getSize() %></b></td>
+    <td>decisions (limit <%= authzCache.getMaxSize() %>)</td>
+  </tr>
+  <tr>
+	<td>hits</td><td><b><%= authzCache.getHits() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+	<td>misses</td><td><b><%= authzCache.getMisses() %></b></td>
+    <td></td>
+  </tr>
+<%
+    }
+%>
+</table>
+<%
+  } else {
+%>
+<p>not used</p>
+<%
+  }
+%>
+
 <h2>JVM configuration</h2>
 
 <table>
@@ -0,0 +1,151 @@
+package digilib.image;
+
+/*
+ * #%L
+ * IdentifyBenchmark -- compares image identification methods
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import digilib.io.FileOps;
+import digilib.io.FileOps.FileClass;
+import digilib.io.ImageFile;
+import digilib.util.ImageSize;
+
+/**
+ * IdentifyBenchmark -- compares the ImageHeaderIdentifier with the
+ * identification by ImageInfo and ImageIO on a corpus of image files.
+ *
+ * Only runs if the system property digilib.benchmark.dir points to a
+ * directory with images (searched recursively), e.g.
+ *
+ * <pre>
+ * mvn test -Dtest=IdentifyBenchmark -Ddigilib.benchmark.dir=/docuserver/images
+ * </pre>
+ *
+ * For cold cache numbers the file system cache should be dropped before
+ * each run and digilib.benchmark.method set to "header" or "docuimage".
+ */
+public class IdentifyBenchmark {
+
+    /** maximum number of files from the corpus */
+    public static int maxFiles = Integer.getInteger("digilib.benchmark.files", 10000);
+
+    @Test
+    public void compareIdentify() throws Exception {
+        String dirName = System.getProperty("digilib.benchmark.dir");
+        assumeTrue(dirName != null);
+        List<File> files = new ArrayList<File>();
+        collectImages(new File(dirName), files);
+        assumeTrue(!files.isEmpty());
+        String method = System.getProperty("digilib.benchmark.method", "both");
+        System.out.println("IdentifyBenchmark: " + files.size() + " files in " + dirName);
+
+        ImageSize[] headerSizes = null;
+        ImageSize[] docuImageSizes = null;
+        if (!method.equals("docuimage")) {
+            headerSizes = runHeader(files);
+        }
+        if (!method.equals("header")) {
+            docuImageSizes = runDocuImage(files);
+        }
+        if (headerSizes != null && docuImageSizes != null) {
+            // compare results
+            int unknown = 0;
+            for (int i = 0; i < files.size(); ++i) {
+                if (headerSizes[i] == null || docuImageSizes[i] == null) {
+                    ++unknown;
+                    continue;
+                }
+                assertEquals("size of " + files.get(i), String.valueOf(docuImageSizes[i]),
+                        String.valueOf(headerSizes[i]));
+            }
+            System.out.println("IdentifyBenchmark: " + unknown + " files not identified by both methods");
+        }
+    }
+
+    protected ImageSize[] runHeader(List<File> files) throws Exception {
+        ImageSize[] sizes = new ImageSize[files.size()];
+        long start = System.nanoTime();
+        for (int i = 0; i < files.size(); ++i) {
+            sizes[i] = ImageHeaderIdentifier.getSize(files.get(i));
+        }
+        report("ImageHeaderIdentifier", files.size(), System.nanoTime() - start);
+        return sizes;
+    }
+
+    protected ImageSize[] runDocuImage(List<File> files) throws Exception {
+        ImageSize[] sizes = new ImageSize[files.size()];
+        boolean enabled = ImageHeaderIdentifier.isEnabled();
+        ImageHeaderIdentifier.setEnabled(false);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < files.size(); ++i) {
+                ImageFile img = new ImageFile(files.get(i), null, null);
+                DocuImage di = new ImageLoaderDocuImage();
+                try {
+                    if (di.identify(img) != null) {
+                        sizes[i] = img.getSize();
+                    }
+                } catch (IOException e) {
+                    // not identified
+                }
+            }
+            report("ImageLoaderDocuImage", files.size(), System.nanoTime() - start);
+        } finally {
+            ImageHeaderIdentifier.setEnabled(enabled);
+        }
+        return sizes;
+    }
+
+    protected void report(String name, int n, long nanos) {
+        System.out.println(String.format("IdentifyBenchmark: %-22s %6d files in %8.1f ms (%.3f ms/file)", name, n,
+                nanos / 1e6, nanos / 1e6 / n));
+    }
+
+    protected void collectImages(File dir, List<File> files) {
+        File[] fl = dir.listFiles();
+        if (fl == null) {
+            return;
+        }
+        for (File f : fl) {
+            if (files.size() >= maxFiles) {
+                return;
+            }
+            if (f.isDirectory()) {
+                collectImages(f, files);
+            } else if (FileOps.classForFilename(f.getName()) == FileClass.IMAGE) {
+                files.add(f);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+package digilib.image;
+
+/*
+ * #%L
+ * MemoryBudgetTest -- tests for the memory budget of image jobs
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * MemoryBudgetTest -- tests for reserve and release of MemoryBudget
+ */
+public class MemoryBudgetTest {
+
+    @Test
+    public void testReserveRelease() {
+        MemoryBudget budget = new MemoryBudget(1000, 0);
+        MemoryBudget.Reservation r1 = budget.reserve(600);
+        assertNotNull(r1);
+        assertEquals(600, budget.getUsed());
+        assertNull(budget.reserve(600));
+        MemoryBudget.Reservation r2 = budget.reserve(400);
+        assertNotNull(r2);
+        assertEquals(1000, budget.getUsed());
+        r1.release();
+        assertEquals(400, budget.getUsed());
+        // releasing twice does nothing
+        r1.release();
+        assertEquals(400, budget.getUsed());
+        r2.release();
+        assertEquals(0, budget.getUsed());
+        assertEquals(2, budget.getAdmitted());
+        assertEquals(1, budget.getRejected());
+    }
+
+    @Test
+    public void testOversized() {
+        MemoryBudget budget = new MemoryBudget(1000, 0);
+        // oversized jobs are admitted alone
+        MemoryBudget.Reservation r1 = budget.reserve(5000);
+        assertNotNull(r1);
+        assertEquals(1000, r1.getBytes());
+        assertNull(budget.reserve(1));
+        r1.release();
+        assertNotNull(budget.reserve(1));
+    }
+
+    @Test
+    public void testTryReserveDoesNotWait() {
+        MemoryBudget budget = new MemoryBudget(1000, 10000);
+        assertNotNull(budget.tryReserve(1000));
+        long start = System.currentTimeMillis();
+        assertNull(budget.tryReserve(1));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, budget.getRejected());
+    }
+
+    @Test
+    public void testWaitForRelease() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(1000, 10000);
+        final MemoryBudget.Reservation r1 = budget.reserve(1000);
+        Thread releaser = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // release anyway
+                }
+                r1.release();
+            }
+        };
+        releaser.start();
+        MemoryBudget.Reservation r2 = budget.reserve(500);
+        assertNotNull(r2);
+        assertEquals(500, budget.getUsed());
+        assertEquals(1, budget.getWaited());
+        releaser.join();
+    }
+
+    @Test
+    public void testWaitTimeout() {
+        MemoryBudget budget = new MemoryBudget(1000, 50);
+        assertNotNull(budget.reserve(1000));
+        assertNull(budget.reserve(1));
+        assertEquals(1, budget.getRejected());
+    }
+
+    @Test
+    public void testWaitInOrder() throws InterruptedException {
+        final MemoryBudget budget = new MemoryBudget(1000, 10000);
+        MemoryBudget.Reservation r1 = budget.reserve(500);
+        final MemoryBudget.Reservation[] big = new MemoryBudget.Reservation[1];
+        Thread waiter = new Thread() {
+            public void run() {
+                // oversized job waits for the whole budget
+                big[0] = budget.reserve(5000);
+            }
+        };
+        waiter.start();
+        while (budget.awaited == 0) {
+            Thread.sleep(10);
+        }
+        // smaller jobs don't overtake the waiting job
+        assertNull(budget.tryReserve(100));
+        r1.release();
+        waiter.join();
+        assertNotNull(big[0]);
+        assertEquals(1000, budget.getUsed());
+        big[0].release();
+        assertNotNull(budget.tryReserve(100));
+    }
+
+    @Test
+    public void testAdmit() {
+        MemoryBudget budget = new MemoryBudget(1000, 0);
+        MemoryBudget.Reservation r1 = budget.reserve(1000);
+        // queued jobs don't use the budget
+        MemoryBudget.Reservation[] queued = new MemoryBudget.Reservation[MemoryBudget.OVERLOAD_FACTOR - 1];
+        for (int i = 0; i < queued.length; i++) {
+            queued[i] = budget.admit(1000);
+            assertNotNull(queued[i]);
+        }
+        assertEquals(1000, budget.getUsed());
+        assertNull(budget.admit(1));
+        // started job releases its admission
+        queued[0].release();
+        queued[0].release();
+        assertNotNull(budget.admit(1));
+        r1.release();
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void testDisposeReleases() {
+        MemoryBudget budget = new MemoryBudget(1000, 0);
+        DocuImage img = new ImageLoaderDocuImage();
+        img.setHint(MemoryBudget.RESERVATION_HINT, budget.reserve(800));
+        assertEquals(800, budget.getUsed());
+        img.dispose();
+        assertEquals(0, budget.getUsed());
+        img.dispose();
+        assertEquals(0, budget.getUsed());
+    }
+
+}
@@ -0,0 +1,166 @@
+package digilib.image;
+
+/*
+ * #%L
+ * RenderCacheTest -- tests for the cache of rendered images
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * RenderCacheTest -- tests for invalidation and LRU accounting of RenderCache
+ */
+public class RenderCacheTest {
+
+    /** size of the test data */
+    private static final int DATA_SIZE = 1000;
+
+    /** memory size of one entry */
+    private static final long ENTRY_SIZE = DATA_SIZE + RenderCache.ENTRY_OVERHEAD;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File source;
+
+    @Before
+    public void createSource() throws IOException {
+        source = tmp.newFile("source.jpg");
+        source.setLastModified(1500000000000L);
+    }
+
+    protected static byte[] data(int fill) {
+        byte[] data = new byte[DATA_SIZE];
+        Arrays.fill(data, (byte) fill);
+        return data;
+    }
+
+    @Test
+    public void testMemoryHit() {
+        RenderCache cache = new RenderCache(10 * ENTRY_SIZE, null, 0);
+        assertNull(cache.get("a", source));
+        cache.put("a", source.lastModified(), "image/jpeg", data(1));
+        RenderCache.Entry e = cache.get("a", source);
+        assertNotNull(e);
+        assertEquals("image/jpeg", e.getMimeType());
+        assertArrayEquals(data(1), e.getData());
+        assertEquals(1, cache.getMemoryHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(ENTRY_SIZE, cache.getMemoryUsed());
+    }
+
+    @Test
+    public void testInvalidation() {
+        RenderCache cache = new RenderCache(10 * ENTRY_SIZE, null, 0);
+        cache.put("a", source.lastModified(), "image/jpeg", data(1));
+        // source changes
+        source.setLastModified(source.lastModified() + 2000);
+        assertNull(cache.get("a", source));
+        assertEquals(1, cache.getInvalidations());
+        assertEquals(0, cache.getMemoryEntries());
+        assertEquals(0, cache.getMemoryUsed());
+    }
+
+    @Test
+    public void testStaleRender() {
+        RenderCache cache = new RenderCache(10 * ENTRY_SIZE, null, 0);
+        // rendered from the file before it changed
+        long before = source.lastModified();
+        source.setLastModified(before + 2000);
+        cache.put("a", before, "image/jpeg", data(1));
+        assertNull(cache.get("a", source));
+        assertEquals(1, cache.getInvalidations());
+    }
+
+    @Test
+    public void testLruEviction() {
+        RenderCache cache = new RenderCache(4 * ENTRY_SIZE, null, 0);
+        long mtime = source.lastModified();
+        cache.put("a", mtime, "image/jpeg", data(1));
+        cache.put("b", mtime, "image/jpeg", data(2));
+        cache.put("c", mtime, "image/jpeg", data(3));
+        cache.put("d", mtime, "image/jpeg", data(4));
+        // use a so b is the least recently used
+        assertNotNull(cache.get("a", source));
+        cache.put("e", mtime, "image/jpeg", data(5));
+        assertEquals(1, cache.getMemoryEvictions());
+        assertEquals(4, cache.getMemoryEntries());
+        assertEquals(4 * ENTRY_SIZE, cache.getMemoryUsed());
+        assertNull(cache.get("b", source));
+        assertNotNull(cache.get("a", source));
+        assertNotNull(cache.get("e", source));
+    }
+
+    @Test
+    public void testReplaceEntry() {
+        RenderCache cache = new RenderCache(4 * ENTRY_SIZE, null, 0);
+        long mtime = source.lastModified();
+        cache.put("a", mtime, "image/jpeg", data(1));
+        cache.put("a", mtime, "image/png", data(2));
+        assertEquals(1, cache.getMemoryEntries());
+        assertEquals(ENTRY_SIZE, cache.getMemoryUsed());
+        assertEquals("image/png", cache.get("a", source).getMimeType());
+    }
+
+    @Test
+    public void testOversizedEntry() {
+        // entries over a quarter of the budget are not kept in memory
+        RenderCache cache = new RenderCache(3 * ENTRY_SIZE, null, 0);
+        cache.put("a", source.lastModified(), "image/jpeg", data(1));
+        assertEquals(0, cache.getMemoryEntries());
+        assertEquals(0, cache.getMemoryUsed());
+    }
+
+    @Test
+    public void testDiskTier() throws IOException {
+        File dir = tmp.newFolder("cache");
+        RenderCache cache = new RenderCache(0, dir, 100 * ENTRY_SIZE);
+        cache.put("a", source.lastModified(), "image/jpeg", data(1));
+        assertNotNull(cache.get("a", source));
+        assertEquals(1, cache.getDiskHits());
+        // a new instance finds the entry on disk
+        RenderCache cache2 = new RenderCache(0, dir, 100 * ENTRY_SIZE);
+        RenderCache.Entry e = cache2.get("a", source);
+        assertNotNull(e);
+        assertArrayEquals(data(1), e.getData());
+        assertEquals(cache.getDiskUsed(), cache2.getDiskUsed());
+        // source changes
+        source.setLastModified(source.lastModified() + 2000);
+        assertNull(cache2.get("a", source));
+        assertEquals(1, cache2.getInvalidations());
+        assertEquals(0, cache2.getDiskUsed());
+    }
+
+}
@@ -0,0 +1,264 @@
+package digilib.io;
+
+/*
+ * #%L
+ * DirectoryScanBenchmark -- compares directory reading methods
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import digilib.conf.DigilibConfiguration;
+import digilib.io.FileOps.FileClass;
+import digilib.meta.DirMeta;
+import digilib.meta.FileMeta;
+import digilib.meta.IndexMetaDirMeta;
+import digilib.meta.IndexMetaFileMeta;
+import digilib.meta.MetaFactory;
+import digilib.util.ImageSize;
+
+/**
+ * DirectoryScanBenchmark -- compares reading a large directory with scaled
+ * directories by BaseDirDocuDirectory with the previous method (listFiles
+ * and binary search for each scaled file).
+ *
+ * Only runs if the system property digilib.benchmark.scandir is set to a
+ * directory where the synthetic image directories can be created, e.g.
+ *
+ * <pre>
+ * mvn test -Dtest=DirectoryScanBenchmark -Ddigilib.benchmark.scandir=/tmp/dlscan
+ * </pre>
+ *
+ * The number of files can be set with digilib.benchmark.scanfiles (default
+ * 50000).
+ *
+ * compareHeap compares the heap used by BaseDirDocuDirectory and
+ * CompactDocuDirectory for the same directory with identified images.
+ */
+public class DirectoryScanBenchmark {
+
+    public static int numFiles = Integer.getInteger("digilib.benchmark.scanfiles", 50000);
+
+    public static String[] baseDirs = { "images", "scaled/large", "scaled/small", "scaled/thumb" };
+
+    public static String dirName = "bench";
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void compareReadDir() throws Exception {
+        String benchDir = System.getProperty("digilib.benchmark.scandir");
+        assumeTrue(benchDir != null);
+        File root = new File(benchDir);
+        String[] baseDirNames = createDirs(root);
+
+        DigilibConfiguration dlConfig = new DigilibConfiguration();
+        dlConfig.newParameter("basedir-list", baseDirNames, null, 'f');
+        DocuDirectoryFactory.setDigilibConfig(dlConfig);
+        DocuDirectoryFactory.setDocuDirectoryClass((Class<DocuDirectory>) (Class<?>) BaseDirDocuDirectory.class);
+        MetaFactory.setDirMetaClass((Class<DirMeta>) (Class<?>) IndexMetaDirMeta.class);
+        MetaFactory.setFileMetaClass((Class<FileMeta>) (Class<?>) IndexMetaFileMeta.class);
+
+        for (int run = 0; run < 5; ++run) {
+            // previous method
+            long start = System.nanoTime();
+            List<ImageFileSet> oldList = readDirOld(baseDirNames);
+            report("listFiles/binarySearch", System.nanoTime() - start);
+
+            // sequential scan
+            DirectoryScanner.setThreads(0);
+            start = System.nanoTime();
+            DocuDirectory dd = DocuDirectoryFactory.getDocuDirectoryInstance(dirName, FileClass.IMAGE);
+            dd.readDir();
+            report("DirectoryStream/merge", System.nanoTime() - start);
+
+            // parallel scan
+            DirectoryScanner.setThreads(baseDirNames.length);
+            start = System.nanoTime();
+            DocuDirectory pdd = DocuDirectoryFactory.getDocuDirectoryInstance(dirName, FileClass.IMAGE);
+            pdd.readDir();
+            report("DirectoryStream/merge/parallel", System.nanoTime() - start);
+            DirectoryScanner.shutdown();
+
+            // compare results
+            assertEquals(oldList.size(), dd.size());
+            assertEquals(oldList.size(), pdd.size());
+            for (int i = 0; i < oldList.size(); ++i) {
+                assertEquals(getNames(oldList.get(i)), getNames((ImageSet) dd.get(i)));
+                assertEquals(getNames(oldList.get(i)), getNames((ImageSet) pdd.get(i)));
+            }
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void compareHeap() throws Exception {
+        String benchDir = System.getProperty("digilib.benchmark.scandir");
+        assumeTrue(benchDir != null);
+        File root = new File(benchDir);
+        String[] baseDirNames = createDirs(root);
+
+        DigilibConfiguration dlConfig = new DigilibConfiguration();
+        dlConfig.newParameter("basedir-list", baseDirNames, null, 'f');
+        DocuDirectoryFactory.setDigilibConfig(dlConfig);
+        MetaFactory.setDirMetaClass((Class<DirMeta>) (Class<?>) IndexMetaDirMeta.class);
+        MetaFactory.setFileMetaClass((Class<FileMeta>) (Class<?>) IndexMetaFileMeta.class);
+        DirectoryScanner.setThreads(0);
+
+        DocuDirectoryFactory.setDocuDirectoryClass((Class<DocuDirectory>) (Class<?>) BaseDirDocuDirectory.class);
+        long before = usedHeap();
+        DocuDirectory dd = DocuDirectoryFactory.getDocuDirectoryInstance(dirName, FileClass.IMAGE);
+        dd.readDir();
+        setSizes(dd);
+        long baseHeap = usedHeap() - before;
+        reportHeap("BaseDirDocuDirectory", baseHeap);
+
+        DocuDirectoryFactory.setDocuDirectoryClass((Class<DocuDirectory>) (Class<?>) CompactDocuDirectory.class);
+        before = usedHeap();
+        DocuDirectory cdd = DocuDirectoryFactory.getDocuDirectoryInstance(dirName, FileClass.IMAGE);
+        cdd.readDir();
+        setSizes(cdd);
+        long compactHeap = usedHeap() - before;
+        reportHeap("CompactDocuDirectory", compactHeap);
+
+        // compare results
+        assertEquals(dd.size(), cdd.size());
+        for (int i = 0; i < dd.size(); ++i) {
+            ImageSet is = (ImageSet) dd.get(i);
+            ImageSet cis = (ImageSet) cdd.get(i);
+            assertEquals(getNames(is), getNames(cis));
+            assertEquals(is.get(0).getSize().toString(), cis.get(0).getSize().toString());
+            assertEquals(i, cdd.indexOf(dd.get(i).getName()));
+        }
+    }
+
+    /**
+     * Sets size and mime-type of all images (as if they were identified).
+     */
+    protected void setSizes(DocuDirectory dd) {
+        for (int i = 0; i < dd.size(); ++i) {
+            ImageSet is = (ImageSet) dd.get(i);
+            for (int j = 0; j < is.size(); ++j) {
+                ImageInput ii = is.get(j);
+                ii.setSize(new ImageSize(4000 / (j + 1), 3000 / (j + 1) + i % 100));
+                ii.setMimetype(j == 0 ? "image/tiff" : "image/jpeg");
+            }
+        }
+    }
+
+    protected long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    protected void reportHeap(String name, long bytes) {
+        System.out.println(String.format("DirectoryScanBenchmark: %-32s %6d files in %8.1f MB heap", name, numFiles,
+                bytes / 1048576.0));
+    }
+
+    /**
+     * Reads the directory like BaseDirDocuDirectory did before.
+     */
+    protected List<ImageFileSet> readDirOld(String[] baseDirNames) {
+        File dir = new File(baseDirNames[0], dirName);
+        File[] allFiles = dir.listFiles();
+        Directory[] dirs = new Directory[baseDirNames.length];
+        dirs[0] = new Directory(dir);
+        for (int j = 1; j < baseDirNames.length; j++) {
+            File d = new File(baseDirNames[j], dirName);
+            if (d.isDirectory()) {
+                dirs[j] = new Directory(d);
+                String[] names = d.list();
+                Arrays.sort(names);
+                dirs[j].setFilenames(names);
+            }
+        }
+        File[] fileList = FileOps.listFiles(allFiles, FileOps.filterForClass(FileClass.IMAGE));
+        List<ImageFileSet> dl = new ArrayList<ImageFileSet>(fileList.length);
+        for (File f : fileList) {
+            dl.add(new ImageFileSet(f, dirs));
+        }
+        Collections.sort(dl);
+        return dl;
+    }
+
+    /**
+     * Creates the synthetic directories (if they do not exist).
+     *
+     * The original directory has tif files, the scaled directories have jpg
+     * files and miss some files.
+     */
+    protected String[] createDirs(File root) throws IOException {
+        String[] baseDirNames = new String[baseDirs.length];
+        for (int j = 0; j < baseDirs.length; ++j) {
+            File base = new File(root, baseDirs[j]);
+            baseDirNames[j] = base.getPath();
+            File dir = new File(base, dirName);
+            if (dir.isDirectory()) {
+                continue;
+            }
+            dir.mkdirs();
+            String ext = (j == 0) ? ".tif" : ".jpg";
+            for (int i = 0; i < numFiles; ++i) {
+                if (j > 0 && i % (10 * j) == 0) {
+                    // missing scaled image
+                    continue;
+                }
+                new File(dir, String.format("page-%06d%s", i, ext)).createNewFile();
+            }
+            // some non-image files
+            new File(dir, "index.meta").createNewFile();
+            if (j == 0) {
+                // (a text file in a scaled directory hides the image from the previous method)
+                new File(dir, "page-000001.txt").createNewFile();
+            }
+        }
+        return baseDirNames;
+    }
+
+    protected String getNames(ImageSet is) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < is.size(); ++i) {
+            ImageInput ii = is.get(i);
+            sb.append(ii.getFile().getPath()).append(";");
+        }
+        return sb.toString();
+    }
+
+    protected void report(String name, long nanos) {
+        System.out.println(String.format("DirectoryScanBenchmark: %-32s %6d files in %8.1f ms", name, numFiles,
+                nanos / 1e6));
+    }
+
+}
@@ -0,0 +1,149 @@
+package digilib.io;
+
+/*
+ * #%L
+ * DocuDirCacheTest -- tests for the cache of directories
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import digilib.conf.DigilibConfiguration;
+import digilib.io.FileOps.FileClass;
+import digilib.meta.DirMeta;
+import digilib.meta.FileMeta;
+import digilib.meta.IndexMetaDirMeta;
+import digilib.meta.IndexMetaFileMeta;
+import digilib.meta.MetaFactory;
+
+/**
+ * DocuDirCacheTest -- tests for the lookup of files and directories in DocuDirCache
+ */
+public class DocuDirCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    protected DigilibConfiguration dlConfig;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws IOException {
+        dlConfig = new DigilibConfiguration();
+        dlConfig.newParameter("basedir-list", new String[] { folder.getRoot().getPath() }, null, 'f');
+        dlConfig.newParameter("dir-cache-max-dirs", 0, null, 'f');
+        dlConfig.newParameter("dir-cache-max-files", 0, null, 'f');
+        dlConfig.newParameter("dir-cache-snapshot-file", "", null, 'f');
+        DocuDirectoryFactory.setDigilibConfig(dlConfig);
+        DocuDirectoryFactory.setDocuDirectoryClass((Class<DocuDirectory>) (Class<?>) BaseDirDocuDirectory.class);
+        MetaFactory.setDirMetaClass((Class<DirMeta>) (Class<?>) IndexMetaDirMeta.class);
+        MetaFactory.setFileMetaClass((Class<FileMeta>) (Class<?>) IndexMetaFileMeta.class);
+    }
+
+    /**
+     * Creates a directory with empty image files.
+     *
+     * @param path
+     * @param files
+     * @throws IOException
+     */
+    protected void createDir(String path, int files) throws IOException {
+        File dir = new File(folder.getRoot(), path);
+        dir.mkdirs();
+        for (int i = 1; i <= files; i++) {
+            new File(dir, String.format("%03d.jpg", i)).createNewFile();
+        }
+    }
+
+    @Test
+    public void testFileInCachedDirectory() throws IOException {
+        createDir("a/b", 3);
+        DocuDirCache cache = new DocuDirCache(FileClass.IMAGE, dlConfig);
+        DocuDirectory dd = cache.getDirectory("a/b");
+        assertNotNull(dd);
+        assertEquals(1, cache.getMisses());
+        int dirs = cache.size();
+        // a file in a cached directory is a hit
+        DocuDirent f = cache.getFile("a/b/002.jpg", 1);
+        assertEquals("002.jpg", f.getName());
+        assertSame(dd, cache.getDirectory("a/b/002.jpg"));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(dirs, cache.size());
+        // files that are not in the directory are not found
+        assertEquals(null, cache.getFile("a/b/009.jpg", 1));
+    }
+
+    @Test
+    public void testDirectoryWithNameOfFile() throws IOException {
+        createDir("a", 2);
+        createDir("a/001", 1);
+        DocuDirCache cache = new DocuDirCache(FileClass.IMAGE, dlConfig);
+        assertNotNull(cache.getDirectory("a"));
+        // a directory with the basename of a file is still a directory
+        DocuDirectory dd = cache.getDirectory("a/001");
+        assertEquals("a/001", dd.getDirName());
+        assertEquals("001.jpg", cache.getFile("a/001", 1).getName());
+        assertEquals("a/001", ((DocuDirectory) cache.getFile("a/001", 1).getParent()).getDirName());
+    }
+
+    @Test
+    public void testEvictedDirectoryNotWatched() throws IOException {
+        createDir("a", 2);
+        createDir("b", 2);
+        DirectoryWatcher watcher = new DirectoryWatcher();
+        DocuDirectory.setDirectoryWatcher(watcher);
+        try {
+            DocuDirCache cache = new DocuDirCache(FileClass.IMAGE, dlConfig);
+            DocuDirectory dd = cache.getDirectory("a");
+            assertTrue(dd.isWatched());
+            assertNotNull(cache.getDirectory("b"));
+            int watched = watcher.getSize();
+            // remove all directories but the parent from the cache
+            cache.evict(1, 0);
+            assertTrue(dd.isEvicted());
+            assertFalse(dd.isWatched());
+            assertTrue(watcher.getSize() < watched);
+            // a thread that still holds the evicted instance doesn't watch it again
+            int left = watcher.getSize();
+            dd.refresh();
+            assertFalse(dd.isWatched());
+            assertEquals(left, watcher.getSize());
+        } finally {
+            DocuDirectory.setDirectoryWatcher(null);
+            watcher.stop();
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package digilib.servlet;
+
+/*
+ * #%L
+ * CacheWarmerTest -- tests for the request counting of CacheWarmer
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * CacheWarmerTest -- tests for the selection of the most frequent requests
+ */
+public class CacheWarmerTest {
+
+    /** number of replayed requests (counts 20 times as many) */
+    private static final int MAX_REQUESTS = 5;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    protected static String hot(int i) {
+        return "/Scaler/hot/img" + i + ".jpg?dw=100";
+    }
+
+    protected static String tail(int i) {
+        return "/Scaler/tail/img" + i + ".jpg?dw=100";
+    }
+
+    protected List<String> readLog(File log) {
+        return new CacheWarmer(null, log, MAX_REQUESTS, 1, 0).readLog();
+    }
+
+    @Test
+    public void testHotRequestsEarlyInLog() throws IOException {
+        File log = tmp.newFile("early.log");
+        PrintWriter out = new PrintWriter(log, "UTF-8");
+        // hot requests at the start
+        for (int n = 0; n < 20; n++) {
+            for (int i = 0; i < MAX_REQUESTS; i++) {
+                out.println(hot(i));
+            }
+        }
+        // long tail of requests seen once or twice
+        for (int i = 0; i < 2000; i++) {
+            out.println(tail(i));
+            if (i % 3 == 0) {
+                out.println(tail(i));
+            }
+        }
+        out.close();
+        List<String> top = readLog(log);
+        assertEquals(MAX_REQUESTS, top.size());
+        for (int i = 0; i < MAX_REQUESTS; i++) {
+            assertTrue(hot(i) + " missing from " + top, top.contains(hot(i)));
+        }
+    }
+
+    @Test
+    public void testSpreadRequests() throws IOException {
+        File log = tmp.newFile("spread.log");
+        PrintWriter out = new PrintWriter(log, "UTF-8");
+        // frequent requests spread over a long tail
+        int t = 0;
+        for (int n = 0; n < 100; n++) {
+            for (int i = 0; i < MAX_REQUESTS; i++) {
+                out.println(hot(i));
+            }
+            for (int k = 0; k < 40; k++) {
+                out.println(tail(t++));
+            }
+        }
+        out.close();
+        List<String> top = readLog(log);
+        assertEquals(new HashSet<String>(Arrays.asList(hot(0), hot(1), hot(2), hot(3), hot(4))),
+                new HashSet<String>(top));
+    }
+
+    @Test
+    public void testMostFrequentFirst() throws IOException {
+        File log = tmp.newFile("order.log");
+        PrintWriter out = new PrintWriter(log, "UTF-8");
+        for (int i = 0; i < MAX_REQUESTS; i++) {
+            for (int n = 0; n <= i; n++) {
+                out.println(hot(i));
+            }
+        }
+        out.close();
+        List<String> top = readLog(log);
+        assertEquals(Arrays.asList(hot(4), hot(3), hot(2), hot(1), hot(0)), top);
+    }
+
+}
@@ -0,0 +1,249 @@
+package digilib.servlet;
+
+/*
+ * #%L
+ * ServletOpsTest -- tests for the byte range handling of ServletOps
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+/**
+ * ServletOpsTest -- tests for the Range, If-Range and cache header handling of ServletOps
+ */
+public class ServletOpsTest {
+
+    /**
+     * Returns a HttpServletRequest that only has the given headers.
+     *
+     * @param headers
+     * @return
+     */
+    protected static HttpServletRequest request(final Map<String, String> headers) {
+        return (HttpServletRequest) Proxy.newProxyInstance(ServletOpsTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("getHeader")) {
+                            return headers.get(args[0]);
+                        }
+                        if (method.getName().equals("getMethod")) {
+                            return "GET";
+                        }
+                        if (method.getName().equals("getDateHeader")) {
+                            String value = headers.get(args[0]);
+                            if (value == null) {
+                                return -1L;
+                            }
+                            try {
+                                return httpDate().parse(value).getTime();
+                            } catch (java.text.ParseException e) {
+                                throw new IllegalArgumentException(value);
+                            }
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Returns a HttpServletResponse that records the headers in the given map.
+     *
+     * @param headers
+     * @return
+     */
+    protected static HttpServletResponse response(final Map<String, String> headers) {
+        return (HttpServletResponse) Proxy.newProxyInstance(ServletOpsTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("setHeader") || method.getName().equals("setDateHeader")) {
+                            headers.put((String) args[0], String.valueOf(args[1]));
+                            return null;
+                        }
+                        if (method.getName().equals("setStatus")) {
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    protected static SimpleDateFormat httpDate() {
+        SimpleDateFormat df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        df.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return df;
+    }
+
+    protected static HttpServletRequest ifRange(String value) {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("If-Range", value);
+        return request(headers);
+    }
+
+    @Test
+    public void testSingleRange() {
+        List<long[]> ranges = ServletOps.parseRanges("bytes=0-99", 1000);
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[] { 0, 99 }, ranges.get(0));
+    }
+
+    @Test
+    public void testOpenRange() {
+        List<long[]> ranges = ServletOps.parseRanges("bytes=900-", 1000);
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[] { 900, 999 }, ranges.get(0));
+    }
+
+    @Test
+    public void testSuffixRange() {
+        List<long[]> ranges = ServletOps.parseRanges("bytes=-100", 1000);
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[] { 900, 999 }, ranges.get(0));
+        // suffix longer than the entity
+        ranges = ServletOps.parseRanges("bytes=-2000", 1000);
+        assertArrayEquals(new long[] { 0, 999 }, ranges.get(0));
+    }
+
+    @Test
+    public void testEndBeyondLength() {
+        List<long[]> ranges = ServletOps.parseRanges("bytes=500-5000", 1000);
+        assertArrayEquals(new long[] { 500, 999 }, ranges.get(0));
+    }
+
+    @Test
+    public void testMergeRanges() {
+        // unsorted, overlapping and adjacent ranges
+        List<long[]> ranges = ServletOps.parseRanges("bytes=500-599, 0-99,50-149,150-199", 1000);
+        assertEquals(2, ranges.size());
+        assertArrayEquals(new long[] { 0, 199 }, ranges.get(0));
+        assertArrayEquals(new long[] { 500, 599 }, ranges.get(1));
+    }
+
+    @Test
+    public void testUnsatisfiableRange() {
+        List<long[]> ranges = ServletOps.parseRanges("bytes=1000-1099", 1000);
+        assertTrue(ranges.isEmpty());
+        ranges = ServletOps.parseRanges("bytes=-0", 1000);
+        assertTrue(ranges.isEmpty());
+    }
+
+    @Test
+    public void testInvalidRange() {
+        assertNull(ServletOps.parseRanges("items=0-99", 1000));
+        assertNull(ServletOps.parseRanges("bytes=99-0", 1000));
+        assertNull(ServletOps.parseRanges("bytes=abc-", 1000));
+        assertNull(ServletOps.parseRanges("bytes=100", 1000));
+    }
+
+    @Test
+    public void testTooManyRanges() {
+        StringBuilder sb = new StringBuilder("bytes=");
+        for (int i = 0; i <= ServletOps.MAX_RANGES; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(i * 10).append('-').append(i * 10 + 1);
+        }
+        assertNull(ServletOps.parseRanges(sb.toString(), 100000));
+    }
+
+    @Test
+    public void testNoIfRange() {
+        assertTrue(ServletOps.checkIfRange(request(new HashMap<String, String>()), "\"abc\"", 0));
+    }
+
+    @Test
+    public void testIfRangeEtag() {
+        assertTrue(ServletOps.checkIfRange(ifRange("\"abc\""), "\"abc\"", 0));
+        assertFalse(ServletOps.checkIfRange(ifRange("\"xyz\""), "\"abc\"", 0));
+        // weak tags never match
+        assertFalse(ServletOps.checkIfRange(ifRange("W/\"abc\""), "\"abc\"", 0));
+        assertFalse(ServletOps.checkIfRange(ifRange("\"abc\""), null, 0));
+    }
+
+    @Test
+    public void testIfRangeDate() {
+        long lastModified = 1500000000123L;
+        String date = httpDate().format(new Date(lastModified));
+        assertTrue(ServletOps.checkIfRange(ifRange(date), "\"abc\"", lastModified));
+        String other = httpDate().format(new Date(lastModified + 1000));
+        assertFalse(ServletOps.checkIfRange(ifRange(other), "\"abc\"", lastModified));
+        assertFalse(ServletOps.checkIfRange(ifRange("yesterday"), "\"abc\"", lastModified));
+    }
+
+    @Test
+    public void testPublicCacheHeaders() {
+        Map<String, String> headers = new HashMap<String, String>();
+        ServletOps.setCacheHeaders(response(headers), "\"abc\"", 1500000000123L, 3600, false);
+        assertEquals("\"abc\"", headers.get("ETag"));
+        assertEquals("1500000000000", headers.get("Last-Modified"));
+        assertEquals("max-age=3600", headers.get("Cache-Control"));
+        assertNull(headers.get("Vary"));
+    }
+
+    @Test
+    public void testAuthorizedRequestPrivateCacheHeaders() {
+        boolean oldPrivateCaching = ServletOps.privateCaching;
+        try {
+            // use-authorization is on
+            ServletOps.privateCaching = true;
+            Map<String, String> headers = new HashMap<String, String>();
+            ServletOps.setCacheHeaders(response(headers), "\"abc\"", 1500000000123L, 3600);
+            assertEquals("private, max-age=3600", headers.get("Cache-Control"));
+            assertEquals("Authorization, Cookie", headers.get("Vary"));
+            // no max-age still keeps shared caches out
+            headers.clear();
+            ServletOps.setCacheHeaders(response(headers), "\"abc\"", 1500000000123L, -1);
+            assertEquals("private", headers.get("Cache-Control"));
+            // 304 responses to authorized requests
+            headers.clear();
+            Map<String, String> reqHeaders = new HashMap<String, String>();
+            reqHeaders.put("If-None-Match", "\"abc\"");
+            HttpServletRequest request = request(reqHeaders);
+            assertTrue(ServletOps.sendNotModified(request, response(headers), "\"abc\"", 1500000000123L, 3600,
+                    ServletOps.logger));
+            assertEquals("private, max-age=3600", headers.get("Cache-Control"));
+        } finally {
+            ServletOps.privateCaching = oldPrivateCaching;
+        }
+    }
+
+}
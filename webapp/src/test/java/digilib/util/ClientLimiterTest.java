@@ -0,0 +1,141 @@
+package digilib.util;
+
+/*
+ * #%L
+ * ClientLimiterTest -- tests for the per-client limits of jobs
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * ClientLimiterTest -- tests for the job limit and token bucket of ClientLimiter
+ */
+public class ClientLimiterTest {
+
+    /**
+     * Moves the last refill of the client back in time.
+     *
+     * @param limiter
+     * @param key
+     * @param ms
+     */
+    protected static void age(ClientLimiter limiter, String key, long ms) {
+        synchronized (limiter) {
+            limiter.clients.get(key).lastRefill -= ms;
+        }
+    }
+
+    @Test
+    public void testMaxJobs() {
+        ClientLimiter limiter = new ClientLimiter(2, 0, 1);
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        // other clients are independent
+        assertTrue(limiter.tryAcquire("b"));
+        limiter.release("a");
+        assertTrue(limiter.tryAcquire("a"));
+        assertEquals(1, limiter.getRejected());
+    }
+
+    @Test
+    public void testBurst() {
+        ClientLimiter limiter = new ClientLimiter(0, 1, 3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire("a"));
+        }
+        assertFalse(limiter.tryAcquire("a"));
+        // releasing jobs doesn't refill the bucket
+        limiter.release("a");
+        assertFalse(limiter.tryAcquire("a"));
+        assertEquals(2, limiter.getRejected());
+    }
+
+    @Test
+    public void testRefill() {
+        ClientLimiter limiter = new ClientLimiter(0, 2, 2);
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        // half a second gives one token at 2 per second
+        age(limiter, "a", 500);
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        // the bucket never holds more than burst tokens
+        age(limiter, "a", 60000);
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+    }
+
+    @Test
+    public void testRetryAfter() {
+        ClientLimiter limiter = new ClientLimiter(0, 0.25, 1);
+        assertEquals(1, limiter.getRetryAfter("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        // one token takes 4 seconds
+        int retry = limiter.getRetryAfter("a");
+        assertTrue(retry >= 3 && retry <= 4);
+    }
+
+    @Test
+    public void testRemoveIdle() {
+        ClientLimiter limiter = new ClientLimiter(1, 1, 1);
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+        limiter.release("b");
+        age(limiter, "b", 2000);
+        limiter.removeIdle(System.currentTimeMillis());
+        // a still has a running job
+        assertNotNull(limiter.clients.get("a"));
+        assertNull(limiter.clients.get("b"));
+        assertEquals(1, limiter.getClients());
+    }
+
+    @Test
+    public void testJobCenterTicket() {
+        DigilibJobCenter<Object> center = new DigilibJobCenter<Object>(1, 10, false, "test");
+        center.setClientLimiter(new ClientLimiter(1, 0, 1));
+        try {
+            // unknown clients share one key
+            DigilibJobCenter.Ticket ticket = center.admit(null);
+            assertNotNull(ticket);
+            assertNull(center.admit(""));
+            ticket.release();
+            ticket.release();
+            ticket = center.admit(null);
+            assertNotNull(ticket);
+            assertNull(center.admit(null));
+        } finally {
+            center.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+package digilib.util;
+
+/*
+ * #%L
+ * DigilibJobCenterTest -- tests for the scheduling of jobs
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * DigilibJobCenterTest -- tests for the order of jobs in DigilibJobCenter
+ */
+public class DigilibJobCenterTest {
+
+    /** one megapixel */
+    private static final long MP = 1000000L;
+
+    private DigilibJobCenter<String> center;
+
+    private List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+    private List<Future<String>> results = new ArrayList<Future<String>>();
+
+    private CountDownLatch gate = new CountDownLatch(1);
+
+    /** Job with a cost that records its name. */
+    protected class NamedJob implements Callable<String>, CostAwareJob {
+        private String name;
+        private long cost;
+
+        public NamedJob(String name, long cost) {
+            this.name = name;
+            this.cost = cost;
+        }
+
+        public String call() throws Exception {
+            order.add(name);
+            return name;
+        }
+
+        public long getCost() {
+            return cost;
+        }
+    }
+
+    /** Job that blocks the thread until the gate opens. */
+    protected class GateJob implements Callable<String> {
+        public String call() throws Exception {
+            gate.await(10, TimeUnit.SECONDS);
+            return "gate";
+        }
+    }
+
+    /**
+     * Blocks the single thread of the job center so that the following jobs
+     * wait in the queue.
+     *
+     * @throws InterruptedException
+     */
+    protected void block() throws InterruptedException {
+        center.submit(new GateJob());
+        while (center.getRunningJobs() == 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Opens the gate and waits for all jobs.
+     *
+     * @throws Exception
+     */
+    protected void finish() throws Exception {
+        gate.countDown();
+        for (Future<String> f : results) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @After
+    public void shutdown() {
+        if (center != null) {
+            center.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFifo() throws Exception {
+        center = new DigilibJobCenter<String>(1, 100, false, "test");
+        block();
+        results.add(center.submit(new NamedJob("large", 20 * MP)));
+        results.add(center.submit(new NamedJob("small", MP / 10)));
+        results.add(center.submit(new NamedJob("medium", 2 * MP)));
+        assertEquals(3, center.getWaitingJobs());
+        finish();
+        assertEquals(Arrays.asList("large", "small", "medium"), order);
+    }
+
+    @Test
+    public void testCostOrder() throws Exception {
+        // one megapixel ages in 1000s
+        center = new DigilibJobCenter<String>(1, 100, false, "test", 1000, false);
+        block();
+        results.add(center.submit(new NamedJob("large", 20 * MP)));
+        results.add(center.submit(new NamedJob("small", MP / 10)));
+        results.add(center.submit(new NamedJob("medium", 2 * MP)));
+        finish();
+        assertEquals(Arrays.asList("small", "medium", "large"), order);
+        // the gate job is small
+        assertEquals(2, center.getQueueStats().get("small").getJobs());
+        assertEquals(1, center.getQueueStats().get("medium").getJobs());
+        assertEquals(1, center.getQueueStats().get("large").getJobs());
+    }
+
+    @Test
+    public void testFairQueuing() throws Exception {
+        center = new DigilibJobCenter<String>(1, 100, false, "test", 1000, true);
+        block();
+        for (int i = 1; i <= 3; i++) {
+            results.add(center.submit(new NamedJob("a" + i, MP), new DigilibJobCenter.Ticket("a", null)));
+        }
+        // b comes later but gets its turn after the first job of a
+        results.add(center.submit(new NamedJob("b1", MP), new DigilibJobCenter.Ticket("b", null)));
+        results.add(center.submit(new NamedJob("b2", MP), new DigilibJobCenter.Ticket("b", null)));
+        finish();
+        assertEquals(Arrays.asList("a1", "b1", "a2", "b2", "a3"), order);
+    }
+
+    @Test
+    public void testClientLimit() throws Exception {
+        center = new DigilibJobCenter<String>(1, 100, false, "test", 0, true);
+        center.setClientLimiter(new ClientLimiter(2, 0, 1));
+        block();
+        results.add(center.submit(new NamedJob("a1", MP), center.admit("a")));
+        results.add(center.submit(new NamedJob("a2", MP), center.admit("a")));
+        assertEquals(null, center.admit("a"));
+        finish();
+        // tickets are released when the jobs are finished
+        for (int i = 0; i < 1000 && center.getClientLimiter().getClients() > 0
+                && center.admit("a") == null; i++) {
+            Thread.sleep(1);
+        }
+        assertEquals(Arrays.asList("a1", "a2"), order);
+    }
+
+    @Test
+    public void testBackgroundLast() throws Exception {
+        center = new DigilibJobCenter<String>(1, 100, false, "test", 1000, true);
+        block();
+        results.add(center.submitBackground(new NamedJob("bg", MP / 10)));
+        results.add(center.submit(new NamedJob("live1", 20 * MP), new DigilibJobCenter.Ticket("a", null)));
+        results.add(center.submit(new NamedJob("live2", 20 * MP), new DigilibJobCenter.Ticket("a", null)));
+        // background jobs are not counted as waiting
+        assertEquals(2, center.getWaitingJobs());
+        finish();
+        assertEquals(Arrays.asList("live1", "live2", "bg"), order);
+        // background jobs are not counted in the queue statistics
+        assertEquals(1, center.getQueueStats().get("small").getJobs());
+        assertEquals(2, center.getQueueStats().get("large").getJobs());
+    }
+
+}
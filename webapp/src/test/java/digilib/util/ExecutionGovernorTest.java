@@ -0,0 +1,265 @@
+package digilib.util;
+
+/*
+ * #%L
+ * ExecutionGovernorTest -- tests for the global limit of CPU-heavy jobs
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * ExecutionGovernorTest -- tests for ExecutionGovernor and its use by DigilibJobCenter
+ */
+public class ExecutionGovernorTest {
+
+    /** Job that counts concurrently running jobs and records its name. */
+    protected static class CountingJob implements Callable<String> {
+        private String name;
+        private AtomicInteger running;
+        private AtomicInteger maxRunning;
+        private List<String> order;
+        private CountDownLatch gate;
+
+        public CountingJob(String name, AtomicInteger running, AtomicInteger maxRunning, List<String> order,
+                CountDownLatch gate) {
+            this.name = name;
+            this.running = running;
+            this.maxRunning = maxRunning;
+            this.order = order;
+            this.gate = gate;
+        }
+
+        public String call() throws Exception {
+            int r = running.incrementAndGet();
+            synchronized (maxRunning) {
+                maxRunning.set(Math.max(maxRunning.get(), r));
+            }
+            order.add(name);
+            if (gate != null) {
+                gate.await(10, TimeUnit.SECONDS);
+            } else {
+                Thread.sleep(5);
+            }
+            running.decrementAndGet();
+            return name;
+        }
+    }
+
+    @Test
+    public void testMaxJobs() throws Exception {
+        ExecutionGovernor governor = new ExecutionGovernor(2);
+        DigilibJobCenter<String> a = new DigilibJobCenter<String>(3, 100, false, "a");
+        DigilibJobCenter<String> b = new DigilibJobCenter<String>(3, 100, false, "b");
+        a.setGovernor(governor, 1);
+        b.setGovernor(governor, 1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        try {
+            for (int i = 0; i < 20; i++) {
+                results.add(a.submit(new CountingJob("a" + i, running, maxRunning, order, null)));
+                results.add(b.submit(new CountingJob("b" + i, running, maxRunning, order, null)));
+            }
+            for (Future<String> f : results) {
+                f.get(10, TimeUnit.SECONDS);
+            }
+            assertTrue(maxRunning.get() <= 2);
+            // slots are returned after the result is set
+            for (int i = 0; i < 1000 && governor.getRunning() > 0; i++) {
+                Thread.sleep(1);
+            }
+            assertEquals(0, governor.getRunning());
+            assertEquals(20, a.getGovernor().getJobs());
+            assertEquals(20, b.getGovernor().getJobs());
+        } finally {
+            a.shutdownNow();
+            b.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSuspendSlot() throws Exception {
+        ExecutionGovernor governor = new ExecutionGovernor(1);
+        DigilibJobCenter<String> a = new DigilibJobCenter<String>(2, 100, false, "a");
+        a.setGovernor(governor, 1);
+        final CountDownLatch done = new CountDownLatch(1);
+        try {
+            assertFalse(DigilibJobCenter.suspendSlot());
+            Future<String> waiting = a.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    // give back the slot while waiting for the other job
+                    assertTrue(DigilibJobCenter.suspendSlot());
+                    boolean ok = done.await(10, TimeUnit.SECONDS);
+                    DigilibJobCenter.resumeSlot();
+                    return ok ? "waiting" : "timeout";
+                }
+            });
+            Future<String> other = a.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    done.countDown();
+                    return "other";
+                }
+            });
+            assertEquals("other", other.get(10, TimeUnit.SECONDS));
+            assertEquals("waiting", waiting.get(10, TimeUnit.SECONDS));
+            for (int i = 0; i < 1000 && governor.getRunning() > 0; i++) {
+                Thread.sleep(1);
+            }
+            assertEquals(0, governor.getRunning());
+        } finally {
+            a.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWeights() throws Exception {
+        ExecutionGovernor governor = new ExecutionGovernor(1);
+        ExecutionGovernor.Subsystem a = governor.register("a", 3);
+        ExecutionGovernor.Subsystem b = governor.register("b", 1);
+        // both subsystems always have waiting jobs from several threads
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<Thread>();
+        governor.register("blocker", 1).acquire();
+        for (final ExecutionGovernor.Subsystem s : new ExecutionGovernor.Subsystem[] { a, a, a, a, b, b, b, b }) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 6; i++) {
+                            s.acquire();
+                            order.add(s.getName());
+                            s.release(1);
+                        }
+                    } catch (InterruptedException e) {
+                        // end
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        // wait until both wait for the blocked slot
+        while (a.getWaiting() == 0 || b.getWaiting() == 0) {
+            Thread.sleep(1);
+        }
+        governor.getSubsystems().get(2).release(1);
+        for (Thread t : threads) {
+            t.join(10000);
+        }
+        // a gets three turns for every turn of b while both wait
+        List<String> first = order.subList(0, 16);
+        int turns = Collections.frequency(first, "a");
+        assertTrue(turns >= 11 && turns <= 13);
+    }
+
+    @Test
+    public void testJobsWaitInQueue() throws Exception {
+        ExecutionGovernor governor = new ExecutionGovernor(1);
+        DigilibJobCenter<String> center = new DigilibJobCenter<String>(2, 100, false, "test", 1000000, false);
+        center.setGovernor(governor, 1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = new CountDownLatch(1);
+        try {
+            Future<String> first = center.submit(new CountingJob("first", running, maxRunning, order, gate));
+            while (running.get() == 0) {
+                Thread.sleep(1);
+            }
+            // jobs that wait for the slot stay in the queue in cost order
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 3; i > 0; i--) {
+                final long cost = i * 1000000L;
+                results.add(center.submit(new CostJob("job" + i, cost, running, maxRunning, order)));
+            }
+            Thread.sleep(50);
+            assertEquals(3, center.getWaitingJobs());
+            assertEquals(1, governor.getRunning());
+            gate.countDown();
+            first.get(10, TimeUnit.SECONDS);
+            for (Future<String> f : results) {
+                f.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(1, maxRunning.get());
+            assertEquals(Arrays.asList("first", "job1", "job2", "job3"), order);
+            assertEquals(0, center.getWaitingJobs());
+        } finally {
+            center.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInterruptedThreadDoesNotRunJob() throws Exception {
+        ExecutionGovernor governor = new ExecutionGovernor(1);
+        ExecutionGovernor.Subsystem blocker = governor.register("blocker", 1);
+        DigilibJobCenter<String> center = new DigilibJobCenter<String>(1, 100, false, "test");
+        center.setGovernor(governor, 1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        blocker.acquire();
+        try {
+            Future<String> job = center.submit(new CountingJob("job", running, maxRunning, order, null));
+            Thread.sleep(50);
+            assertEquals(1, center.getWaitingJobs());
+            // stopping the threads leaves the job in the queue
+            List<Runnable> waiting = center.shutdownNow();
+            assertEquals(1, waiting.size());
+            Thread.sleep(50);
+            assertTrue(order.isEmpty());
+            assertFalse(job.isDone());
+            assertEquals(1, governor.getRunning());
+        } finally {
+            blocker.release(0);
+        }
+    }
+
+    /** CountingJob with a cost. */
+    protected static class CostJob extends CountingJob implements CostAwareJob {
+        private long cost;
+
+        public CostJob(String name, long cost, AtomicInteger running, AtomicInteger maxRunning, List<String> order) {
+            super(name, running, maxRunning, order, null);
+            this.cost = cost;
+        }
+
+        public long getCost() {
+            return cost;
+        }
+    }
+
+}
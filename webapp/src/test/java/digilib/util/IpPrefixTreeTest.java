@@ -0,0 +1,104 @@
+package digilib.util;
+
+/*
+ * #%L
+ * IpPrefixTreeTest -- tests for the radix tree of IP address prefixes
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * IpPrefixTreeTest -- tests for CIDR and IPv6 matching of IpPrefixTree
+ */
+public class IpPrefixTreeTest {
+
+    private static IpPrefixTree tree;
+
+    @BeforeClass
+    public static void createTree() {
+        Map<String, String> table = new HashMap<String, String>();
+        table.put("130.92.64.0/21", "uni");
+        table.put("130.92.68.0/24", "lib");
+        table.put("130.92.68.17", "admin");
+        table.put("141.14", "mpiwg");
+        table.put("2001:db8::/32", "doc6");
+        table.put("2001:db8:1:2::/64", "net6,lab6");
+        table.put("::1", "local6");
+        table.put("0.0.0.0/0", "all4");
+        table.put("not-an-address", "ignored");
+        table.put("10.0.0.0/33", "ignored");
+        tree = new IpPrefixTree(table, ",");
+    }
+
+    @Test
+    public void testCidr() {
+        assertEquals(Arrays.asList("all4", "uni"), tree.match("130.92.64.1"));
+        assertEquals(Arrays.asList("all4", "uni"), tree.match("130.92.71.255"));
+        assertEquals(Arrays.asList("all4"), tree.match("130.92.72.1"));
+    }
+
+    @Test
+    public void testNestedPrefixes() {
+        // shortest prefix first
+        assertEquals(Arrays.asList("all4", "uni", "lib"), tree.match("130.92.68.1"));
+        assertEquals(Arrays.asList("all4", "uni", "lib", "admin"), tree.match("130.92.68.17"));
+    }
+
+    @Test
+    public void testPartialAddress() {
+        assertEquals(Arrays.asList("all4", "mpiwg"), tree.match("141.14.233.9"));
+        assertEquals(Arrays.asList("all4"), tree.match("141.15.0.1"));
+    }
+
+    @Test
+    public void testIp6() {
+        assertEquals(Arrays.asList("doc6"), tree.match("2001:db8::1"));
+        assertEquals(Arrays.asList("doc6", "net6", "lab6"), tree.match("2001:db8:1:2:a:b:c:d"));
+        assertEquals(Arrays.asList("doc6"), tree.match("2001:db8:1:3::"));
+        assertEquals(Arrays.asList("local6"), tree.match("0:0:0:0:0:0:0:1"));
+        assertNull(tree.match("2001:db9::1"));
+    }
+
+    @Test
+    public void testIp4DoesNotMatchIp6() {
+        // 0.0.0.0/0 is only for IPv4
+        assertNull(tree.match("::2"));
+    }
+
+    @Test
+    public void testInvalidAddress() {
+        assertNull(tree.match(null));
+        assertNull(tree.match("130.92.300.1"));
+        assertNull(tree.match("2001:db8::1::2"));
+        assertNull(tree.match("localhost"));
+    }
+
+}
@@ -0,0 +1,88 @@
+package digilib.util;
+
+/*
+ * #%L
+ * PoolSizeControllerTest -- tests for the adaptive size of thread pools
+ *
+ * Digital Image Library servlet components
+ *
+ * %%
+ * Copyright (C) 2026 digilib Community
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * PoolSizeControllerTest -- tests for the latency gradient of PoolSizeController
+ */
+public class PoolSizeControllerTest {
+
+    /** cost of a small job */
+    private static final long MP = 1000000;
+
+    /**
+     * Adds samples of jobs and adjusts the size (CPU load is never above the target).
+     *
+     * @param sizer
+     * @param runTime
+     * @param cost
+     */
+    protected static void interval(PoolSizeController sizer, long runTime, long cost) {
+        for (int i = 0; i < 10; i++) {
+            sizer.addSample(runTime, cost, 0);
+        }
+        synchronized (sizer) {
+            sizer.lastUpdate -= sizer.getInterval();
+        }
+        sizer.update(0);
+    }
+
+    @Test
+    public void testLargerJobsDontShrink() {
+        PoolSizeController sizer = new PoolSizeController(8, 1, 16, 1.1, 1000);
+        interval(sizer, 100, MP);
+        assertEquals(8, sizer.getSize());
+        // four times the cost takes four times as long
+        interval(sizer, 400, 4 * MP);
+        assertEquals(1.0, sizer.getLastGradient(), 0.001);
+        assertEquals(8, sizer.getSize());
+    }
+
+    @Test
+    public void testSlowerJobsShrink() {
+        PoolSizeController sizer = new PoolSizeController(8, 1, 16, 1.1, 1000);
+        interval(sizer, 100, MP);
+        // same cost takes four times as long
+        interval(sizer, 400, MP);
+        assertEquals(0.5, sizer.getLastGradient(), 0.001);
+        assertTrue(sizer.getSize() < 8);
+    }
+
+    @Test
+    public void testJobsWithoutCost() {
+        PoolSizeController sizer = new PoolSizeController(8, 1, 16, 1.1, 1000);
+        interval(sizer, 100, 0);
+        interval(sizer, 400, 0);
+        assertEquals(0.5, sizer.getLastGradient(), 0.001);
+        assertTrue(sizer.getSize() < 8);
+    }
+
+}